@@ -0,0 +1,178 @@
+package com.mordred.mordredrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Creates and configures the encoders of the next recording ahead of time, e.g. while
+ * {@link MainActivity} is in front, so that starting a recording does not wait for codec
+ * components to load. Each pre-warmed encoder is handed out once; those no recording takes
+ * within {@link #PREWARM_TIMEOUT_MS} are released, since hardware encoder instances are few.
+ */
+final class CodecPrewarmer {
+
+    private static final String TAG = "CodecPrewarmer";
+
+    static final long PREWARM_TIMEOUT_MS = 30000;
+
+    private static final class Entry {
+        final String name;
+        final String mime;
+        final MediaCodec codec;
+        // MediaFormat has no equals, formats built by the same code print the same
+        final String format;
+        final long createdAtMs;
+
+        Entry(String name, String mime, MediaCodec codec, String format, long createdAtMs) {
+            this.name = name;
+            this.mime = mime;
+            this.codec = codec;
+            this.format = format;
+            this.createdAtMs = createdAtMs;
+        }
+
+        boolean matches(String name, String mime) {
+            return name != null ? name.equals(this.name) : this.name == null && mime.equals(this.mime);
+        }
+    }
+
+    private final Handler handler;
+    private final List<Entry> entries = new ArrayList<>();
+
+    private final Runnable expire = new Runnable() {
+        @Override
+        public void run() {
+            final long now = SystemClock.elapsedRealtime();
+            final List<Entry> expired = new ArrayList<>();
+            synchronized (CodecPrewarmer.this) {
+                for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+                    final Entry entry = it.next();
+                    if (now - entry.createdAtMs >= PREWARM_TIMEOUT_MS) {
+                        expired.add(entry);
+                        it.remove();
+                    }
+                }
+            }
+            for (Entry entry : expired) {
+                Log.i(TAG, "Releasing unused " + (entry.name != null ? entry.name : entry.mime));
+                entry.codec.release();
+            }
+        }
+    };
+
+    CodecPrewarmer() {
+        final HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /** Runs {@code task} on the pre-warming thread, e.g. to pick what to pre-warm. */
+    void post(Runnable task) {
+        handler.post(task);
+    }
+
+    /**
+     * Creates the encoder named {@code name}, or the default encoder of {@code mime} if null,
+     * and configures it with {@code format}, on the pre-warming thread. Does nothing if such
+     * an encoder is pre-warmed already.
+     */
+    void prewarm(final String name, final String mime, final MediaFormat format) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                final String key = format.toString();
+                synchronized (CodecPrewarmer.this) {
+                    for (Entry entry : entries) {
+                        if (entry.matches(name, mime) && entry.format.equals(key)) {
+                            return;
+                        }
+                    }
+                }
+                final long startMs = SystemClock.elapsedRealtime();
+                MediaCodec codec = null;
+                try {
+                    codec = name != null ? MediaCodec.createByCodecName(name) : MediaCodec.createEncoderByType(mime);
+                    codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                } catch (IOException | RuntimeException e) {
+                    Log.w(TAG, "Cannot pre-warm " + (name != null ? name : mime), e);
+                    if (codec != null) {
+                        codec.release();
+                    }
+                    return;
+                }
+                final long now = SystemClock.elapsedRealtime();
+                Log.i(TAG, "Pre-warmed " + (name != null ? name : mime) + " in " + (now - startMs) + " ms");
+                synchronized (CodecPrewarmer.this) {
+                    entries.add(new Entry(name, mime, codec, key, now));
+                }
+                handler.postDelayed(expire, PREWARM_TIMEOUT_MS);
+            }
+        });
+    }
+
+    /**
+     * Returns the pre-warmed encoder for {@code name}, or {@code mime} if null, if it was
+     * configured with {@code format}, or null. The encoder is configured but not started.
+     */
+    synchronized MediaCodec takeConfigured(String name, String mime, MediaFormat format) {
+        final String key = format.toString();
+        for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (entry.matches(name, mime) && entry.format.equals(key)) {
+                it.remove();
+                return entry.codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a pre-warmed encoder for {@code name}, or {@code mime} if null, reset so that
+     * it can be configured afresh, or null. Creating the codec is the slow part.
+     */
+    MediaCodec take(String name, String mime) {
+        Entry taken = null;
+        synchronized (this) {
+            for (Iterator<Entry> it = entries.iterator(); it.hasNext(); ) {
+                final Entry entry = it.next();
+                if (entry.matches(name, mime)) {
+                    it.remove();
+                    taken = entry;
+                    break;
+                }
+            }
+        }
+        if (taken == null) {
+            return null;
+        }
+        try {
+            taken.codec.reset();
+            return taken.codec;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot reset pre-warmed " + taken.codec.getName(), e);
+            taken.codec.release();
+            return null;
+        }
+    }
+
+    /** Releases every pre-warmed encoder. */
+    void releaseAll() {
+        final List<Entry> released;
+        synchronized (this) {
+            released = new ArrayList<>(entries);
+            entries.clear();
+        }
+        for (Entry entry : released) {
+            entry.codec.release();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.mordred.mordredrecorder;
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import com.mordred.mordredrecorder.core.EncoderCapabilities;
+import com.mordred.mordredrecorder.core.EncoderCapabilitiesCache;
+import com.mordred.mordredrecorder.core.TrackFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Probes the video encoders of the device through {@link MediaCodecList}. The result is
+ * cached in the app's files, keyed by the build fingerprint, so the probe runs once per
+ * device and OS build.
+ */
+public class EncoderCapabilityProbe {
+
+    private static final String TAG = "EncoderCapabilityProbe";
+
+    private static final String CACHE_FILE = "encoder_capabilities.tsv";
+    private static final String[] MIMES = {TrackFormat.MIME_HEVC, TrackFormat.MIME_AVC};
+    // the frame rates reported for these sizes bound the block rate of an encoder
+    private static final int[][] PROBE_SIZES = {
+            {3840, 2160}, {2560, 1440}, {1920, 1080}, {1280, 720}, {960, 540}, {640, 360}};
+
+    private EncoderCapabilityProbe() {
+    }
+
+    /** Returns the cached capabilities, probing and caching them first if needed. */
+    public static List<EncoderCapabilities> load(Context context) {
+        final File file = new File(context.getFilesDir(), CACHE_FILE);
+        try {
+            final List<EncoderCapabilities> cached = EncoderCapabilitiesCache.read(file, Build.FINGERPRINT);
+            if (cached != null) {
+                return cached;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + file + ", probing again", e);
+        }
+        final List<EncoderCapabilities> encoders = probe();
+        for (EncoderCapabilities encoder : encoders) {
+            Log.i(TAG, "Probed " + encoder);
+        }
+        try {
+            EncoderCapabilitiesCache.write(file, Build.FINGERPRINT, encoders);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + file, e);
+        }
+        return encoders;
+    }
+
+    static List<EncoderCapabilities> probe() {
+        final List<EncoderCapabilities> encoders = new ArrayList<>();
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder() || info.isAlias()) {
+                continue;
+            }
+            for (String type : info.getSupportedTypes()) {
+                for (String mime : MIMES) {
+                    if (mime.equalsIgnoreCase(type)) {
+                        try {
+                            encoders.add(describe(info, mime));
+                        } catch (RuntimeException e) {
+                            Log.w(TAG, "Cannot query " + info.getName(), e);
+                        }
+                    }
+                }
+            }
+        }
+        return encoders;
+    }
+
+    private static EncoderCapabilities describe(MediaCodecInfo info, String mime) {
+        final MediaCodecInfo.VideoCapabilities video = info.getCapabilitiesForType(mime).getVideoCapabilities();
+        final int maxWidth = video.getSupportedWidths().getUpper();
+        final int maxHeight = video.getSupportedHeights().getUpper();
+        int maxBlocks = 0;
+        long maxBlocksPerSecond = 0;
+        for (int[] size : PROBE_SIZES) {
+            if (!video.isSizeSupported(size[0], size[1])) {
+                continue;
+            }
+            final int blocks = EncoderCapabilities.blocks(size[0], size[1]);
+            maxBlocks = Math.max(maxBlocks, blocks);
+            // measured rates where the vendor published them, the codec level limits otherwise
+            final Range<Double> achievable = video.getAchievableFrameRatesFor(size[0], size[1]);
+            final double frameRate = achievable != null ? achievable.getUpper()
+                    : video.getSupportedFrameRatesFor(size[0], size[1]).getUpper();
+            maxBlocksPerSecond = Math.max(maxBlocksPerSecond, (long) (blocks * frameRate));
+        }
+        if (video.isSizeSupported(maxWidth, maxHeight)) {
+            maxBlocks = Math.max(maxBlocks, EncoderCapabilities.blocks(maxWidth, maxHeight));
+        }
+        return new EncoderCapabilities(info.getName(), mime, info.isHardwareAccelerated(),
+                video.getWidthAlignment(), video.getHeightAlignment(), maxWidth, maxHeight,
+                maxBlocks, maxBlocksPerSecond,
+                video.getBitrateRange().getLower(), video.getBitrateRange().getUpper());
+    }
+}
@@ -5,20 +5,22 @@ import androidx.core.app.ActivityCompat;
 
 import android.Manifest;
 import android.app.Activity;
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.media.projection.MediaProjectionManager;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.widget.CompoundButton;
 import android.widget.CompoundButton.OnCheckedChangeListener;
 import android.widget.Toast;
 import android.widget.ToggleButton;
 
-import java.lang.ref.WeakReference;
+import com.mordred.mordredrecorder.core.RecordingStatus;
+import com.mordred.mordredrecorder.core.StatusCoalescer;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -29,7 +31,8 @@ public class MainActivity extends AppCompatActivity {
 
     private ToggleButton mRecordButton;
     private ToggleButton mPauseButton;
-    private MyBroadcastReceiver mReceiver;
+    private RecorderService.RecorderBinder mRecorder;
+    private boolean mResumed;
 
     private static final int REQUEST_PERM_CONSTANT = 154;
 
@@ -48,28 +51,67 @@ public class MainActivity extends AppCompatActivity {
         mRecordButton = (ToggleButton)findViewById(R.id.record_button);
         mPauseButton = (ToggleButton)findViewById(R.id.pause_button);
         updateRecording(false, false);
-        if (mReceiver == null) {
-            mReceiver = new MyBroadcastReceiver(this);
-        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (DEBUG) Log.v(TAG, "onStart:");
+        bindService(new Intent(this, RecorderService.class), mConnection, Context.BIND_AUTO_CREATE);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
-        if (DEBUG) Log.v(TAG, "onResume:");
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(RecorderService.ACTION_QUERY_STATUS_RESULT);
-        registerReceiver(mReceiver, intentFilter);
-        queryRecordingStatus();
+        mResumed = true;
+        // the user is likely to start recording from here, have the encoders ready
+        if (mRecorder != null) {
+            mRecorder.prewarm();
+        }
     }
 
     @Override
     protected void onPause() {
-        if (DEBUG) Log.v(TAG, "onPause:");
-        unregisterReceiver(mReceiver);
+        mResumed = false;
         super.onPause();
     }
 
+    @Override
+    protected void onStop() {
+        if (DEBUG) Log.v(TAG, "onStop:");
+        if (mRecorder != null) {
+            mRecorder.removeStatusListener(mStatusListener);
+            mRecorder = null;
+        }
+        unbindService(mConnection);
+        super.onStop();
+    }
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(final ComponentName name, final IBinder service) {
+            mRecorder = (RecorderService.RecorderBinder) service;
+            mRecorder.addStatusListener(mStatusListener);
+            if (mResumed) {
+                mRecorder.prewarm();
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(final ComponentName name) {
+            mRecorder = null;
+        }
+    };
+
+    private final StatusCoalescer.Listener mStatusListener = new StatusCoalescer.Listener() {
+        @Override
+        public void onStatus(final RecordingStatus status) {
+            if (DEBUG) Log.v(TAG, "onStatus:" + status);
+            updateRecording(status.state != RecordingStatus.State.STOPPED,
+                    status.state == RecordingStatus.State.PAUSED);
+        }
+    };
+
     @Override
     protected void onActivityResult(final int requestCode, final int resultCode, final Intent data) {
         if (DEBUG) Log.v(TAG, "onActivityResult:resultCode=" + resultCode + ",data=" + data);
@@ -95,28 +137,35 @@ public class MainActivity extends AppCompatActivity {
                             = (MediaProjectionManager) getSystemService(Context.MEDIA_PROJECTION_SERVICE);
                     final Intent permissionIntent = manager.createScreenCaptureIntent();
                     startActivityForResult(permissionIntent, REQUEST_CODE_SCREEN_CAPTURE);
+                } else if (mRecorder != null) {
+                    mRecorder.stop();
+                }
+            } else if (buttonView.getId() == R.id.pause_button) {
+                if (DEBUG) Log.v(TAG, "onCheckedChangeListener, pause button pressed:" + isChecked);
+                if (mRecorder == null) {
+                    return;
+                }
+                if (isChecked) {
+                    mRecorder.pause();
                 } else {
-                    final Intent intent = new Intent(MainActivity.this, RecorderService.class);
-                    intent.setAction(RecorderService.ACTION_STOP);
-                    startService(intent);
+                    mRecorder.resume();
                 }
             }
         }
     };
 
-    private void queryRecordingStatus() {
-        if (DEBUG) Log.v(TAG, "queryRecording:");
-        final Intent intent = new Intent(this, RecorderService.class);
-        intent.setAction(RecorderService.ACTION_QUERY_STATUS);
-        startService(intent);
-    }
-
     private void startScreenRecorder(final int resultCode, final Intent data) {
-        final Intent intent = new Intent(this, RecorderService.class);
-        intent.setAction(RecorderService.ACTION_START);
-        intent.putExtra(RecorderService.EXTRA_RESULT_CODE, resultCode);
-        intent.putExtras(data);
-        startService(intent);
+        final Intent config = new Intent();
+        config.putExtra(RecorderService.EXTRA_RESULT_CODE, resultCode);
+        config.putExtras(data);
+        if (mRecorder != null) {
+            mRecorder.start(config);
+        } else {
+            final Intent intent = new Intent(this, RecorderService.class);
+            intent.setAction(RecorderService.ACTION_START);
+            intent.putExtras(config);
+            startService(intent);
+        }
     }
 
     private void updateRecording(final boolean isRecording, final boolean isPausing) {
@@ -133,27 +182,6 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private static final class MyBroadcastReceiver extends BroadcastReceiver {
-        private final WeakReference<MainActivity> mWeakParent;
-        public MyBroadcastReceiver(final MainActivity parent) {
-            mWeakParent = new WeakReference<MainActivity>(parent);
-        }
-
-        @Override
-        public void onReceive(final Context context, final Intent intent) {
-            if (DEBUG) Log.v(TAG, "onReceive:" + intent);
-            final String action = intent.getAction();
-            if (RecorderService.ACTION_QUERY_STATUS_RESULT.equals(action)) {
-                final boolean isRecording = intent.getBooleanExtra(RecorderService.EXTRA_QUERY_RESULT_RECORDING, false);
-                final boolean isPausing = intent.getBooleanExtra(RecorderService.EXTRA_QUERY_RESULT_PAUSING, false);
-                final MainActivity parent = mWeakParent.get();
-                if (parent != null) {
-                    parent.updateRecording(isRecording, isPausing);
-                }
-            }
-        }
-    }
-
     public static void verifyPermissions(Activity activity) {
         // Check if we have write permission
         int permission = ActivityCompat.checkSelfPermission(activity, Manifest.permission.WRITE_EXTERNAL_STORAGE);
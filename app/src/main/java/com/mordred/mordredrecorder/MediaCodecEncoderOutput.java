@@ -0,0 +1,132 @@
+package com.mordred.mordredrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+
+import com.mordred.mordredrecorder.core.EncoderCallback;
+import com.mordred.mordredrecorder.core.EncoderOutput;
+import com.mordred.mordredrecorder.core.SampleInfo;
+import com.mordred.mordredrecorder.core.TrackFormat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EncoderOutput} backed by a {@link MediaCodec} encoder, polled by the drain thread of
+ * this encoder or, after {@link #setCallback}, reporting to an {@link EncoderCallback}.
+ */
+public class MediaCodecEncoderOutput implements EncoderOutput {
+
+    private static final int MAX_INPUT_BUFFERS = 64;
+
+    private final MediaCodec codec;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private BlockingQueue<Integer> inputBuffers;
+
+    public MediaCodecEncoderOutput(MediaCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Switches the codec to asynchronous mode: output is reported to {@code callback} on the
+     * thread of {@code handler}, and input buffers are handed out by {@link #dequeueInputBuffer}.
+     * Must be called before the codec is configured.
+     */
+    public void setCallback(final EncoderCallback callback, Handler handler) {
+        final BlockingQueue<Integer> availableInputBuffers = new ArrayBlockingQueue<>(MAX_INPUT_BUFFERS);
+        final SampleInfo info = new SampleInfo();
+        codec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                availableInputBuffers.offer(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo bufferInfo) {
+                info.set(bufferInfo.offset, bufferInfo.size,
+                        mapPresentationTimeUs(bufferInfo.presentationTimeUs), bufferInfo.flags);
+                onOutputBuffer(info);
+                callback.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged(toTrackFormat(format));
+            }
+        }, handler);
+        inputBuffers = availableInputBuffers;
+    }
+
+    /**
+     * Returns the index of a free input buffer, or a negative value if none became free
+     * within {@code timeoutUs}. Works in both synchronous and asynchronous mode.
+     */
+    public int dequeueInputBuffer(long timeoutUs) throws InterruptedException {
+        if (inputBuffers == null) {
+            return codec.dequeueInputBuffer(timeoutUs);
+        }
+        final Integer index = inputBuffers.poll(timeoutUs, TimeUnit.MICROSECONDS);
+        return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        final int status = codec.dequeueOutputBuffer(bufferInfo, timeoutUs);
+        if (status >= 0) {
+            info.set(bufferInfo.offset, bufferInfo.size,
+                    mapPresentationTimeUs(bufferInfo.presentationTimeUs), bufferInfo.flags);
+            onOutputBuffer(info);
+        }
+        return status;
+    }
+
+    /** Maps the timestamp the codec reports to the presentation time of the sample. */
+    protected long mapPresentationTimeUs(long codecTimeUs) {
+        return codecTimeUs;
+    }
+
+    /** Called on the drain thread with every output buffer before it is drained. */
+    protected void onOutputBuffer(SampleInfo info) {
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return codec.getOutputBuffer(index);
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return toTrackFormat(codec.getOutputFormat());
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        codec.releaseOutputBuffer(index, false);
+    }
+
+    static TrackFormat toTrackFormat(MediaFormat format) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        int csdCount = 0;
+        while (format.containsKey("csd-" + csdCount)) {
+            csdCount++;
+        }
+        final ByteBuffer[] csd = new ByteBuffer[csdCount];
+        for (int i = 0; i < csdCount; i++) {
+            csd[i] = format.getByteBuffer("csd-" + i);
+        }
+        if (mime.startsWith("video/")) {
+            return TrackFormat.video(mime, format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT), csd);
+        }
+        return TrackFormat.audio(mime, format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), csd);
+    }
+}
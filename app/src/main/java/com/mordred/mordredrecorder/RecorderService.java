@@ -2,6 +2,11 @@ package com.mordred.mordredrecorder;
 
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Notification;
 import android.app.NotificationChannel;
@@ -10,16 +15,44 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.media.MediaFormat;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
+import android.os.Binder;
 import android.os.Environment;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Display;
+import android.view.WindowManager;
 
 import androidx.annotation.Nullable;
 
+import com.mordred.mordredrecorder.core.AudioFormatPlan;
+import com.mordred.mordredrecorder.core.CaptureRegion;
+import com.mordred.mordredrecorder.core.EncoderCapabilities;
+import com.mordred.mordredrecorder.core.FaststartProcessor;
+import com.mordred.mordredrecorder.core.MetricsSnapshot;
+import com.mordred.mordredrecorder.core.PostProcessingQueue;
+import com.mordred.mordredrecorder.core.QualityTier;
+import com.mordred.mordredrecorder.core.RecordingInfoProcessor;
+import com.mordred.mordredrecorder.core.RecordingJournal;
+import com.mordred.mordredrecorder.core.RecordingRecovery;
+import com.mordred.mordredrecorder.core.RecordingStatus;
+import com.mordred.mordredrecorder.core.RenditionPlanner;
+import com.mordred.mordredrecorder.core.SegmentNamer;
+import com.mordred.mordredrecorder.core.SegmentPolicy;
+import com.mordred.mordredrecorder.core.SilenceGate;
+import com.mordred.mordredrecorder.core.StatusCoalescer;
+import com.mordred.mordredrecorder.core.TimeSource;
+import com.mordred.mordredrecorder.core.TrackFormat;
+import com.mordred.mordredrecorder.core.VideoProfile;
+import com.mordred.mordredrecorder.core.VideoProfileSelector;
+
 
 public class RecorderService extends Service {
     private static final boolean DEBUG = true;
@@ -31,17 +64,86 @@ public class RecorderService extends Service {
     private static final String BASE = "com.mordred.mordredrecorder.RecorderService.";
     public static final String ACTION_START = BASE + "ACTION_START";
     public static final String ACTION_STOP = BASE + "ACTION_STOP";
+    public static final String ACTION_PAUSE = BASE + "ACTION_PAUSE";
+    public static final String ACTION_RESUME = BASE + "ACTION_RESUME";
     public static final String ACTION_QUERY_STATUS = BASE + "ACTION_QUERY_STATUS";
     public static final String ACTION_QUERY_STATUS_RESULT = BASE + "ACTION_QUERY_STATUS_RESULT";
+    public static final String ACTION_SAVE_REPLAY = BASE + "ACTION_SAVE_REPLAY";
+    public static final String ACTION_QUERY_METRICS = BASE + "ACTION_QUERY_METRICS";
+    public static final String ACTION_QUERY_METRICS_RESULT = BASE + "ACTION_QUERY_METRICS_RESULT";
+    // broadcast as the post-processing jobs of finished recordings progress
+    public static final String ACTION_POST_PROCESSING_PROGRESS = BASE + "ACTION_POST_PROCESSING_PROGRESS";
     public static final String EXTRA_RESULT_CODE = BASE + "EXTRA_RESULT_CODE";
     public static final String EXTRA_QUERY_RESULT_RECORDING = BASE + "EXTRA_QUERY_RESULT_RECORDING";
     public static final String EXTRA_QUERY_RESULT_PAUSING = BASE + "EXTRA_QUERY_RESULT_PAUSING";
+    // how the storage keeps up with the recording, a StorageStatus.Level name
+    public static final String EXTRA_QUERY_RESULT_STORAGE = BASE + "EXTRA_QUERY_RESULT_STORAGE";
+    // text snapshot of the pipeline metrics, one metric per line
+    public static final String EXTRA_QUERY_RESULT_METRICS = BASE + "EXTRA_QUERY_RESULT_METRICS";
+    // ACTION_POST_PROCESSING_PROGRESS extras: recording path, job type, percent done
+    // and the error message of a failed job
+    public static final String EXTRA_POST_PROCESSING_FILE = BASE + "EXTRA_POST_PROCESSING_FILE";
+    public static final String EXTRA_POST_PROCESSING_JOB = BASE + "EXTRA_POST_PROCESSING_JOB";
+    public static final String EXTRA_POST_PROCESSING_PERCENT = BASE + "EXTRA_POST_PROCESSING_PERCENT";
+    public static final String EXTRA_POST_PROCESSING_ERROR = BASE + "EXTRA_POST_PROCESSING_ERROR";
+    // optional ACTION_START extra, the name of a QualityTier; STANDARD by default
+    public static final String EXTRA_QUALITY_TIER = BASE + "EXTRA_QUALITY_TIER";
+    // optional ACTION_START extras, a recording is split into segments when either limit is set
+    public static final String EXTRA_SEGMENT_DURATION_SEC = BASE + "EXTRA_SEGMENT_DURATION_SEC";
+    public static final String EXTRA_SEGMENT_MAX_BYTES = BASE + "EXTRA_SEGMENT_MAX_BYTES";
+    // optional ACTION_START extras bounding the adaptive video bitrate, in bits per second
+    public static final String EXTRA_MIN_BITRATE = BASE + "EXTRA_MIN_BITRATE";
+    public static final String EXTRA_MAX_BITRATE = BASE + "EXTRA_MAX_BITRATE";
+    // optional ACTION_START extras for the audio track, see AudioFormatPlan for valid values
+    public static final String EXTRA_AUDIO_SAMPLE_RATE = BASE + "EXTRA_AUDIO_SAMPLE_RATE";
+    public static final String EXTRA_AUDIO_CHANNEL_COUNT = BASE + "EXTRA_AUDIO_CHANNEL_COUNT";
+    public static final String EXTRA_AUDIO_BITRATE = BASE + "EXTRA_AUDIO_BITRATE";
+    // optional ACTION_START extra: keep only the last bytes of the recording in memory,
+    // saved to a file on ACTION_SAVE_REPLAY, instead of recording to disk
+    public static final String EXTRA_REPLAY_BUFFER_BYTES = BASE + "EXTRA_REPLAY_BUFFER_BYTES";
+    // optional ACTION_START extras mixing the microphone into the captured audio
+    public static final String EXTRA_RECORD_MICROPHONE = BASE + "EXTRA_RECORD_MICROPHONE";
+    public static final String EXTRA_PLAYBACK_GAIN = BASE + "EXTRA_PLAYBACK_GAIN";
+    public static final String EXTRA_MICROPHONE_GAIN = BASE + "EXTRA_MICROPHONE_GAIN";
+    // optional ACTION_START extras: write silent frames instead of encoding audio that stays
+    // below both levels, in dBFS, for longer than the hangover
+    public static final String EXTRA_GATE_SILENCE = BASE + "EXTRA_GATE_SILENCE";
+    public static final String EXTRA_SILENCE_RMS_DBFS = BASE + "EXTRA_SILENCE_RMS_DBFS";
+    public static final String EXTRA_SILENCE_PEAK_DBFS = BASE + "EXTRA_SILENCE_PEAK_DBFS";
+    public static final String EXTRA_SILENCE_HANGOVER_MS = BASE + "EXTRA_SILENCE_HANGOVER_MS";
+    // optional ACTION_START extra: drive the encoders through MediaCodec callbacks
+    // instead of polling them
+    public static final String EXTRA_ASYNC_ENCODERS = BASE + "EXTRA_ASYNC_ENCODERS";
+    // optional ACTION_START extra: skip unchanged frames and slow capture down on a still screen
+    public static final String EXTRA_VARIABLE_FRAME_RATE = BASE + "EXTRA_VARIABLE_FRAME_RATE";
+    // optional ACTION_START extras: also stream MPEG-TS to viewers on this loopback port,
+    // reachable through adb forward, as a chunked HTTP response if EXTRA_LIVE_STREAM_HTTP is set
+    public static final String EXTRA_LIVE_STREAM_PORT = BASE + "EXTRA_LIVE_STREAM_PORT";
+    public static final String EXTRA_LIVE_STREAM_HTTP = BASE + "EXTRA_LIVE_STREAM_HTTP";
+    // optional ACTION_START extras: also record a proxy with at most this short side, e.g. 480,
+    // at this bitrate or scaled down from the recording's if unset
+    public static final String EXTRA_PROXY_SHORT_SIDE = BASE + "EXTRA_PROXY_SHORT_SIDE";
+    public static final String EXTRA_PROXY_BITRATE = BASE + "EXTRA_PROXY_BITRATE";
+    // optional ACTION_START extras: record only this part of the display, an int array of left,
+    // top, width and height in pixels of the display in its natural orientation, or in dp if
+    // EXTRA_CAPTURE_REGION_DP is set, at its own size instead of the whole display scaled down
+    public static final String EXTRA_CAPTURE_REGION = BASE + "EXTRA_CAPTURE_REGION";
+    public static final String EXTRA_CAPTURE_REGION_DP = BASE + "EXTRA_CAPTURE_REGION_DP";
     private static final int NOTIFICATION = R.string.app_name;
+    private static final String POST_PROCESSING_QUEUE_FILE = "postprocessing.txt";
+    private static final int POST_PROCESSING_WORKERS = 2;
 
     private MediaProjectionManager mMediaProjectionManager;
     private NotificationManager mNotificationManager;
+    private final RecorderBinder mBinder = new RecorderBinder();
 
     private static RecorderThread sMuxer;
+    // outlives the service, jobs cut short by the process dying resume on the next onCreate
+    private static PostProcessingQueue sPostProcessing;
+    // status of the current recording, delivered to bound clients on the main thread
+    private static StatusCoalescer sStatus;
+    // encoders of the next recording, configured while the app is in front
+    private static CodecPrewarmer sPrewarmer;
 
     public RecorderService() {
         super();
@@ -52,20 +154,224 @@ public class RecorderService extends Service {
         super.onCreate();
         if (DEBUG) Log.v(TAG, "onCreate:");
         mMediaProjectionManager = (MediaProjectionManager)getSystemService(Context.MEDIA_PROJECTION_SERVICE);
-        mNotificationManager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
-        showNotification(TAG);
+        if (sStatus == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            sStatus = new StatusCoalescer(new StatusCoalescer.Scheduler() {
+                @Override
+                public void schedule(Runnable task, long delayNs) {
+                    handler.postDelayed(task, delayNs / 1000000);
+                }
+            }, TimeSource.SYSTEM);
+        }
+        if (sPrewarmer == null) {
+            sPrewarmer = new CodecPrewarmer();
+        }
+        final boolean resumePostProcessing = sPostProcessing == null;
+        if (resumePostProcessing) {
+            sPostProcessing = createPostProcessingQueue();
+        }
+        recoverUnfinishedRecordings(resumePostProcessing);
+    }
+
+    /**
+     * Repairs recordings left behind by a killed process. The journals are listed here and
+     * repaired in the background, after which the post-processing left over from the last run
+     * resumes. Recordings this process is still writing, such as a replay being saved after
+     * the recorder was let go, keep their journals open and are skipped.
+     */
+    private void recoverUnfinishedRecordings(final boolean resumePostProcessing) {
+        final File outputDir = new File(Environment.getExternalStorageDirectory(), APP_DIR_NAME);
+        final List<File> recordings = outputDir.isDirectory()
+                ? RecordingRecovery.findUnfinished(outputDir) : Collections.<File>emptyList();
+        if (recordings.isEmpty() && !resumePostProcessing) {
+            return;
+        }
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (File recording : recordings) {
+                    try {
+                        final long durationUs = RecordingRecovery.recover(recording);
+                        Log.i(TAG, "Recovered " + durationUs / 1000 + " ms of " + recording);
+                        if (durationUs > 0) {
+                            sPostProcessing.enqueue(recording);
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Cannot recover " + recording, e);
+                        RecordingJournal.fileOf(recording).delete();
+                    }
+                }
+                if (resumePostProcessing) {
+                    try {
+                        sPostProcessing.resume();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Cannot resume post-processing", e);
+                    }
+                }
+            }
+        }, "RecordingRecovery").start();
+    }
+
+    /**
+     * Faststart rewrite, then info and thumbnails, which read the rewritten file. The workers
+     * run at background priority so they stay out of the way of a recording.
+     */
+    private PostProcessingQueue createPostProcessingQueue() {
+        final PostProcessingQueue queue = new PostProcessingQueue(
+                new File(getFilesDir(), POST_PROCESSING_QUEUE_FILE), POST_PROCESSING_WORKERS,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                runnable.run();
+                            }
+                        }, "PostProcessing-" + count.incrementAndGet());
+                    }
+                },
+                new FaststartProcessor(), new RecordingInfoProcessor(), new ThumbnailProcessor());
+        final Context context = getApplicationContext();
+        queue.setListener(new PostProcessingQueue.Listener() {
+            private String lastProgress;
+
+            @Override
+            public void onProgress(File recording, String type, long done, long total) {
+                final int percent = total > 0 ? (int) (done * 100 / total) : 0;
+                // one broadcast per percent
+                final String progress = recording + " " + type + " " + percent;
+                synchronized (this) {
+                    if (progress.equals(lastProgress)) {
+                        return;
+                    }
+                    lastProgress = progress;
+                }
+                sendPostProcessingProgress(context, recording, type, percent, null);
+            }
+
+            @Override
+            public void onFinished(File recording, String type) {
+                Log.i(TAG, "Post-processed " + recording + ": " + type);
+                sendPostProcessingProgress(context, recording, type, 100, null);
+            }
+
+            @Override
+            public void onFailed(File recording, String type, Exception error) {
+                Log.e(TAG, "Post-processing " + recording + " failed: " + type, error);
+                sendPostProcessingProgress(context, recording, type, 100, error);
+            }
+        });
+        return queue;
+    }
+
+    private static void sendPostProcessingProgress(Context context, File recording, String type,
+                                                   int percent, Exception error) {
+        final Intent result = new Intent();
+        result.setAction(ACTION_POST_PROCESSING_PROGRESS);
+        result.putExtra(EXTRA_POST_PROCESSING_FILE, recording.getPath());
+        result.putExtra(EXTRA_POST_PROCESSING_JOB, type);
+        result.putExtra(EXTRA_POST_PROCESSING_PERCENT, percent);
+        if (error != null) {
+            result.putExtra(EXTRA_POST_PROCESSING_ERROR, String.valueOf(error.getMessage()));
+        }
+        context.sendBroadcast(result);
     }
 
     @Override
     public void onDestroy() {
         if (DEBUG) Log.v(TAG, "onDestroy:");
+        if (sMuxer == null) {
+            sPrewarmer.releaseAll();
+        }
         super.onDestroy();
     }
 
+    /**
+     * API of the service for clients in this process, instead of {@link #ACTION_QUERY_STATUS}
+     * round trips through broadcasts. Call from the main thread.
+     */
+    public class RecorderBinder extends Binder {
+
+        /**
+         * Starts recording with the {@link #ACTION_START} extras in {@code config}: the
+         * screen capture permission result and the optional settings. The service is started
+         * as well as bound, so the recording outlives the binding.
+         */
+        public void start(Intent config) {
+            final Intent intent = new Intent(RecorderService.this, RecorderService.class);
+            intent.setAction(ACTION_START);
+            intent.putExtras(config);
+            startService(intent);
+        }
+
+        public void stop() {
+            stopScreenRecord();
+        }
+
+        /**
+         * Creates and configures the encoders a recording with the default settings would use,
+         * in the background, so that starting it does not wait for them. Does nothing while
+         * recording. Pre-warmed encoders no recording takes are released after a while.
+         */
+        public void prewarm() {
+            if (sMuxer != null) {
+                return;
+            }
+            // the size a recording captures, so that the formats match and it takes the encoders
+            final DisplayMetrics metrics = getCaptureMetrics(getDefaultDisplay());
+            sPrewarmer.post(new Runnable() {
+                @Override
+                public void run() {
+                    final VideoProfile profile = selectVideoProfile(new Intent(),
+                            metrics.widthPixels, metrics.heightPixels);
+                    sPrewarmer.prewarm(profile.encoderName, profile.mime, RecorderThread.videoFormatOf(profile, false));
+                    sPrewarmer.prewarm(null, MediaFormat.MIMETYPE_AUDIO_AAC,
+                            RecorderThread.audioFormatOf(AudioFormatPlan.defaults()));
+                }
+            });
+        }
+
+        public void pause() {
+            if (sMuxer != null) {
+                sMuxer.pauseRecording();
+            }
+        }
+
+        public void resume() {
+            if (sMuxer != null) {
+                sMuxer.resumeRecording();
+            }
+        }
+
+        public RecordingStatus getStatus() {
+            return sStatus.getLatest();
+        }
+
+        /** Current pipeline metrics, null when not recording. */
+        public MetricsSnapshot getMetricsSnapshot() {
+            return sMuxer != null ? sMuxer.getMetricsSnapshot() : null;
+        }
+
+        /**
+         * Calls {@code listener} on the main thread with the latest status, then with updates
+         * at most every {@link StatusCoalescer#DEFAULT_MIN_INTERVAL_NS}.
+         */
+        public void addStatusListener(StatusCoalescer.Listener listener) {
+            sStatus.addListener(listener);
+        }
+
+        public void removeStatusListener(StatusCoalescer.Listener listener) {
+            sStatus.removeListener(listener);
+        }
+    }
+
     @Nullable
     @Override
     public IBinder onBind(final Intent intent) {
-        return null;
+        return mBinder;
     }
 
     @Override
@@ -84,6 +390,22 @@ public class RecorderService extends Service {
             stopScreenRecord();
             updateStatus();
             result = START_NOT_STICKY;
+        } else if (ACTION_PAUSE.equals(action)) {
+            if (sMuxer != null) {
+                sMuxer.pauseRecording();
+            }
+            updateStatus();
+        } else if (ACTION_RESUME.equals(action)) {
+            if (sMuxer != null) {
+                sMuxer.resumeRecording();
+            }
+            updateStatus();
+        } else if (ACTION_SAVE_REPLAY.equals(action)) {
+            if (sMuxer == null || !sMuxer.saveReplay()) {
+                Log.w(TAG, "Not recording in replay mode");
+            }
+        } else if (ACTION_QUERY_METRICS.equals(action)) {
+            sendMetrics();
         } else if (ACTION_QUERY_STATUS.equals(action)) {
             Log.v(TAG, "onStartCommand:intent=" + "stopSelf");
             if (!updateStatus()) {
@@ -98,47 +420,210 @@ public class RecorderService extends Service {
     private boolean updateStatus() {
         final boolean isRecording;
         isRecording = (sMuxer != null);
+        final boolean isPausing = isRecording && sMuxer.isPaused();
         final Intent result = new Intent();
         result.setAction(ACTION_QUERY_STATUS_RESULT);
         result.putExtra(EXTRA_QUERY_RESULT_RECORDING, isRecording);
-        if (DEBUG) Log.v(TAG, "sendBroadcast:isRecording=" + isRecording);
+        result.putExtra(EXTRA_QUERY_RESULT_PAUSING, isPausing);
+        if (isRecording) {
+            result.putExtra(EXTRA_QUERY_RESULT_STORAGE, sMuxer.getStorageLevel().name());
+        }
+        if (DEBUG) Log.v(TAG, "sendBroadcast:isRecording=" + isRecording + ",isPausing=" + isPausing);
         sendBroadcast(result);
         return isRecording;
     }
 
+    private void sendMetrics() {
+        final Intent result = new Intent();
+        result.setAction(ACTION_QUERY_METRICS_RESULT);
+        if (sMuxer != null) {
+            result.putExtra(EXTRA_QUERY_RESULT_METRICS, sMuxer.getMetricsSnapshot().toString());
+        }
+        sendBroadcast(result);
+    }
+
     private void startScreenRecord(final Intent intent) {
+        if (mNotificationManager == null) {
+            // only in the foreground while recording, not while a client is merely bound
+            mNotificationManager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+            showNotification(TAG);
+        }
         if (sMuxer == null) {
             final int resultCode = intent.getIntExtra(EXTRA_RESULT_CODE, 0);
             // get MediaProjection
             final MediaProjection projection = mMediaProjectionManager.getMediaProjection(resultCode, intent);
             if (projection != null) {
-                final DisplayMetrics metrics = getResources().getDisplayMetrics();
-                int width = metrics.widthPixels;
-                int height = metrics.heightPixels;
-                if (width > height) {
-                    // Horizontal
-                    final float scale_x = width / 1920f;
-                    final float scale_y = height / 1080f;
-                    final float scale = Math.max(scale_x,  scale_y);
-                    width = (int)(width / scale);
-                    height = (int)(height / scale);
-                } else {
-                    // Vertical
-                    final float scale_x = width / 1080f;
-                    final float scale_y = height / 1920f;
-                    final float scale = Math.max(scale_x,  scale_y);
-                    width = (int)(width / scale);
-                    height = (int)(height / scale);
+                final Display display = getDefaultDisplay();
+                final DisplayMetrics metrics = getCaptureMetrics(display);
+                final VideoProfile displayProfile = selectVideoProfile(intent, metrics.widthPixels, metrics.heightPixels);
+                final CaptureRegion region = planCaptureRegion(intent, metrics, display.getRotation(), displayProfile);
+                final VideoProfile profile = region != null
+                        ? region.applyTo(displayProfile, findEncoder(displayProfile)) : displayProfile;
+                if (DEBUG) Log.v(TAG, String.format("startRecording:(%d,%d) %s", metrics.widthPixels, metrics.heightPixels, profile));
+                final File outputDir = new File(Environment.getExternalStorageDirectory(), APP_DIR_NAME);
+                if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+                    Log.e(TAG, "Cannot create output directory " + outputDir);
+                    return;
                 }
-                if (DEBUG) Log.v(TAG, String.format("startRecording:(%d,%d)(%d,%d)", metrics.widthPixels, metrics.heightPixels, width, height));
-                String outputtedFilePath = Environment.getExternalStorageDirectory().getAbsolutePath() + File.separator + "MyRecord.mp4";
-                sMuxer = new RecorderThread(projection, outputtedFilePath, width, height,
-                        calcBitRate(30, width, height));
+                final SegmentNamer namer = new SegmentNamer(outputDir, "Record", System.currentTimeMillis());
+                sMuxer = new RecorderThread(projection, namer, getSegmentPolicy(intent), profile);
+                sMuxer.setVideoBitrateBounds(intent.getIntExtra(EXTRA_MIN_BITRATE, profile.bitrate / 4),
+                        intent.getIntExtra(EXTRA_MAX_BITRATE, profile.bitrate));
+                sMuxer.setAudioFormat(getAudioFormat(intent));
+                sMuxer.setReplayBufferBytes(intent.getIntExtra(EXTRA_REPLAY_BUFFER_BYTES, 0));
+                sMuxer.setMicrophone(intent.getBooleanExtra(EXTRA_RECORD_MICROPHONE, false),
+                        intent.getFloatExtra(EXTRA_PLAYBACK_GAIN, 1f),
+                        intent.getFloatExtra(EXTRA_MICROPHONE_GAIN, 1f));
+                sMuxer.setSilenceGate(intent.getBooleanExtra(EXTRA_GATE_SILENCE, false),
+                        intent.getFloatExtra(EXTRA_SILENCE_RMS_DBFS, SilenceGate.DEFAULT_RMS_THRESHOLD_DBFS),
+                        intent.getFloatExtra(EXTRA_SILENCE_PEAK_DBFS, SilenceGate.DEFAULT_PEAK_THRESHOLD_DBFS),
+                        intent.getIntExtra(EXTRA_SILENCE_HANGOVER_MS, SilenceGate.DEFAULT_HANGOVER_MS));
+                sMuxer.setAsyncEncoders(intent.getBooleanExtra(EXTRA_ASYNC_ENCODERS, false));
+                sMuxer.setVariableFrameRate(intent.getBooleanExtra(EXTRA_VARIABLE_FRAME_RATE, false));
+                sMuxer.setLiveStream(intent.getIntExtra(EXTRA_LIVE_STREAM_PORT, 0),
+                        intent.getBooleanExtra(EXTRA_LIVE_STREAM_HTTP, false));
+                sMuxer.setCaptureRegion(region);
+                sMuxer.setProxies(planProxies(intent, profile));
+                sMuxer.setPostProcessing(sPostProcessing);
+                sMuxer.setStatus(sStatus);
+                sMuxer.setCodecPrewarmer(sPrewarmer);
                 sMuxer.startRecording();
             }
         }
     }
 
+    private Display getDefaultDisplay() {
+        return ((WindowManager) getSystemService(WINDOW_SERVICE)).getDefaultDisplay();
+    }
+
+    /** The size of {@code display} as the screen capture mirrors it, system bars included. */
+    private static DisplayMetrics getCaptureMetrics(final Display display) {
+        final DisplayMetrics metrics = new DisplayMetrics();
+        display.getRealMetrics(metrics);
+        return metrics;
+    }
+
+    /**
+     * Picks the encoder settings for the requested quality tier from the probed encoders, or
+     * falls back to fitting the display into 1080p at 30 fps with the default AVC encoder.
+     */
+    private VideoProfile selectVideoProfile(final Intent intent, int displayWidth, int displayHeight) {
+        QualityTier tier = QualityTier.STANDARD;
+        final String tierName = intent.getStringExtra(EXTRA_QUALITY_TIER);
+        if (tierName != null) {
+            try {
+                tier = QualityTier.valueOf(tierName);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown quality tier " + tierName + ", using " + tier);
+            }
+        }
+        // the muxers write AVC only, HEVC encoders are probed but not picked yet
+        final VideoProfile profile = new VideoProfileSelector(EncoderCapabilityProbe.load(this),
+                TrackFormat.MIME_AVC).select(displayWidth, displayHeight, tier);
+        if (profile != null) {
+            Log.i(TAG, "Recording " + tier + " as " + profile);
+            return profile;
+        }
+        Log.w(TAG, "No probed encoder fits, using the default AVC encoder");
+        int width = displayWidth;
+        int height = displayHeight;
+        if (width > height) {
+            // Horizontal
+            final float scale_x = width / 1920f;
+            final float scale_y = height / 1080f;
+            final float scale = Math.max(scale_x,  scale_y);
+            width = (int)(width / scale);
+            height = (int)(height / scale);
+        } else {
+            // Vertical
+            final float scale_x = width / 1080f;
+            final float scale_y = height / 1920f;
+            final float scale = Math.max(scale_x,  scale_y);
+            width = (int)(width / scale);
+            height = (int)(height / scale);
+        }
+        return new VideoProfile(null, TrackFormat.MIME_AVC, width, height, 30, calcBitRate(30, width, height),
+                VideoProfile.DEFAULT_KEY_FRAME_INTERVAL_SEC);
+    }
+
+    /** The proxy asked for, planned for the encoder of {@code master}, if any. */
+    private List<VideoProfile> planProxies(final Intent intent, final VideoProfile master) {
+        final int shortSide = intent.getIntExtra(EXTRA_PROXY_SHORT_SIDE, 0);
+        if (shortSide <= 0) {
+            return Collections.emptyList();
+        }
+        final VideoProfile proxy = new RenditionPlanner(findEncoder(master)).planProxy(master, shortSide,
+                RenditionPlanner.DEFAULT_PROXY_MAX_FRAME_RATE, intent.getIntExtra(EXTRA_PROXY_BITRATE, 0));
+        if (proxy == null) {
+            Log.w(TAG, "No proxy smaller than " + master + " at short side " + shortSide);
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(proxy);
+    }
+
+    /**
+     * The part of the display to record, sized for the encoder of {@code profile}, or null to
+     * record the whole display.
+     */
+    private CaptureRegion planCaptureRegion(final Intent intent, DisplayMetrics metrics, int rotation,
+                                            final VideoProfile profile) {
+        final int[] rect = intent.getIntArrayExtra(EXTRA_CAPTURE_REGION);
+        if (rect == null || rect.length != 4) {
+            return null;
+        }
+        if (intent.getBooleanExtra(EXTRA_CAPTURE_REGION_DP, false)) {
+            for (int i = 0; i < rect.length; i++) {
+                rect[i] = CaptureRegion.dpToPx(rect[i], metrics.densityDpi);
+            }
+        }
+        try {
+            final CaptureRegion region = CaptureRegion.plan(metrics.widthPixels, metrics.heightPixels, rotation,
+                    rect[0], rect[1], rect[2], rect[3], findEncoder(profile), profile.frameRate);
+            if (region == null) {
+                Log.w(TAG, "No encodable size for the capture region, recording the whole display");
+            } else {
+                Log.i(TAG, "Recording region " + region);
+            }
+            return region;
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Recording the whole display", e);
+            return null;
+        }
+    }
+
+    /** The probed capabilities of the encoder {@code profile} uses, or null if unknown. */
+    private EncoderCapabilities findEncoder(final VideoProfile profile) {
+        EncoderCapabilities encoder = null;
+        for (EncoderCapabilities capabilities : EncoderCapabilityProbe.load(this)) {
+            if (capabilities.name.equals(profile.encoderName) && capabilities.mime.equals(profile.mime)) {
+                encoder = capabilities;
+            }
+        }
+        return encoder;
+    }
+
+    private static SegmentPolicy getSegmentPolicy(final Intent intent) {
+        final long durationSec = intent.getIntExtra(EXTRA_SEGMENT_DURATION_SEC, 0);
+        final long maxBytes = intent.getLongExtra(EXTRA_SEGMENT_MAX_BYTES, 0);
+        if (durationSec <= 0 && maxBytes <= 0) {
+            return null;
+        }
+        return new SegmentPolicy(Math.max(durationSec, 0) * 1000000L, Math.max(maxBytes, 0));
+    }
+
+    private static AudioFormatPlan getAudioFormat(final Intent intent) {
+        final int sampleRate = intent.getIntExtra(EXTRA_AUDIO_SAMPLE_RATE, AudioFormatPlan.DEFAULT_SAMPLE_RATE);
+        final int channelCount = intent.getIntExtra(EXTRA_AUDIO_CHANNEL_COUNT, AudioFormatPlan.DEFAULT_CHANNEL_COUNT);
+        final int bitrate = intent.getIntExtra(EXTRA_AUDIO_BITRATE,
+                AudioFormatPlan.DEFAULT_BITRATE * channelCount / AudioFormatPlan.DEFAULT_CHANNEL_COUNT);
+        try {
+            return new AudioFormatPlan(sampleRate, channelCount, bitrate);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid audio format, using defaults: " + e.getMessage());
+            return AudioFormatPlan.defaults();
+        }
+    }
+
     protected int calcBitRate(final int frameRate, int width, int height) {
         final int bitrate = (int)(0.25f * frameRate * width * height);
         Log.i(TAG, String.format("bitrate=%5.2f[Mbps]", bitrate / 1024f / 1024f));
@@ -148,6 +633,7 @@ public class RecorderService extends Service {
     private void stopScreenRecord() {
         if (sMuxer != null) {
             sMuxer.stopRecording();
+            sMuxer = null;
         }
         stopForeground(true/*removeNotification*/);
         if (mNotificationManager != null) {
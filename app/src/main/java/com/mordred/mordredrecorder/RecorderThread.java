@@ -7,48 +7,199 @@ import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioPlaybackCaptureConfiguration;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.media.MediaRecorder;
 import android.media.projection.MediaProjection;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.Surface;
 
+import com.mordred.mordredrecorder.core.AimdBitrateController;
+import com.mordred.mordredrecorder.core.AudioClock;
+import com.mordred.mordredrecorder.core.AudioFormatPlan;
+import com.mordred.mordredrecorder.core.BitrateController;
+import com.mordred.mordredrecorder.core.CallbackDrain;
+import com.mordred.mordredrecorder.core.CallbackRecordingEngine;
+import com.mordred.mordredrecorder.core.CaptureRegion;
+import com.mordred.mordredrecorder.core.EncoderDrain;
+import com.mordred.mordredrecorder.core.FanOutMuxer;
+import com.mordred.mordredrecorder.core.FragmentedMp4Muxer;
+import com.mordred.mordredrecorder.core.IdleDetector;
+import com.mordred.mordredrecorder.core.InitGraph;
+import com.mordred.mordredrecorder.core.KeyframeIndex;
+import com.mordred.mordredrecorder.core.LatencyHistogram;
+import com.mordred.mordredrecorder.core.LiveStreamServer;
+import com.mordred.mordredrecorder.core.MediaClock;
+import com.mordred.mordredrecorder.core.MetricsFileDumper;
+import com.mordred.mordredrecorder.core.MetricsRegistry;
+import com.mordred.mordredrecorder.core.MetricsSnapshot;
+import com.mordred.mordredrecorder.core.MuxerFactory;
+import com.mordred.mordredrecorder.core.MuxerWriter;
+import com.mordred.mordredrecorder.core.PausableClock;
+import com.mordred.mordredrecorder.core.PausableMuxer;
+import com.mordred.mordredrecorder.core.PcmMixer;
+import com.mordred.mordredrecorder.core.PipelineLoad;
+import com.mordred.mordredrecorder.core.PipelineLoadSampler;
+import com.mordred.mordredrecorder.core.PollingRecordingEngine;
+import com.mordred.mordredrecorder.core.PostProcessingQueue;
+import com.mordred.mordredrecorder.core.RecordingEngine;
+import com.mordred.mordredrecorder.core.RecordingJournal;
+import com.mordred.mordredrecorder.core.RecordingStatus;
+import com.mordred.mordredrecorder.core.RenditionMuxer;
+import com.mordred.mordredrecorder.core.RenditionScheduler;
+import com.mordred.mordredrecorder.core.ReplayBuffer;
+import com.mordred.mordredrecorder.core.ResamplingJitterBuffer;
+import com.mordred.mordredrecorder.core.SampleInfo;
+import com.mordred.mordredrecorder.core.SampleMuxer;
+import com.mordred.mordredrecorder.core.SamplePool;
+import com.mordred.mordredrecorder.core.Segment;
+import com.mordred.mordredrecorder.core.SegmentManifest;
+import com.mordred.mordredrecorder.core.SegmentNamer;
+import com.mordred.mordredrecorder.core.SegmentPolicy;
+import com.mordred.mordredrecorder.core.SegmentingMuxer;
+import com.mordred.mordredrecorder.core.SilenceGate;
+import com.mordred.mordredrecorder.core.StatusCoalescer;
+import com.mordred.mordredrecorder.core.StorageMonitor;
+import com.mordred.mordredrecorder.core.StorageStatus;
+import com.mordred.mordredrecorder.core.StorageWriter;
+import com.mordred.mordredrecorder.core.TimeSource;
+import com.mordred.mordredrecorder.core.VideoProfile;
+
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class RecorderThread implements Runnable {
 
     private static final String TAG = "RecorderThread";
 
+    private static final int VIDEO_TRACK = 0;
+    private static final int AUDIO_TRACK = 1;
+    private static final int TRACK_COUNT = 2;
+
+    private static final long FRAGMENT_DURATION_US = FragmentedMp4Muxer.DEFAULT_FRAGMENT_DURATION_US;
+
+    private static final long STATUS_POLL_INTERVAL_MS = 100;
+    private static final long BITRATE_CONTROL_INTERVAL_NS = 1000000000L;
+    private static final long THREAD_JOIN_TIMEOUT_MS = 2000;
+    private static final long METRICS_DUMP_INTERVAL_MS = 10000;
+    private static final long REPLAY_SAVE_TIMEOUT_MS = 30000;
+    private static final int IDLE_FRAME_RATE = 5;
+    private static final int INIT_THREADS = 4;
+
     private MediaProjection mediaProjection;
     private VirtualDisplay virtualDisplay;
     private Surface surface;
     private MediaCodec audioEncoder;
-    private MediaCodec videoEncoder;
+    // set up on the init threads, suspended and resumed from the caller's
+    private volatile MediaCodec videoEncoder;
     private AudioRecord audioRecord;
-    private MediaMuxer muxer;
-    private boolean muxerStarted;
-    private boolean startTimestampInitialized;
-    private long startTimestampUs;
+    private AudioRecord micRecord;
+    private PcmMixer mixer;
+    private ResamplingJitterBuffer micJitterBuffer;
+    private short[] playbackPcm;
+    private short[] micPcm;
+    private short[] micChunkPcm;
+    private short[] mixedPcm;
+    private SilenceGate silenceGate;
+    private ByteBuffer silentAudioFrame;
+    private final SampleInfo silentAudioInfo = new SampleInfo();
+    // timestamps of the last chunks queued to the audio encoder, used by the audio thread only
+    private final long[] queuedAudioPtsUs = new long[8];
+    private int queuedAudioChunks;
+    private volatile long lastAudioOutputPtsUs = Long.MIN_VALUE;
+    private SampleMuxer muxer;
+    private RenditionMuxer renditionMuxer;
+    private final PausableClock pausableClock = new PausableClock();
+    private volatile MuxerWriter muxerWriter;
+    private RecordingEngine engine;
+    private final List<EncoderDrain> encoderDrains = new ArrayList<>();
+    private final List<CallbackDrain> callbackDrains = new ArrayList<>();
+    private final List<HandlerThread> codecThreads = new ArrayList<>();
+    private MediaCodecEncoderOutput audioOutput;
+    private EncoderDrain audioDrain;
+    private CallbackDrain audioCallbackDrain;
+    private SamplePool videoSamplePool;
+    private SamplePool audioSamplePool;
+    private final MediaClock mediaClock = new MediaClock();
+    private AudioClock audioClock;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private MetricsFileDumper metricsDumper;
     private Handler handler;
     private Thread audioRecordThread;
 
-    private int videoTrackIndex = -1;
-    private int audioTrackIndex = -1;
-
 
-    private String outputFilePath;
+    private SegmentNamer segmentNamer;
+    private SegmentPolicy segmentPolicy;
+    private int replayBufferBytes;
+    private volatile ReplayBuffer replayBuffer;
+    private final ExecutorService replaySaver = Executors.newSingleThreadExecutor();
+    private int liveStreamPort;
+    private boolean liveStreamHttp;
+    private LiveStreamServer liveStreamServer;
+    private PostProcessingQueue postProcessing;
+    private StatusCoalescer status;
+    private long elapsedUs;
+    private StorageMonitor storageMonitor;
+    private volatile StorageStatus.Level storageLevel = StorageStatus.Level.OK;
+    private int storageBitrateCap = Integer.MAX_VALUE;
+    private final VideoProfile videoProfile;
+    private String videoEncoderName;
     private String videoMime;
     private int videoWidth;
     private int videoHeight;
     private int videoBitrate;
+    private int minVideoBitrate;
+    private int maxVideoBitrate;
+    private volatile int currentVideoBitrate;
+    private BitrateController bitrateController;
     private int frameRate;
-    private int timeLapse;
-    private int sampleRate;
+    private int keyFrameIntervalSec;
+    private boolean variableFrameRate;
+    private CaptureRegion captureRegion;
+    private List<VideoProfile> proxies = Collections.emptyList();
+    private final List<MediaCodec> proxyEncoders = new CopyOnWriteArrayList<>();
+    private final List<Surface> proxySurfaces = new ArrayList<>();
+    private RenditionScheduler renditionScheduler;
+    private RenditionRenderer renditionRenderer;
+    private IdleDetector idleDetector;
+    private MediaFormat videoEncoderFormat;
+    private MediaFormat audioEncoderFormat;
+    private CodecPrewarmer prewarmer;
+    private final Set<MediaCodec> prewarmedEncoders = Collections.synchronizedSet(new HashSet<MediaCodec>());
+    private volatile long startRequestedNs;
+    private int captureFrameRate;
+    private AudioFormatPlan audioFormat;
+    private boolean recordMicrophone;
+    private float playbackGain = 1f;
+    private float micGain = 1f;
+    private boolean gateSilence;
+    private float silenceRmsDbfs = SilenceGate.DEFAULT_RMS_THRESHOLD_DBFS;
+    private float silencePeakDbfs = SilenceGate.DEFAULT_PEAK_THRESHOLD_DBFS;
+    private int silenceHangoverMs = SilenceGate.DEFAULT_HANGOVER_MS;
+    private boolean asyncEncoders;
     private Thread recordingThread;
 
     private volatile boolean stopped = false;
@@ -71,21 +222,184 @@ public class RecorderThread implements Runnable {
         }
     };
 
-    public RecorderThread(MediaProjection mediaProjection, String outputFilePath,
-                          int videoWidth, int videoHeight, int videoBitrate) {
+    /**
+     * @param segmentPolicy splits the recording into segments, or null to record a single file
+     * @param videoProfile  encoder, size, frame rate and starting bitrate of the video
+     */
+    public RecorderThread(MediaProjection mediaProjection, SegmentNamer segmentNamer,
+                          SegmentPolicy segmentPolicy, VideoProfile videoProfile) {
         this.mediaProjection = mediaProjection;
         handler = new Handler();
-        this.outputFilePath = outputFilePath;
-        this.videoWidth = videoWidth;
-        this.videoHeight = videoHeight;
-        this.videoBitrate = videoBitrate;
-        this.sampleRate = 44100;
-        this.timeLapse = 1;
-        this.frameRate = 30;
-        videoMime = MediaFormat.MIMETYPE_VIDEO_AVC;
+        this.segmentNamer = segmentNamer;
+        this.segmentPolicy = segmentPolicy;
+        this.videoProfile = videoProfile;
+        this.videoEncoderName = videoProfile.encoderName;
+        this.videoMime = videoProfile.mime;
+        this.videoWidth = videoProfile.width;
+        this.videoHeight = videoProfile.height;
+        this.videoBitrate = videoProfile.bitrate;
+        this.minVideoBitrate = videoBitrate / 4;
+        this.maxVideoBitrate = videoBitrate;
+        this.frameRate = videoProfile.frameRate;
+        this.keyFrameIntervalSec = videoProfile.keyFrameIntervalSec;
+        this.audioFormat = AudioFormatPlan.defaults();
+    }
+
+    /**
+     * Bounds for the adaptive bitrate controller, which starts at the configured bitrate.
+     * Must be called before {@link #startRecording()}.
+     */
+    public void setVideoBitrateBounds(int minBitrate, int maxBitrate) {
+        this.minVideoBitrate = Math.min(minBitrate, videoBitrate);
+        this.maxVideoBitrate = Math.max(maxBitrate, videoBitrate);
+    }
+
+    /** Must be called before {@link #startRecording()}. */
+    public void setAudioFormat(AudioFormatPlan audioFormat) {
+        this.audioFormat = audioFormat;
+    }
+
+    /**
+     * Mixes the microphone into the captured playback audio with the given gains.
+     * Must be called before {@link #startRecording()}.
+     */
+    public void setMicrophone(boolean enabled, float playbackGain, float micGain) {
+        this.recordMicrophone = enabled;
+        this.playbackGain = Math.max(0f, playbackGain);
+        this.micGain = Math.max(0f, micGain);
+    }
+
+    /**
+     * Writes pre-encoded silent AAC frames instead of encoding captured audio that has stayed
+     * below both levels, in dBFS, for longer than {@code hangoverMs}, see {@link SilenceGate}.
+     * Must be called before {@link #startRecording()}.
+     */
+    public void setSilenceGate(boolean enabled, float rmsThresholdDbfs, float peakThresholdDbfs, int hangoverMs) {
+        this.gateSilence = enabled;
+        this.silenceRmsDbfs = Math.min(0f, rmsThresholdDbfs);
+        this.silencePeakDbfs = Math.min(0f, peakThresholdDbfs);
+        this.silenceHangoverMs = Math.max(0, hangoverMs);
+    }
+
+    /**
+     * Keeps only the most recent {@code bytes} of encoded samples in memory instead of writing
+     * a file; {@link #saveReplay()} writes them out. Must be called before {@link #startRecording()}.
+     */
+    public void setReplayBufferBytes(int bytes) {
+        this.replayBufferBytes = bytes;
+    }
+
+    public boolean isReplayMode() {
+        return replayBufferBytes > 0;
+    }
+
+    /**
+     * Saves the replay buffer, from its oldest key frame, to a new file in the output directory
+     * on a background thread while recording continues. Returns false if not in replay mode.
+     */
+    public boolean saveReplay() {
+        final ReplayBuffer buffer = replayBuffer;
+        if (buffer == null) {
+            return false;
+        }
+        final File file = new SegmentNamer(segmentNamer.getDirectory(), "Replay",
+                System.currentTimeMillis()).singleFile();
+        replaySaver.execute(new Runnable() {
+            @Override
+            public void run() {
+                FragmentedMp4Muxer target = null;
+                try {
+                    target = new FragmentedMp4Muxer(file.getPath(), FRAGMENT_DURATION_US);
+                    target.setKeyframeIndex(KeyframeIndex.Writer.create(file));
+                    final long durationUs = buffer.saveTo(target);
+                    target.release();
+                    target = null;
+                    Log.i(TAG, "Saved " + durationUs / 1000 + " ms replay to " + file + ", " + buffer);
+                    postProcess(file);
+                } catch (Exception e) {
+                    Log.e(TAG, "Cannot save replay to " + file, e);
+                } finally {
+                    if (target != null) {
+                        target.release();
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Drives the encoders through MediaCodec callbacks, each on a thread of its own, instead of
+     * polling them from drain threads. Must be called before {@link #startRecording()}.
+     */
+    public void setAsyncEncoders(boolean enabled) {
+        this.asyncEncoders = enabled;
+    }
+
+    /**
+     * Lets the encoder skip unchanged frames instead of encoding at a constant rate, and lowers
+     * the capture frame rate while the encoded output shows a still screen.
+     * Must be called before {@link #startRecording()}.
+     */
+    public void setVariableFrameRate(boolean enabled) {
+        this.variableFrameRate = enabled;
+    }
+
+    /**
+     * Records only {@code region} of the display, at the size planned for it; the video profile
+     * must already be sized to its output, see {@link CaptureRegion#applyTo}. The display is
+     * mirrored at its own size and the region cropped out on the GPU.
+     * Must be called before {@link #startRecording()}.
+     */
+    public void setCaptureRegion(CaptureRegion region) {
+        this.captureRegion = region;
+    }
+
+    /**
+     * Also encodes each of {@code proxies}, smaller renditions of the same capture as planned by
+     * {@code RenditionPlanner}, into a file of its own next to the recording. The audio is
+     * encoded once and muxed into every file. Ignored in replay mode and when recording segments.
+     * Must be called before {@link #startRecording()}.
+     */
+    public void setProxies(List<VideoProfile> proxies) {
+        this.proxies = new ArrayList<>(proxies);
+    }
+
+    /**
+     * Also serves the recording as a live MPEG-TS stream on loopback {@code port}, as a chunked
+     * HTTP response if {@code http} is set. Must be called before {@link #startRecording()}.
+     */
+    public void setLiveStream(int port, boolean http) {
+        this.liveStreamPort = port;
+        this.liveStreamHttp = http;
+    }
+
+    /**
+     * Queues the finished files for post-processing once the muxer has released them.
+     * Must be called before {@link #startRecording()}.
+     */
+    public void setPostProcessing(PostProcessingQueue queue) {
+        this.postProcessing = queue;
+    }
+
+    /**
+     * Publishes the progress of the recording to {@code status} while it runs.
+     * Must be called before {@link #startRecording()}.
+     */
+    public void setStatus(StatusCoalescer status) {
+        this.status = status;
+    }
+
+    /**
+     * Takes the encoders from {@code prewarmer} where it has them ready, instead of creating
+     * them. Must be called before {@link #startRecording()}.
+     */
+    public void setCodecPrewarmer(CodecPrewarmer prewarmer) {
+        this.prewarmer = prewarmer;
     }
 
     public void startRecording() {
+        startRequestedNs = System.nanoTime();
         stopped = false;
         recordingThread = new Thread(this);
         recordingThread.start();
@@ -95,55 +409,405 @@ public class RecorderThread implements Runnable {
         stopped = true;
     }
 
+    /**
+     * Stops writing captured audio and video until {@link #resumeRecording()}; the paused time
+     * is cut out of the recording. The video encoders are suspended while paused, and the
+     * writer does not wait for their tracks, so the audio dropped meanwhile never backs up.
+     */
+    public void pauseRecording() {
+        if (pausableClock.pause(mediaClock.nowUs())) {
+            Log.i(TAG, "Recording paused");
+            setVideoEncoderSuspended(true);
+            publishStatus();
+        }
+    }
+
+    public void resumeRecording() {
+        if (pausableClock.resume(mediaClock.nowUs())) {
+            Log.i(TAG, "Recording resumed after " + pausableClock.getPauseCount() + " pauses, "
+                    + pausableClock.getPausedDurationUs() / 1000 + " ms paused");
+            setVideoEncoderSuspended(false);
+            publishStatus();
+        }
+    }
+
+    /** Publishes the current progress; the recorded time stands still while paused. */
+    private synchronized void publishStatus() {
+        if (status == null) {
+            return;
+        }
+        final long ptsUs = pausableClock.rebase(mediaClock.nowUs());
+        if (ptsUs != PausableClock.DROPPED) {
+            elapsedUs = ptsUs;
+        }
+        final MuxerWriter writer = muxerWriter;
+        status.publish(new RecordingStatus(
+                pausableClock.isPaused() ? RecordingStatus.State.PAUSED : RecordingStatus.State.RECORDING,
+                elapsedUs, writer != null ? writer.getWrittenBytes() : 0, currentVideoBitrate,
+                writer != null ? writer.getDroppedSamples() : 0, storageLevel));
+    }
+
+    /** Current values of the pipeline metrics, see {@link MuxerWriter#setMetrics}. */
+    public MetricsSnapshot getMetricsSnapshot() {
+        return metrics.snapshot();
+    }
+
+    public boolean isPaused() {
+        return pausableClock.isPaused();
+    }
+
+    /** How the storage keeps up, see {@link StorageMonitor}. */
+    public StorageStatus.Level getStorageLevel() {
+        return storageLevel;
+    }
+
+    private void setVideoEncoderSuspended(boolean suspended) {
+        setEncoderSuspended(videoEncoder, suspended);
+        for (MediaCodec proxyEncoder : proxyEncoders) {
+            setEncoderSuspended(proxyEncoder, suspended);
+        }
+        final MuxerWriter writer = muxerWriter;
+        if (writer != null) {
+            setVideoTracksIdle(writer, suspended);
+        }
+    }
+
+    private void setVideoTracksIdle(MuxerWriter writer, boolean idle) {
+        writer.setTrackIdle(VIDEO_TRACK, idle);
+        for (int i = 0; i < proxies.size(); i++) {
+            writer.setTrackIdle(TRACK_COUNT + i, idle);
+        }
+    }
+
+    private void setEncoderSuspended(MediaCodec encoder, boolean suspended) {
+        if (encoder == null) {
+            return;
+        }
+        final Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_SUSPEND, suspended ? 1 : 0);
+        if (!suspended) {
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        }
+        try {
+            encoder.setParameters(params);
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot " + (suspended ? "suspend" : "resume") + " video encoder", e);
+        }
+    }
+
     public boolean isRecordingContinue() {
         return stopped;
     }
 
-    private void setupVideoCodec() throws IOException {
-        MediaFormat encoderFormat = MediaFormat.createVideoFormat(videoMime, videoWidth, videoHeight);
+    /**
+     * Format the video encoder is configured with. The same for the same profile, so that an
+     * encoder pre-warmed with it can be taken as is, see {@link CodecPrewarmer}.
+     */
+    static MediaFormat videoFormatOf(VideoProfile profile, boolean variableFrameRate) {
+        final MediaFormat encoderFormat = MediaFormat.createVideoFormat(profile.mime, profile.width, profile.height);
         encoderFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-        encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, videoBitrate);
-        encoderFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
-        encoderFormat.setInteger(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 1000000);
-        encoderFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 5);
+        encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, profile.bitrate);
+        encoderFormat.setInteger(MediaFormat.KEY_FRAME_RATE, profile.frameRate);
+        if (variableFrameRate) {
+            // frames reach the encoder only when the screen changes, at most frameRate a second;
+            // a still screen is repeated once per key frame interval so that seeking keeps working;
+            // the writer holds audio back only for its interleave wait while no frames come
+            encoderFormat.setFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, profile.frameRate);
+            encoderFormat.setLong(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER,
+                    profile.keyFrameIntervalSec * 1000000L);
+        } else {
+            encoderFormat.setInteger(MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER, 1000000);
+        }
+        encoderFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, profile.keyFrameIntervalSec);
+        return encoderFormat;
+    }
+
+    /** Format the audio encoder is configured with, see {@link #videoFormatOf}. */
+    static MediaFormat audioFormatOf(AudioFormatPlan audioFormat) {
+        final MediaFormat encoderFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC,
+                audioFormat.sampleRate, audioFormat.channelCount);
+        encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, audioFormat.bitrate);
+        encoderFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        encoderFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, audioFormat.getChunkBytes());
+        return encoderFormat;
+    }
+
+    /**
+     * Takes the pre-warmed encoder for {@code format} if there is one, already configured unless
+     * the encoders report through callbacks, which must be set before configuring. Otherwise
+     * creates one, or resets a pre-warmed one created for another format.
+     */
+    private MediaCodec createEncoder(String name, String mime, MediaFormat format) throws IOException {
+        if (prewarmer != null) {
+            final MediaCodec configured = asyncEncoders ? null : prewarmer.takeConfigured(name, mime, format);
+            if (configured != null) {
+                prewarmedEncoders.add(configured);
+                return configured;
+            }
+            final MediaCodec created = prewarmer.take(name, mime);
+            if (created != null) {
+                return created;
+            }
+        }
+        return name != null ? MediaCodec.createByCodecName(name) : MediaCodec.createEncoderByType(mime);
+    }
+
+    /** Configures {@code encoder} with {@code format} unless it was pre-warmed with it. */
+    private void configureEncoder(MediaCodec encoder, MediaFormat format) {
+        if (!prewarmedEncoders.remove(encoder)) {
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        }
+    }
+
+    private void createVideoEncoder() throws IOException {
+        videoEncoderFormat = videoFormatOf(videoProfile, variableFrameRate);
+        videoEncoder = createEncoder(videoEncoderName, videoMime, videoEncoderFormat);
+    }
 
-        videoEncoder = MediaCodec.createEncoderByType(videoMime);
-        videoEncoder.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    private void setupVideoCodec() {
+        if (variableFrameRate) {
+            idleDetector = new IdleDetector(frameRate, Math.min(IDLE_FRAME_RATE, frameRate), videoBitrate);
+            idleDetector.setMetrics(metrics, "video");
+        }
+        captureFrameRate = frameRate;
+        attachEncoder(new MediaCodecEncoderOutput(videoEncoder) {
+            @Override
+            protected long mapPresentationTimeUs(long codecTimeUs) {
+                // Surface input is stamped with the monotonic capture time
+                return mediaClock.toPtsUs(codecTimeUs * 1000);
+            }
+
+            @Override
+            protected void onOutputBuffer(SampleInfo info) {
+                if (info.size == 0 || info.isCodecConfig()) {
+                    return;
+                }
+                if (idleDetector != null) {
+                    idleDetector.onFrame(info.presentationTimeUs, info.size, info.isKeyFrame());
+                }
+                if (renditionScheduler != null) {
+                    renditionScheduler.onEncoded(0, info.presentationTimeUs);
+                }
+            }
+        }, VIDEO_TRACK, videoSamplePool, "video");
+        configureEncoder(videoEncoder, videoEncoderFormat);
         surface = videoEncoder.createInputSurface();
         videoEncoder.start();
+        // a pause before the encoder started could not suspend it
+        if (pausableClock.isPaused()) {
+            setEncoderSuspended(videoEncoder, true);
+        }
+    }
+
+    private void createProxyEncoders() throws IOException {
+        for (VideoProfile proxy : proxies) {
+            proxyEncoders.add(createEncoder(proxy.encoderName, proxy.mime, videoFormatOf(proxy, false)));
+        }
     }
 
-    private void setupVirtualDisplay() {
+    /** One encoder per proxy, each feeding track {@code TRACK_COUNT + i}. */
+    private void setupProxyCodecs() {
+        for (int i = 0; i < proxies.size(); i++) {
+            final VideoProfile proxy = proxies.get(i);
+            final int rendition = i + 1;
+            final MediaCodec encoder = proxyEncoders.get(i);
+            attachEncoder(new MediaCodecEncoderOutput(encoder) {
+                @Override
+                protected long mapPresentationTimeUs(long codecTimeUs) {
+                    // drawn with the capture time of the frame, see RenditionRenderer
+                    return mediaClock.toPtsUs(codecTimeUs * 1000);
+                }
+
+                @Override
+                protected void onOutputBuffer(SampleInfo info) {
+                    if (info.size > 0 && !info.isCodecConfig()) {
+                        renditionScheduler.onEncoded(rendition, info.presentationTimeUs);
+                    }
+                }
+            }, TRACK_COUNT + i, SamplePool.forVideo(proxy.bitrate, proxy.frameRate), proxyName(i));
+            configureEncoder(encoder, videoFormatOf(proxy, false));
+            proxySurfaces.add(encoder.createInputSurface());
+            encoder.start();
+            if (pausableClock.isPaused()) {
+                setEncoderSuspended(encoder, true);
+            }
+        }
+    }
+
+    /**
+     * Captures straight into the video encoder, or with proxies or a capture region into a
+     * {@link RenditionRenderer} that draws each frame into the encoders the
+     * {@link RenditionScheduler} picks.
+     */
+    private void setupVirtualDisplay() throws InterruptedException {
+        Surface captureSurface = surface;
+        // a mirror cannot be cropped, so a region is cut out of a capture of the whole display
+        final int captureWidth = captureRegion != null ? captureRegion.displayWidth : videoWidth;
+        final int captureHeight = captureRegion != null ? captureRegion.displayHeight : videoHeight;
+        if (renditionScheduler != null) {
+            final Surface[] targets = new Surface[1 + proxies.size()];
+            final int[] widths = new int[targets.length];
+            final int[] heights = new int[targets.length];
+            targets[0] = surface;
+            widths[0] = videoWidth;
+            heights[0] = videoHeight;
+            for (int i = 0; i < proxies.size(); i++) {
+                targets[i + 1] = proxySurfaces.get(i);
+                widths[i + 1] = proxies.get(i).width;
+                heights[i + 1] = proxies.get(i).height;
+            }
+            renditionRenderer = new RenditionRenderer(renditionScheduler, mediaClock, targets, widths, heights);
+            if (captureRegion != null) {
+                renditionRenderer.setCrop(captureRegion.getTextureCrop());
+            }
+            renditionRenderer.start(captureWidth, captureHeight);
+            captureSurface = renditionRenderer.getInputSurface();
+        }
         virtualDisplay = mediaProjection.createVirtualDisplay("Android Recorder",
-                videoWidth, videoHeight, DisplayMetrics.DENSITY_HIGH,
+                captureWidth, captureHeight, DisplayMetrics.DENSITY_HIGH,
                 DisplayManager.VIRTUAL_DISPLAY_FLAG_AUTO_MIRROR,
-                surface, displayCallback, handler);
+                captureSurface, displayCallback, handler);
     }
 
-    private void setupAudioCodec() throws IOException {
-        // TODO set channelCount 2 try stereo quality
-        MediaFormat encoderFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, 1);
-        encoderFormat.setInteger(MediaFormat.KEY_BIT_RATE, 64000);
+    private void createAudioEncoder() throws IOException {
+        audioEncoderFormat = audioFormatOf(audioFormat);
+        audioEncoder = createEncoder(null, MediaFormat.MIMETYPE_AUDIO_AAC, audioEncoderFormat);
+    }
 
-        audioEncoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_AUDIO_AAC);
-        audioEncoder.configure(encoderFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+    private void setupAudioCodec() {
+        audioOutput = new MediaCodecEncoderOutput(audioEncoder) {
+            @Override
+            protected void onOutputBuffer(SampleInfo info) {
+                if (info.size > 0 && !info.isCodecConfig()) {
+                    lastAudioOutputPtsUs = info.presentationTimeUs;
+                }
+            }
+        };
+        attachEncoder(audioOutput, AUDIO_TRACK, audioSamplePool, "audio");
+        configureEncoder(audioEncoder, audioEncoderFormat);
         audioEncoder.start();
     }
 
+    /**
+     * Connects the output of an encoder to the muxer writer, through a callback on a codec thread
+     * of its own in asynchronous mode. Must be called before the encoder is configured.
+     * Setup steps running side by side attach their encoders concurrently.
+     */
+    private synchronized void attachEncoder(MediaCodecEncoderOutput output, int track, SamplePool pool, String name) {
+        if (asyncEncoders) {
+            final CallbackDrain drain = new CallbackDrain(output, track, muxerWriter, pool);
+            drain.setMetrics(metrics, name);
+            final HandlerThread codecThread = new HandlerThread(name + "Codec");
+            codecThread.start();
+            codecThreads.add(codecThread);
+            output.setCallback(drain, new Handler(codecThread.getLooper()));
+            callbackDrains.add(drain);
+            if (track == AUDIO_TRACK) {
+                audioCallbackDrain = drain;
+            }
+        } else {
+            final EncoderDrain drain = new EncoderDrain(output, track, muxerWriter, pool);
+            drain.setMetrics(metrics, name);
+            encoderDrains.add(drain);
+            if (track == AUDIO_TRACK) {
+                audioDrain = drain;
+            }
+        }
+    }
 
     @SuppressLint("MissingPermission")
     private void setupAudioRecord() {
-        int channelConfig = AudioFormat.CHANNEL_IN_MONO;
-        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelConfig,
+        int channelConfig = audioFormat.channelCount == 2
+                ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO;
+        int minBufferSize = AudioRecord.getMinBufferSize(audioFormat.sampleRate, channelConfig,
                 AudioFormat.ENCODING_PCM_16BIT);
 
         AudioFormat.Builder audioFormatBuilder = new AudioFormat.Builder();
-        AudioFormat newAudioFormat = audioFormatBuilder.setEncoding(AudioFormat.ENCODING_PCM_16BIT).setSampleRate(sampleRate).setChannelMask(AudioFormat.CHANNEL_IN_MONO).build();
+        AudioFormat newAudioFormat = audioFormatBuilder.setEncoding(AudioFormat.ENCODING_PCM_16BIT).setSampleRate(audioFormat.sampleRate).setChannelMask(channelConfig).build();
 
         AudioRecord.Builder audioRecordBuilder = new AudioRecord.Builder();
         AudioPlaybackCaptureConfiguration apcc = new AudioPlaybackCaptureConfiguration.Builder(this.mediaProjection).addMatchingUsage(AudioAttributes.USAGE_MEDIA).build();
-        audioRecord = audioRecordBuilder.setAudioFormat(newAudioFormat).setBufferSizeInBytes(4 * minBufferSize).setAudioPlaybackCaptureConfig(apcc).build();
+        audioRecord = audioRecordBuilder.setAudioFormat(newAudioFormat).setBufferSizeInBytes(audioFormat.recordBufferBytes(minBufferSize)).setAudioPlaybackCaptureConfig(apcc).build();
+
+        if (recordMicrophone) {
+            micRecord = new AudioRecord.Builder()
+                    .setAudioSource(MediaRecorder.AudioSource.MIC)
+                    .setAudioFormat(newAudioFormat)
+                    .setBufferSizeInBytes(audioFormat.recordBufferBytes(minBufferSize))
+                    .build();
+            final int chunkFrames = audioFormat.getChunkFrames();
+            final int chunkSamples = chunkFrames * audioFormat.channelCount;
+            mixer = new PcmMixer(playbackGain, micGain);
+            // the microphone runs on its own clock; keep two chunks queued to absorb the skew
+            micJitterBuffer = new ResamplingJitterBuffer(audioFormat.channelCount,
+                    8 * chunkFrames, 2 * chunkFrames);
+            playbackPcm = new short[chunkSamples];
+            micPcm = new short[chunkSamples * 2];
+            micChunkPcm = new short[chunkSamples];
+            mixedPcm = new short[chunkSamples];
+        }
+        if (gateSilence) {
+            silenceGate = new SilenceGate(audioFormat.sampleRate, audioFormat.channelCount,
+                    silenceRmsDbfs, silencePeakDbfs, silenceHangoverMs);
+            silentAudioFrame = SilenceGate.silentAacFrame(audioFormat.channelCount);
+        }
+    }
+
+    /**
+     * Reads one chunk of playback audio, mixes in whatever the microphone has captured and
+     * writes the result to {@code dst}. Returns the number of bytes written or a negative
+     * AudioRecord error.
+     */
+    private int readMixedAudio(ByteBuffer dst, int bytes) {
+        final int channels = audioFormat.channelCount;
+        final int frames = bytes / audioFormat.getBytesPerFrame();
+        final int read = audioRecord.read(playbackPcm, 0, frames * channels);
+        if (read < 0) {
+            return read;
+        }
+        final int micRead = micRecord.read(micPcm, 0, micPcm.length, AudioRecord.READ_NON_BLOCKING);
+        if (micRead > 0) {
+            micJitterBuffer.write(micPcm, 0, micRead / channels);
+        }
+        final int readFrames = read / channels;
+        micJitterBuffer.read(micChunkPcm, 0, readFrames);
+        mixer.mix(playbackPcm, 0, micChunkPcm, 0, mixedPcm, 0, readFrames * channels);
+        dst.order(ByteOrder.nativeOrder());
+        for (int i = 0; i < readFrames * channels; i++) {
+            dst.putShort(2 * i, mixedPcm[i]);
+        }
+        return readFrames * audioFormat.getBytesPerFrame();
+    }
+
+    /**
+     * Writes a silent frame in place of a chunk the {@link SilenceGate} held back. When the gate
+     * has just closed, the chunks still inside the encoder are replaced as well: the encoder only
+     * outputs them once it is fed again, behind the silent frames, and the muxer writer then drops
+     * them as late.
+     */
+    private void putSilentAudio(long ptsUs) {
+        if (queuedAudioChunks > 0) {
+            final long drainedUs = lastAudioOutputPtsUs;
+            final int pending = Math.min(queuedAudioChunks, queuedAudioPtsUs.length);
+            for (int i = queuedAudioChunks - pending; i < queuedAudioChunks; i++) {
+                final long queuedUs = queuedAudioPtsUs[i % queuedAudioPtsUs.length];
+                if (queuedUs > drainedUs) {
+                    putSilentFrame(queuedUs);
+                }
+            }
+            queuedAudioChunks = 0;
+        }
+        putSilentFrame(ptsUs);
+    }
+
+    private void putSilentFrame(long ptsUs) {
+        silentAudioInfo.set(0, silentAudioFrame.remaining(), ptsUs, SampleInfo.FLAG_KEY_FRAME);
+        if (audioCallbackDrain != null) {
+            audioCallbackDrain.putSample(silentAudioFrame, silentAudioInfo);
+        } else {
+            audioDrain.putSample(silentAudioFrame, silentAudioInfo);
+        }
     }
 
     private void startAudioRecord() {
@@ -153,16 +817,25 @@ public class RecorderThread implements Runnable {
                 Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
                 try {
                     audioRecord.startRecording();
+                    if (micRecord != null) {
+                        micRecord.startRecording();
+                    }
                 } catch (Exception e) {
                     asyncError = true;
                     e.printStackTrace();
                     return;
                 }
+                final AudioTimestamp timestamp = new AudioTimestamp();
+                final int bytesPerFrame = audioFormat.getBytesPerFrame();
+                // an input buffer whose chunk was gated is filled again with the next chunk
+                int index = -1;
                 try {
                     while (!audioStopped) {
-                        int index = audioEncoder.dequeueInputBuffer(10000);
                         if (index < 0) {
-                            continue;
+                            index = audioOutput.dequeueInputBuffer(10000);
+                            if (index < 0) {
+                                continue;
+                            }
                         }
                         ByteBuffer inputBuffer = audioEncoder.getInputBuffer(index);
                         if (inputBuffer == null) {
@@ -172,14 +845,30 @@ public class RecorderThread implements Runnable {
                             return;
                         }
                         inputBuffer.clear();
-                        int read = audioRecord.read(inputBuffer, inputBuffer.capacity());
+                        // one AAC frame at a time, read straight into the codec's buffer
+                        final int size = audioFormat.readSize(inputBuffer.capacity());
+                        int read = micRecord != null ? readMixedAudio(inputBuffer, size)
+                                : audioRecord.read(inputBuffer, size);
                         if (read < 0) {
                             if (!stopped) {
                                 asyncError = true;
                             }
                             break;
                         }
-                        audioEncoder.queueInputBuffer(index, 0, read, getPresentationTimeUs(), 0);
+                        if (audioRecord.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+                                == AudioRecord.SUCCESS) {
+                            audioClock.onTimestamp(timestamp.framePosition, timestamp.nanoTime);
+                        }
+                        // gated chunks are stamped as well, so the audio after them keeps its time
+                        final long ptsUs = audioClock.stamp(read / bytesPerFrame);
+                        if (silenceGate != null
+                                && silenceGate.gate(inputBuffer.order(ByteOrder.nativeOrder()), 0, read)) {
+                            putSilentAudio(ptsUs);
+                            continue;
+                        }
+                        audioEncoder.queueInputBuffer(index, 0, read, ptsUs, 0);
+                        index = -1;
+                        queuedAudioPtsUs[queuedAudioChunks++ % queuedAudioPtsUs.length] = ptsUs;
                     }
                 } catch (Exception e) {
                     if (!stopped) {
@@ -191,122 +880,151 @@ public class RecorderThread implements Runnable {
                     audioRecord.stop();
                     audioRecord.release();
                     audioRecord = null;
+                    if (micRecord != null) {
+                        micRecord.stop();
+                        micRecord.release();
+                        micRecord = null;
+                        Log.i(TAG, "Microphone " + micJitterBuffer);
+                    }
                 }
             }
         });
         audioRecordThread.start();
     }
 
-    private long getPresentationTimeUs() {
-        if (!startTimestampInitialized) {
-            startTimestampUs = System.nanoTime() / 1000;
-            startTimestampInitialized = true;
-        }
-        return (System.nanoTime() / 1000 - startTimestampUs) / timeLapse;
-    }
-
-    private void startMuxerIfSetUp() {
-        if (audioTrackIndex >= 0 && videoTrackIndex >= 0) {
-            muxer.start();
-            muxerStarted = true;
-        }
-    }
-
     @Override
     public void run() {
         try {
-            setupVideoCodec();
-            setupVirtualDisplay();
+            // encoder and audio timestamps are mapped relative to this point
+            mediaClock.start();
+            audioClock = new AudioClock(mediaClock, audioFormat.sampleRate);
+            audioClock.setMetrics(metrics, "audio");
+
+            if (!proxies.isEmpty() && (replayBufferBytes > 0 || segmentPolicy != null)) {
+                Log.w(TAG, "Proxies are only recorded next to a single file, not recording " + proxies);
+                proxies = Collections.emptyList();
+            }
 
-            setupAudioCodec();
-            setupAudioRecord();
+            // the display needs the encoder's input surface and the encoders need the muxer
+            // writer, everything else is independent and set up side by side
+            final ExecutorService initExecutor = Executors.newFixedThreadPool(INIT_THREADS);
+            final InitGraph init = new InitGraph(initExecutor)
+                    .add("muxer", new InitGraph.Step() {
+                        @Override
+                        public void run() throws IOException {
+                            setupMuxer();
+                        }
+                    })
+                    .add("videoEncoder", new InitGraph.Step() {
+                        @Override
+                        public void run() throws IOException {
+                            createVideoEncoder();
+                        }
+                    })
+                    .add("proxyEncoders", new InitGraph.Step() {
+                        @Override
+                        public void run() throws IOException {
+                            createProxyEncoders();
+                        }
+                    })
+                    .add("audioEncoder", new InitGraph.Step() {
+                        @Override
+                        public void run() throws IOException {
+                            createAudioEncoder();
+                        }
+                    })
+                    .add("audioRecord", new InitGraph.Step() {
+                        @Override
+                        public void run() {
+                            setupAudioRecord();
+                        }
+                    })
+                    .add("videoCodec", new InitGraph.Step() {
+                        @Override
+                        public void run() {
+                            setupVideoCodec();
+                        }
+                    }, "muxer", "videoEncoder")
+                    .add("proxyCodecs", new InitGraph.Step() {
+                        @Override
+                        public void run() {
+                            setupProxyCodecs();
+                        }
+                    }, "muxer", "proxyEncoders")
+                    .add("virtualDisplay", new InitGraph.Step() {
+                        @Override
+                        public void run() throws InterruptedException {
+                            setupVirtualDisplay();
+                        }
+                    }, "videoCodec", "proxyCodecs")
+                    .add("audioCodec", new InitGraph.Step() {
+                        @Override
+                        public void run() {
+                            setupAudioCodec();
+                        }
+                    }, "muxer", "audioEncoder");
+            init.setMetrics(metrics, "init");
+            try {
+                init.run();
+            } finally {
+                initExecutor.shutdown();
+            }
+            Log.i(TAG, "Pipeline set up in " + init.getElapsedNs() / 1000000 + " ms");
 
-            muxer = new MediaMuxer(this.outputFilePath,
-                    MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            metricsDumper = new MetricsFileDumper(metrics, segmentNamer.metricsFile(), METRICS_DUMP_INTERVAL_MS);
+            metricsDumper.start();
 
+            // samples reported by the callbacks before this are queued until the writer runs
+            engine = asyncEncoders
+                    ? new CallbackRecordingEngine(muxerWriter, callbackDrains.toArray(new CallbackDrain[0]))
+                    : new PollingRecordingEngine(muxerWriter, encoderDrains.toArray(new EncoderDrain[0]));
+            Log.i(TAG, "Encoders " + (asyncEncoders ? "report through callbacks" : "are polled"));
+            engine.start();
             startAudioRecord();
 
-            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-            long lastAudioTimestampUs = -1;
+            currentVideoBitrate = videoBitrate;
+            bitrateController = new AimdBitrateController(minVideoBitrate, maxVideoBitrate, videoBitrate);
+            final PipelineLoadSampler loadSampler = new PipelineLoadSampler(muxerWriter, VIDEO_TRACK);
+            long nextBitrateControlNs = 0;
 
             while (!stopped && !asyncError) {
-                int encoderStatus;
-
-                encoderStatus = audioEncoder.dequeueOutputBuffer(bufferInfo, 0);
-                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    Log.w(TAG, "audio encoder.dequeueOutputBuffer: try again");
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    if (audioTrackIndex > 0) {
-                        Log.e(TAG, "audioTrackIndex less than zero");
-                        break;
-                    }
-                    audioTrackIndex = muxer.addTrack(audioEncoder.getOutputFormat());
-                    startMuxerIfSetUp();
-                } else if (encoderStatus < 0) {
-                    Log.w(TAG, "Unexpected result from audio encoder.dequeueOutputBuffer: " + encoderStatus);
-                } else {
-                    ByteBuffer encodedData = audioEncoder.getOutputBuffer(encoderStatus);
-                    if (encodedData == null) {
-                        Log.e(TAG, "encodedData null");
-                        break;
-                    }
-
-                    if (bufferInfo.presentationTimeUs > lastAudioTimestampUs
-                            && muxerStarted && bufferInfo.size != 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
-                        lastAudioTimestampUs = bufferInfo.presentationTimeUs;
-                        muxer.writeSampleData(audioTrackIndex, encodedData, bufferInfo);
-                    }
-
-                    audioEncoder.releaseOutputBuffer(encoderStatus, false);
-
-                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        Log.e(TAG, "buffer EOS");
-                        break;
-                    }
+                if (muxerWriter.isTerminated() || engine.getError() != null) {
+                    Log.e(TAG, "Recording pipeline stopped unexpectedly");
+                    break;
                 }
-
-                if (videoTrackIndex >= 0 && audioTrackIndex < 0)
-                    continue;
-
-                encoderStatus = videoEncoder.dequeueOutputBuffer(bufferInfo, 10000);
-                if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                    Log.w(TAG, "encoder.dequeueOutputBuffer: try again");
-                } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    if (videoTrackIndex > 0) {
-                        break;
-                    }
-                    videoTrackIndex = muxer.addTrack(videoEncoder.getOutputFormat());
-                    startMuxerIfSetUp();
-                } else if (encoderStatus < 0) {
-                    Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
-                } else {
-                    ByteBuffer encodedData = videoEncoder.getOutputBuffer(encoderStatus);
-                    if (encodedData == null) {
-                        Log.w(TAG, "encodedData null");
-                        break;
-                    }
-
-                    if (bufferInfo.size != 0 && (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0) {
-                        bufferInfo.presentationTimeUs = getPresentationTimeUs();
-                        muxer.writeSampleData(videoTrackIndex, encodedData, bufferInfo);
-                    }
-
-                    videoEncoder.releaseOutputBuffer(encoderStatus, false);
-
-                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        Log.w(TAG, "buffer EOS");
+                if (idleDetector != null) {
+                    adjustCaptureFrameRate(idleDetector.getFrameRate());
+                }
+                final long now = System.nanoTime();
+                if (now >= nextBitrateControlNs) {
+                    if (!checkStorage()) {
                         break;
                     }
+                    adjustVideoBitrate(loadSampler.sample(now));
+                    nextBitrateControlNs = now + BITRATE_CONTROL_INTERVAL_NS;
                 }
+                publishStatus();
+                Thread.sleep(STATUS_POLL_INTERVAL_MS);
             }
         } catch (Exception mainException) {
             mainException.printStackTrace();
         } finally {
             try {
+                if (liveStreamServer != null) {
+                    liveStreamServer.close();
+                    liveStreamServer = null;
+                }
+                stopPipeline();
+
+                replaySaver.shutdown();
+                if (!replaySaver.awaitTermination(REPLAY_SAVE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "Replay still saving after " + REPLAY_SAVE_TIMEOUT_MS + " ms");
+                }
+
                 if (muxer != null) {
-                    muxer.stop();
                     muxer.release();
                     muxer = null;
+                    postProcessRecording();
                 }
 
                 if (virtualDisplay != null) {
@@ -314,16 +1032,28 @@ public class RecorderThread implements Runnable {
                     virtualDisplay = null;
                 }
 
+                if (renditionRenderer != null) {
+                    renditionRenderer.release();
+                    renditionRenderer = null;
+                }
+
                 if (surface != null) {
                     surface.release();
                     surface = null;
                 }
+                for (Surface proxySurface : proxySurfaces) {
+                    proxySurface.release();
+                }
+                proxySurfaces.clear();
 
                 if (videoEncoder != null) {
-                    videoEncoder.stop();
-                    videoEncoder.release();
+                    releaseEncoder(videoEncoder);
                     videoEncoder = null;
                 }
+                for (MediaCodec proxyEncoder : proxyEncoders) {
+                    releaseEncoder(proxyEncoder);
+                }
+                proxyEncoders.clear();
 
                 if (audioRecordThread != null) {
                     audioStopped = true;
@@ -331,14 +1061,288 @@ public class RecorderThread implements Runnable {
                 }
 
                 if (audioEncoder != null) {
-                    audioEncoder.stop();
-                    audioEncoder.release();
+                    releaseEncoder(audioEncoder);
                     audioEncoder = null;
                 }
+
+                for (HandlerThread codecThread : codecThreads) {
+                    codecThread.quitSafely();
+                }
             } catch (Exception e) {
                 Log.w(TAG, "Error while releasing resources", e);
                 e.printStackTrace();
             }
+            if (status != null) {
+                status.publish(RecordingStatus.STOPPED);
+            }
+        }
+    }
+
+    /** Stops and releases {@code encoder}, which setup may have left unstarted. */
+    private static void releaseEncoder(MediaCodec encoder) {
+        try {
+            encoder.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Encoder " + encoder.getName() + " was not started");
+        }
+        encoder.release();
+    }
+
+    private void adjustVideoBitrate(PipelineLoad load) {
+        if (load == null) {
+            return;
+        }
+        final int bitrate = Math.min(bitrateController.update(load), storageBitrateCap);
+        if (bitrate != currentVideoBitrate) {
+            Log.i(TAG, "Video bitrate " + currentVideoBitrate + " -> " + bitrate + ", " + load);
+            final Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitrate);
+            videoEncoder.setParameters(params);
+            currentVideoBitrate = bitrate;
+        }
+    }
+
+    /**
+     * Caps the video bitrate to what the storage takes. Returns false once the storage is about
+     * to run out, so the recording stops while it can still be finalized.
+     */
+    private boolean checkStorage() {
+        if (storageMonitor == null) {
+            return true;
+        }
+        final StorageStatus status = storageMonitor.check();
+        if (status.level != storageLevel) {
+            Log.w(TAG, "Storage " + storageLevel + " -> " + status);
+            storageLevel = status.level;
+        }
+        if (status.level == StorageStatus.Level.CRITICAL) {
+            Log.e(TAG, "Stopping the recording before the storage runs out");
+            stopped = true;
+            return false;
+        }
+        storageBitrateCap = status.maxDataRateBytesPerSec == Long.MAX_VALUE ? Integer.MAX_VALUE
+                : (int) Math.max(minVideoBitrate,
+                        Math.min(Integer.MAX_VALUE, status.maxDataRateBytesPerSec * 8 - sideBitrate()));
+        return true;
+    }
+
+    /** Bits per second written besides the master's video: the proxies and the audio in every file. */
+    private long sideBitrate() {
+        long bitrate = (long) audioFormat.bitrate * (1 + proxies.size());
+        for (VideoProfile proxy : proxies) {
+            bitrate += proxy.bitrate;
+        }
+        return bitrate;
+    }
+
+    /**
+     * Caps the rate of frames fed to the encoder. Encoders that only read the cap when they are
+     * configured ignore the change and keep skipping unchanged frames at the full rate.
+     */
+    private void adjustCaptureFrameRate(int fps) {
+        if (fps == captureFrameRate) {
+            return;
+        }
+        Log.i(TAG, "Capture frame rate " + captureFrameRate + " -> " + fps
+                + (idleDetector.isIdle() ? ", screen idle" : ", screen active"));
+        final Bundle params = new Bundle();
+        params.putFloat(MediaFormat.KEY_MAX_FPS_TO_ENCODER, fps);
+        try {
+            videoEncoder.setParameters(params);
+        } catch (Exception e) {
+            Log.w(TAG, "Cannot change capture frame rate", e);
+        }
+        captureFrameRate = fps;
+    }
+
+    /** The muxer chain and its writer, which every encoder writes through. */
+    private void setupMuxer() throws IOException {
+        muxer = new PausableMuxer(createRenditions(createLiveStream(createMuxer())), pausableClock);
+        muxerWriter = new MuxerWriter(muxer, TRACK_COUNT + proxies.size());
+        final String[] trackNames = new String[TRACK_COUNT + proxies.size()];
+        trackNames[VIDEO_TRACK] = "video";
+        trackNames[AUDIO_TRACK] = "audio";
+        final int[] frameRates = new int[1 + proxies.size()];
+        final String[] renditionNames = new String[frameRates.length];
+        frameRates[0] = frameRate;
+        renditionNames[0] = "video";
+        for (int i = 0; i < proxies.size(); i++) {
+            trackNames[TRACK_COUNT + i] = proxyName(i);
+            frameRates[i + 1] = proxies.get(i).frameRate;
+            renditionNames[i + 1] = proxyName(i);
+        }
+        muxerWriter.setMetrics(metrics, trackNames);
+        if (!proxies.isEmpty() || captureRegion != null) {
+            renditionScheduler = new RenditionScheduler(frameRates);
+            renditionScheduler.setMetrics(metrics, renditionNames);
+        }
+        videoSamplePool = SamplePool.forVideo(videoBitrate, frameRate);
+        audioSamplePool = SamplePool.forAudio(audioFormat.bitrate, audioFormat.sampleRate);
+        muxerWriter.setStartTimeNs(startRequestedNs);
+        if (pausableClock.isPaused()) {
+            setVideoTracksIdle(muxerWriter, true);
+        }
+    }
+
+    /** Fans the samples out to live viewers next to {@code recording} if a live stream was asked for. */
+    private SampleMuxer createLiveStream(SampleMuxer recording) throws IOException {
+        if (liveStreamPort <= 0) {
+            return recording;
+        }
+        final FanOutMuxer fanOut = new FanOutMuxer(recording);
+        liveStreamServer = new LiveStreamServer(fanOut, liveStreamPort, liveStreamHttp);
+        liveStreamServer.start();
+        Log.i(TAG, "Streaming live on port " + liveStreamServer.getPort() + (liveStreamHttp ? " over HTTP" : ""));
+        return fanOut;
+    }
+
+    /** Writes each proxy to a file of its own next to {@code master}, if there are proxies. */
+    private SampleMuxer createRenditions(SampleMuxer master) throws IOException {
+        if (proxies.isEmpty()) {
+            return master;
+        }
+        final SampleMuxer[] outputs = new SampleMuxer[1 + proxies.size()];
+        outputs[0] = master;
+        for (int i = 0; i < proxies.size(); i++) {
+            final File file = segmentNamer.renditionFile(proxyName(i));
+            final FragmentedMp4Muxer proxyMuxer = new FragmentedMp4Muxer(openOutput(file.getPath()),
+                    FRAGMENT_DURATION_US);
+            proxyMuxer.setJournal(RecordingJournal.create(file));
+            proxyMuxer.setKeyframeIndex(KeyframeIndex.Writer.create(file));
+            outputs[i + 1] = proxyMuxer;
+        }
+        Log.i(TAG, "Recording proxies " + proxies);
+        renditionMuxer = new RenditionMuxer(outputs);
+        return renditionMuxer;
+    }
+
+    /** Name of proxy {@code index}, for its file and metrics: proxy, proxy2, ... */
+    private static String proxyName(int index) {
+        return index == 0 ? "proxy" : "proxy" + (index + 1);
+    }
+
+    private SampleMuxer createMuxer() throws IOException {
+        if (replayBufferBytes > 0) {
+            Log.i(TAG, "Keeping the last " + replayBufferBytes + " bytes for replay");
+            replayBuffer = new ReplayBuffer(replayBufferBytes);
+            return replayBuffer;
+        }
+        storageMonitor = new StorageMonitor(StorageMonitor.freeSpaceOf(segmentNamer.getDirectory()), TimeSource.SYSTEM);
+        final MuxerFactory muxerFactory = new MuxerFactory() {
+            @Override
+            public SampleMuxer create(String outputFilePath) throws IOException {
+                final FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(openOutput(outputFilePath),
+                        FRAGMENT_DURATION_US);
+                // left behind if the process dies, RecorderService repairs the file on its next start
+                muxer.setJournal(RecordingJournal.create(new File(outputFilePath)));
+                // for seeking and cutting without parsing the file, see Mp4Splicer
+                muxer.setKeyframeIndex(KeyframeIndex.Writer.create(new File(outputFilePath)));
+                return muxer;
+            }
+        };
+        if (segmentPolicy == null) {
+            return muxerFactory.create(segmentNamer.singleFile().getPath());
+        }
+        Log.i(TAG, "Recording segments of " + segmentNamer.getSessionName() + " with " + segmentPolicy);
+        return new SegmentingMuxer(muxerFactory, segmentNamer, segmentPolicy,
+                new SegmentManifest(segmentNamer.manifestFile()));
+    }
+
+    /** Opens {@code path} empty, preallocated in extents with {@code posix_fallocate} where supported. */
+    private FileChannel openOutput(String path) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        final FileDescriptor fd = file.getFD();
+        return new StorageWriter(file.getChannel(), new StorageWriter.Allocator() {
+            @Override
+            public boolean allocate(long position, long length) throws IOException {
+                try {
+                    Os.posix_fallocate(fd, position, length);
+                    return true;
+                } catch (ErrnoException e) {
+                    if (e.errno == OsConstants.ENOSPC) {
+                        return false;
+                    }
+                    throw e.rethrowAsIOException();
+                }
+            }
+        }, storageMonitor);
+    }
+
+    /** Queues the files of this recording, a single file or the segments in the manifest. */
+    private void postProcessRecording() {
+        if (postProcessing == null || replayBufferBytes > 0) {
+            return;
+        }
+        if (segmentPolicy == null) {
+            postProcess(segmentNamer.singleFile());
+            for (int i = 0; i < proxies.size(); i++) {
+                if (renditionMuxer == null || !renditionMuxer.hasFailed(i + 1)) {
+                    postProcess(segmentNamer.renditionFile(proxyName(i)));
+                }
+            }
+            return;
+        }
+        try {
+            for (Segment segment : SegmentManifest.read(segmentNamer.manifestFile())) {
+                postProcess(new File(segmentNamer.getDirectory(), segment.fileName));
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read the segments of " + segmentNamer.getSessionName(), e);
+        }
+    }
+
+    private void postProcess(File file) {
+        if (postProcessing == null || !file.isFile()) {
+            return;
+        }
+        try {
+            postProcessing.enqueue(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot queue " + file + " for post-processing", e);
+        }
+    }
+
+    /**
+     * Stops taking samples from the encoders and waits for the writer to flush the queued
+     * samples and stop the muxer.
+     */
+    private void stopPipeline() throws InterruptedException {
+        if (engine != null) {
+            engine.stop(THREAD_JOIN_TIMEOUT_MS);
+            if (engine.getError() != null) {
+                Log.e(TAG, "Recording engine failed", engine.getError());
+            }
+        }
+        if (muxerWriter != null) {
+            Log.i(TAG, "Muxed " + muxerWriter.getWrittenSamples() + " samples, dropped "
+                    + muxerWriter.getDroppedSamples());
+            Log.i(TAG, "Video " + videoSamplePool + ", audio " + audioSamplePool);
+            final LatencyHistogram.Snapshot firstFrame = metrics.snapshot().getHistogram("video.time_to_first_sample_ns");
+            if (firstFrame != null && firstFrame.getCount() > 0) {
+                Log.i(TAG, "First frame muxed " + firstFrame.getMax() / 1000000 + " ms after start");
+            }
+        }
+        if (renditionScheduler != null) {
+            for (int i = 0; i < proxies.size(); i++) {
+                Log.i(TAG, proxyName(i) + " drew " + renditionScheduler.getDrawnFrames(i + 1) + " frames, skipped "
+                        + renditionScheduler.getSkippedFrames(i + 1));
+                if (renditionMuxer != null && renditionMuxer.getError(i + 1) != null) {
+                    Log.w(TAG, proxyName(i) + " failed", renditionMuxer.getError(i + 1));
+                }
+            }
+        }
+        if (audioClock != null) {
+            Log.i(TAG, "Audio clock " + audioClock);
+        }
+        if (silenceGate != null) {
+            Log.i(TAG, "Audio " + silenceGate);
+        }
+        if (metricsDumper != null) {
+            metricsDumper.stop();
+            if (metricsDumper.getError() != null) {
+                Log.w(TAG, "Cannot write metrics", metricsDumper.getError());
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,308 @@
+package com.mordred.mordredrecorder;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLExt;
+import android.opengl.EGLSurface;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import com.mordred.mordredrecorder.core.MediaClock;
+import com.mordred.mordredrecorder.core.RenditionScheduler;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draws every frame of one capture into the input surfaces of several encoders, scaled to each
+ * encoder's size, as decided by a {@link RenditionScheduler}. The virtual display renders into
+ * {@link #getInputSurface()}; frames keep their capture timestamp in every rendition. With a
+ * crop, only that part of the capture is drawn.
+ * <p>
+ * All GL work runs on a thread of its own.
+ */
+class RenditionRenderer implements SurfaceTexture.OnFrameAvailableListener {
+
+    private static final String TAG = "RenditionRenderer";
+
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+    private static final long SETUP_TIMEOUT_MS = 2000;
+
+    private static final String VERTEX_SHADER =
+            "uniform mat4 uTexMatrix;\n"
+            + "uniform vec4 uCrop;\n"
+            + "attribute vec4 aPosition;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "void main() {\n"
+            + "    gl_Position = aPosition;\n"
+            + "    vTexCoord = (uTexMatrix * vec4((aPosition.xy * 0.5 + 0.5) * uCrop.zw + uCrop.xy, 0.0, 1.0)).xy;\n"
+            + "}\n";
+    private static final String FRAGMENT_SHADER =
+            "#extension GL_OES_EGL_image_external : require\n"
+            + "precision mediump float;\n"
+            + "uniform samplerExternalOES sTexture;\n"
+            + "varying vec2 vTexCoord;\n"
+            + "void main() {\n"
+            + "    gl_FragColor = texture2D(sTexture, vTexCoord);\n"
+            + "}\n";
+    private static final float[] QUAD = {-1f, -1f, 1f, -1f, -1f, 1f, 1f, 1f};
+
+    private final RenditionScheduler scheduler;
+    private final MediaClock mediaClock;
+    private final Surface[] targets;
+    private final int[] widths;
+    private final int[] heights;
+    private final float[] texMatrix = new float[16];
+    private float[] crop = {0f, 0f, 1f, 1f};
+
+    private HandlerThread thread;
+    private EGLDisplay display = EGL14.EGL_NO_DISPLAY;
+    private EGLContext context = EGL14.EGL_NO_CONTEXT;
+    private EGLSurface[] eglSurfaces;
+    private int program;
+    private int texMatrixLocation;
+    private int cropLocation;
+    private int positionLocation;
+    private FloatBuffer quad;
+    private int texture;
+    private SurfaceTexture surfaceTexture;
+    private Surface inputSurface;
+    private volatile RuntimeException setupError;
+
+    /**
+     * @param targets input surface of each rendition's encoder, in the scheduler's order
+     * @param widths  width of each rendition
+     * @param heights height of each rendition
+     */
+    RenditionRenderer(RenditionScheduler scheduler, MediaClock mediaClock, Surface[] targets, int[] widths,
+                      int[] heights) {
+        if (targets.length != scheduler.getRenditionCount()) {
+            throw new IllegalArgumentException(targets.length + " surfaces for "
+                    + scheduler.getRenditionCount() + " renditions");
+        }
+        this.scheduler = scheduler;
+        this.mediaClock = mediaClock;
+        this.targets = targets.clone();
+        this.widths = widths.clone();
+        this.heights = heights.clone();
+    }
+
+    /**
+     * Draws only {@code crop}, an offset and size in texture coordinates as
+     * {@code CaptureRegion.getTextureCrop()} gives them. Must be called before {@link #start}.
+     */
+    void setCrop(float[] crop) {
+        this.crop = crop.clone();
+    }
+
+    /** Sets up GL on the render thread; the capture is {@code width} by {@code height}. */
+    void start(final int width, final int height) throws InterruptedException {
+        thread = new HandlerThread(TAG);
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper());
+        final CountDownLatch ready = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    setup(width, height, handler);
+                } catch (RuntimeException e) {
+                    setupError = e;
+                } finally {
+                    ready.countDown();
+                }
+            }
+        });
+        if (!ready.await(SETUP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("GL setup timed out");
+        }
+        if (setupError != null) {
+            throw setupError;
+        }
+    }
+
+    /** The surface to capture into, valid after {@link #start}. */
+    Surface getInputSurface() {
+        return inputSurface;
+    }
+
+    /** Stops drawing and releases GL; the target surfaces stay with their encoders. */
+    void release() {
+        if (thread == null) {
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        new Handler(thread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                teardown();
+                done.countDown();
+            }
+        });
+        try {
+            done.await(SETUP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread.quitSafely();
+        thread = null;
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture texture) {
+        if (eglSurfaces == null) {
+            return;
+        }
+        texture.updateTexImage();
+        texture.getTransformMatrix(texMatrix);
+        final long timestampNs = texture.getTimestamp();
+        final int renditions = scheduler.onFrame(mediaClock.toPtsUs(timestampNs));
+        for (int i = 0; i < eglSurfaces.length; i++) {
+            if ((renditions & (1 << i)) != 0) {
+                draw(i, timestampNs);
+            }
+        }
+    }
+
+    private void draw(int rendition, long timestampNs) {
+        final EGLSurface surface = eglSurfaces[rendition];
+        EGL14.eglMakeCurrent(display, surface, surface, context);
+        GLES20.glViewport(0, 0, widths[rendition], heights[rendition]);
+        GLES20.glUseProgram(program);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture);
+        GLES20.glUniformMatrix4fv(texMatrixLocation, 1, false, texMatrix, 0);
+        GLES20.glUniform4fv(cropLocation, 1, crop, 0);
+        GLES20.glEnableVertexAttribArray(positionLocation);
+        GLES20.glVertexAttribPointer(positionLocation, 2, GLES20.GL_FLOAT, false, 0, quad);
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        // the encoders stamp the frame with this, as they would a frame captured directly
+        EGLExt.eglPresentationTimeANDROID(display, surface, timestampNs);
+        if (!EGL14.eglSwapBuffers(display, surface)) {
+            Log.w(TAG, "Cannot draw rendition " + rendition + ", EGL error " + EGL14.eglGetError());
+        }
+    }
+
+    private void setup(int width, int height, Handler handler) {
+        display = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        final int[] version = new int[2];
+        if (!EGL14.eglInitialize(display, version, 0, version, 1)) {
+            throw new IllegalStateException("eglInitialize failed");
+        }
+        final int[] attributes = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        final EGLConfig[] configs = new EGLConfig[1];
+        final int[] configCount = new int[1];
+        if (!EGL14.eglChooseConfig(display, attributes, 0, configs, 0, 1, configCount, 0) || configCount[0] == 0) {
+            throw new IllegalStateException("No recordable EGL config");
+        }
+        context = EGL14.eglCreateContext(display, configs[0], EGL14.EGL_NO_CONTEXT,
+                new int[] {EGL14.EGL_CONTEXT_CLIENT_VERSION, 2, EGL14.EGL_NONE}, 0);
+        if (context == EGL14.EGL_NO_CONTEXT) {
+            throw new IllegalStateException("eglCreateContext failed, EGL error " + EGL14.eglGetError());
+        }
+        final EGLSurface[] surfaces = new EGLSurface[targets.length];
+        for (int i = 0; i < targets.length; i++) {
+            surfaces[i] = EGL14.eglCreateWindowSurface(display, configs[0], targets[i],
+                    new int[] {EGL14.EGL_NONE}, 0);
+            if (surfaces[i] == null || surfaces[i] == EGL14.EGL_NO_SURFACE) {
+                throw new IllegalStateException("Cannot draw into rendition " + i);
+            }
+        }
+        EGL14.eglMakeCurrent(display, surfaces[0], surfaces[0], context);
+
+        program = createProgram();
+        texMatrixLocation = GLES20.glGetUniformLocation(program, "uTexMatrix");
+        cropLocation = GLES20.glGetUniformLocation(program, "uCrop");
+        positionLocation = GLES20.glGetAttribLocation(program, "aPosition");
+        quad = ByteBuffer.allocateDirect(QUAD.length * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        quad.put(QUAD).position(0);
+
+        final int[] textures = new int[1];
+        GLES20.glGenTextures(1, textures, 0);
+        texture = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, texture);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+
+        surfaceTexture = new SurfaceTexture(texture);
+        surfaceTexture.setDefaultBufferSize(width, height);
+        surfaceTexture.setOnFrameAvailableListener(this, handler);
+        inputSurface = new Surface(surfaceTexture);
+        eglSurfaces = surfaces;
+    }
+
+    private void teardown() {
+        if (surfaceTexture != null) {
+            surfaceTexture.setOnFrameAvailableListener(null);
+        }
+        if (inputSurface != null) {
+            inputSurface.release();
+            inputSurface = null;
+        }
+        if (surfaceTexture != null) {
+            surfaceTexture.release();
+            surfaceTexture = null;
+        }
+        if (display != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglMakeCurrent(display, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_CONTEXT);
+            if (eglSurfaces != null) {
+                for (EGLSurface surface : eglSurfaces) {
+                    EGL14.eglDestroySurface(display, surface);
+                }
+                eglSurfaces = null;
+            }
+            if (context != EGL14.EGL_NO_CONTEXT) {
+                EGL14.eglDestroyContext(display, context);
+                context = EGL14.EGL_NO_CONTEXT;
+            }
+            EGL14.eglTerminate(display);
+            display = EGL14.EGL_NO_DISPLAY;
+        }
+    }
+
+    private static int createProgram() {
+        final int program = GLES20.glCreateProgram();
+        GLES20.glAttachShader(program, compileShader(GLES20.GL_VERTEX_SHADER, VERTEX_SHADER));
+        GLES20.glAttachShader(program, compileShader(GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER));
+        GLES20.glLinkProgram(program);
+        final int[] linked = new int[1];
+        GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linked, 0);
+        if (linked[0] == 0) {
+            throw new IllegalStateException("Cannot link program: " + GLES20.glGetProgramInfoLog(program));
+        }
+        return program;
+    }
+
+    private static int compileShader(int type, String source) {
+        final int shader = GLES20.glCreateShader(type);
+        GLES20.glShaderSource(shader, source);
+        GLES20.glCompileShader(shader);
+        final int[] compiled = new int[1];
+        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compiled, 0);
+        if (compiled[0] == 0) {
+            throw new IllegalStateException("Cannot compile shader: " + GLES20.glGetShaderInfoLog(shader));
+        }
+        return shader;
+    }
+}
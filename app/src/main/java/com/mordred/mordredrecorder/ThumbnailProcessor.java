@@ -0,0 +1,107 @@
+package com.mordred.mordredrecorder;
+
+import android.graphics.Bitmap;
+import android.media.MediaMetadataRetriever;
+
+import com.mordred.mordredrecorder.core.Mp4Index;
+import com.mordred.mordredrecorder.core.PostProcessor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Saves a small JPEG of a key frame about every {@link #INTERVAL_US} of a recording into
+ * {@code Record_20220320_011645.thumbs/}, for seek previews, with an index of their times:
+ * <pre>
+ * # time_us	file
+ * 0	000001.jpg
+ * </pre>
+ * Key frames decode on their own, so each thumbnail costs a single frame decode. Thumbnails
+ * already saved by an interrupted run are kept.
+ */
+public class ThumbnailProcessor implements PostProcessor {
+
+    public static final String TYPE = "thumbnails";
+
+    private static final String DIRECTORY_SUFFIX = ".thumbs";
+    private static final String INDEX_FILE = "index.txt";
+    private static final long INTERVAL_US = 10000000;
+    private static final int WIDTH = 320;
+    private static final int JPEG_QUALITY = 80;
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    public static File thumbnailDirectoryOf(File recording) {
+        final String name = recording.getName();
+        final int dot = name.lastIndexOf('.');
+        return new File(recording.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + DIRECTORY_SUFFIX);
+    }
+
+    @Override
+    public void process(File recording, Progress progress) throws IOException {
+        final Mp4Index index = Mp4Index.read(recording);
+        final Mp4Index.Track video = index.getVideoTrack();
+        if (video == null || video.width <= 0 || video.height <= 0) {
+            return;
+        }
+        final long[] timesUs = video.getSyncSampleTimesUs(INTERVAL_US);
+        final File directory = thumbnailDirectoryOf(recording);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        final int height = (WIDTH * video.height / video.width) & ~1;
+        final StringBuilder thumbnails = new StringBuilder("# time_us\tfile\n");
+        final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(recording.getPath());
+            for (int i = 0; i < timesUs.length; i++) {
+                // presentation times of the file start at its earliest sample
+                final long timeUs = timesUs[i] - index.getStartUs();
+                final File jpeg = new File(directory, String.format(Locale.US, "%06d.jpg", i + 1));
+                if (!jpeg.isFile()) {
+                    final Bitmap frame = retriever.getScaledFrameAtTime(timeUs,
+                            MediaMetadataRetriever.OPTION_CLOSEST_SYNC, WIDTH, height);
+                    if (frame == null) {
+                        continue;
+                    }
+                    writeJpeg(frame, jpeg);
+                    frame.recycle();
+                }
+                thumbnails.append(timeUs).append('\t').append(jpeg.getName()).append('\n');
+                if (progress != null) {
+                    progress.update(i + 1, timesUs.length);
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("cannot decode " + recording, e);
+        } finally {
+            retriever.release();
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(directory, INDEX_FILE)),
+                Charset.forName("UTF-8"))) {
+            writer.write(thumbnails.toString());
+        }
+    }
+
+    /** Writes through a temporary file, so a thumbnail that exists is complete. */
+    private static void writeJpeg(Bitmap frame, File jpeg) throws IOException {
+        final File temp = new File(jpeg.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            if (!frame.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)) {
+                throw new IOException("cannot compress " + jpeg);
+            }
+        }
+        if (!temp.renameTo(jpeg)) {
+            throw new IOException("cannot rename " + temp);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.EncoderDrain;
+import com.mordred.mordredrecorder.core.FragmentedMp4Muxer;
+import com.mordred.mordredrecorder.core.IdleDetector;
+import com.mordred.mordredrecorder.core.MetricsRegistry;
+import com.mordred.mordredrecorder.core.MetricsSnapshot;
+import com.mordred.mordredrecorder.core.MuxerWriter;
+import com.mordred.mordredrecorder.core.PollingRecordingEngine;
+import com.mordred.mordredrecorder.core.RecordingEngine;
+import com.mordred.mordredrecorder.core.SamplePool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares constant and variable frame rate recording of static, idle and dynamic screen
+ * content: frames handed to the encoder, which is what the encoder spends its cycles on,
+ * file size and the CPU time of the drain and writer threads. Media time is simulated, so
+ * minutes of recording take seconds.
+ * <pre>
+ * ./gradlew :benchmarks:frameRateReport -Pargs="--size 1920x1080 --fps 60 --seconds 300"
+ * </pre>
+ */
+public class FrameRateReport {
+
+    private static final int IDLE_FRAME_RATE = 5;
+    private static final int KEY_FRAME_INTERVAL_SEC = 5;
+
+    public static void main(String[] args) throws Exception {
+        int width = 1920;
+        int height = 1080;
+        int fps = 30;
+        int bitrate = 8000000;
+        int seconds = 120;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            final String value = args[i + 1];
+            if ("--size".equals(args[i])) {
+                final String[] size = value.split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else if ("--fps".equals(args[i])) {
+                fps = Integer.parseInt(value);
+            } else if ("--bitrate".equals(args[i])) {
+                bitrate = Integer.parseInt(value);
+            } else if ("--seconds".equals(args[i])) {
+                seconds = Integer.parseInt(value);
+            } else {
+                System.err.println("unknown option " + args[i]);
+                System.err.println("options: --size WxH --fps N --bitrate BPS --seconds N");
+                System.exit(2);
+            }
+        }
+        final SyntheticStream stream = SyntheticStream.video(width, height, fps, bitrate, KEY_FRAME_INTERVAL_SEC);
+        System.out.println("video: " + stream + ", " + seconds + " s per run");
+        System.out.println(String.format(Locale.US, "%-8s %-4s %8s %12s %9s %6s %12s",
+                "content", "mode", "frames", "bytes", "cpu_ms", "idle", "idle_frames"));
+        for (ScreenEncoderOutput.Content content : ScreenEncoderOutput.Content.values()) {
+            for (boolean variable : new boolean[] {false, true}) {
+                run(stream, content, variable, fps, bitrate, seconds * 1000000L);
+            }
+        }
+    }
+
+    private static void run(SyntheticStream stream, ScreenEncoderOutput.Content content, boolean variable,
+                            int fps, int bitrate, long durationUs) throws Exception {
+        final MetricsRegistry metrics = new MetricsRegistry();
+        IdleDetector idleDetector = null;
+        if (variable) {
+            idleDetector = new IdleDetector(fps, IDLE_FRAME_RATE, bitrate);
+            idleDetector.setMetrics(metrics, "video");
+        }
+        final ScreenEncoderOutput encoder = new ScreenEncoderOutput(stream, content, idleDetector, durationUs);
+        final File file = File.createTempFile("framerate", ".mp4");
+        try {
+            final MuxerWriter writer = new MuxerWriter(
+                    new FragmentedMp4Muxer(file.getPath(), FragmentedMp4Muxer.DEFAULT_FRAGMENT_DURATION_US), 1);
+            writer.setMetrics(metrics, "video");
+            final EncoderDrain drain = new EncoderDrain(encoder, 0, writer, SamplePool.forVideo(bitrate, fps));
+            final List<Thread> threads = new ArrayList<>();
+            final AtomicLong cpuNs = new AtomicLong();
+            final ThreadFactory threadFactory = PipelineRunner.accountingThreads(threads, new AtomicLong(), cpuNs);
+            final RecordingEngine engine = new PollingRecordingEngine(threadFactory, writer, drain);
+            engine.start();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            engine.stop(0);
+            if (engine.getError() != null) {
+                throw engine.getError();
+            }
+            final MetricsSnapshot snapshot = metrics.snapshot();
+            System.out.println(String.format(Locale.US, "%-8s %-4s %8d %12d %9.1f %6d %12d",
+                    content.name().toLowerCase(Locale.US), variable ? "vfr" : "cfr",
+                    snapshot.getCounter("video.samples"), file.length(), cpuNs.get() / 1e6,
+                    snapshot.getCounter("video.idle_periods"), snapshot.getCounter("video.idle_frames")));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.FragmentedMp4Muxer;
+import com.mordred.mordredrecorder.core.LatencyHistogram;
+import com.mordred.mordredrecorder.core.MetricsRegistry;
+import com.mordred.mordredrecorder.core.SampleInfo;
+import com.mordred.mordredrecorder.core.SampleMuxer;
+import com.mordred.mordredrecorder.core.TrackFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Measures how long samples of a {@link SyntheticEncoderOutput} take from being produced to
+ * being accepted by the muxer ({@code mux_latency_ns}) and to being written to the file
+ * ({@code disk_latency_ns}). A {@link FragmentedMp4Muxer} holds samples until their fragment
+ * is complete, so they reach the file when its byte count next grows; for other muxers both
+ * latencies are the same.
+ */
+public class LatencyMuxer implements SampleMuxer {
+
+    private final SampleMuxer muxer;
+    private final FragmentedMp4Muxer fragmentedMuxer;
+    private final LatencyHistogram muxLatencyNs;
+    private final LatencyHistogram diskLatencyNs;
+    private long[] pendingNs = new long[1024];
+    private int pending;
+    private long bytesWritten;
+
+    public LatencyMuxer(SampleMuxer muxer, MetricsRegistry metrics) {
+        this.muxer = muxer;
+        this.fragmentedMuxer = muxer instanceof FragmentedMp4Muxer ? (FragmentedMp4Muxer) muxer : null;
+        this.muxLatencyNs = metrics.histogram("mux_latency_ns");
+        this.diskLatencyNs = metrics.histogram("disk_latency_ns");
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        return muxer.addTrack(format);
+    }
+
+    @Override
+    public void start() throws IOException {
+        muxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        final long producedNs = SyntheticEncoderOutput.getTimestamp(data);
+        muxer.writeSampleData(trackIndex, data, info);
+        final long nowNs = System.nanoTime();
+        muxLatencyNs.record(nowNs - producedNs);
+        if (fragmentedMuxer == null) {
+            diskLatencyNs.record(nowNs - producedNs);
+            return;
+        }
+        if (fragmentedMuxer.getBytesWritten() != bytesWritten) {
+            // everything before this sample went out with the finished fragment
+            bytesWritten = fragmentedMuxer.getBytesWritten();
+            flushPending(nowNs);
+        }
+        if (pending == pendingNs.length) {
+            pendingNs = Arrays.copyOf(pendingNs, pending * 2);
+        }
+        pendingNs[pending++] = producedNs;
+    }
+
+    private void flushPending(long nowNs) {
+        for (int i = 0; i < pending; i++) {
+            diskLatencyNs.record(nowNs - pendingNs[i]);
+        }
+        pending = 0;
+    }
+
+    @Override
+    public void stop() throws IOException {
+        muxer.stop();
+        flushPending(System.nanoTime());
+    }
+
+    @Override
+    public void release() {
+        muxer.release();
+    }
+}
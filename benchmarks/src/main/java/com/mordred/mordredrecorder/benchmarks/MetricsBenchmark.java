@@ -0,0 +1,78 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.Counter;
+import com.mordred.mordredrecorder.core.LatencyHistogram;
+import com.mordred.mordredrecorder.core.MetricsRegistry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording into the metrics registry from the pipeline threads; every operation
+ * must stay well below 50 ns. The contended variants model two drains and the muxer writer
+ * sharing one histogram.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private Counter counter;
+    private LatencyHistogram histogram;
+
+    @State(Scope.Thread)
+    public static class Values {
+        long next = 12345;
+
+        /** Cheap pseudo-random latencies between 0 and about 16 ms. */
+        long nextValue() {
+            next ^= next << 13;
+            next ^= next >>> 7;
+            next ^= next << 17;
+            return next & 0xffffff;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        final MetricsRegistry registry = new MetricsRegistry();
+        counter = registry.counter("video.samples");
+        histogram = registry.histogram("video.mux_latency_ns");
+    }
+
+    @Benchmark
+    public void counterIncrement() {
+        counter.increment();
+    }
+
+    @Benchmark
+    public void histogramRecord(Values values) {
+        histogram.record(values.nextValue());
+    }
+
+    @Benchmark
+    @Threads(3)
+    public void counterIncrementContended() {
+        counter.increment();
+    }
+
+    @Benchmark
+    @Threads(3)
+    public void histogramRecordContended(Values values) {
+        histogram.record(values.nextValue());
+    }
+}
@@ -0,0 +1,77 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.PcmMixer;
+import com.mordred.mordredrecorder.core.ResamplingJitterBuffer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of mixing one AAC frame of microphone and playback audio. Run with {@code -prof gc}
+ * to check that the mixer path does not allocate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PcmMixerBenchmark {
+
+    private static final int FRAMES = 1024;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    private PcmMixer mixer;
+    private ResamplingJitterBuffer jitterBuffer;
+    private short[] playback;
+    private short[] mic;
+    private short[] resampled;
+    private short[] out;
+
+    @Setup
+    public void setup() {
+        mixer = new PcmMixer(1f, 0.8f);
+        jitterBuffer = new ResamplingJitterBuffer(channels, 8 * FRAMES, 2 * FRAMES);
+        playback = new short[FRAMES * channels];
+        mic = new short[FRAMES * channels];
+        resampled = new short[FRAMES * channels];
+        out = new short[FRAMES * channels];
+        final Random random = new Random(1);
+        for (int i = 0; i < playback.length; i++) {
+            // loud enough that some samples go through the limiter
+            playback[i] = (short) (random.nextGaussian() * 12000);
+            mic[i] = (short) (random.nextGaussian() * 8000);
+        }
+        for (int i = 0; i < 3; i++) {
+            jitterBuffer.write(mic, 0, FRAMES);
+        }
+    }
+
+    @Benchmark
+    public short[] mix() {
+        mixer.mix(playback, 0, mic, 0, out, 0, out.length);
+        return out;
+    }
+
+    @Benchmark
+    public short[] resampleAndMix() {
+        jitterBuffer.write(mic, 0, FRAMES);
+        jitterBuffer.read(resampled, 0, FRAMES);
+        mixer.mix(playback, 0, resampled, 0, out, 0, out.length);
+        return out;
+    }
+}
@@ -0,0 +1,91 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.FragmentedMp4Muxer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unpaced drain and mux throughput into an fMP4 file. Each operation records five seconds of
+ * media; the {@code samples} and {@code bytes} counters give the per-second rates, and
+ * {@code -prof gc} the allocation rate. {@code engine} selects polled encoders or encoder
+ * callbacks. Latency percentiles under real-time pacing come from
+ * {@link PipelineReport}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+
+    private static final long DURATION_US = 5000000;
+
+    @Param({"1280x720", "1920x1080"})
+    public String size;
+
+    @Param({"30", "60"})
+    public int fps;
+
+    @Param({"4000000", "16000000"})
+    public int bitrate;
+
+    @Param({"polling", "callback"})
+    public String engine;
+
+    private PipelineRunner runner;
+    private File file;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Throughput {
+        public long samples;
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            samples = 0;
+            bytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        final String[] dimensions = size.split("x");
+        runner = new PipelineRunner(
+                SyntheticStream.video(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]), fps, bitrate, 2),
+                SyntheticStream.audio(44100, 2, 128000), DURATION_US, false, "callback".equals(engine));
+        file = File.createTempFile("pipeline", ".mp4");
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public PipelineResult record(Throughput throughput) throws Exception {
+        final PipelineResult result = runner.run(
+                new FragmentedMp4Muxer(file.getPath(), FragmentedMp4Muxer.DEFAULT_FRAGMENT_DURATION_US));
+        throughput.samples += result.samples;
+        throughput.bytes += result.bytes;
+        return result;
+    }
+}
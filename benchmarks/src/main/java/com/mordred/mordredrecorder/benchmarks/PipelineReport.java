@@ -0,0 +1,122 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.FragmentedMp4Muxer;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * Records synthetic streams through the pipeline into a temporary fMP4 file and prints
+ * throughput, latency percentiles and allocation. Exits with status 1 when a
+ * {@code --max-*} limit is exceeded, so it can gate pipeline changes.
+ * <pre>
+ * ./gradlew :benchmarks:pipelineReport -Pargs="--size 1920x1080 --fps 60 --paced --max-mux-p99-ms 20"
+ * </pre>
+ * {@code --callbacks} runs the encoders in asynchronous mode; comparing the latency and CPU
+ * figures of a paced run with and without it compares the two recording engines.
+ */
+public class PipelineReport {
+
+    public static void main(String[] args) throws Exception {
+        int width = 1920;
+        int height = 1080;
+        int fps = 30;
+        int videoBitrate = 8000000;
+        int sampleRate = 44100;
+        int channels = 2;
+        int audioBitrate = 128000;
+        int seconds = 10;
+        boolean paced = false;
+        boolean callbacks = false;
+        double maxMuxP99Ms = Double.MAX_VALUE;
+        double maxAllocPerSample = Double.MAX_VALUE;
+        double minSamplesPerSecond = 0;
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if ("--paced".equals(arg)) {
+                paced = true;
+                continue;
+            }
+            if ("--callbacks".equals(arg)) {
+                callbacks = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                usage("missing value for " + arg);
+            }
+            final String value = args[++i];
+            if ("--size".equals(arg)) {
+                final String[] size = value.split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else if ("--fps".equals(arg)) {
+                fps = Integer.parseInt(value);
+            } else if ("--bitrate".equals(arg)) {
+                videoBitrate = Integer.parseInt(value);
+            } else if ("--sample-rate".equals(arg)) {
+                sampleRate = Integer.parseInt(value);
+            } else if ("--channels".equals(arg)) {
+                channels = Integer.parseInt(value);
+            } else if ("--audio-bitrate".equals(arg)) {
+                audioBitrate = Integer.parseInt(value);
+            } else if ("--seconds".equals(arg)) {
+                seconds = Integer.parseInt(value);
+            } else if ("--max-mux-p99-ms".equals(arg)) {
+                maxMuxP99Ms = Double.parseDouble(value);
+            } else if ("--max-alloc-per-sample".equals(arg)) {
+                maxAllocPerSample = Double.parseDouble(value);
+            } else if ("--min-samples-per-sec".equals(arg)) {
+                minSamplesPerSecond = Double.parseDouble(value);
+            } else {
+                usage("unknown option " + arg);
+            }
+        }
+
+        final SyntheticStream video = SyntheticStream.video(width, height, fps, videoBitrate, 2);
+        final SyntheticStream audio = SyntheticStream.audio(sampleRate, channels, audioBitrate);
+        System.out.println("video: " + video);
+        System.out.println("audio: " + audio);
+        System.out.println(seconds + " s of media, " + (paced ? "paced in real time" : "unpaced")
+                + ", " + (callbacks ? "encoder callbacks" : "polled encoders"));
+
+        final File file = File.createTempFile("pipeline", ".mp4");
+        final PipelineResult result;
+        try {
+            result = new PipelineRunner(video, audio, seconds * 1000000L, paced, callbacks)
+                    .run(new FragmentedMp4Muxer(file.getPath(), FragmentedMp4Muxer.DEFAULT_FRAGMENT_DURATION_US));
+        } finally {
+            file.delete();
+        }
+        System.out.println(result);
+
+        boolean failed = false;
+        final double muxP99Ms = result.muxLatency().getValueAtPercentile(99) / 1e6;
+        if (muxP99Ms > maxMuxP99Ms) {
+            System.out.println(String.format(Locale.US, "FAIL: mux p99 %.3fms > %.3fms", muxP99Ms, maxMuxP99Ms));
+            failed = true;
+        }
+        if (result.allocatedBytesPerSample() > maxAllocPerSample) {
+            System.out.println(String.format(Locale.US, "FAIL: %.1f allocated bytes per sample > %.1f",
+                    result.allocatedBytesPerSample(), maxAllocPerSample));
+            failed = true;
+        }
+        if (result.samplesPerSecond() < minSamplesPerSecond) {
+            System.out.println(String.format(Locale.US, "FAIL: %.0f samples/s < %.0f",
+                    result.samplesPerSecond(), minSamplesPerSecond));
+            failed = true;
+        }
+        if (result.droppedSamples > 0) {
+            System.out.println("FAIL: " + result.droppedSamples + " samples dropped");
+            failed = true;
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    private static void usage(String message) {
+        System.err.println(message);
+        System.err.println("options: --size WxH --fps N --bitrate BPS --sample-rate HZ --channels N"
+                + " --audio-bitrate BPS --seconds N --paced --callbacks"
+                + " --max-mux-p99-ms MS --max-alloc-per-sample BYTES --min-samples-per-sec N");
+        System.exit(2);
+    }
+}
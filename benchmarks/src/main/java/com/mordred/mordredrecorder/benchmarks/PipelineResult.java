@@ -0,0 +1,77 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.LatencyHistogram;
+import com.mordred.mordredrecorder.core.MetricsSnapshot;
+
+import java.util.Locale;
+
+/**
+ * Outcome of one {@link PipelineRunner} run.
+ */
+public final class PipelineResult {
+
+    public final long samples;
+    public final long droppedSamples;
+    public final long bytes;
+    public final long elapsedNs;
+    /** Bytes allocated by the drain and writer threads, -1 if the JVM cannot tell. */
+    public final long allocatedBytes;
+    /** CPU time of the drain, codec and writer threads, -1 if the JVM cannot tell. */
+    public final long cpuNs;
+    public final MetricsSnapshot metrics;
+
+    PipelineResult(long samples, long droppedSamples, long bytes, long elapsedNs,
+                   long allocatedBytes, long cpuNs, MetricsSnapshot metrics) {
+        this.samples = samples;
+        this.droppedSamples = droppedSamples;
+        this.bytes = bytes;
+        this.elapsedNs = elapsedNs;
+        this.allocatedBytes = allocatedBytes;
+        this.cpuNs = cpuNs;
+        this.metrics = metrics;
+    }
+
+    public double samplesPerSecond() {
+        return samples * 1e9 / elapsedNs;
+    }
+
+    public double allocatedBytesPerSample() {
+        return allocatedBytes < 0 || samples == 0 ? -1 : (double) allocatedBytes / samples;
+    }
+
+    public double allocatedBytesPerSecond() {
+        return allocatedBytes < 0 ? -1 : allocatedBytes * 1e9 / elapsedNs;
+    }
+
+    /** Share of one core used by the pipeline threads, -1 if unknown. */
+    public double cpuPercent() {
+        return cpuNs < 0 ? -1 : cpuNs * 100.0 / elapsedNs;
+    }
+
+    public LatencyHistogram.Snapshot muxLatency() {
+        return metrics.getHistogram("mux_latency_ns");
+    }
+
+    public LatencyHistogram.Snapshot diskLatency() {
+        return metrics.getHistogram("disk_latency_ns");
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                "samples=%d dropped=%d bytes=%d elapsed=%.1fms%n"
+                        + "throughput=%.0f samples/s %.1f MB/s%n"
+                        + "mux latency   p50=%.3fms p99=%.3fms max=%.3fms%n"
+                        + "disk latency  p50=%.3fms p99=%.3fms max=%.3fms%n"
+                        + "allocation=%.1f B/sample %.1f KB/s%n"
+                        + "cpu=%.1fms %.1f%% of one core",
+                samples, droppedSamples, bytes, elapsedNs / 1e6,
+                samplesPerSecond(), bytes * 1e3 / elapsedNs,
+                muxLatency().getValueAtPercentile(50) / 1e6, muxLatency().getValueAtPercentile(99) / 1e6,
+                muxLatency().getMax() / 1e6,
+                diskLatency().getValueAtPercentile(50) / 1e6, diskLatency().getValueAtPercentile(99) / 1e6,
+                diskLatency().getMax() / 1e6,
+                allocatedBytesPerSample(), allocatedBytesPerSecond() / 1024,
+                cpuNs / 1e6, cpuPercent());
+    }
+}
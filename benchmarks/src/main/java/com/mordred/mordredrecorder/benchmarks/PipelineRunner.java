@@ -0,0 +1,196 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.CallbackDrain;
+import com.mordred.mordredrecorder.core.CallbackRecordingEngine;
+import com.mordred.mordredrecorder.core.EncoderCallback;
+import com.mordred.mordredrecorder.core.EncoderDrain;
+import com.mordred.mordredrecorder.core.EncoderOutput;
+import com.mordred.mordredrecorder.core.MetricsRegistry;
+import com.mordred.mordredrecorder.core.MuxerWriter;
+import com.mordred.mordredrecorder.core.PollingRecordingEngine;
+import com.mordred.mordredrecorder.core.RecordingEngine;
+import com.mordred.mordredrecorder.core.SampleInfo;
+import com.mordred.mordredrecorder.core.SampleMuxer;
+import com.mordred.mordredrecorder.core.SamplePool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the recorder's drain and mux stages on the host JVM: one drain per synthetic stream
+ * feeding a {@link MuxerWriter}, through the same {@link RecordingEngine}s and pools as the app.
+ * With callbacks, each synthetic encoder runs on a codec thread of its own that reports its
+ * output to a {@link CallbackDrain}, the way MediaCodec does in asynchronous mode.
+ */
+public class PipelineRunner {
+
+    private static final int VIDEO_TRACK = 0;
+    private static final int AUDIO_TRACK = 1;
+    private static final long JOIN_TIMEOUT_MS = 2000;
+
+    private final SyntheticStream video;
+    private final SyntheticStream audio;
+    private final long durationUs;
+    private final boolean paced;
+    private final boolean callbacks;
+
+    public PipelineRunner(SyntheticStream video, SyntheticStream audio, long durationUs, boolean paced) {
+        this(video, audio, durationUs, paced, false);
+    }
+
+    /**
+     * @param paced     produce samples in real time like a live encoder instead of as fast as
+     *                  they are drained
+     * @param callbacks use the {@link CallbackRecordingEngine} instead of polling the encoders
+     */
+    public PipelineRunner(SyntheticStream video, SyntheticStream audio, long durationUs, boolean paced,
+                          boolean callbacks) {
+        this.video = video;
+        this.audio = audio;
+        this.durationUs = durationUs;
+        this.paced = paced;
+        this.callbacks = callbacks;
+    }
+
+    /** Records into {@code muxer}, wrapped in a {@link LatencyMuxer}, and releases it. */
+    public PipelineResult run(SampleMuxer muxer) throws Exception {
+        final MetricsRegistry metrics = new MetricsRegistry();
+        final MuxerWriter writer = new MuxerWriter(new LatencyMuxer(muxer, metrics), 2);
+        writer.setMetrics(metrics, "video", "audio");
+        final int fps = (int) (1000000 / video.sampleDurationUs);
+        final SyntheticEncoderOutput videoEncoder = new SyntheticEncoderOutput(video, durationUs, paced);
+        final SyntheticEncoderOutput audioEncoder = new SyntheticEncoderOutput(audio, durationUs, paced);
+        final SamplePool videoPool = SamplePool.forVideo((int) (video.bytesPerSecond() * 8), fps);
+        final SamplePool audioPool = SamplePool.forAudio((int) (audio.bytesPerSecond() * 8), audio.format.sampleRate);
+
+        final AtomicLong allocated = new AtomicLong();
+        final AtomicLong cpuNs = new AtomicLong();
+        final List<Thread> threads = new ArrayList<>();
+        final ThreadFactory threadFactory = accountingThreads(threads, allocated, cpuNs);
+        final RecordingEngine engine;
+        final long start = System.nanoTime();
+        if (callbacks) {
+            final CallbackDrain videoDrain = new CallbackDrain(videoEncoder, VIDEO_TRACK, writer, videoPool);
+            final CallbackDrain audioDrain = new CallbackDrain(audioEncoder, AUDIO_TRACK, writer, audioPool);
+            videoDrain.setMetrics(metrics, "video");
+            audioDrain.setMetrics(metrics, "audio");
+            engine = new CallbackRecordingEngine(threadFactory, writer, videoDrain, audioDrain);
+            engine.start();
+            threadFactory.newThread(new CodecThread(videoEncoder, videoDrain)).start();
+            threadFactory.newThread(new CodecThread(audioEncoder, audioDrain)).start();
+        } else {
+            final EncoderDrain videoDrain = new EncoderDrain(videoEncoder, VIDEO_TRACK, writer, videoPool);
+            final EncoderDrain audioDrain = new EncoderDrain(audioEncoder, AUDIO_TRACK, writer, audioPool);
+            videoDrain.setMetrics(metrics, "video");
+            audioDrain.setMetrics(metrics, "audio");
+            engine = new PollingRecordingEngine(threadFactory, writer, videoDrain, audioDrain);
+            engine.start();
+        }
+        // every thread ends by itself once both streams are muxed
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final long elapsedNs = System.nanoTime() - start;
+        engine.stop(JOIN_TIMEOUT_MS);
+        muxer.release();
+
+        if (engine.getError() != null) {
+            throw engine.getError();
+        }
+        return new PipelineResult(writer.getWrittenSamples(), writer.getDroppedSamples(),
+                writer.getWrittenBytes(), elapsedNs, Math.max(allocated.get(), -1),
+                Math.max(cpuNs.get(), -1), metrics.snapshot());
+    }
+
+    /** Creates threads that add their allocation and CPU time to the totals when they end. */
+    static ThreadFactory accountingThreads(final List<Thread> threads, final AtomicLong allocated,
+                                           final AtomicLong cpuNs) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        final long before = allocatedBytes();
+                        try {
+                            runnable.run();
+                        } finally {
+                            final long after = allocatedBytes();
+                            if (before < 0 || after < 0) {
+                                allocated.set(Long.MIN_VALUE);
+                            } else {
+                                allocated.addAndGet(after - before);
+                            }
+                            final long cpu = cpuTimeNs();
+                            if (cpu < 0) {
+                                cpuNs.set(Long.MIN_VALUE);
+                            } else {
+                                cpuNs.addAndGet(cpu);
+                            }
+                        }
+                    }
+                });
+                synchronized (threads) {
+                    threads.add(thread);
+                }
+                return thread;
+            }
+        };
+    }
+
+    /** Bytes allocated by the current thread so far, -1 if not supported. */
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            final com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+            if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+                return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    /** CPU time of the current thread so far, -1 if not supported. */
+    private static long cpuTimeNs() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Stands in for a codec's callback thread: waits for each sample of a synthetic encoder
+     * as long as it takes and reports it as soon as it is due.
+     */
+    private static class CodecThread implements Runnable {
+
+        private static final long WAIT_US = 1000000;
+
+        private final EncoderOutput encoder;
+        private final EncoderCallback callback;
+        private final SampleInfo info = new SampleInfo();
+
+        CodecThread(EncoderOutput encoder, EncoderCallback callback) {
+            this.encoder = encoder;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final int status = encoder.dequeueOutputBuffer(info, WAIT_US);
+                if (status == EncoderOutput.INFO_OUTPUT_FORMAT_CHANGED) {
+                    callback.onOutputFormatChanged(encoder.getOutputFormat());
+                } else if (status >= 0) {
+                    final boolean endOfStream = info.isEndOfStream();
+                    callback.onOutputBufferAvailable(status, info);
+                    if (endOfStream) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.EncoderOutput;
+import com.mordred.mordredrecorder.core.IdleDetector;
+import com.mordred.mordredrecorder.core.SampleInfo;
+import com.mordred.mordredrecorder.core.TrackFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Unpaced {@link EncoderOutput} modelling a video encoder fed by a screen capture of some
+ * {@link Content}. At a constant frame rate every display refresh is encoded, an unchanged
+ * screen as a tiny skip frame. With variable frame rate unchanged refreshes never reach the
+ * encoder, except one repeat per key frame interval, and an {@link IdleDetector} fed with the
+ * output caps the capture rate, as {@code RecorderThread} does on a device.
+ */
+class ScreenEncoderOutput implements EncoderOutput {
+
+    enum Content {
+        /** Nothing changes between short bursts of activity, like reading a document. */
+        STATIC,
+        /** A blinking cursor or spinner changes a few pixels every frame between the bursts. */
+        IDLE,
+        /** Every frame changes, like video playback or a game. */
+        DYNAMIC
+    }
+
+    static final int SKIP_FRAME_SIZE = SyntheticStream.MIN_SAMPLE_SIZE;
+    static final int SMALL_CHANGE_SIZE = 300;
+    // one second of real activity every thirty
+    private static final long BURST_PERIOD_US = 30000000;
+    private static final long BURST_DURATION_US = 1000000;
+
+    private final SyntheticStream stream;
+    private final Content content;
+    private final IdleDetector idleDetector;
+    private final long durationUs;
+    private final long keyFrameIntervalUs;
+    private final ByteBuffer buffer;
+
+    private boolean formatSent;
+    private long slot;
+    private long lastFramePtsUs = Long.MIN_VALUE;
+    private long lastKeyPtsUs = Long.MIN_VALUE;
+    private long frames;
+
+    /**
+     * @param idleDetector caps the capture rate for variable frame rate, null for a constant rate
+     */
+    ScreenEncoderOutput(SyntheticStream stream, Content content, IdleDetector idleDetector, long durationUs) {
+        this.stream = stream;
+        this.content = content;
+        this.idleDetector = idleDetector;
+        this.durationUs = durationUs;
+        this.keyFrameIntervalUs = stream.keyFrameInterval * stream.sampleDurationUs;
+        buffer = ByteBuffer.allocate(stream.keyFrameSize);
+        final Random random = new Random(1);
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) (random.nextInt() | 0x80));
+        }
+    }
+
+    /** Frames handed to the encoder so far. */
+    long getFrames() {
+        return frames;
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        if (!formatSent) {
+            formatSent = true;
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        while (true) {
+            final long ptsUs = slot++ * stream.sampleDurationUs;
+            if (ptsUs >= durationUs) {
+                info.set(0, 0, lastFramePtsUs, SampleInfo.FLAG_END_OF_STREAM);
+                return 0;
+            }
+            int size = changeSize(ptsUs);
+            if (idleDetector != null) {
+                final long sinceLastUs = lastFramePtsUs == Long.MIN_VALUE ? Long.MAX_VALUE : ptsUs - lastFramePtsUs;
+                final long minIntervalUs = 1000000 / idleDetector.getFrameRate() - stream.sampleDurationUs / 2;
+                if ((size == 0 && sinceLastUs < keyFrameIntervalUs) || sinceLastUs < minIntervalUs) {
+                    continue;
+                }
+            }
+            final boolean key = lastKeyPtsUs == Long.MIN_VALUE || ptsUs - lastKeyPtsUs >= keyFrameIntervalUs;
+            if (key) {
+                size = stream.keyFrameSize;
+                lastKeyPtsUs = ptsUs;
+            } else if (size == 0) {
+                size = SKIP_FRAME_SIZE;
+            }
+            buffer.putInt(0, 1);
+            buffer.put(4, (byte) (key ? 0x65 : 0x41));
+            info.set(0, size, ptsUs, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+            if (idleDetector != null) {
+                idleDetector.onFrame(ptsUs, size, key);
+            }
+            lastFramePtsUs = ptsUs;
+            frames++;
+            return 0;
+        }
+    }
+
+    /** Encoded size of the change since the previous refresh, 0 if the screen is unchanged. */
+    private int changeSize(long ptsUs) {
+        if (content == Content.DYNAMIC || ptsUs % BURST_PERIOD_US < BURST_DURATION_US) {
+            return stream.frameSize;
+        }
+        return content == Content.IDLE ? SMALL_CHANGE_SIZE : 0;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return stream.format;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+    }
+}
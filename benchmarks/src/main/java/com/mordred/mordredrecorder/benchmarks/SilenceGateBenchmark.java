@@ -0,0 +1,66 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.SilenceGate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of deciding whether one AAC frame of captured audio is silent, from an array as the
+ * microphone mix has it and from a direct buffer as the encoder's input buffer holds it.
+ * Run with {@code -prof gc} to check that the gate does not allocate.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SilenceGateBenchmark {
+
+    private static final int FRAMES = SilenceGate.AAC_FRAME_SIZE;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    private SilenceGate gate;
+    private short[] pcm;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        gate = new SilenceGate(48000, channels);
+        pcm = new short[FRAMES * channels];
+        final Random random = new Random(1);
+        for (int i = 0; i < pcm.length; i++) {
+            // faint noise, so neither threshold cuts the loop short
+            pcm[i] = (short) (random.nextGaussian() * 4);
+        }
+        buffer = ByteBuffer.allocateDirect(pcm.length * 2).order(ByteOrder.nativeOrder());
+        buffer.asShortBuffer().put(pcm);
+    }
+
+    @Benchmark
+    public boolean gateArray() {
+        return gate.gate(pcm, 0, pcm.length);
+    }
+
+    @Benchmark
+    public boolean gateBuffer() {
+        return gate.gate(buffer, 0, buffer.capacity());
+    }
+}
@@ -0,0 +1,123 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.EncoderOutput;
+import com.mordred.mordredrecorder.core.SampleInfo;
+import com.mordred.mordredrecorder.core.TrackFormat;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link EncoderOutput} emitting a {@link SyntheticStream}, either as fast as it is drained or
+ * paced in real time like a live encoder. Video samples are Annex-B slices so the muxer does
+ * its usual NAL conversion. Every sample carries the {@link System#nanoTime()} it was
+ * produced at, which {@link LatencyMuxer} reads back.
+ */
+public class SyntheticEncoderOutput implements EncoderOutput {
+
+    /** Offset of the producer timestamp in every sample. */
+    static final int TIMESTAMP_OFFSET = 8;
+    // 63 bits in 7 bit groups with the top bit set, so no byte is 0 and no start code appears
+    private static final int TIMESTAMP_BYTES = 9;
+
+    private final SyntheticStream stream;
+    private final long sampleCount;
+    private final boolean paced;
+    private final ByteBuffer buffer;
+
+    private boolean formatSent;
+    private long produced;
+    private long startNs;
+    private boolean dequeued;
+
+    public SyntheticEncoderOutput(SyntheticStream stream, long durationUs, boolean paced) {
+        this.stream = stream;
+        this.sampleCount = stream.samplesFor(durationUs);
+        this.paced = paced;
+        buffer = ByteBuffer.allocateDirect(Math.max(stream.keyFrameSize, stream.frameSize));
+        // incompressible filler; 0x80 keeps start codes out of the payload
+        final Random random = new Random(stream.format.hashCode());
+        for (int i = 0; i < buffer.capacity(); i++) {
+            buffer.put(i, (byte) (random.nextInt() | 0x80));
+        }
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        if (dequeued) {
+            throw new IllegalStateException("previous buffer not released");
+        }
+        if (!formatSent) {
+            formatSent = true;
+            startNs = System.nanoTime();
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        if (produced >= sampleCount) {
+            LockSupport.parkNanos(timeoutUs * 1000);
+            return INFO_TRY_AGAIN_LATER;
+        }
+        final long ptsUs = produced * stream.sampleDurationUs;
+        if (paced) {
+            final long dueNs = startNs + ptsUs * 1000;
+            long waitNs;
+            while ((waitNs = dueNs - System.nanoTime()) > 0) {
+                if (waitNs > timeoutUs * 1000) {
+                    LockSupport.parkNanos(timeoutUs * 1000);
+                    return INFO_TRY_AGAIN_LATER;
+                }
+                LockSupport.parkNanos(waitNs);
+            }
+        }
+        final boolean key = stream.isKeyFrame(produced);
+        final int size = stream.sizeOf(produced);
+        if (stream.format.isVideo()) {
+            buffer.putInt(0, 1);
+            buffer.put(4, (byte) (key ? 0x65 : 0x41));
+        }
+        putTimestamp(buffer, System.nanoTime());
+        int flags = key ? SampleInfo.FLAG_KEY_FRAME : 0;
+        if (produced == sampleCount - 1) {
+            flags |= SampleInfo.FLAG_END_OF_STREAM;
+        }
+        info.set(0, size, ptsUs, flags);
+        produced++;
+        dequeued = true;
+        return 0;
+    }
+
+    static void putTimestamp(ByteBuffer sample, long nanoTime) {
+        for (int i = 0; i < TIMESTAMP_BYTES; i++) {
+            sample.put(TIMESTAMP_OFFSET + i, (byte) (0x80 | (nanoTime >>> (7 * i)) & 0x7f));
+        }
+    }
+
+    /** Producer timestamp of a sample starting at {@code sample.position()}. */
+    static long getTimestamp(ByteBuffer sample) {
+        long nanoTime = 0;
+        for (int i = 0; i < TIMESTAMP_BYTES; i++) {
+            nanoTime |= (long) (sample.get(sample.position() + TIMESTAMP_OFFSET + i) & 0x7f) << (7 * i);
+        }
+        return nanoTime;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return stream.format;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        dequeued = false;
+    }
+}
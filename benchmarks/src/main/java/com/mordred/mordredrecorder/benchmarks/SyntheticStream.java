@@ -0,0 +1,88 @@
+package com.mordred.mordredrecorder.benchmarks;
+
+import com.mordred.mordredrecorder.core.TrackFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Shape of a synthetic encoder output: format, sample rate in samples per second and the
+ * size of each sample. Video bitrate is spread over a GOP with key frames four times the size
+ * of the other frames.
+ */
+public final class SyntheticStream {
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000
+    };
+    private static final int KEY_FRAME_WEIGHT = 4;
+    // start code, NAL header and the producer timestamp must fit into every sample
+    static final int MIN_SAMPLE_SIZE = 24;
+
+    public final TrackFormat format;
+    public final long sampleDurationUs;
+    public final int keyFrameInterval;
+    public final int keyFrameSize;
+    public final int frameSize;
+
+    private SyntheticStream(TrackFormat format, long sampleDurationUs, int keyFrameInterval,
+                            int keyFrameSize, int frameSize) {
+        this.format = format;
+        this.sampleDurationUs = sampleDurationUs;
+        this.keyFrameInterval = keyFrameInterval;
+        this.keyFrameSize = Math.max(keyFrameSize, MIN_SAMPLE_SIZE);
+        this.frameSize = Math.max(frameSize, MIN_SAMPLE_SIZE);
+    }
+
+    /** H.264 at {@code bitrate} bits per second with a key frame every {@code gopSeconds}. */
+    public static SyntheticStream video(int width, int height, int fps, int bitrate, int gopSeconds) {
+        final int gop = Math.max(1, fps * gopSeconds);
+        final long gopBytes = (long) bitrate / 8 * gopSeconds;
+        final int frameSize = (int) (gopBytes / (gop - 1 + KEY_FRAME_WEIGHT));
+        return new SyntheticStream(TrackFormat.video(TrackFormat.MIME_AVC, width, height,
+                ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS)),
+                1000000L / fps, gop, KEY_FRAME_WEIGHT * frameSize, frameSize);
+    }
+
+    /** AAC-LC frames of 1024 samples per channel. */
+    public static SyntheticStream audio(int sampleRate, int channelCount, int bitrate) {
+        int rateIndex = -1;
+        for (int i = 0; i < AAC_SAMPLE_RATES.length; i++) {
+            if (AAC_SAMPLE_RATES[i] == sampleRate) {
+                rateIndex = i;
+            }
+        }
+        if (rateIndex < 0) {
+            throw new IllegalArgumentException("unsupported sample rate " + sampleRate);
+        }
+        final int config = 2 << 11 | rateIndex << 7 | channelCount << 3;
+        final ByteBuffer asc = ByteBuffer.wrap(new byte[] {(byte) (config >> 8), (byte) config});
+        final int frameSize = (int) ((long) bitrate * 1024 / 8 / sampleRate);
+        return new SyntheticStream(TrackFormat.audio(TrackFormat.MIME_AAC, sampleRate, channelCount, asc),
+                1024L * 1000000 / sampleRate, 1, frameSize, frameSize);
+    }
+
+    public boolean isKeyFrame(long sample) {
+        return sample % keyFrameInterval == 0;
+    }
+
+    public int sizeOf(long sample) {
+        return isKeyFrame(sample) ? keyFrameSize : frameSize;
+    }
+
+    /** Samples needed for {@code durationUs} of media. */
+    public long samplesFor(long durationUs) {
+        return (durationUs + sampleDurationUs - 1) / sampleDurationUs;
+    }
+
+    public long bytesPerSecond() {
+        final long gopBytes = keyFrameSize + (long) (keyFrameInterval - 1) * frameSize;
+        return gopBytes * 1000000 / (keyFrameInterval * sampleDurationUs);
+    }
+
+    @Override
+    public String toString() {
+        return format + ", " + sampleDurationUs + "us/sample, " + bytesPerSecond() * 8 + " bit/s";
+    }
+}
@@ -0,0 +1,92 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Additive increase, multiplicative decrease between a floor and a ceiling.
+ * <p>
+ * The pipeline counts as congested when the writer queue fills up, samples wait longer than
+ * the latency budget, or the writer falls behind what the encoders hand over while samples
+ * are queued. The configured bitrate plays no part: screen content often encodes far below it. Congestion cuts the bitrate by {@code decreaseFactor}, then the controller
+ * holds for a few intervals so the encoder can react before the load is judged again.
+ * After {@code stableIntervals} healthy intervals the bitrate grows by a fixed step.
+ */
+public class AimdBitrateController implements BitrateController {
+
+    public static final float DEFAULT_DECREASE_FACTOR = 0.75f;
+    public static final float DEFAULT_MAX_QUEUE_FILL = 0.25f;
+    public static final long DEFAULT_LATENCY_BUDGET_US = 500000;
+    public static final int DEFAULT_STABLE_INTERVALS = 3;
+    public static final int DEFAULT_HOLD_INTERVALS = 2;
+
+    private final int floorBps;
+    private final int ceilingBps;
+    private final int increaseStepBps;
+    private final float decreaseFactor;
+    private final float maxQueueFill;
+    private final long latencyBudgetUs;
+    private final int stableIntervals;
+    private final int holdIntervals;
+
+    private int bitrate;
+    private int healthyCount;
+    private int holdCount;
+
+    public AimdBitrateController(int floorBps, int ceilingBps, int initialBps) {
+        this(floorBps, ceilingBps, initialBps, Math.max((ceilingBps - floorBps) / 20, 1),
+                DEFAULT_DECREASE_FACTOR, DEFAULT_MAX_QUEUE_FILL, DEFAULT_LATENCY_BUDGET_US,
+                DEFAULT_STABLE_INTERVALS, DEFAULT_HOLD_INTERVALS);
+    }
+
+    public AimdBitrateController(int floorBps, int ceilingBps, int initialBps, int increaseStepBps,
+                                 float decreaseFactor, float maxQueueFill, long latencyBudgetUs,
+                                 int stableIntervals, int holdIntervals) {
+        if (floorBps <= 0 || ceilingBps < floorBps) {
+            throw new IllegalArgumentException("invalid bounds [" + floorBps + ", " + ceilingBps + "]");
+        }
+        if (decreaseFactor <= 0 || decreaseFactor >= 1) {
+            throw new IllegalArgumentException("decreaseFactor must be in (0, 1): " + decreaseFactor);
+        }
+        this.floorBps = floorBps;
+        this.ceilingBps = ceilingBps;
+        this.increaseStepBps = increaseStepBps;
+        this.decreaseFactor = decreaseFactor;
+        this.maxQueueFill = maxQueueFill;
+        this.latencyBudgetUs = latencyBudgetUs;
+        this.stableIntervals = stableIntervals;
+        this.holdIntervals = holdIntervals;
+        this.bitrate = clamp(initialBps);
+    }
+
+    @Override
+    public int update(PipelineLoad load) {
+        if (holdCount > 0) {
+            holdCount--;
+            return bitrate;
+        }
+        if (isCongested(load)) {
+            healthyCount = 0;
+            holdCount = holdIntervals;
+            bitrate = clamp((int) (bitrate * decreaseFactor));
+        } else if (++healthyCount >= stableIntervals) {
+            healthyCount = 0;
+            bitrate = clamp(bitrate + increaseStepBps);
+        }
+        return bitrate;
+    }
+
+    @Override
+    public int getBitrate() {
+        return bitrate;
+    }
+
+    boolean isCongested(PipelineLoad load) {
+        if (load.queueFill() > maxQueueFill || load.drainLatencyUs > latencyBudgetUs) {
+            return true;
+        }
+        // backlog while writing less than the encoders produce: storage is the bottleneck
+        return load.queueDepth > 1 && load.writeThroughputBytesPerSec < load.inputBytesPerSec * 0.8f;
+    }
+
+    private int clamp(int value) {
+        return Math.max(floorBps, Math.min(ceilingBps, value));
+    }
+}
@@ -0,0 +1,162 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Stamps captured PCM chunks with presentation times derived from the sample count.
+ * <p>
+ * Counting samples gives perfectly even timestamps but drifts away from the video clock when
+ * the audio device runs slightly fast or slow. Capture timestamps reported by the device (on
+ * Android {@code AudioRecord.getTimestamp()}) measure that drift; the correction is applied
+ * gradually, at most {@code maxSlewPpm} of the stamped audio time, so consecutive chunks never
+ * jump. A forward error larger than the snap threshold, such as after capture stalled, is
+ * applied at once and leaves a gap instead.
+ * <p>
+ * Without device timestamps the first chunk is anchored to the time it was read, and the
+ * sample count is used from then on.
+ */
+public class AudioClock {
+
+    public static final int DEFAULT_MAX_SLEW_PPM = 2000;
+    public static final long DEFAULT_SNAP_THRESHOLD_US = 50000;
+
+    private final MediaClock clock;
+    private final int sampleRate;
+    private final int maxSlewPpm;
+    private final long snapThresholdUs;
+
+    private boolean anchored;
+    private long anchorPtsUs;
+    private long framesStamped;
+    private double correctionUs;
+    private double targetCorrectionUs;
+    private long lastPtsUs = Long.MIN_VALUE;
+
+    private long timestampCount;
+    private long snapCount;
+    private double maxAbsErrorUs;
+
+    private Gauge driftGauge;
+    private Gauge correctionGauge;
+    private Gauge maxErrorGauge;
+    private Counter timestamps;
+    private Counter snaps;
+
+    public AudioClock(MediaClock clock, int sampleRate) {
+        this(clock, sampleRate, DEFAULT_MAX_SLEW_PPM, DEFAULT_SNAP_THRESHOLD_US);
+    }
+
+    public AudioClock(MediaClock clock, int sampleRate, int maxSlewPpm, long snapThresholdUs) {
+        if (sampleRate <= 0 || maxSlewPpm <= 0 || snapThresholdUs <= 0) {
+            throw new IllegalArgumentException("sampleRate=" + sampleRate + ", maxSlewPpm="
+                    + maxSlewPpm + ", snapThresholdUs=" + snapThresholdUs);
+        }
+        this.clock = clock;
+        this.sampleRate = sampleRate;
+        this.maxSlewPpm = maxSlewPpm;
+        this.snapThresholdUs = snapThresholdUs;
+    }
+
+    /**
+     * Records, under {@code name}, the gauges {@code clock_drift_us}, {@code clock_correction_us}
+     * and {@code clock_max_error_us} and the counters {@code clock_timestamps} and
+     * {@code clock_snaps}, as their getters report them. Must be called before the first chunk.
+     */
+    public synchronized void setMetrics(MetricsRegistry metrics, String name) {
+        driftGauge = metrics.gauge(name + ".clock_drift_us");
+        correctionGauge = metrics.gauge(name + ".clock_correction_us");
+        maxErrorGauge = metrics.gauge(name + ".clock_max_error_us");
+        timestamps = metrics.counter(name + ".clock_timestamps");
+        snaps = metrics.counter(name + ".clock_snaps");
+    }
+
+    /**
+     * Reports that frame {@code framePosition}, counted from the start of capture, was
+     * captured at monotonic time {@code nanoTime}.
+     */
+    public synchronized void onTimestamp(long framePosition, long nanoTime) {
+        final long firstFramePtsUs = clock.toPtsUs(nanoTime) - framesToUs(framePosition);
+        if (!anchored) {
+            anchorPtsUs = firstFramePtsUs;
+            anchored = true;
+        } else {
+            targetCorrectionUs = firstFramePtsUs - anchorPtsUs;
+        }
+        timestampCount++;
+        if (timestamps != null) {
+            timestamps.increment();
+            driftGauge.set(getDriftUs());
+        }
+    }
+
+    /**
+     * Returns the presentation time of the first frame of the next {@code frames} frames read
+     * and advances past them.
+     */
+    public synchronized long stamp(int frames) {
+        if (!anchored) {
+            // the chunk was captured over the time it took to fill, just before now
+            anchorPtsUs = Math.max(0, clock.nowUs() - framesToUs(framesStamped + frames));
+            anchored = true;
+        }
+        final double errorUs = targetCorrectionUs - correctionUs;
+        maxAbsErrorUs = Math.max(maxAbsErrorUs, Math.abs(errorUs));
+        if (errorUs > snapThresholdUs) {
+            correctionUs = targetCorrectionUs;
+            snapCount++;
+            if (snaps != null) {
+                snaps.increment();
+            }
+        } else {
+            final double maxStepUs = framesToUs(frames) * (double) maxSlewPpm / 1000000;
+            correctionUs += Math.max(-maxStepUs, Math.min(maxStepUs, errorUs));
+        }
+        long ptsUs = anchorPtsUs + framesToUs(framesStamped) + Math.round(correctionUs);
+        if (ptsUs <= lastPtsUs) {
+            ptsUs = lastPtsUs + 1;
+        }
+        lastPtsUs = ptsUs;
+        framesStamped += frames;
+        if (correctionGauge != null) {
+            correctionGauge.set(getCorrectionUs());
+            maxErrorGauge.set(getMaxAbsErrorUs());
+        }
+        return ptsUs;
+    }
+
+    private long framesToUs(long frames) {
+        return frames * 1000000 / sampleRate;
+    }
+
+    public synchronized long getFramesStamped() {
+        return framesStamped;
+    }
+
+    /** Offset of the device clock from the sample count, as last measured. */
+    public synchronized long getDriftUs() {
+        return Math.round(targetCorrectionUs);
+    }
+
+    /** Part of the drift already applied to the timestamps. */
+    public synchronized long getCorrectionUs() {
+        return Math.round(correctionUs);
+    }
+
+    /** Largest difference between measured drift and applied correction seen by a chunk. */
+    public synchronized long getMaxAbsErrorUs() {
+        return Math.round(maxAbsErrorUs);
+    }
+
+    public synchronized long getTimestampCount() {
+        return timestampCount;
+    }
+
+    public synchronized long getSnapCount() {
+        return snapCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AudioClock[frames=" + framesStamped + ", driftUs=" + getDriftUs()
+                + ", correctionUs=" + getCorrectionUs() + ", maxErrorUs=" + getMaxAbsErrorUs()
+                + ", timestamps=" + timestampCount + ", snaps=" + snapCount + "]";
+    }
+}
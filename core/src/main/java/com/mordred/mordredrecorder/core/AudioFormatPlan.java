@@ -0,0 +1,117 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Validated AAC capture format and the sizes derived from it.
+ * <p>
+ * PCM is read in chunks of one AAC frame ({@value #AAC_FRAME_SAMPLES} samples per channel)
+ * instead of whole encoder input buffers, so the time a sample waits before it reaches the
+ * encoder is bounded by the chunk duration rather than by the codec's buffer size.
+ */
+public final class AudioFormatPlan {
+
+    public static final int AAC_FRAME_SAMPLES = 1024;
+    public static final int DEFAULT_SAMPLE_RATE = 44100;
+    public static final int DEFAULT_CHANNEL_COUNT = 2;
+    public static final int DEFAULT_BITRATE = 128000;
+
+    private static final int[] SAMPLE_RATES = {
+            8000, 11025, 12000, 16000, 22050, 24000, 32000, 44100, 48000
+    };
+    private static final int MAX_CHANNEL_COUNT = 2;
+    // 16 bit PCM
+    private static final int BYTES_PER_SAMPLE = 2;
+    private static final int MIN_BITRATE_PER_CHANNEL = 8000;
+    // an AAC frame carries at most 6144 bits per channel
+    private static final int MAX_FRAME_BITS_PER_CHANNEL = 6144;
+    private static final int RECORD_BUFFER_CHUNKS = 4;
+
+    public final int sampleRate;
+    public final int channelCount;
+    public final int bitrate;
+
+    public AudioFormatPlan(int sampleRate, int channelCount, int bitrate) {
+        if (!isSupportedSampleRate(sampleRate)) {
+            throw new IllegalArgumentException("unsupported sample rate " + sampleRate);
+        }
+        if (channelCount < 1 || channelCount > MAX_CHANNEL_COUNT) {
+            throw new IllegalArgumentException("unsupported channel count " + channelCount);
+        }
+        if (bitrate < minBitrate(channelCount) || bitrate > maxBitrate(sampleRate, channelCount)) {
+            throw new IllegalArgumentException("bitrate " + bitrate + " outside ["
+                    + minBitrate(channelCount) + ", " + maxBitrate(sampleRate, channelCount)
+                    + "] for " + channelCount + " channels at " + sampleRate + " Hz");
+        }
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.bitrate = bitrate;
+    }
+
+    public static AudioFormatPlan defaults() {
+        return new AudioFormatPlan(DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_COUNT, DEFAULT_BITRATE);
+    }
+
+    public static boolean isSupportedSampleRate(int sampleRate) {
+        for (int rate : SAMPLE_RATES) {
+            if (rate == sampleRate) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static int minBitrate(int channelCount) {
+        return MIN_BITRATE_PER_CHANNEL * channelCount;
+    }
+
+    public static int maxBitrate(int sampleRate, int channelCount) {
+        return (int) ((long) MAX_FRAME_BITS_PER_CHANNEL * channelCount * sampleRate / AAC_FRAME_SAMPLES);
+    }
+
+    public int getBytesPerFrame() {
+        return BYTES_PER_SAMPLE * channelCount;
+    }
+
+    public int getChunkFrames() {
+        return AAC_FRAME_SAMPLES;
+    }
+
+    public int getChunkBytes() {
+        return AAC_FRAME_SAMPLES * getBytesPerFrame();
+    }
+
+    public long getChunkDurationUs() {
+        return framesToUs(AAC_FRAME_SAMPLES);
+    }
+
+    /**
+     * Bytes to read into an encoder input buffer of {@code capacity} bytes: one chunk, or as
+     * many whole frames as fit if the buffer is smaller.
+     */
+    public int readSize(int capacity) {
+        final int bytesPerFrame = getBytesPerFrame();
+        if (capacity < bytesPerFrame) {
+            throw new IllegalArgumentException("input buffer of " + capacity + " bytes holds no frame");
+        }
+        return Math.min(getChunkBytes(), capacity / bytesPerFrame * bytesPerFrame);
+    }
+
+    /**
+     * Size of the capture buffer: at least {@code minBufferBytes} and a few chunks, rounded up
+     * to whole chunks.
+     */
+    public int recordBufferBytes(int minBufferBytes) {
+        final int chunkBytes = getChunkBytes();
+        final int bytes = Math.max(minBufferBytes, RECORD_BUFFER_CHUNKS * chunkBytes);
+        return (bytes + chunkBytes - 1) / chunkBytes * chunkBytes;
+    }
+
+    public long framesToUs(long frames) {
+        return frames * 1000000 / sampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return "AudioFormatPlan[sampleRate=" + sampleRate + ", channelCount=" + channelCount
+                + ", bitrate=" + bitrate + "]";
+    }
+}
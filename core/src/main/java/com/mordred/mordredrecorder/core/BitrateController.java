@@ -0,0 +1,13 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Control law choosing the video bitrate from the observed pipeline load.
+ * Called once per control interval from a single thread.
+ */
+public interface BitrateController {
+
+    /** Returns the bitrate to use for the next interval, in bits per second. */
+    int update(PipelineLoad load);
+
+    int getBitrate();
+}
@@ -0,0 +1,135 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Event driven counterpart of {@link EncoderDrain}: handles the output of an encoder in
+ * asynchronous mode on the encoder's callback thread and hands it to a {@link MuxerWriter}.
+ * Nothing polls the encoder, so an idle encoder costs no CPU and a sample is queued as soon
+ * as the encoder reports it.
+ * <p>
+ * {@link #stop()} may be called from any thread. Buffers arriving after it are released
+ * without being written.
+ */
+public class CallbackDrain implements EncoderCallback {
+
+    private final EncoderOutput encoder;
+    private final int track;
+    private final MuxerWriter writer;
+    private final SamplePool pool;
+    // serialises the callback thread and stop(), the track queue has a single producer
+    private final Object lock = new Object();
+
+    private LatencyHistogram callbackNs;
+
+    private boolean ended;
+    private volatile boolean stopped;
+    private volatile Exception error;
+
+    /**
+     * @param encoder gives access to the output buffers reported to this callback
+     */
+    public CallbackDrain(EncoderOutput encoder, int track, MuxerWriter writer, SamplePool pool) {
+        this.encoder = encoder;
+        this.track = track;
+        this.writer = writer;
+        this.pool = pool;
+    }
+
+    /**
+     * Records {@code name.callback_ns}, the time spent handling each output buffer.
+     * Must be called before the encoder starts.
+     */
+    public void setMetrics(MetricsRegistry metrics, String name) {
+        callbackNs = metrics.histogram(name + ".callback_ns");
+    }
+
+    /** Ends the track; later output buffers are released unwritten. */
+    public void stop() {
+        stopped = true;
+        synchronized (lock) {
+            endTrack();
+        }
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * Queues a sample that does not come from the encoder, such as a pre-encoded silent frame,
+     * behind the encoder's output so far. May be called from any thread. Returns false once
+     * the track has ended.
+     */
+    public boolean putSample(ByteBuffer data, SampleInfo info) {
+        synchronized (lock) {
+            if (ended) {
+                return false;
+            }
+            if (!EncoderDrain.putCopy(data, info, track, writer, pool)) {
+                endTrack();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void onOutputBufferAvailable(int index, SampleInfo info) {
+        final long startNs = callbackNs != null ? System.nanoTime() : 0;
+        synchronized (lock) {
+            if (ended) {
+                releaseQuietly(index);
+                return;
+            }
+            try {
+                if (!EncoderDrain.drainBuffer(encoder, index, info, track, writer, pool)) {
+                    endTrack();
+                }
+            } catch (Exception e) {
+                fail(e);
+            }
+        }
+        if (callbackNs != null) {
+            callbackNs.record(System.nanoTime() - startNs);
+        }
+    }
+
+    @Override
+    public void onOutputFormatChanged(TrackFormat format) {
+        synchronized (lock) {
+            if (!ended && !writer.put(EncodedSample.format(track, format))) {
+                endTrack();
+            }
+        }
+    }
+
+    @Override
+    public void onError(Exception error) {
+        synchronized (lock) {
+            fail(error);
+        }
+    }
+
+    private void fail(Exception e) {
+        if (!stopped && error == null) {
+            error = e;
+        }
+        endTrack();
+    }
+
+    private void endTrack() {
+        if (!ended) {
+            ended = true;
+            writer.put(EncodedSample.endOfStream(track));
+        }
+    }
+
+    private void releaseQuietly(int index) {
+        try {
+            encoder.releaseOutputBuffer(index);
+        } catch (Exception ignored) {
+            // the encoder is being stopped
+        }
+    }
+}
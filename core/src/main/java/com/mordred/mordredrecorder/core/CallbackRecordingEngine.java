@@ -0,0 +1,54 @@
+package com.mordred.mordredrecorder.core;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link RecordingEngine} for encoders in asynchronous mode. Only the writer has a thread of
+ * its own; the {@link CallbackDrain}s run on the encoders' callback threads, which must be
+ * set up by the caller before the encoders start.
+ */
+public class CallbackRecordingEngine implements RecordingEngine {
+
+    private final ThreadFactory threadFactory;
+    private final MuxerWriter writer;
+    private final CallbackDrain[] drains;
+    private Thread writerThread;
+
+    public CallbackRecordingEngine(MuxerWriter writer, CallbackDrain... drains) {
+        this(PollingRecordingEngine.PLAIN_THREADS, writer, drains);
+    }
+
+    /**
+     * @param threadFactory creates the writer thread
+     */
+    public CallbackRecordingEngine(ThreadFactory threadFactory, MuxerWriter writer, CallbackDrain... drains) {
+        this.threadFactory = threadFactory;
+        this.writer = writer;
+        this.drains = drains;
+    }
+
+    @Override
+    public void start() {
+        writerThread = PollingRecordingEngine.startThread(threadFactory, writer, "MuxerWriter");
+    }
+
+    @Override
+    public void stop(long timeoutMs) throws InterruptedException {
+        for (CallbackDrain drain : drains) {
+            drain.stop();
+        }
+        if (writerThread != null) {
+            writerThread.join(timeoutMs);
+        }
+    }
+
+    @Override
+    public Exception getError() {
+        for (CallbackDrain drain : drains) {
+            if (drain.getError() != null) {
+                return drain.getError();
+            }
+        }
+        return writer.getError();
+    }
+}
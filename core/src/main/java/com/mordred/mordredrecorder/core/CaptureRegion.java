@@ -0,0 +1,204 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * The part of the display a recording is limited to, and the size it is encoded at.
+ * <p>
+ * The region is asked for in pixels of the display in its natural orientation, so that it
+ * names the same part of the screen however the device is held, and is mapped to the display
+ * as it is rotated when the recording starts. It is clipped to the display and grown to whole
+ * 16x16 blocks, and to the encoder's alignment, around its centre where the display leaves
+ * room, so that the encoder spends no padding on pixels that are not recorded. The region is
+ * encoded pixel for pixel unless the encoder cannot take its size; it is then scaled down as
+ * {@link VideoProfileSelector} scales a whole display.
+ */
+public final class CaptureRegion {
+
+    /** Width and height of the blocks AVC and HEVC encoders code a frame in. */
+    public static final int BLOCK_SIZE = 16;
+
+    /** Rotations of the display from its natural orientation, as {@code Surface.ROTATION_*}. */
+    public static final int ROTATION_0 = 0;
+    public static final int ROTATION_90 = 1;
+    public static final int ROTATION_180 = 2;
+    public static final int ROTATION_270 = 3;
+
+    private static final int DENSITY_DEFAULT = 160;
+
+    /** Size of the display as rotated, which the capture mirrors pixel for pixel. */
+    public final int displayWidth;
+    public final int displayHeight;
+    /** The recorded part of the display as rotated, aligned and inside the display. */
+    public final int left;
+    public final int top;
+    public final int width;
+    public final int height;
+    /** Size of the encoded frames. */
+    public final int outputWidth;
+    public final int outputHeight;
+
+    private CaptureRegion(int displayWidth, int displayHeight, int left, int top, int width, int height,
+                          int outputWidth, int outputHeight) {
+        this.displayWidth = displayWidth;
+        this.displayHeight = displayHeight;
+        this.left = left;
+        this.top = top;
+        this.width = width;
+        this.height = height;
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+    }
+
+    /**
+     * Plans the capture of {@code regionWidth} x {@code regionHeight} at {@code regionLeft},
+     * {@code regionTop} in the natural orientation, on a display that is {@code displayWidth} x
+     * {@code displayHeight} as rotated by {@code rotation}. Returns null if {@code encoder}
+     * takes no size of the region at {@code frameRate}; without an encoder, any size of whole
+     * blocks is assumed to work.
+     *
+     * @throws IllegalArgumentException if the region does not overlap the display
+     */
+    public static CaptureRegion plan(int displayWidth, int displayHeight, int rotation,
+                                     int regionLeft, int regionTop, int regionWidth, int regionHeight,
+                                     EncoderCapabilities encoder, int frameRate) {
+        if (displayWidth <= 0 || displayHeight <= 0 || rotation < ROTATION_0 || rotation > ROTATION_270
+                || regionWidth <= 0 || regionHeight <= 0) {
+            throw new IllegalArgumentException("region " + regionWidth + "x" + regionHeight + " at "
+                    + regionLeft + "," + regionTop + " of display " + displayWidth + "x" + displayHeight
+                    + " rotated " + rotation);
+        }
+        final boolean sideways = rotation == ROTATION_90 || rotation == ROTATION_270;
+        final int naturalWidth = sideways ? displayHeight : displayWidth;
+        final int naturalHeight = sideways ? displayWidth : displayHeight;
+        // the region as rotated with the display, see android.util.RotationUtils.rotateBounds
+        int x;
+        int y;
+        int w = sideways ? regionHeight : regionWidth;
+        int h = sideways ? regionWidth : regionHeight;
+        switch (rotation) {
+            case ROTATION_90:
+                x = regionTop;
+                y = naturalWidth - regionLeft - regionWidth;
+                break;
+            case ROTATION_180:
+                x = naturalWidth - regionLeft - regionWidth;
+                y = naturalHeight - regionTop - regionHeight;
+                break;
+            case ROTATION_270:
+                x = naturalHeight - regionTop - regionHeight;
+                y = regionLeft;
+                break;
+            default:
+                x = regionLeft;
+                y = regionTop;
+                break;
+        }
+        // clipped to the display
+        final int right = Math.min(displayWidth, x + w);
+        final int bottom = Math.min(displayHeight, y + h);
+        x = Math.max(0, x);
+        y = Math.max(0, y);
+        w = right - x;
+        h = bottom - y;
+        if (w <= 0 || h <= 0) {
+            throw new IllegalArgumentException("region " + regionWidth + "x" + regionHeight + " at "
+                    + regionLeft + "," + regionTop + " is off the " + naturalWidth + "x" + naturalHeight + " display");
+        }
+
+        final int widthAlignment = EncoderFit.alignmentOf(encoder != null ? encoder.widthAlignment : 1);
+        final int heightAlignment = EncoderFit.alignmentOf(encoder != null ? encoder.heightAlignment : 1);
+        final int alignedWidth = align(w, displayWidth, widthAlignment);
+        final int alignedHeight = align(h, displayHeight, heightAlignment);
+        if (alignedWidth == 0 || alignedHeight == 0) {
+            return null;
+        }
+        final int alignedLeft = centre(x, w, alignedWidth, displayWidth);
+        final int alignedTop = centre(y, h, alignedHeight, displayHeight);
+
+        if (encoder == null || encoder.supports(alignedWidth, alignedHeight, frameRate)) {
+            return new CaptureRegion(displayWidth, displayHeight, alignedLeft, alignedTop, alignedWidth,
+                    alignedHeight, alignedWidth, alignedHeight);
+        }
+        final int[] output = EncoderFit.fit(encoder, alignedWidth, alignedHeight,
+                EncoderFit.maxScale(encoder, alignedWidth, alignedHeight, frameRate), frameRate);
+        if (output == null) {
+            return null;
+        }
+        return new CaptureRegion(displayWidth, displayHeight, alignedLeft, alignedTop, alignedWidth,
+                alignedHeight, output[0], output[1]);
+    }
+
+    /** Converts a length in density-independent pixels to pixels at {@code densityDpi}. */
+    public static int dpToPx(int dp, int densityDpi) {
+        return Math.round((float) dp * densityDpi / DENSITY_DEFAULT);
+    }
+
+    /** True if every recorded pixel is encoded as it is, without scaling. */
+    public boolean isNative() {
+        return outputWidth == width && outputHeight == height;
+    }
+
+    /**
+     * The region as a part of the captured texture: offset and size, in texture coordinates
+     * that run from 0 to 1 across the display, bottom up.
+     */
+    public float[] getTextureCrop() {
+        return new float[] {
+                (float) left / displayWidth,
+                (float) (displayHeight - top - height) / displayHeight,
+                (float) width / displayWidth,
+                (float) height / displayHeight
+        };
+    }
+
+    /**
+     * {@code profile}, planned for the whole display, for recording this region instead: at
+     * the region's size, with the bitrate scaled by the area, within {@code encoder}'s limits.
+     */
+    public VideoProfile applyTo(VideoProfile profile, EncoderCapabilities encoder) {
+        final long bitrate = Math.max(1, (long) profile.bitrate * outputWidth * outputHeight
+                / ((long) profile.width * profile.height));
+        return new VideoProfile(profile.encoderName, profile.mime, outputWidth, outputHeight, profile.frameRate,
+                encoder != null ? encoder.clampBitrate(bitrate) : (int) Math.min(Integer.MAX_VALUE, bitrate),
+                profile.keyFrameIntervalSec);
+    }
+
+    /**
+     * {@code size} in whole blocks where the display leaves room, else in the encoder's
+     * alignment, rounded up where possible. Zero if not even one alignment step fits.
+     */
+    private static int align(int size, int displaySize, int alignment) {
+        final int blocks = alignUp(size, lcm(BLOCK_SIZE, alignment));
+        if (blocks <= displaySize) {
+            return blocks;
+        }
+        final int up = alignUp(size, alignment);
+        return up <= displaySize ? up : size / alignment * alignment;
+    }
+
+    /** Start of {@code alignedSize} around the centre of {@code size} at {@code start}, inside the display. */
+    private static int centre(int start, int size, int alignedSize, int displaySize) {
+        final int centred = start - (alignedSize - size) / 2;
+        return Math.max(0, Math.min(displaySize - alignedSize, centred));
+    }
+
+    private static int alignUp(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    private static int lcm(int a, int b) {
+        int x = a;
+        int y = b;
+        while (y != 0) {
+            final int t = x % y;
+            x = y;
+            y = t;
+        }
+        return a / x * b;
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + " at " + left + "," + top + " of " + displayWidth + "x" + displayHeight
+                + (isNative() ? "" : " scaled to " + outputWidth + "x" + outputHeight);
+    }
+}
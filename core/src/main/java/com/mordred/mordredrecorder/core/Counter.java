@@ -0,0 +1,26 @@
+package com.mordred.mordredrecorder.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free monotonic counter of a {@link MetricsRegistry}.
+ */
+public final class Counter {
+
+    private final LongAdder value = new LongAdder();
+
+    Counter() {
+    }
+
+    public void increment() {
+        value.increment();
+    }
+
+    public void add(long delta) {
+        value.add(delta);
+    }
+
+    public long get() {
+        return value.sum();
+    }
+}
@@ -0,0 +1,103 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A unit travelling from an encoder drain to the muxer writer: either encoded
+ * sample data, a track format announcement or the end of a track.
+ * <p>
+ * Data samples normally come from a {@link SamplePool} and must be handed back with
+ * {@link #recycle()} once they have been written.
+ */
+public final class EncodedSample {
+
+    public final SampleInfo info = new SampleInfo();
+    private final SamplePool pool;
+    private final ByteBuffer slab;
+    int track;
+    ByteBuffer data;
+    TrackFormat format;
+    long queuedAtNs;
+
+    EncodedSample(int track) {
+        this.pool = null;
+        this.slab = null;
+        this.track = track;
+    }
+
+    EncodedSample(SamplePool pool, ByteBuffer slab) {
+        this.pool = pool;
+        this.slab = slab;
+    }
+
+    static EncodedSample copyOf(int track, ByteBuffer src, SampleInfo srcInfo) {
+        EncodedSample sample = new EncodedSample(track);
+        sample.data = ByteBuffer.allocateDirect(srcInfo.size);
+        sample.fill(src, srcInfo);
+        return sample;
+    }
+
+    static EncodedSample format(int track, TrackFormat format) {
+        EncodedSample sample = new EncodedSample(track);
+        sample.format = format;
+        return sample;
+    }
+
+    static EncodedSample endOfStream(int track) {
+        EncodedSample sample = new EncodedSample(track);
+        sample.info.flags = SampleInfo.FLAG_END_OF_STREAM;
+        return sample;
+    }
+
+    void reset(int track) {
+        this.track = track;
+        data = slab;
+        data.clear();
+    }
+
+    /**
+     * Copies the region of {@code src} described by {@code srcInfo} into this sample
+     * without touching the position or limit of {@code src}.
+     */
+    void fill(ByteBuffer src, SampleInfo srcInfo) {
+        final int limit = src.limit();
+        final int position = src.position();
+        src.limit(srcInfo.offset + srcInfo.size).position(srcInfo.offset);
+        data.clear();
+        data.put(src);
+        data.flip();
+        src.limit(limit).position(position);
+        info.set(0, srcInfo.size, srcInfo.presentationTimeUs, srcInfo.flags);
+    }
+
+    /** Returns a pooled sample to its pool. Does nothing for unpooled samples. */
+    public void recycle() {
+        if (pool != null) {
+            pool.release(this);
+        }
+    }
+
+    public int getTrack() {
+        return track;
+    }
+
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    public TrackFormat getFormat() {
+        return format;
+    }
+
+    int capacity() {
+        return slab.capacity();
+    }
+
+    boolean isFormat() {
+        return format != null;
+    }
+
+    boolean isEndOfTrack() {
+        return data == null && format == null;
+    }
+}
@@ -0,0 +1,18 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Output events of an encoder running in asynchronous mode, modelled after
+ * {@code MediaCodec.Callback}. All events of one encoder arrive on the same thread.
+ */
+public interface EncoderCallback {
+
+    /**
+     * Output buffer {@code index}, described by {@code info}, is ready. It must be handed back
+     * with {@link EncoderOutput#releaseOutputBuffer}; {@code info} is only valid during the call.
+     */
+    void onOutputBufferAvailable(int index, SampleInfo info);
+
+    void onOutputFormatChanged(TrackFormat format);
+
+    void onError(Exception error);
+}
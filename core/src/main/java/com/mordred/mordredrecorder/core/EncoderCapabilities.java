@@ -0,0 +1,67 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * What one video encoder can do, the subset of {@code MediaCodecInfo.VideoCapabilities}
+ * needed to pick a recording profile. Frame size and rate limits are expressed in
+ * 16x16 blocks, like the codec levels they derive from.
+ */
+public final class EncoderCapabilities {
+
+    public final String name;
+    public final String mime;
+    public final boolean hardwareAccelerated;
+    public final int widthAlignment;
+    public final int heightAlignment;
+    public final int maxWidth;
+    public final int maxHeight;
+    /** Largest frame, in blocks. */
+    public final int maxBlocks;
+    /** Highest sustainable block rate, in blocks per second. */
+    public final long maxBlocksPerSecond;
+    public final int minBitrate;
+    public final int maxBitrate;
+
+    public EncoderCapabilities(String name, String mime, boolean hardwareAccelerated,
+                               int widthAlignment, int heightAlignment, int maxWidth, int maxHeight,
+                               int maxBlocks, long maxBlocksPerSecond, int minBitrate, int maxBitrate) {
+        if (widthAlignment <= 0 || heightAlignment <= 0) {
+            throw new IllegalArgumentException("alignment must be positive");
+        }
+        this.name = name;
+        this.mime = mime;
+        this.hardwareAccelerated = hardwareAccelerated;
+        this.widthAlignment = widthAlignment;
+        this.heightAlignment = heightAlignment;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.maxBlocks = maxBlocks;
+        this.maxBlocksPerSecond = maxBlocksPerSecond;
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+    }
+
+    public static int blocks(int width, int height) {
+        return ((width + 15) / 16) * ((height + 15) / 16);
+    }
+
+    public boolean supports(int width, int height, int frameRate) {
+        if (width <= 0 || height <= 0 || width > maxWidth || height > maxHeight
+                || width % widthAlignment != 0 || height % heightAlignment != 0) {
+            return false;
+        }
+        final int blocks = blocks(width, height);
+        return blocks <= maxBlocks && (long) blocks * frameRate <= maxBlocksPerSecond;
+    }
+
+    public int clampBitrate(long bitrate) {
+        return (int) Math.max(minBitrate, Math.min(maxBitrate, bitrate));
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + mime + (hardwareAccelerated ? " hw" : " sw") + ", align "
+                + widthAlignment + "x" + heightAlignment + ", max " + maxWidth + "x" + maxHeight
+                + ", " + maxBlocks + " blocks, " + maxBlocksPerSecond + " blocks/s, "
+                + minBitrate + "-" + maxBitrate + " bit/s]";
+    }
+}
@@ -0,0 +1,85 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Probed encoder capabilities stored as a tab separated file, valid only for the device
+ * and OS build it was probed on:
+ * <pre>
+ * # fingerprint	google/oriole/oriole:12/SQ3A.220705.003/8671607:user/release-keys
+ * # name	mime	hardware	width_alignment	height_alignment	max_width	max_height	max_blocks	max_blocks_per_second	min_bitrate	max_bitrate
+ * c2.exynos.h264.encoder	video/avc	1	2	2	4096	2304	36864	2073600	1	120000000
+ * </pre>
+ */
+public final class EncoderCapabilitiesCache {
+
+    private static final String FINGERPRINT_PREFIX = "# fingerprint\t";
+    private static final String HEADER = "# name\tmime\thardware\twidth_alignment\theight_alignment"
+            + "\tmax_width\tmax_height\tmax_blocks\tmax_blocks_per_second\tmin_bitrate\tmax_bitrate\n";
+
+    private EncoderCapabilitiesCache() {
+    }
+
+    /**
+     * Returns the cached capabilities, or null if there is no cache or it was written for a
+     * different {@code fingerprint}.
+     */
+    public static List<EncoderCapabilities> read(File file, String fingerprint) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        final List<EncoderCapabilities> encoders = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            final String first = reader.readLine();
+            if (first == null || !first.equals(FINGERPRINT_PREFIX + fingerprint)) {
+                return null;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\t");
+                if (fields.length != 11) {
+                    throw new IOException("malformed line in " + file + ": " + line);
+                }
+                encoders.add(new EncoderCapabilities(fields[0], fields[1], "1".equals(fields[2]),
+                        Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                        Integer.parseInt(fields[5]), Integer.parseInt(fields[6]),
+                        Integer.parseInt(fields[7]), Long.parseLong(fields[8]),
+                        Integer.parseInt(fields[9]), Integer.parseInt(fields[10])));
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("malformed number in " + file, e);
+        } finally {
+            reader.close();
+        }
+        return encoders;
+    }
+
+    public static void write(File file, String fingerprint, List<EncoderCapabilities> encoders)
+            throws IOException {
+        final Writer writer = new FileWriter(file);
+        try {
+            writer.write(FINGERPRINT_PREFIX + fingerprint + "\n");
+            writer.write(HEADER);
+            for (EncoderCapabilities e : encoders) {
+                writer.write(e.name + "\t" + e.mime + "\t" + (e.hardwareAccelerated ? 1 : 0)
+                        + "\t" + e.widthAlignment + "\t" + e.heightAlignment
+                        + "\t" + e.maxWidth + "\t" + e.maxHeight
+                        + "\t" + e.maxBlocks + "\t" + e.maxBlocksPerSecond
+                        + "\t" + e.minBitrate + "\t" + e.maxBitrate + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Drains one encoder on its own thread and hands the samples to a {@link MuxerWriter}.
+ * The encoder output buffer is copied into a {@link SamplePool} slab and released right
+ * away, so the codec never waits for the muxer.
+ */
+public class EncoderDrain implements Runnable {
+
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private final EncoderOutput encoder;
+    private final int track;
+    private final MuxerWriter writer;
+    private final SamplePool pool;
+    private final SampleInfo info = new SampleInfo();
+    // serialises the drain thread and putSample(), the track queue has a single producer
+    private final Object lock = new Object();
+
+    private LatencyHistogram dequeueWaitNs;
+    private Counter dequeueTimeouts;
+
+    private boolean ended;
+    private volatile boolean stopped;
+    private volatile Exception error;
+
+    public EncoderDrain(EncoderOutput encoder, int track, MuxerWriter writer, SamplePool pool) {
+        this.encoder = encoder;
+        this.track = track;
+        this.writer = writer;
+        this.pool = pool;
+    }
+
+    /**
+     * Records {@code name.dequeue_wait_ns}, the time spent waiting for each output buffer,
+     * and {@code name.dequeue_timeouts}. Must be called before the drain runs.
+     */
+    public void setMetrics(MetricsRegistry metrics, String name) {
+        dequeueWaitNs = metrics.histogram(name + ".dequeue_wait_ns");
+        dequeueTimeouts = metrics.counter(name + ".dequeue_timeouts");
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    /**
+     * Queues a sample that does not come from the encoder, such as a pre-encoded silent frame,
+     * behind the encoder's output so far. May be called from any thread. Returns false once
+     * the track has ended.
+     */
+    public boolean putSample(ByteBuffer data, SampleInfo sampleInfo) {
+        synchronized (lock) {
+            return !ended && putCopy(data, sampleInfo, track, writer, pool);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (!stopped) {
+                final long dequeueStartNs = dequeueWaitNs != null ? System.nanoTime() : 0;
+                final int status = encoder.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (dequeueWaitNs != null) {
+                    if (status >= 0) {
+                        dequeueWaitNs.record(System.nanoTime() - dequeueStartNs);
+                    } else if (status == EncoderOutput.INFO_TRY_AGAIN_LATER) {
+                        dequeueTimeouts.increment();
+                    }
+                }
+                if (status == EncoderOutput.INFO_OUTPUT_FORMAT_CHANGED) {
+                    synchronized (lock) {
+                        if (!writer.put(EncodedSample.format(track, encoder.getOutputFormat()))) {
+                            break;
+                        }
+                    }
+                } else if (status >= 0) {
+                    synchronized (lock) {
+                        if (!drainBuffer(status)) {
+                            break;
+                        }
+                    }
+                }
+                // INFO_TRY_AGAIN_LATER already waited inside the encoder, nothing to do
+            }
+        } catch (Exception e) {
+            if (!stopped) {
+                error = e;
+            }
+        } finally {
+            synchronized (lock) {
+                ended = true;
+                writer.put(EncodedSample.endOfStream(track));
+            }
+        }
+    }
+
+    private boolean drainBuffer(int index) {
+        return drainBuffer(encoder, index, info, track, writer, pool);
+    }
+
+    /**
+     * Copies output buffer {@code index} into a pooled sample, releases the buffer and queues
+     * the sample. Returns false once the writer has terminated or the encoder has ended.
+     */
+    static boolean drainBuffer(EncoderOutput encoder, int index, SampleInfo info, int track,
+                               MuxerWriter writer, SamplePool pool) {
+        final ByteBuffer encodedData = encoder.getOutputBuffer(index);
+        if (encodedData == null) {
+            throw new IllegalStateException("encoder output buffer " + index + " is null");
+        }
+        EncodedSample sample = null;
+        if (info.size != 0 && !info.isCodecConfig()) {
+            sample = pool.acquire(track, info.size);
+            sample.fill(encodedData, info);
+        }
+        encoder.releaseOutputBuffer(index);
+        if (sample != null && !writer.put(sample)) {
+            sample.recycle();
+            return false;
+        }
+        return !info.isEndOfStream();
+    }
+
+    /** Copies {@code data} as described by {@code info} into a pooled sample and queues it. */
+    static boolean putCopy(ByteBuffer data, SampleInfo info, int track, MuxerWriter writer, SamplePool pool) {
+        final EncodedSample sample = pool.acquire(track, info.size);
+        sample.fill(data, info);
+        if (!writer.put(sample)) {
+            sample.recycle();
+            return false;
+        }
+        return true;
+    }
+}
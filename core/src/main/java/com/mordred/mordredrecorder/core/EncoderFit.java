@@ -0,0 +1,58 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * The scale-down search shared by {@link VideoProfileSelector}, {@link RenditionPlanner} and
+ * {@link CaptureRegion}: a picture is scaled by a factor, aligned down for the encoder, and
+ * shrunk step by step until the encoder takes the size.
+ */
+final class EncoderFit {
+
+    // shrink step while searching for a size the encoder accepts
+    private static final double SHRINK = 0.97;
+
+    private EncoderFit() {
+    }
+
+    /**
+     * Largest factor, up to 1, by which {@code width} x {@code height} can be scaled within
+     * the encoder's largest size and its block rate at {@code frameRate}.
+     */
+    static double maxScale(EncoderCapabilities encoder, int width, int height, int frameRate) {
+        final double scale = Math.min(1.0, Math.min((double) encoder.maxWidth / width,
+                (double) encoder.maxHeight / height));
+        final double maxBlocks = Math.min(encoder.maxBlocks, (double) encoder.maxBlocksPerSecond / frameRate);
+        return Math.min(scale, Math.sqrt(maxBlocks * CaptureRegion.BLOCK_SIZE * CaptureRegion.BLOCK_SIZE
+                / ((double) width * height)));
+    }
+
+    /**
+     * Largest size of {@code width} x {@code height} scaled by at most {@code scale} that
+     * {@code encoder} takes at {@code frameRate}, as width and height, or null if there is
+     * none. Without an encoder, any size in even pixels is taken.
+     */
+    static int[] fit(EncoderCapabilities encoder, int width, int height, double scale, int frameRate) {
+        final int widthAlignment = alignmentOf(encoder != null ? encoder.widthAlignment : 1);
+        final int heightAlignment = alignmentOf(encoder != null ? encoder.heightAlignment : 1);
+        while (true) {
+            final int scaledWidth = alignDown(width * scale, widthAlignment);
+            final int scaledHeight = alignDown(height * scale, heightAlignment);
+            if (scaledWidth <= 0 || scaledHeight <= 0) {
+                return null;
+            }
+            if (encoder == null || encoder.supports(scaledWidth, scaledHeight, frameRate)) {
+                return new int[] {scaledWidth, scaledHeight};
+            }
+            scale *= SHRINK;
+        }
+    }
+
+    // 4:2:0 needs even dimensions even where the encoder reports no alignment
+    static int alignmentOf(int alignment) {
+        return alignment % 2 == 0 ? alignment : alignment * 2;
+    }
+
+    static int alignDown(double value, int alignment) {
+        // a scaled side may come out a hair below the size it was scaled to
+        return (int) (value / alignment + 1e-6) * alignment;
+    }
+}
@@ -0,0 +1,26 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Output side of an encoder, modelled after {@code MediaCodec} so that the
+ * drain and mux logic can run against fake codecs on the JVM.
+ */
+public interface EncoderOutput {
+
+    int INFO_TRY_AGAIN_LATER = -1;
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    /**
+     * Returns the index of a filled output buffer and describes it in {@code info},
+     * or one of the negative {@code INFO_*} codes.
+     */
+    int dequeueOutputBuffer(SampleInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    TrackFormat getOutputFormat();
+
+    void releaseOutputBuffer(int index);
+}
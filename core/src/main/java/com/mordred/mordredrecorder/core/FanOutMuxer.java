@@ -0,0 +1,160 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes every sample to a primary muxer, normally the recording file, and hands a copy to
+ * any number of {@link QueuedSink}s. The primary muxer is written on the calling thread and
+ * its errors end the recording; secondary sinks only ever lose samples.
+ * <p>
+ * Sinks may be attached at any time, e.g. whenever a viewer connects, and are removed once
+ * they have failed or been closed.
+ */
+public class FanOutMuxer implements SampleMuxer {
+
+    public static final int DEFAULT_SINK_QUEUE_CAPACITY = 256;
+    // for all sinks together, so stalled viewers do not add up
+    private static final long SINK_STOP_TIMEOUT_MS = 2000;
+
+    private final SampleMuxer primary;
+    private final int sinkQueueCapacity;
+    private final ThreadFactory threadFactory;
+    private final List<TrackFormat> formats = new ArrayList<>();
+    private final List<QueuedSink> sinks = new CopyOnWriteArrayList<>();
+    private final List<QueuedSink> pending = new ArrayList<>();
+    private TrackFormat[] startedFormats;
+    private boolean stopped;
+
+    public FanOutMuxer(SampleMuxer primary) {
+        this(primary, DEFAULT_SINK_QUEUE_CAPACITY, PollingRecordingEngine.PLAIN_THREADS);
+    }
+
+    public FanOutMuxer(SampleMuxer primary, int sinkQueueCapacity, ThreadFactory threadFactory) {
+        this.primary = primary;
+        this.sinkQueueCapacity = sinkQueueCapacity;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Feeds {@code sink} from now on. Its tracks are added and it is started on its own
+     * thread once the primary muxer has started. May be called from any thread.
+     */
+    public QueuedSink attach(SampleMuxer sink) {
+        return attach(sink, null);
+    }
+
+    /**
+     * Feeds {@code sink}, which writes to {@code connection}, from now on. The connection is
+     * closed if the sink has to be closed, so that a write blocked on it ends.
+     */
+    public synchronized QueuedSink attach(SampleMuxer sink, Closeable connection) {
+        if (stopped) {
+            sink.release();
+            throw new IllegalStateException("muxer stopped");
+        }
+        final QueuedSink queued = new QueuedSink(sink, connection, sinkQueueCapacity);
+        if (startedFormats == null) {
+            pending.add(queued);
+            return queued;
+        }
+        return startSink(queued);
+    }
+
+    public List<QueuedSink> getSinks() {
+        return new ArrayList<>(sinks);
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        final int index = primary.addTrack(format);
+        if (index != formats.size()) {
+            throw new IllegalStateException("primary muxer returned track " + index + " for track " + formats.size());
+        }
+        formats.add(format);
+        return index;
+    }
+
+    @Override
+    public void start() throws IOException {
+        primary.start();
+        synchronized (this) {
+            startedFormats = formats.toArray(new TrackFormat[0]);
+            for (QueuedSink queued : pending) {
+                startSink(queued);
+            }
+            pending.clear();
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        primary.writeSampleData(trackIndex, data, info);
+        for (QueuedSink sink : sinks) {
+            if (sink.isClosed()) {
+                sinks.remove(sink);
+            } else {
+                sink.offer(trackIndex, data, info);
+            }
+        }
+    }
+
+    /**
+     * Stops the primary muxer, then lets every sink write out its queue. Sinks that have not
+     * finished within a shared timeout are closed.
+     */
+    @Override
+    public void stop() throws IOException {
+        synchronized (this) {
+            stopped = true;
+        }
+        try {
+            primary.stop();
+        } finally {
+            for (QueuedSink sink : sinks) {
+                sink.finish();
+            }
+            final long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SINK_STOP_TIMEOUT_MS);
+            try {
+                for (QueuedSink sink : sinks) {
+                    final long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNs - System.nanoTime());
+                    if (!sink.join(Math.max(0, remainingMs))) {
+                        sink.close();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sinks.clear();
+        }
+    }
+
+    @Override
+    public void release() {
+        synchronized (this) {
+            stopped = true;
+            for (QueuedSink queued : pending) {
+                queued.abandon();
+            }
+            pending.clear();
+        }
+        for (QueuedSink sink : sinks) {
+            sink.close();
+        }
+        sinks.clear();
+        primary.release();
+    }
+
+    private QueuedSink startSink(QueuedSink queued) {
+        queued.setFormats(startedFormats);
+        sinks.add(queued);
+        PollingRecordingEngine.startThread(threadFactory, queued, "QueuedSink-" + sinks.size());
+        return queued;
+    }
+}
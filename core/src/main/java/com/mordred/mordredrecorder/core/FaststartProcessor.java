@@ -0,0 +1,106 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Rewrites a recording as a progressive MP4 with the {@code moov} in front, which every player
+ * and upload service can start on before it has the whole file. Fragmented recordings get full
+ * sample tables built from their {@code moof} boxes, a progressive file with its {@code moov}
+ * at the end gets it moved ahead. The samples are copied with {@link FileChannel#transferTo},
+ * which on Android and Linux moves them between the files in the kernel without passing them
+ * through the Java heap.
+ * <p>
+ * The new file is written next to the recording and renamed over it once complete. A
+ * {@link KeyframeIndex} of the recording is written anew for it, the samples having moved.
+ */
+public final class FaststartProcessor implements PostProcessor {
+
+    public static final String TYPE = "faststart";
+    static final String TEMP_SUFFIX = ".faststart";
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    /** Does nothing if the recording already starts with its {@code moov}. */
+    @Override
+    public void process(File recording, Progress progress) throws IOException {
+        final File temp = new File(recording.getPath() + TEMP_SUFFIX);
+        final FileChannel in = FileChannel.open(recording.toPath(), StandardOpenOption.READ);
+        try {
+            final Mp4Index index = Mp4Index.read(in);
+            if (index.isFaststart()) {
+                return;
+            }
+            final FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                remux(in, index, out, progress);
+                out.force(true);
+            } finally {
+                out.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+        // gone before the samples move, so a run cut short leaves no index pointing elsewhere
+        final boolean indexed = KeyframeIndex.fileOf(recording).delete();
+        Files.move(temp.toPath(), recording.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (indexed) {
+            KeyframeIndex.write(recording, Mp4Index.read(recording));
+        }
+    }
+
+    /** Writes {@code ftyp}, {@code moov} and a single {@code mdat} holding every chunk of {@code index}. */
+    static void remux(FileChannel in, Mp4Index index, FileChannel out, Progress progress) throws IOException {
+        final List<Chunk> chunks = new ArrayList<>();
+        for (Mp4Index.Track track : index.getTracks()) {
+            for (int i = 0; i < track.getChunkCount(); i++) {
+                chunks.add(new Chunk(track, i));
+            }
+        }
+        // in file order, so the samples stay interleaved as recorded
+        Collections.sort(chunks, new Comparator<Chunk>() {
+            @Override
+            public int compare(Chunk a, Chunk b) {
+                return Long.compare(a.offset, b.offset);
+            }
+        });
+        final ProgressiveMp4Writer writer = new ProgressiveMp4Writer(index.getTracks());
+        long end = 0;
+        for (Chunk chunk : chunks) {
+            if (chunk.offset < end) {
+                throw new IOException("overlapping chunks at " + chunk.offset);
+            }
+            end = chunk.offset + chunk.track.getChunkBytes(chunk.index);
+            writer.addChunk(in, chunk.track, chunk.index);
+        }
+        writer.write(out, progress);
+    }
+
+    private static final class Chunk {
+        final Mp4Index.Track track;
+        final int index;
+        final long offset;
+
+        Chunk(Mp4Index.Track track, int index) {
+            this.track = track;
+            this.index = index;
+            this.offset = track.getChunkOffset(index);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Streaming fragmented MP4 writer.
+ * <p>
+ * {@link #start()} writes the {@code ftyp}/{@code moov} init segment, then samples are
+ * collected per track and written as one {@code moof}/{@code mdat} fragment at the first
+ * video key frame after {@code fragmentDurationUs}. Each fragment is a single gathering
+ * write of the box headers and the reused per-track payload chunks, so a recording is
+ * playable up to its last complete fragment even if {@link #stop()} never runs. With a
+ * {@link RecordingJournal} such a recording can also be repaired by {@link RecordingRecovery}.
+ * A {@link KeyframeIndex} gets the video samples of each fragment as it is written.
+ */
+public class FragmentedMp4Muxer implements SampleMuxer {
+
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 2000000;
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int TRUN_FLAGS = 0x000701; // data offset, sample duration, size and flags
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+
+    private final FileChannel channel;
+    private final long fragmentDurationUs;
+    private final List<Track> tracks = new ArrayList<>();
+    private final Mp4BoxWriter boxWriter = new Mp4BoxWriter(4096);
+    private final ByteBuffer mdatHeader = ByteBuffer.allocate(8);
+    private ByteBuffer[] gather = new ByteBuffer[16];
+    private RecordingJournal journal;
+    private KeyframeIndex.Writer keyframeIndex;
+    private int indexedTrack = -1;
+
+    private boolean started;
+    private boolean hasVideo;
+    private int sequenceNumber;
+    private long fragmentStartUs = -1;
+    private long firstPtsUs = -1;
+    private long lastPtsUs;
+    private long mehdDurationPosition = -1;
+    private long bytesWritten;
+
+    public FragmentedMp4Muxer(String outputFilePath, long fragmentDurationUs) throws IOException {
+        this(FileChannel.open(Paths.get(outputFilePath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), fragmentDurationUs);
+    }
+
+    public FragmentedMp4Muxer(FileChannel channel, long fragmentDurationUs) {
+        this.channel = channel;
+        this.fragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * Journals every fragment to {@code journal}, which the muxer closes on {@link #release()}
+     * and deletes on {@link #stop()}. Must be called before {@link #start()}.
+     */
+    public void setJournal(RecordingJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Indexes the samples of the first video track in {@code index}, which the muxer closes on
+     * {@link #release()} and marks complete on {@link #stop()}. Must be called before {@link #start()}.
+     */
+    public void setKeyframeIndex(KeyframeIndex.Writer index) {
+        this.keyframeIndex = index;
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (started) {
+            throw new IllegalStateException("addTrack after start");
+        }
+        tracks.add(new Track(tracks.size() + 1, format));
+        if (format.isVideo() && !hasVideo) {
+            indexedTrack = tracks.size() - 1;
+        }
+        hasVideo |= format.isVideo();
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (tracks.isEmpty()) {
+            throw new IllegalStateException("no tracks");
+        }
+        final long initOffset = channel.position();
+        final Mp4BoxWriter w = boxWriter.reset();
+        Mp4Boxes.writeFtyp(w, "isom", "isom", "iso6", "avc1", "mp41");
+        w.begin("moov");
+        Mp4Boxes.writeMvhd(w, 0, tracks.size() + 1);
+        for (Track track : tracks) {
+            Mp4Boxes.beginTrak(w, track.id, track.format, 0, 0);
+            Mp4Boxes.writeEmptySampleTables(w);
+            Mp4Boxes.endTrak(w);
+        }
+        w.begin("mvex");
+        w.beginFull("mehd", 1, 0);
+        mehdDurationPosition = initOffset + w.position();
+        w.putLong(0).end();
+        for (Track track : tracks) {
+            w.beginFull("trex", 0, 0).putInt(track.id).putInt(1).putInt(0).putInt(0).putInt(0).end();
+        }
+        w.end().end();
+        writeFully(w.toByteBuffer());
+        if (journal != null) {
+            journal.start(mehdDurationPosition, channel.position());
+        }
+        started = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        if (!started) {
+            throw new IllegalStateException("muxer not started");
+        }
+        final Track track = tracks.get(trackIndex);
+        final long ptsUs = info.presentationTimeUs;
+        if (fragmentStartUs < 0) {
+            fragmentStartUs = ptsUs;
+            firstPtsUs = ptsUs;
+        }
+        final boolean boundary = hasVideo ? track.format.isVideo() && info.isKeyFrame() : true;
+        if (boundary && ptsUs - fragmentStartUs >= fragmentDurationUs) {
+            flushFragment();
+            fragmentStartUs = ptsUs;
+        }
+        final ByteBuffer src = data.duplicate();
+        src.limit(info.offset + info.size).position(info.offset);
+        track.append(src, ptsUs, info.isKeyFrame() || !track.format.isVideo());
+        lastPtsUs = Math.max(lastPtsUs, ptsUs);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        if (!started) {
+            return;
+        }
+        flushFragment();
+        if (mehdDurationPosition >= 0 && firstPtsUs >= 0) {
+            final ByteBuffer duration = ByteBuffer.allocate(8);
+            duration.putLong(0, Mp4Boxes.toTimescale(lastPtsUs - firstPtsUs, Mp4Boxes.MOVIE_TIMESCALE));
+            channel.write(duration, mehdDurationPosition);
+        }
+        channel.force(false);
+        started = false;
+        if (journal != null) {
+            journal.finish();
+            journal = null;
+        }
+        if (keyframeIndex != null) {
+            keyframeIndex.finish();
+            keyframeIndex = null;
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            if (journal != null) {
+                journal.close();
+            }
+            if (keyframeIndex != null) {
+                keyframeIndex.close();
+            }
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public int getFragmentCount() {
+        return sequenceNumber;
+    }
+
+    private void flushFragment() throws IOException {
+        int payloadSize = 0;
+        int buffers = 2;
+        for (Track track : tracks) {
+            payloadSize += track.payloadSize;
+            buffers += track.usedChunks;
+        }
+        if (payloadSize == 0) {
+            return;
+        }
+        sequenceNumber++;
+
+        final Mp4BoxWriter w = boxWriter.reset();
+        w.begin("moof");
+        w.beginFull("mfhd", 0, 0).putInt(sequenceNumber).end();
+        for (Track track : tracks) {
+            if (track.sampleCount == 0) {
+                continue;
+            }
+            w.begin("traf");
+            w.beginFull("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF).putInt(track.id).end();
+            w.beginFull("tfdt", 1, 0).putLong(track.toTimescale(track.ptsUs[0])).end();
+            w.beginFull("trun", 0, TRUN_FLAGS).putInt(track.sampleCount);
+            track.dataOffsetPosition = w.position();
+            w.putInt(0);
+            for (int i = 0; i < track.sampleCount; i++) {
+                w.putInt(track.sampleDuration(i)).putInt(track.sizes[i]).putInt(track.flags[i]);
+            }
+            w.end().end();
+        }
+        w.end();
+        final int moofSize = w.position();
+        int dataOffset = moofSize + 8;
+        for (Track track : tracks) {
+            if (track.sampleCount > 0) {
+                w.patchInt(track.dataOffsetPosition, dataOffset);
+                dataOffset += track.payloadSize;
+            }
+        }
+
+        mdatHeader.clear();
+        mdatHeader.putInt(8 + payloadSize).put((byte) 'm').put((byte) 'd').put((byte) 'a').put((byte) 't');
+        mdatHeader.flip();
+
+        if (journal != null) {
+            journalFragment(moofSize, payloadSize);
+        }
+        if (keyframeIndex != null && indexedTrack >= 0) {
+            indexFragment(moofSize);
+        }
+
+        if (gather.length < buffers) {
+            gather = new ByteBuffer[Math.max(buffers, gather.length * 2)];
+        }
+        int count = 0;
+        gather[count++] = w.toByteBuffer();
+        gather[count++] = mdatHeader;
+        for (Track track : tracks) {
+            for (int i = 0; i < track.usedChunks; i++) {
+                final ByteBuffer chunk = track.chunks.get(i);
+                chunk.flip();
+                gather[count++] = chunk;
+            }
+        }
+        writeFully(gather, count);
+        if (journal != null) {
+            // only now, so a preallocated but never written region is never taken for a fragment
+            journal.commit();
+        }
+        if (keyframeIndex != null) {
+            keyframeIndex.commit();
+        }
+        for (int i = 0; i < count; i++) {
+            gather[i] = null;
+        }
+        for (Track track : tracks) {
+            track.reset();
+        }
+    }
+
+    /** Journals the fragment about to be written at the current position, with its samples, uncommitted. */
+    private void journalFragment(int moofSize, int payloadSize) throws IOException {
+        final long fragmentOffset = channel.position();
+        journal.appendFragment(fragmentOffset, moofSize + 8 + payloadSize, sequenceNumber);
+        long offset = fragmentOffset + moofSize + 8;
+        for (int t = 0; t < tracks.size(); t++) {
+            final Track track = tracks.get(t);
+            for (int i = 0; i < track.sampleCount; i++) {
+                journal.appendSample(t, offset, track.sizes[i], track.ptsUs[i],
+                        track.flags[i] == Mp4Boxes.SAMPLE_FLAGS_SYNC);
+                offset += track.sizes[i];
+            }
+        }
+    }
+
+    /** Appends the indexed track's samples of the fragment about to be written at the current position. */
+    private void indexFragment(int moofSize) throws IOException {
+        long offset = channel.position() + moofSize + 8;
+        for (int t = 0; t < indexedTrack; t++) {
+            offset += tracks.get(t).payloadSize;
+        }
+        final Track track = tracks.get(indexedTrack);
+        for (int i = 0; i < track.sampleCount; i++) {
+            keyframeIndex.append(track.ptsUs[i], offset, track.sizes[i], track.flags[i] == Mp4Boxes.SAMPLE_FLAGS_SYNC);
+            offset += track.sizes[i];
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+    }
+
+    private void writeFully(ByteBuffer[] buffers, int count) throws IOException {
+        int first = 0;
+        while (first < count) {
+            bytesWritten += channel.write(buffers, first, count - first);
+            while (first < count && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+    }
+
+    private static final class Track {
+        final int id;
+        final TrackFormat format;
+        final int timescale;
+        final boolean lengthPrefixed;
+        final List<ByteBuffer> chunks = new ArrayList<>();
+        int usedChunks;
+        int payloadSize;
+
+        int sampleCount;
+        long[] ptsUs = new long[64];
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        int dataOffsetPosition;
+        int lastDuration;
+
+        Track(int id, TrackFormat format) {
+            this.id = id;
+            this.format = format;
+            this.timescale = Mp4Boxes.timescaleOf(format);
+            this.lengthPrefixed = TrackFormat.MIME_AVC.equals(format.mime);
+            this.lastDuration = format.isVideo() ? timescale / 30 : 1024;
+        }
+
+        void append(ByteBuffer src, long pts, boolean sync) {
+            final int maxSize = lengthPrefixed ? NalUnits.maxConvertedSize(src.remaining()) : src.remaining();
+            final ByteBuffer chunk = chunkFor(maxSize);
+            final int size;
+            if (lengthPrefixed) {
+                size = NalUnits.writeLengthPrefixed(src, chunk);
+            } else {
+                size = src.remaining();
+                chunk.put(src);
+            }
+            if (sampleCount == sizes.length) {
+                ptsUs = Arrays.copyOf(ptsUs, sampleCount * 2);
+                sizes = Arrays.copyOf(sizes, sampleCount * 2);
+                flags = Arrays.copyOf(flags, sampleCount * 2);
+            }
+            ptsUs[sampleCount] = pts;
+            sizes[sampleCount] = size;
+            flags[sampleCount] = sync ? Mp4Boxes.SAMPLE_FLAGS_SYNC : Mp4Boxes.SAMPLE_FLAGS_NON_SYNC;
+            sampleCount++;
+            payloadSize += size;
+        }
+
+        long toTimescale(long pts) {
+            return Mp4Boxes.toTimescale(pts, timescale);
+        }
+
+        int sampleDuration(int index) {
+            if (index + 1 < sampleCount) {
+                lastDuration = (int) (toTimescale(ptsUs[index + 1]) - toTimescale(ptsUs[index]));
+            }
+            // the last sample of a fragment repeats the previous duration,
+            // the next fragment's tfdt corrects any difference
+            return lastDuration;
+        }
+
+        void reset() {
+            for (int i = 0; i < usedChunks; i++) {
+                chunks.get(i).clear();
+            }
+            usedChunks = 0;
+            payloadSize = 0;
+            sampleCount = 0;
+        }
+
+        // samples never span chunks, so a chunk holds at least one whole sample
+        private ByteBuffer chunkFor(int size) {
+            if (usedChunks > 0 && chunks.get(usedChunks - 1).remaining() >= size) {
+                return chunks.get(usedChunks - 1);
+            }
+            if (usedChunks < chunks.size() && chunks.get(usedChunks).capacity() >= size) {
+                return chunks.get(usedChunks++);
+            }
+            final ByteBuffer chunk = ByteBuffer.allocateDirect(Math.max(CHUNK_SIZE, size));
+            chunks.add(usedChunks++, chunk);
+            return chunk;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Last value of a quantity that goes up and down, such as a clock offset, in a
+ * {@link MetricsRegistry}.
+ */
+public final class Gauge {
+
+    private volatile long value;
+
+    Gauge() {
+    }
+
+    public void set(long value) {
+        this.value = value;
+    }
+
+    public long get() {
+        return value;
+    }
+}
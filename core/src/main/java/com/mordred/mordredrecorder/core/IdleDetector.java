@@ -0,0 +1,86 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Detects a still screen from the encoded video. While every frame other than key frames
+ * stays below a small share of the per-frame bit budget for {@code idleAfterUs}, the screen
+ * is taken to be idle and {@link #getFrameRate()} drops to the idle frame rate; the first
+ * larger frame restores the full rate.
+ * <p>
+ * Frames are fed by the video drain; the frame rate may be read from any thread.
+ */
+public class IdleDetector {
+
+    public static final float DEFAULT_TINY_FRAME_RATIO = 0.05f;
+    public static final long DEFAULT_IDLE_AFTER_US = 2000000;
+
+    private final int frameRate;
+    private final int idleFrameRate;
+    private final int tinyFrameBytes;
+    private final long idleAfterUs;
+
+    private Counter idlePeriods;
+    private Counter idleFrames;
+
+    private long lastActivePtsUs = Long.MIN_VALUE;
+    private volatile boolean idle;
+
+    public IdleDetector(int frameRate, int idleFrameRate, int bitrate) {
+        this(frameRate, idleFrameRate, bitrate, DEFAULT_TINY_FRAME_RATIO, DEFAULT_IDLE_AFTER_US);
+    }
+
+    /**
+     * @param tinyFrameRatio frames below this share of {@code bitrate / frameRate} count as unchanged
+     */
+    public IdleDetector(int frameRate, int idleFrameRate, int bitrate, float tinyFrameRatio, long idleAfterUs) {
+        if (idleFrameRate <= 0 || idleFrameRate > frameRate) {
+            throw new IllegalArgumentException("idle frame rate " + idleFrameRate + " for " + frameRate + " fps");
+        }
+        this.frameRate = frameRate;
+        this.idleFrameRate = idleFrameRate;
+        this.tinyFrameBytes = (int) ((long) bitrate / 8 / frameRate * tinyFrameRatio);
+        this.idleAfterUs = idleAfterUs;
+    }
+
+    /**
+     * Records {@code name.idle_periods} and {@code name.idle_frames}, the frames encoded while
+     * idle. Must be called before the first frame.
+     */
+    public void setMetrics(MetricsRegistry metrics, String name) {
+        idlePeriods = metrics.counter(name + ".idle_periods");
+        idleFrames = metrics.counter(name + ".idle_frames");
+    }
+
+    /** Feeds one encoded frame and returns the capture frame rate to use from now on. */
+    public int onFrame(long ptsUs, int size, boolean keyFrame) {
+        if (lastActivePtsUs == Long.MIN_VALUE) {
+            lastActivePtsUs = ptsUs;
+        }
+        if (keyFrame) {
+            // key frames are large whatever the content
+        } else if (size > tinyFrameBytes) {
+            lastActivePtsUs = ptsUs;
+            idle = false;
+        } else if (!idle && ptsUs - lastActivePtsUs >= idleAfterUs) {
+            idle = true;
+            if (idlePeriods != null) {
+                idlePeriods.increment();
+            }
+        }
+        if (idle && idleFrames != null) {
+            idleFrames.increment();
+        }
+        return getFrameRate();
+    }
+
+    public boolean isIdle() {
+        return idle;
+    }
+
+    public int getFrameRate() {
+        return idle ? idleFrameRate : frameRate;
+    }
+
+    public int getTinyFrameBytes() {
+        return tinyFrameBytes;
+    }
+}
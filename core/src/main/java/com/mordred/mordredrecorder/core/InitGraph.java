@@ -0,0 +1,194 @@
+package com.mordred.mordredrecorder.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the setup steps of a recording on an executor, each as soon as the steps it depends on
+ * have finished, so that independent steps such as creating the video and the audio encoder
+ * overlap. Steps are added after the steps they depend on, which rules out cycles.
+ * <p>
+ * If a step fails, the steps depending on it are not started, the steps already running are
+ * waited for, and {@link #run()} throws the first error, so the caller can clean up after
+ * every step that did run.
+ */
+public class InitGraph {
+
+    public interface Step {
+        void run() throws Exception;
+    }
+
+    private static final class Node {
+        final String name;
+        final Step step;
+        final List<Node> dependents = new ArrayList<>();
+        int waitingFor;
+        long durationNs = -1;
+        LatencyHistogram histogram;
+
+        Node(String name, Step step) {
+            this.name = name;
+            this.step = step;
+        }
+    }
+
+    private final Executor executor;
+    private final TimeSource timeSource;
+    private final Map<String, Node> nodes = new LinkedHashMap<>();
+    private final List<String> finishOrder = new ArrayList<>();
+    private LatencyHistogram totalNs;
+    private boolean started;
+    private int running;
+    private Exception error;
+    private long elapsedNs = -1;
+
+    public InitGraph(Executor executor) {
+        this(executor, TimeSource.SYSTEM);
+    }
+
+    public InitGraph(Executor executor, TimeSource timeSource) {
+        this.executor = executor;
+        this.timeSource = timeSource;
+    }
+
+    /** Adds {@code step}, to run once every step named in {@code dependencies} has finished. */
+    public synchronized InitGraph add(String name, Step step, String... dependencies) {
+        if (started) {
+            throw new IllegalStateException("graph already run");
+        }
+        if (nodes.containsKey(name)) {
+            throw new IllegalArgumentException("duplicate step " + name);
+        }
+        final Node node = new Node(name, step);
+        for (String dependency : dependencies) {
+            final Node before = nodes.get(dependency);
+            if (before == null) {
+                throw new IllegalArgumentException(name + " depends on unknown step " + dependency);
+            }
+            before.dependents.add(node);
+            node.waitingFor++;
+        }
+        nodes.put(name, node);
+        return this;
+    }
+
+    /**
+     * Records {@code name.<step>_ns}, the time each step took, and {@code name.total_ns} from
+     * {@link #run()} to the last step. Must be called after the steps are added.
+     */
+    public synchronized void setMetrics(MetricsRegistry metrics, String name) {
+        for (Node node : nodes.values()) {
+            node.histogram = metrics.histogram(name + "." + node.name + "_ns");
+        }
+        totalNs = metrics.histogram(name + ".total_ns");
+    }
+
+    /** Runs every step and waits for them. Throws the error of the first step that failed. */
+    public synchronized void run() throws Exception {
+        if (started) {
+            throw new IllegalStateException("graph already run");
+        }
+        started = true;
+        final long startNs = timeSource.nanoTime();
+        // collected first, a direct executor finishes steps while they are submitted
+        final List<Node> roots = new ArrayList<>();
+        for (Node node : nodes.values()) {
+            if (node.waitingFor == 0) {
+                roots.add(node);
+            }
+        }
+        for (Node root : roots) {
+            if (error == null) {
+                submit(root);
+            }
+        }
+        while (running > 0 || (error == null && finishOrder.size() < nodes.size())) {
+            wait();
+        }
+        elapsedNs = timeSource.nanoTime() - startNs;
+        if (totalNs != null && error == null) {
+            totalNs.record(elapsedNs);
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /** Time from {@link #run()} until the last step finished, or -1 before. */
+    public synchronized long getElapsedNs() {
+        return elapsedNs;
+    }
+
+    /** Time {@code step} took, or -1 if it did not run to the end. */
+    public synchronized long getDurationNs(String step) {
+        final Node node = nodes.get(step);
+        if (node == null) {
+            throw new IllegalArgumentException("unknown step " + step);
+        }
+        return node.durationNs;
+    }
+
+    /** The steps that finished, in the order they did. */
+    public synchronized List<String> getFinishOrder() {
+        return new ArrayList<>(finishOrder);
+    }
+
+    private void submit(final Node node) {
+        running++;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(node);
+                }
+            });
+        } catch (RuntimeException e) {
+            running--;
+            if (error == null) {
+                error = e;
+            }
+        }
+    }
+
+    private void execute(Node node) {
+        final long startNs = timeSource.nanoTime();
+        Exception failure = null;
+        boolean done = false;
+        try {
+            node.step.run();
+            done = true;
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            final long endNs = timeSource.nanoTime();
+            synchronized (this) {
+                running--;
+                if (done) {
+                    finished(node, endNs - startNs);
+                } else if (error == null) {
+                    error = failure != null ? failure : new IllegalStateException(node.name + " did not finish");
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private void finished(Node node, long durationNs) {
+        node.durationNs = durationNs;
+        finishOrder.add(node.name);
+        if (node.histogram != null) {
+            node.histogram.record(durationNs);
+        }
+        if (error != null) {
+            return;
+        }
+        for (Node dependent : node.dependents) {
+            if (--dependent.waitingFor == 0) {
+                submit(dependent);
+            }
+        }
+    }
+}
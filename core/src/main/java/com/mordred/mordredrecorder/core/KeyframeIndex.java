@@ -0,0 +1,255 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Side file next to a recording that lists its video samples in decode order: fixed size
+ * entries of presentation time, file offset, size and sync flag. The {@link FragmentedMp4Muxer}
+ * appends the samples of each fragment as it writes them, so seeking and cutting a recording
+ * need neither parse the file nor hold its sample tables in memory; lookups are binary
+ * searches over the memory-mapped entries.
+ * <p>
+ * The index is marked complete when the recording is stopped. An incomplete index, left behind
+ * by a killed process, and a missing one are rebuilt from the file by {@link #load(File)}.
+ * Rewriting the recording moves its samples, so whatever does must rewrite the index too,
+ * as {@link FaststartProcessor} does.
+ */
+public final class KeyframeIndex {
+
+    public static final String SUFFIX = ".idx";
+
+    static final int MAGIC = 0x4d524b31; // "MRK1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_SIZE = 24;
+    static final int FLAG_SYNC = 1;
+    static final int FLAG_COMPLETE = 1;
+
+    // header: magic, version, entry count, flags
+    static final int COUNT_OFFSET = 8;
+    static final int FLAGS_OFFSET = 16;
+
+    private final ByteBuffer entries;
+    private final int count;
+    private final boolean complete;
+
+    private KeyframeIndex(ByteBuffer mapped) throws IOException {
+        if (mapped.limit() < HEADER_SIZE || mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+            throw new IOException("not a keyframe index");
+        }
+        final long stored = mapped.getLong(COUNT_OFFSET);
+        if (stored < 0 || HEADER_SIZE + stored * ENTRY_SIZE > mapped.limit()) {
+            throw new IOException("keyframe index holds " + stored + " entries in " + mapped.limit() + " bytes");
+        }
+        this.count = (int) stored;
+        this.complete = (mapped.getInt(FLAGS_OFFSET) & FLAG_COMPLETE) != 0;
+        this.entries = mapped;
+    }
+
+    /** The index kept for {@code recording}. */
+    public static File fileOf(File recording) {
+        return new File(recording.getPath() + SUFFIX);
+    }
+
+    /** Maps the index of {@code recording}, complete or not, or returns null if there is none. */
+    public static KeyframeIndex open(File recording) throws IOException {
+        final File file = fileOf(recording);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // the mapping stays valid once the channel is closed
+            return new KeyframeIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /** Maps the index of {@code recording}, first writing it from the file if it is missing or incomplete. */
+    public static KeyframeIndex load(File recording) throws IOException {
+        KeyframeIndex index = null;
+        try {
+            index = open(recording);
+        } catch (IOException e) {
+            // unreadable, rebuilt below
+        }
+        if (index == null || !index.isComplete()) {
+            write(recording, Mp4Index.read(recording));
+            index = open(recording);
+        }
+        return index;
+    }
+
+    /** Writes the complete index of {@code recording} from the sample tables of its first video track. */
+    public static void write(File recording, Mp4Index mp4) throws IOException {
+        final Mp4Index.Track video = mp4.getVideoTrack();
+        final Writer writer = Writer.create(recording);
+        try {
+            if (video != null) {
+                for (int chunk = 0; chunk < video.getChunkCount(); chunk++) {
+                    long offset = video.getChunkOffset(chunk);
+                    final int first = video.getChunkFirstSample(chunk);
+                    for (int i = first, end = first + video.getChunkSampleCount(chunk); i < end; i++) {
+                        writer.append(video.toUs(video.getSampleTime(i)), offset, video.getSampleSize(i),
+                                video.isSyncSample(i));
+                        offset += video.getSampleSize(i);
+                    }
+                }
+            }
+            writer.finish();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** False if the recording did not stop cleanly, so the index may lack its last samples. */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public int getSampleCount() {
+        return count;
+    }
+
+    public long getTimeUs(int sample) {
+        return entries.getLong(position(sample));
+    }
+
+    public long getOffset(int sample) {
+        return entries.getLong(position(sample) + 8);
+    }
+
+    public int getSize(int sample) {
+        return entries.getInt(position(sample) + 16);
+    }
+
+    public boolean isSync(int sample) {
+        return (entries.getInt(position(sample) + 20) & FLAG_SYNC) != 0;
+    }
+
+    /** The last sample at or before {@code timeUs}, or -1 if all are later. */
+    public int floorSample(long timeUs) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            if (getTimeUs(middle) <= timeUs) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * The last sync sample at or before {@code timeUs}, from which decoding can start and reach
+     * {@code timeUs}, or -1 if there is none. Walks back at most one group of pictures.
+     */
+    public int syncAtOrBefore(long timeUs) {
+        int sample = floorSample(timeUs);
+        while (sample >= 0 && !isSync(sample)) {
+            sample--;
+        }
+        return sample;
+    }
+
+    /** The first sync sample at or after {@code timeUs}, or -1 if there is none. */
+    public int syncAtOrAfter(long timeUs) {
+        int sample = floorSample(timeUs - 1) + 1;
+        while (sample < count && !isSync(sample)) {
+            sample++;
+        }
+        return sample < count ? sample : -1;
+    }
+
+    private int position(int sample) {
+        if (sample < 0 || sample >= count) {
+            throw new IndexOutOfBoundsException("sample " + sample + " of " + count);
+        }
+        return HEADER_SIZE + sample * ENTRY_SIZE;
+    }
+
+    /**
+     * Appends entries to an index as a recording is written. Entries are batched until
+     * {@link #commit()}, which writes them in one go and only then counts them, so the index
+     * never points past data the recording holds.
+     */
+    public static final class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        private ByteBuffer batch = ByteBuffer.allocate(256 * ENTRY_SIZE);
+        private long committed;
+        private boolean closed;
+
+        private Writer(FileChannel channel) throws IOException {
+            this.channel = channel;
+            writeHeader(0);
+        }
+
+        /** Creates or replaces the index of {@code recording}, empty and incomplete. */
+        public static Writer create(File recording) throws IOException {
+            return new Writer(FileChannel.open(fileOf(recording).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        }
+
+        public long getCommittedEntries() {
+            return committed;
+        }
+
+        void append(long timeUs, long offset, int size, boolean sync) {
+            if (batch.remaining() < ENTRY_SIZE) {
+                final ByteBuffer larger = ByteBuffer.allocate(batch.capacity() * 2);
+                batch.flip();
+                batch = larger.put(batch);
+            }
+            batch.putLong(timeUs).putLong(offset).putInt(size).putInt(sync ? FLAG_SYNC : 0);
+        }
+
+        /** Writes the entries appended since the last commit and counts them. */
+        void commit() throws IOException {
+            if (batch.position() == 0) {
+                return;
+            }
+            final int appended = batch.position() / ENTRY_SIZE;
+            batch.flip();
+            long position = HEADER_SIZE + committed * ENTRY_SIZE;
+            while (batch.hasRemaining()) {
+                position += channel.write(batch, position);
+            }
+            batch.clear();
+            committed += appended;
+            writeHeader(0);
+        }
+
+        /** Commits the last entries, marks the index complete and closes it. */
+        void finish() throws IOException {
+            commit();
+            writeHeader(FLAG_COMPLETE);
+            channel.force(false);
+            close();
+        }
+
+        /** Closes the index, incomplete unless {@link #finish()} ran. */
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                channel.close();
+            }
+        }
+
+        private void writeHeader(int flags) throws IOException {
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).putLong(committed).putInt(flags);
+            header.clear();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+}
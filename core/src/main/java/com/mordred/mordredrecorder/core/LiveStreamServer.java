@@ -0,0 +1,172 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the recording as a live MPEG transport stream on a loopback TCP port, reachable from
+ * a computer through {@code adb forward tcp:<port> tcp:<port>}. Every connection becomes an
+ * {@link MpegTsMuxer} attached to the {@link FanOutMuxer}, so each viewer has its own queue
+ * and a slow one only loses frames of its own.
+ * <p>
+ * In HTTP mode the server answers any request with a chunked {@code video/mp2t} response,
+ * otherwise the stream starts as soon as the client connects. Requests are read on a thread
+ * per connection, so a client that connects and sends nothing does not keep others waiting.
+ */
+public class LiveStreamServer implements Runnable, Closeable {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int REQUEST_TIMEOUT_MS = 2000;
+    private static final int MAX_REQUEST_BYTES = 8192;
+
+    private final FanOutMuxer fanOut;
+    private final boolean http;
+    private final ServerSocket serverSocket;
+    private volatile boolean closed;
+    private final AtomicInteger connections = new AtomicInteger();
+
+    /** Binds the server to {@code port} on the loopback interface, 0 for any free port. */
+    public LiveStreamServer(FanOutMuxer fanOut, int port, boolean http) throws IOException {
+        this.fanOut = fanOut;
+        this.http = http;
+        this.serverSocket = new ServerSocket(port, 4, InetAddress.getLoopbackAddress());
+    }
+
+    /** Accepts viewers on a thread of its own. */
+    public void start() {
+        final Thread thread = new Thread(this, "LiveStreamServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** Viewers accepted so far. */
+    public int getConnections() {
+        return connections.get();
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (closed) {
+                    break;
+                }
+                continue;
+            }
+            if (!http) {
+                attach(socket);
+                continue;
+            }
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    attach(socket);
+                }
+            }, "LiveStreamServer-" + socket.getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void attach(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            fanOut.attach(new MpegTsMuxer(open(socket)), socket);
+            connections.incrementAndGet();
+        } catch (IOException | IllegalStateException e) {
+            closeQuietly(socket);
+        }
+    }
+
+    /** Stops accepting viewers. Connected viewers end with the recording. */
+    @Override
+    public void close() {
+        closed = true;
+        closeQuietly(serverSocket);
+    }
+
+    private OutputStream open(Socket socket) throws IOException {
+        final OutputStream out = socket.getOutputStream();
+        if (!http) {
+            return out;
+        }
+        socket.setSoTimeout(REQUEST_TIMEOUT_MS);
+        skipRequest(socket.getInputStream());
+        out.write(("HTTP/1.1 200 OK\r\n"
+                + "Content-Type: video/mp2t\r\n"
+                + "Cache-Control: no-cache\r\n"
+                + "Connection: close\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n").getBytes(ASCII));
+        return new ChunkedOutputStream(out);
+    }
+
+    /** Reads up to the blank line that ends the request headers. */
+    private static void skipRequest(InputStream in) throws IOException {
+        int matched = 0;
+        for (int count = 0; count < MAX_REQUEST_BYTES; count++) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new IOException("connection closed in request");
+            }
+            // \r\n\r\n
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : b == '\r' ? 1 : 0;
+            if (matched == 4) {
+                return;
+            }
+        }
+        throw new IOException("request larger than " + MAX_REQUEST_BYTES + " bytes");
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** HTTP/1.1 chunked transfer coding, one chunk per write. */
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write(String.format(Locale.US, "%x\r\n", len).getBytes(ASCII));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.write("0\r\n\r\n".getBytes(ASCII));
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
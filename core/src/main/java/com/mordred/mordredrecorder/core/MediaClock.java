@@ -0,0 +1,61 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Presentation timeline shared by all tracks of a recording.
+ * <p>
+ * Time 0 is the moment {@link #start()} is first called. Monotonic timestamps from the same
+ * time base, such as encoder output of a Surface input or {@code AudioTimestamp.nanoTime},
+ * are mapped onto it with {@link #toPtsUs(long)}.
+ */
+public class MediaClock {
+
+    private final TimeSource timeSource;
+    private volatile long startNs;
+    private volatile boolean started;
+    private long lastNowUs;
+
+    public MediaClock() {
+        this(TimeSource.SYSTEM);
+    }
+
+    public MediaClock(TimeSource timeSource) {
+        this.timeSource = timeSource;
+    }
+
+    /** Starts the timeline if it has not been started yet. */
+    public synchronized void start() {
+        if (!started) {
+            startNs = timeSource.nanoTime();
+            started = true;
+        }
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    /** Current position on the timeline; never decreases. Starts the clock if needed. */
+    public synchronized long nowUs() {
+        start();
+        final long nowUs = toPtsUs(timeSource.nanoTime());
+        if (nowUs > lastNowUs) {
+            lastNowUs = nowUs;
+        }
+        return lastNowUs;
+    }
+
+    /**
+     * Maps a monotonic time in nanoseconds onto the timeline. Times before the start are
+     * negative.
+     */
+    public long toPtsUs(long nanoTime) {
+        if (!started) {
+            throw new IllegalStateException("clock not started");
+        }
+        return (nanoTime - startNs) / 1000;
+    }
+
+    public TimeSource getTimeSource() {
+        return timeSource;
+    }
+}
@@ -0,0 +1,87 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends a {@link MetricsSnapshot} of a registry to a text file at a fixed interval on its
+ * own thread, and once more when stopped. Blocks are separated by an empty line.
+ */
+public class MetricsFileDumper {
+
+    private final MetricsRegistry registry;
+    private final File file;
+    private final long intervalMs;
+    private ScheduledExecutorService executor;
+    private MetricsSnapshot previous;
+    private volatile IOException error;
+
+    public MetricsFileDumper(MetricsRegistry registry, File file, long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("interval " + intervalMs);
+        }
+        this.registry = registry;
+        this.file = file;
+        this.intervalMs = intervalMs;
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "MetricsDumper");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                dump();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops the periodic dumps and writes a final one. */
+    public void stop() throws InterruptedException {
+        final ScheduledExecutorService running;
+        synchronized (this) {
+            running = executor;
+            executor = null;
+        }
+        if (running != null) {
+            running.shutdown();
+            running.awaitTermination(intervalMs, TimeUnit.MILLISECONDS);
+        }
+        dump();
+    }
+
+    /** Appends one snapshot now. Errors are kept for {@link #getError()}. */
+    public synchronized void dump() {
+        final MetricsSnapshot snapshot = registry.snapshot();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true),
+                Charset.forName("UTF-8"))) {
+            writer.write(snapshot.format(previous));
+            writer.write('\n');
+        } catch (IOException e) {
+            error = e;
+        }
+        previous = snapshot;
+    }
+
+    public IOException getError() {
+        return error;
+    }
+}
@@ -0,0 +1,82 @@
+package com.mordred.mordredrecorder.core;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named counters, gauges and latency histograms of a recording.
+ * <p>
+ * Look metrics up once when a component is set up and keep the returned object; recording
+ * into it is lock-free and allocation-free, so it can be done for every sample.
+ */
+public class MetricsRegistry {
+
+    private final TimeSource timeSource;
+    private final long createdNs;
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    public MetricsRegistry() {
+        this(TimeSource.SYSTEM);
+    }
+
+    public MetricsRegistry(TimeSource timeSource) {
+        this.timeSource = timeSource;
+        this.createdNs = timeSource.nanoTime();
+    }
+
+    public Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            final Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public Gauge gauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if (gauge == null) {
+            final Gauge created = new Gauge();
+            gauge = gauges.putIfAbsent(name, created);
+            if (gauge == null) {
+                gauge = created;
+            }
+        }
+        return gauge;
+    }
+
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            final LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    public MetricsSnapshot snapshot() {
+        final Map<String, Long> counterValues = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().get());
+        }
+        final Map<String, Long> gaugeValues = new TreeMap<>();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            gaugeValues.put(entry.getKey(), entry.getValue().get());
+        }
+        final Map<String, LatencyHistogram.Snapshot> histogramValues = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            histogramValues.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new MetricsSnapshot(timeSource.nanoTime() - createdNs, counterValues, gaugeValues,
+                histogramValues);
+    }
+}
@@ -0,0 +1,89 @@
+package com.mordred.mordredrecorder.core;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Values of all metrics of a {@link MetricsRegistry} at one point in time.
+ */
+public final class MetricsSnapshot {
+
+    private final long uptimeNs;
+    private final Map<String, Long> counters;
+    private final Map<String, Long> gauges;
+    private final Map<String, LatencyHistogram.Snapshot> histograms;
+
+    MetricsSnapshot(long uptimeNs, Map<String, Long> counters, Map<String, Long> gauges,
+                    Map<String, LatencyHistogram.Snapshot> histograms) {
+        this.uptimeNs = uptimeNs;
+        this.counters = Collections.unmodifiableMap(counters);
+        this.gauges = Collections.unmodifiableMap(gauges);
+        this.histograms = Collections.unmodifiableMap(histograms);
+    }
+
+    /** Time since the registry was created. */
+    public long getUptimeNs() {
+        return uptimeNs;
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+
+    public Map<String, LatencyHistogram.Snapshot> getHistograms() {
+        return histograms;
+    }
+
+    /** Value of a counter, 0 if it does not exist. */
+    public long getCounter(String name) {
+        final Long value = counters.get(name);
+        return value != null ? value : 0;
+    }
+
+    /** Value of a gauge, null if it does not exist. */
+    public Long getGauge(String name) {
+        return gauges.get(name);
+    }
+
+    public LatencyHistogram.Snapshot getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    /** Per-second increase of a counter since {@code previous}, or since the start if null. */
+    public double getRate(MetricsSnapshot previous, String name) {
+        final long elapsedNs = uptimeNs - (previous != null ? previous.uptimeNs : 0);
+        if (elapsedNs <= 0) {
+            return 0;
+        }
+        final long delta = getCounter(name) - (previous != null ? previous.getCounter(name) : 0);
+        return delta * 1e9 / elapsedNs;
+    }
+
+    /** One line per metric, with counter rates relative to {@code previous}. */
+    public String format(MetricsSnapshot previous) {
+        final StringBuilder out = new StringBuilder();
+        out.append("uptime_ms ").append(uptimeNs / 1000000).append('\n');
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            out.append(entry.getKey()).append(' ').append(entry.getValue())
+                    .append(String.format(Locale.US, " rate=%.1f/s", getRate(previous, entry.getKey())))
+                    .append('\n');
+        }
+        for (Map.Entry<String, Long> entry : gauges.entrySet()) {
+            out.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, LatencyHistogram.Snapshot> entry : histograms.entrySet()) {
+            out.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return format(null);
+    }
+}
@@ -0,0 +1,183 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A parsed ISO BMFF box. Container boxes expose their children, other boxes keep their
+ * payload in memory, except {@code mdat} whose payload is only located, never read.
+ */
+public final class Mp4Box {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Set<String> CONTAINERS = new HashSet<>(Arrays.asList(
+            "moov", "trak", "mdia", "minf", "stbl", "dinf", "edts", "mvex", "moof", "traf", "udta", "mfra"));
+
+    public final String type;
+    /** Absolute offset of the box header in the file. */
+    public final long offset;
+    public final long size;
+    public final int headerSize;
+    private final ByteBuffer payload;
+    private final List<Mp4Box> children;
+
+    private Mp4Box(String type, long offset, long size, int headerSize, ByteBuffer payload) {
+        this.type = type;
+        this.offset = offset;
+        this.size = size;
+        this.headerSize = headerSize;
+        this.payload = payload;
+        this.children = payload != null && CONTAINERS.contains(type)
+                ? parse(payload.duplicate(), offset + headerSize)
+                : Collections.<Mp4Box>emptyList();
+    }
+
+    /**
+     * Reads the top level boxes of a file. A box running past the end of the file,
+     * as left behind by an interrupted recording, ends the list.
+     */
+    public static List<Mp4Box> readAll(FileChannel channel) throws IOException {
+        final List<Mp4Box> boxes = new ArrayList<>();
+        final ByteBuffer header = ByteBuffer.allocate(16);
+        final long fileSize = channel.size();
+        long position = 0;
+        while (position + 8 <= fileSize) {
+            header.clear();
+            header.limit((int) Math.min(16, fileSize - position));
+            readFully(channel, header, position);
+            header.flip();
+            long size = header.getInt() & 0xffffffffL;
+            final String type = fourCc(header.getInt());
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.remaining() < 8) {
+                    break;
+                }
+                size = header.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize || position + size > fileSize) {
+                break;
+            }
+            ByteBuffer payload = null;
+            if (!"mdat".equals(type)) {
+                payload = ByteBuffer.allocate((int) (size - headerSize));
+                readFully(channel, payload, position + headerSize);
+                payload.flip();
+            }
+            boxes.add(new Mp4Box(type, position, size, headerSize, payload));
+            position += size;
+        }
+        return boxes;
+    }
+
+    /** Parses consecutive boxes held in {@code buffer}, whose first byte is at {@code baseOffset}. */
+    public static List<Mp4Box> parse(ByteBuffer buffer, long baseOffset) {
+        final List<Mp4Box> boxes = new ArrayList<>();
+        final int start = buffer.position();
+        while (buffer.remaining() >= 8) {
+            final int boxStart = buffer.position();
+            long size = buffer.getInt() & 0xffffffffL;
+            final String type = fourCc(buffer.getInt());
+            int headerSize = 8;
+            if (size == 1) {
+                size = buffer.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                size = buffer.limit() - boxStart;
+            }
+            if (size < headerSize || boxStart + size > buffer.limit()) {
+                break;
+            }
+            final ByteBuffer payload = buffer.duplicate();
+            payload.position(boxStart + headerSize).limit((int) (boxStart + size));
+            boxes.add(new Mp4Box(type, baseOffset + boxStart - start, size, headerSize, payload.slice()));
+            buffer.position((int) (boxStart + size));
+        }
+        return boxes;
+    }
+
+    public List<Mp4Box> getChildren() {
+        return children;
+    }
+
+    /** Returns the first child of the given type, or null. */
+    public Mp4Box child(String childType) {
+        for (Mp4Box box : children) {
+            if (box.type.equals(childType)) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    public List<Mp4Box> children(String childType) {
+        final List<Mp4Box> result = new ArrayList<>();
+        for (Mp4Box box : children) {
+            if (box.type.equals(childType)) {
+                result.add(box);
+            }
+        }
+        return result;
+    }
+
+    /** Follows a slash separated path of first children, e.g. {@code "mdia/minf/stbl"}. */
+    public Mp4Box find(String path) {
+        Mp4Box box = this;
+        for (String part : path.split("/")) {
+            box = box.child(part);
+            if (box == null) {
+                return null;
+            }
+        }
+        return box;
+    }
+
+    /** Returns the payload (without header) positioned at its start, or null for {@code mdat}. */
+    public ByteBuffer payload() {
+        return payload == null ? null : payload.duplicate();
+    }
+
+    public long payloadOffset() {
+        return offset + headerSize;
+    }
+
+    public static Mp4Box find(List<Mp4Box> boxes, String type) {
+        for (Mp4Box box : boxes) {
+            if (box.type.equals(type)) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    static String fourCc(int value) {
+        return new String(new byte[] {
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value}, ASCII);
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        while (dst.hasRemaining()) {
+            final int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of file at " + position);
+            }
+            position += read;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return type + "@" + offset + "[" + size + "]";
+    }
+}
@@ -0,0 +1,121 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Builds ISO BMFF boxes into a growable heap buffer. Boxes are opened with
+ * {@link #begin}/{@link #beginFull} and their 32-bit size is patched in by {@link #end()}.
+ */
+public final class Mp4BoxWriter {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private ByteBuffer buffer;
+    private final int[] openBoxes = new int[16];
+    private int depth;
+
+    public Mp4BoxWriter(int initialCapacity) {
+        buffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    public Mp4BoxWriter reset() {
+        buffer.clear();
+        depth = 0;
+        return this;
+    }
+
+    public int position() {
+        return buffer.position();
+    }
+
+    public Mp4BoxWriter begin(String type) {
+        openBoxes[depth++] = buffer.position();
+        putInt(0);
+        putFourCc(type);
+        return this;
+    }
+
+    public Mp4BoxWriter beginFull(String type, int version, int flags) {
+        begin(type);
+        putInt((version << 24) | (flags & 0xffffff));
+        return this;
+    }
+
+    public Mp4BoxWriter end() {
+        final int start = openBoxes[--depth];
+        buffer.putInt(start, buffer.position() - start);
+        return this;
+    }
+
+    public Mp4BoxWriter putFourCc(String fourCc) {
+        ensure(4);
+        buffer.put(fourCc.getBytes(ASCII), 0, 4);
+        return this;
+    }
+
+    public Mp4BoxWriter put(int b) {
+        ensure(1);
+        buffer.put((byte) b);
+        return this;
+    }
+
+    public Mp4BoxWriter putShort(int value) {
+        ensure(2);
+        buffer.putShort((short) value);
+        return this;
+    }
+
+    public Mp4BoxWriter putInt(int value) {
+        ensure(4);
+        buffer.putInt(value);
+        return this;
+    }
+
+    public Mp4BoxWriter putLong(long value) {
+        ensure(8);
+        buffer.putLong(value);
+        return this;
+    }
+
+    public Mp4BoxWriter put(ByteBuffer src) {
+        ensure(src.remaining());
+        buffer.put(src);
+        return this;
+    }
+
+    public Mp4BoxWriter put(byte[] src) {
+        ensure(src.length);
+        buffer.put(src);
+        return this;
+    }
+
+    public Mp4BoxWriter putZeros(int count) {
+        ensure(count);
+        for (int i = 0; i < count; i++) {
+            buffer.put((byte) 0);
+        }
+        return this;
+    }
+
+    /** Overwrites an already written 32-bit value. */
+    public void patchInt(int position, int value) {
+        buffer.putInt(position, value);
+    }
+
+    /** Returns the written bytes; valid until the next write or {@link #reset()}. */
+    public ByteBuffer toByteBuffer() {
+        final ByteBuffer view = buffer.duplicate();
+        view.flip();
+        return view;
+    }
+
+    private void ensure(int bytes) {
+        if (buffer.remaining() < bytes) {
+            final ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            grown.put(buffer);
+            buffer = grown;
+        }
+    }
+}
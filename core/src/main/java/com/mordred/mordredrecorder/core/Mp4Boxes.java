@@ -0,0 +1,188 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writers for the MP4 header boxes shared by the fragmented and progressive muxers.
+ */
+final class Mp4Boxes {
+
+    static final int MOVIE_TIMESCALE = 1000;
+    static final int VIDEO_TIMESCALE = 90000;
+
+    static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+    private static final int LANGUAGE_UND = 0x55c4;
+
+    private Mp4Boxes() {
+    }
+
+    static int timescaleOf(TrackFormat format) {
+        return format.isVideo() ? VIDEO_TIMESCALE : format.sampleRate;
+    }
+
+    static long toTimescale(long timeUs, int timescale) {
+        return (timeUs * timescale + 500000) / 1000000;
+    }
+
+    static void writeFtyp(Mp4BoxWriter w, String majorBrand, String... compatibleBrands) {
+        w.begin("ftyp").putFourCc(majorBrand).putInt(0x200);
+        for (String brand : compatibleBrands) {
+            w.putFourCc(brand);
+        }
+        w.end();
+    }
+
+    static void writeMvhd(Mp4BoxWriter w, long durationMovie, int nextTrackId) {
+        w.beginFull("mvhd", 0, 0)
+                .putInt(0).putInt(0)
+                .putInt(MOVIE_TIMESCALE).putInt((int) durationMovie)
+                .putInt(0x00010000).putShort(0x0100).putZeros(10);
+        writeMatrix(w);
+        w.putZeros(24).putInt(nextTrackId).end();
+    }
+
+    /**
+     * Writes a track up to and including {@code stsd} and leaves {@code trak/mdia/minf/stbl}
+     * open for the sample tables. Close it with {@link #endTrak}.
+     */
+    static void beginTrak(Mp4BoxWriter w, int trackId, TrackFormat format,
+                          long durationMovie, long durationMedia) {
+        beginTrak(w, trackId, format.isVideo(), format.width, format.height, timescaleOf(format),
+                durationMovie, durationMedia, 0);
+        w.beginFull("stsd", 0, 0).putInt(1);
+        writeSampleEntry(w, format);
+        w.end();
+    }
+
+    /**
+     * Writes a track header and leaves {@code trak/mdia/minf/stbl} open before {@code stsd}.
+     * A positive {@code delayMovie} starts the track later with an empty edit; the track
+     * duration {@code durationMovie} includes the delay.
+     */
+    static void beginTrak(Mp4BoxWriter w, int trackId, boolean video, int width, int height, int timescale,
+                          long durationMovie, long durationMedia, long delayMovie) {
+        w.begin("trak");
+        w.beginFull("tkhd", 0, 0x7)
+                .putInt(0).putInt(0).putInt(trackId).putInt(0).putInt((int) durationMovie)
+                .putZeros(8).putShort(0).putShort(0).putShort(video ? 0 : 0x0100).putShort(0);
+        writeMatrix(w);
+        w.putInt(video ? width << 16 : 0).putInt(video ? height << 16 : 0).end();
+        if (delayMovie > 0) {
+            w.begin("edts").beginFull("elst", 0, 0).putInt(2)
+                    .putInt((int) delayMovie).putInt(-1).putInt(0x00010000)
+                    .putInt((int) (durationMovie - delayMovie)).putInt(0).putInt(0x00010000)
+                    .end().end();
+        }
+
+        w.begin("mdia");
+        w.beginFull("mdhd", 0, 0)
+                .putInt(0).putInt(0).putInt(timescale).putInt((int) durationMedia)
+                .putShort(LANGUAGE_UND).putShort(0).end();
+        w.beginFull("hdlr", 0, 0).putInt(0).putFourCc(video ? "vide" : "soun").putZeros(12)
+                .put((video ? "VideoHandler" : "SoundHandler").getBytes()).put(0).end();
+
+        w.begin("minf");
+        if (video) {
+            w.beginFull("vmhd", 0, 1).putZeros(8).end();
+        } else {
+            w.beginFull("smhd", 0, 0).putInt(0).end();
+        }
+        w.begin("dinf").beginFull("dref", 0, 0).putInt(1).beginFull("url ", 0, 1).end().end().end();
+        w.begin("stbl");
+    }
+
+    static void endTrak(Mp4BoxWriter w) {
+        // stbl, minf, mdia, trak
+        w.end().end().end().end();
+    }
+
+    /** Sample tables of a fragmented track: all empty, samples live in the fragments. */
+    static void writeEmptySampleTables(Mp4BoxWriter w) {
+        w.beginFull("stts", 0, 0).putInt(0).end();
+        w.beginFull("stsc", 0, 0).putInt(0).end();
+        w.beginFull("stsz", 0, 0).putInt(0).putInt(0).end();
+        w.beginFull("stco", 0, 0).putInt(0).end();
+    }
+
+    static void writeSampleEntry(Mp4BoxWriter w, TrackFormat format) {
+        if (TrackFormat.MIME_AVC.equals(format.mime)) {
+            w.begin("avc1");
+            writeVisualSampleEntry(w, format);
+            writeAvcC(w, format);
+            w.end();
+        } else if (TrackFormat.MIME_AAC.equals(format.mime)) {
+            w.begin("mp4a").putZeros(6).putShort(1).putZeros(8)
+                    .putShort(format.channelCount).putShort(16).putShort(0).putShort(0)
+                    .putInt(format.sampleRate << 16);
+            writeEsds(w, format);
+            w.end();
+        } else {
+            throw new IllegalArgumentException("unsupported track format " + format);
+        }
+    }
+
+    private static void writeVisualSampleEntry(Mp4BoxWriter w, TrackFormat format) {
+        w.putZeros(6).putShort(1)
+                .putShort(0).putShort(0).putZeros(12)
+                .putShort(format.width).putShort(format.height)
+                .putInt(0x00480000).putInt(0x00480000).putInt(0).putShort(1)
+                .putZeros(32).putShort(0x18).putShort(-1);
+    }
+
+    private static void writeAvcC(Mp4BoxWriter w, TrackFormat format) {
+        final List<ByteBuffer> sps = new ArrayList<>();
+        final List<ByteBuffer> pps = new ArrayList<>();
+        for (int i = 0; i < format.getCsdCount(); i++) {
+            for (ByteBuffer unit : NalUnits.split(format.getCsd(i))) {
+                final int type = NalUnits.avcType(unit);
+                if (type == 7) {
+                    sps.add(unit);
+                } else if (type == 8) {
+                    pps.add(unit);
+                }
+            }
+        }
+        if (sps.isEmpty() || pps.isEmpty()) {
+            throw new IllegalArgumentException("AVC format without SPS/PPS: " + format);
+        }
+        final ByteBuffer first = sps.get(0);
+        w.begin("avcC").put(1)
+                .put(first.get(1)).put(first.get(2)).put(first.get(3))
+                .put(0xff)
+                .put(0xe0 | sps.size());
+        for (ByteBuffer unit : sps) {
+            w.putShort(unit.remaining()).put(unit.duplicate());
+        }
+        w.put(pps.size());
+        for (ByteBuffer unit : pps) {
+            w.putShort(unit.remaining()).put(unit.duplicate());
+        }
+        w.end();
+    }
+
+    private static void writeEsds(Mp4BoxWriter w, TrackFormat format) {
+        final ByteBuffer asc = format.getCsdCount() > 0 ? format.getCsd(0) : ByteBuffer.allocate(0);
+        final int decoderSpecificLength = asc.remaining();
+        final int decoderConfigLength = 13 + 2 + decoderSpecificLength;
+        final int esLength = 3 + 2 + decoderConfigLength + 3;
+        w.beginFull("esds", 0, 0)
+                .put(0x03).put(esLength).putShort(0).put(0)
+                .put(0x04).put(decoderConfigLength)
+                .put(0x40).put(0x15).put(0).putShort(0)
+                .putInt(0).putInt(0)
+                .put(0x05).put(decoderSpecificLength).put(asc)
+                .put(0x06).put(1).put(0x02)
+                .end();
+    }
+
+    private static void writeMatrix(Mp4BoxWriter w) {
+        for (int value : UNITY_MATRIX) {
+            w.putInt(value);
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sample tables of an MP4 file, read from the {@code moov} of a progressive file or from the
+ * {@code moof} fragments of a fragmented one such as {@link FragmentedMp4Muxer} writes. Samples
+ * are grouped in chunks, runs of consecutive samples of one track stored back to back.
+ */
+public final class Mp4Index {
+
+    private static final int TFHD_BASE_DATA_OFFSET = 0x000001;
+    private static final int TFHD_SAMPLE_DESCRIPTION_INDEX = 0x000002;
+    private static final int TFHD_DEFAULT_DURATION = 0x000008;
+    private static final int TFHD_DEFAULT_SIZE = 0x000010;
+    private static final int TFHD_DEFAULT_FLAGS = 0x000020;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_FIRST_SAMPLE_FLAGS = 0x000004;
+    private static final int TRUN_DURATION = 0x000100;
+    private static final int TRUN_SIZE = 0x000200;
+    private static final int TRUN_FLAGS = 0x000400;
+    private static final int TRUN_COMPOSITION_OFFSET = 0x000800;
+    private static final int SAMPLE_IS_NON_SYNC = 0x00010000;
+
+    private final boolean fragmented;
+    private final long fileSize;
+    private final long moovOffset;
+    private final long firstMdatOffset;
+    private final List<Track> tracks;
+
+    private Mp4Index(boolean fragmented, long fileSize, long moovOffset, long firstMdatOffset, List<Track> tracks) {
+        this.fragmented = fragmented;
+        this.fileSize = fileSize;
+        this.moovOffset = moovOffset;
+        this.firstMdatOffset = firstMdatOffset;
+        this.tracks = Collections.unmodifiableList(tracks);
+    }
+
+    public static Mp4Index read(File file) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return read(channel);
+        } finally {
+            channel.close();
+        }
+    }
+
+    public static Mp4Index read(FileChannel channel) throws IOException {
+        final List<Mp4Box> boxes = Mp4Box.readAll(channel);
+        final Mp4Box moov = Mp4Box.find(boxes, "moov");
+        if (moov == null) {
+            throw new IOException("no moov box");
+        }
+        final Mp4Box mdat = Mp4Box.find(boxes, "mdat");
+        final boolean fragmented = moov.child("mvex") != null;
+        final int movieTimescale = readMovieTimescale(moov);
+        final List<Track> tracks = new ArrayList<>();
+        for (Mp4Box trak : moov.children("trak")) {
+            final Track track = readTrackHeader(trak);
+            if (!fragmented) {
+                readSampleTables(track, trak, movieTimescale);
+            }
+            tracks.add(track);
+        }
+        if (fragmented) {
+            readTrackDefaults(moov.child("mvex"), tracks);
+            for (Mp4Box box : boxes) {
+                if ("moof".equals(box.type)) {
+                    readFragment(box, tracks);
+                }
+            }
+        }
+        return new Mp4Index(fragmented, channel.size(), moov.offset, mdat != null ? mdat.offset : -1, tracks);
+    }
+
+    /** True if the samples live in {@code moof} fragments rather than in the {@code moov}. */
+    public boolean isFragmented() {
+        return fragmented;
+    }
+
+    /** True if players can start before reading the whole file: progressive with the {@code moov} ahead of the samples. */
+    public boolean isFaststart() {
+        return !fragmented && (firstMdatOffset < 0 || moovOffset < firstMdatOffset);
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public List<Track> getTracks() {
+        return tracks;
+    }
+
+    /** The first video track, or null. */
+    public Track getVideoTrack() {
+        for (Track track : tracks) {
+            if (track.isVideo()) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /** The first audio track, or null. */
+    public Track getAudioTrack() {
+        for (Track track : tracks) {
+            if (track.isAudio()) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /** Earliest sample time over all tracks. */
+    public long getStartUs() {
+        long start = Long.MAX_VALUE;
+        for (Track track : tracks) {
+            if (track.getSampleCount() > 0) {
+                start = Math.min(start, track.getStartUs());
+            }
+        }
+        return start == Long.MAX_VALUE ? 0 : start;
+    }
+
+    /** From the earliest sample to the end of the last, over all tracks. */
+    public long getDurationUs() {
+        long end = 0;
+        for (Track track : tracks) {
+            if (track.getSampleCount() > 0) {
+                end = Math.max(end, track.getStartUs() + track.getDurationUs());
+            }
+        }
+        return Math.max(0, end - getStartUs());
+    }
+
+    private static int readMovieTimescale(Mp4Box moov) throws IOException {
+        final Mp4Box mvhd = moov.child("mvhd");
+        if (mvhd == null) {
+            throw new IOException("no mvhd box");
+        }
+        final ByteBuffer payload = mvhd.payload();
+        return payload.getInt(payload.get(0) == 1 ? 20 : 12);
+    }
+
+    private static Track readTrackHeader(Mp4Box trak) throws IOException {
+        final Mp4Box tkhd = trak.child("tkhd");
+        final Mp4Box mdhd = trak.find("mdia/mdhd");
+        final Mp4Box hdlr = trak.find("mdia/hdlr");
+        final Mp4Box stsd = trak.find("mdia/minf/stbl/stsd");
+        if (tkhd == null || mdhd == null || hdlr == null || stsd == null) {
+            throw new IOException("incomplete track " + trak);
+        }
+        final ByteBuffer header = tkhd.payload();
+        final boolean longTimes = header.get(0) == 1;
+        final int trackId = header.getInt(longTimes ? 20 : 12);
+        final int sizeOffset = header.limit() - 8;
+        final int width = header.getInt(sizeOffset) >>> 16;
+        final int height = header.getInt(sizeOffset + 4) >>> 16;
+        final ByteBuffer media = mdhd.payload();
+        final int timescale = media.getInt(media.get(0) == 1 ? 20 : 12);
+        final String handler = Mp4Box.fourCc(hdlr.payload().getInt(8));
+        return new Track(trackId, handler, timescale, width, height, stsd);
+    }
+
+    private static void readSampleTables(Track track, Mp4Box trak, int movieTimescale) throws IOException {
+        final Mp4Box stbl = trak.find("mdia/minf/stbl");
+        final Mp4Box stts = stbl.child("stts");
+        final Mp4Box stsz = stbl.child("stsz");
+        final Mp4Box stsc = stbl.child("stsc");
+        final Mp4Box stco = stbl.child("stco") != null ? stbl.child("stco") : stbl.child("co64");
+        if (stts == null || stsz == null || stsc == null || stco == null) {
+            throw new IOException("incomplete sample tables in " + trak);
+        }
+        track.startTime = readEmptyEdit(trak, movieTimescale, track.timescale);
+        track.compositionOffsets = stbl.child("ctts") != null;
+
+        final ByteBuffer sizes = stsz.payload();
+        sizes.getInt();
+        final int fixedSize = sizes.getInt();
+        final int sampleCount = sizes.getInt();
+        final ByteBuffer durations = stts.payload();
+        durations.getInt();
+        int durationEntries = durations.getInt();
+        int durationRun = 0;
+        int duration = 0;
+        for (int i = 0; i < sampleCount; i++) {
+            while (durationRun == 0 && durationEntries > 0) {
+                durationRun = durations.getInt();
+                duration = durations.getInt();
+                durationEntries--;
+            }
+            durationRun--;
+            track.addSample(fixedSize != 0 ? fixedSize : sizes.getInt(), duration, true);
+        }
+        final Mp4Box stss = stbl.child("stss");
+        if (stss != null) {
+            Arrays.fill(track.sync, 0, track.sampleCount, false);
+            final ByteBuffer syncSamples = stss.payload();
+            syncSamples.getInt();
+            for (int count = syncSamples.getInt(); count > 0; count--) {
+                final int sample = syncSamples.getInt() - 1;
+                if (sample >= 0 && sample < track.sampleCount) {
+                    track.sync[sample] = true;
+                }
+            }
+        }
+
+        final ByteBuffer offsets = stco.payload();
+        offsets.getInt();
+        final boolean longOffsets = "co64".equals(stco.type);
+        final int chunkCount = offsets.getInt();
+        final ByteBuffer chunks = stsc.payload();
+        chunks.getInt();
+        int chunkEntries = chunks.getInt();
+        int nextFirstChunk = chunkEntries > 0 ? chunks.getInt() : Integer.MAX_VALUE;
+        int samplesPerChunk = 0;
+        int sample = 0;
+        for (int chunk = 1; chunk <= chunkCount && sample < sampleCount; chunk++) {
+            while (chunk >= nextFirstChunk) {
+                samplesPerChunk = chunks.getInt();
+                chunks.getInt();
+                chunkEntries--;
+                nextFirstChunk = chunkEntries > 0 ? chunks.getInt() : Integer.MAX_VALUE;
+            }
+            final long offset = longOffsets ? offsets.getLong() : offsets.getInt() & 0xffffffffL;
+            final int count = Math.min(samplesPerChunk, sampleCount - sample);
+            track.addChunk(offset, sample);
+            sample += count;
+        }
+        if (sample < sampleCount) {
+            throw new IOException("chunks of " + trak + " hold " + sample + " of " + sampleCount + " samples");
+        }
+    }
+
+    /** Start of the track in its own timescale, from a leading empty edit. */
+    private static long readEmptyEdit(Mp4Box trak, int movieTimescale, int timescale) {
+        final Mp4Box elst = trak.find("edts/elst");
+        if (elst == null) {
+            return 0;
+        }
+        final ByteBuffer edits = elst.payload();
+        final boolean longTimes = edits.getInt() >>> 24 == 1;
+        if (edits.getInt() == 0) {
+            return 0;
+        }
+        final long segmentDuration = longTimes ? edits.getLong() : edits.getInt() & 0xffffffffL;
+        final long mediaTime = longTimes ? edits.getLong() : edits.getInt();
+        return mediaTime == -1 ? segmentDuration * timescale / movieTimescale : 0;
+    }
+
+    private static void readTrackDefaults(Mp4Box mvex, List<Track> tracks) {
+        for (Mp4Box trex : mvex.children("trex")) {
+            final ByteBuffer defaults = trex.payload();
+            defaults.getInt();
+            final Track track = findTrack(tracks, defaults.getInt());
+            if (track != null) {
+                defaults.getInt();
+                track.defaultDuration = defaults.getInt();
+                track.defaultSize = defaults.getInt();
+                track.defaultFlags = defaults.getInt();
+            }
+        }
+    }
+
+    private static void readFragment(Mp4Box moof, List<Track> tracks) throws IOException {
+        long dataEnd = moof.offset;
+        for (Mp4Box traf : moof.children("traf")) {
+            final Mp4Box tfhd = traf.child("tfhd");
+            if (tfhd == null) {
+                throw new IOException("traf without tfhd in " + moof);
+            }
+            final ByteBuffer header = tfhd.payload();
+            final int headerFlags = header.getInt() & 0xffffff;
+            final Track track = findTrack(tracks, header.getInt());
+            if (track == null) {
+                throw new IOException("fragment of an unknown track in " + moof);
+            }
+            // without an explicit base, the data of a traf follows that of the previous one
+            long base = (headerFlags & TFHD_DEFAULT_BASE_IS_MOOF) != 0 ? moof.offset : dataEnd;
+            if ((headerFlags & TFHD_BASE_DATA_OFFSET) != 0) {
+                base = header.getLong();
+            }
+            if ((headerFlags & TFHD_SAMPLE_DESCRIPTION_INDEX) != 0) {
+                header.getInt();
+            }
+            final int defaultDuration = (headerFlags & TFHD_DEFAULT_DURATION) != 0 ? header.getInt() : track.defaultDuration;
+            final int defaultSize = (headerFlags & TFHD_DEFAULT_SIZE) != 0 ? header.getInt() : track.defaultSize;
+            final int defaultFlags = (headerFlags & TFHD_DEFAULT_FLAGS) != 0 ? header.getInt() : track.defaultFlags;
+
+            final Mp4Box tfdt = traf.child("tfdt");
+            if (tfdt != null) {
+                final ByteBuffer decodeTime = tfdt.payload();
+                track.setNextTime(decodeTime.getInt() >>> 24 == 1 ? decodeTime.getLong() : decodeTime.getInt() & 0xffffffffL);
+            }
+            long dataPosition = base;
+            for (Mp4Box trun : traf.children("trun")) {
+                final ByteBuffer run = trun.payload();
+                final int runFlags = run.getInt() & 0xffffff;
+                final int count = run.getInt();
+                if ((runFlags & TRUN_DATA_OFFSET) != 0) {
+                    dataPosition = base + run.getInt();
+                }
+                final int firstFlags = (runFlags & TRUN_FIRST_SAMPLE_FLAGS) != 0 ? run.getInt() : defaultFlags;
+                final int firstSample = track.sampleCount;
+                long runBytes = 0;
+                for (int i = 0; i < count; i++) {
+                    final int duration = (runFlags & TRUN_DURATION) != 0 ? run.getInt() : defaultDuration;
+                    final int size = (runFlags & TRUN_SIZE) != 0 ? run.getInt() : defaultSize;
+                    final int flags = (runFlags & TRUN_FLAGS) != 0 ? run.getInt() : i == 0 ? firstFlags : defaultFlags;
+                    if ((runFlags & TRUN_COMPOSITION_OFFSET) != 0 && run.getInt() != 0) {
+                        track.compositionOffsets = true;
+                    }
+                    track.addSample(size, duration, (flags & SAMPLE_IS_NON_SYNC) == 0);
+                    runBytes += size;
+                }
+                if (count > 0) {
+                    track.addChunk(dataPosition, firstSample);
+                }
+                dataPosition += runBytes;
+            }
+            dataEnd = dataPosition;
+        }
+    }
+
+    private static Track findTrack(List<Track> tracks, int trackId) {
+        for (Track track : tracks) {
+            if (track.trackId == trackId) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    /** Samples and chunks of one track, times in the track's own timescale. */
+    public static final class Track {
+
+        public final int trackId;
+        /** {@code vide}, {@code soun} or another handler type. */
+        public final String handler;
+        public final int timescale;
+        public final int width;
+        public final int height;
+        final Mp4Box stsd;
+
+        private int defaultDuration;
+        private int defaultSize;
+        private int defaultFlags;
+        private long startTime;
+        private boolean compositionOffsets;
+
+        private int sampleCount;
+        private int[] sizes = new int[64];
+        private int[] durations = new int[64];
+        private long[] times = new long[64];
+        private boolean[] sync = new boolean[64];
+        private long nextTime = -1;
+        private long bytes;
+
+        private int chunkCount;
+        private long[] chunkOffsets = new long[16];
+        private int[] chunkFirstSamples = new int[16];
+
+        private Track(int trackId, String handler, int timescale, int width, int height, Mp4Box stsd) {
+            this.trackId = trackId;
+            this.handler = handler;
+            this.timescale = timescale;
+            this.width = width;
+            this.height = height;
+            this.stsd = stsd;
+        }
+
+        /** A track of the same kind and sample description, without samples, to be filled by an edit. */
+        Track emptyCopy() {
+            return new Track(trackId, handler, timescale, width, height, stsd);
+        }
+
+        /** True if samples of {@code other} can be appended to this track: same kind, timescale and codec setup. */
+        boolean isCompatible(Track other) {
+            return handler.equals(other.handler) && timescale == other.timescale
+                    && width == other.width && height == other.height && stsd.payload().equals(other.stsd.payload());
+        }
+
+        public boolean isVideo() {
+            return "vide".equals(handler);
+        }
+
+        public boolean isAudio() {
+            return "soun".equals(handler);
+        }
+
+        public int getSampleCount() {
+            return sampleCount;
+        }
+
+        public int getSampleSize(int sample) {
+            return sizes[sample];
+        }
+
+        /** Decode time of {@code sample} in the track timescale. */
+        public long getSampleTime(int sample) {
+            return times[sample];
+        }
+
+        public int getSampleDuration(int sample) {
+            return durations[sample];
+        }
+
+        public boolean isSyncSample(int sample) {
+            return sync[sample];
+        }
+
+        public int getSyncSampleCount() {
+            int count = 0;
+            for (int i = 0; i < sampleCount; i++) {
+                if (sync[i]) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** Decode time of the first sample in the track timescale. */
+        public long getStartTime() {
+            return sampleCount > 0 ? times[0] : startTime;
+        }
+
+        /** Sum of the sample durations in the track timescale. */
+        public long getDuration() {
+            return sampleCount > 0 ? times[sampleCount - 1] + durations[sampleCount - 1] - times[0] : 0;
+        }
+
+        public long getStartUs() {
+            return toUs(getStartTime());
+        }
+
+        public long getDurationUs() {
+            return toUs(getDuration());
+        }
+
+        /** True if samples are presented in a different order than decoded, which {@code ctts} or trun offsets describe. */
+        public boolean hasCompositionOffsets() {
+            return compositionOffsets;
+        }
+
+        /** Times of the sync samples, skipping those closer than {@code minSpacingUs} to the previous one kept. */
+        public long[] getSyncSampleTimesUs(long minSpacingUs) {
+            long[] result = new long[16];
+            int count = 0;
+            long last = Long.MIN_VALUE;
+            for (int i = 0; i < sampleCount; i++) {
+                if (!sync[i]) {
+                    continue;
+                }
+                final long timeUs = toUs(times[i]);
+                if (count > 0 && timeUs - last < minSpacingUs) {
+                    continue;
+                }
+                if (count == result.length) {
+                    result = Arrays.copyOf(result, count * 2);
+                }
+                result[count++] = timeUs;
+                last = timeUs;
+            }
+            return Arrays.copyOf(result, count);
+        }
+
+        int getChunkCount() {
+            return chunkCount;
+        }
+
+        long getChunkOffset(int chunk) {
+            return chunkOffsets[chunk];
+        }
+
+        int getChunkFirstSample(int chunk) {
+            return chunkFirstSamples[chunk];
+        }
+
+        int getChunkSampleCount(int chunk) {
+            return (chunk + 1 < chunkCount ? chunkFirstSamples[chunk + 1] : sampleCount) - chunkFirstSamples[chunk];
+        }
+
+        long getChunkBytes(int chunk) {
+            long total = 0;
+            final int first = chunkFirstSamples[chunk];
+            for (int i = first, end = first + getChunkSampleCount(chunk); i < end; i++) {
+                total += sizes[i];
+            }
+            return total;
+        }
+
+        long toUs(long time) {
+            return time * 1000000 / timescale;
+        }
+
+        /** The next sample decodes at {@code time}; fixes up the estimated duration of the one before. */
+        void setNextTime(long time) {
+            if (sampleCount > 0 && time > times[sampleCount - 1]) {
+                durations[sampleCount - 1] = (int) (time - times[sampleCount - 1]);
+            }
+            nextTime = time;
+        }
+
+        void addSample(int size, int duration, boolean syncSample) {
+            if (sampleCount == sizes.length) {
+                final int capacity = sampleCount * 2;
+                sizes = Arrays.copyOf(sizes, capacity);
+                durations = Arrays.copyOf(durations, capacity);
+                times = Arrays.copyOf(times, capacity);
+                sync = Arrays.copyOf(sync, capacity);
+            }
+            final long time = nextTime >= 0 ? nextTime
+                    : sampleCount > 0 ? times[sampleCount - 1] + durations[sampleCount - 1] : startTime;
+            sizes[sampleCount] = size;
+            durations[sampleCount] = duration;
+            times[sampleCount] = time;
+            sync[sampleCount] = syncSample;
+            sampleCount++;
+            bytes += size;
+            nextTime = -1;
+        }
+
+        void addChunk(long offset, int firstSample) {
+            if (chunkCount == chunkOffsets.length) {
+                chunkOffsets = Arrays.copyOf(chunkOffsets, chunkCount * 2);
+                chunkFirstSamples = Arrays.copyOf(chunkFirstSamples, chunkCount * 2);
+            }
+            chunkOffsets[chunkCount] = offset;
+            chunkFirstSamples[chunkCount] = firstSample;
+            chunkCount++;
+        }
+
+        @Override
+        public String toString() {
+            return handler + "#" + trackId + "[" + sampleCount + " samples in " + chunkCount + " chunks]";
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trims, cuts and joins recordings without re-encoding. Whole groups of pictures are copied
+ * from the sources with {@link FileChannel#transferTo}, only the sample tables are written
+ * anew, into a progressive MP4 as {@link FaststartProcessor} writes. Cut points are looked up
+ * in the sources' {@link KeyframeIndex}, which is rebuilt first where it is missing.
+ * <p>
+ * Times are in microseconds from the first video frame of a source. A kept part starts at the
+ * key frame at or before its requested start, so no frame asked for is lost; it ends exactly
+ * where requested, since frames only depend on earlier ones. The part after a cut is the
+ * exception: it starts at the key frame at or after the end of the cut, so that nothing of the
+ * removed range is kept. Other tracks are kept alongside the video of each part.
+ */
+public final class Mp4Splicer {
+
+    private static final long TO_END = Long.MAX_VALUE;
+
+    private Mp4Splicer() {
+    }
+
+    /** Writes {@code [startUs, endUs)} of {@code source} to {@code output}. */
+    public static void trim(File source, long startUs, long endUs, File output) throws IOException {
+        if (endUs <= startUs) {
+            throw new IllegalArgumentException("empty range " + startUs + ".." + endUs);
+        }
+        splice(Collections.singletonList(new Part(source, startUs, endUs)), output);
+    }
+
+    /**
+     * Writes {@code source} without {@code [fromUs, toUs)} to {@code output}. Frames after the
+     * range up to the next key frame are dropped with it.
+     */
+    public static void cut(File source, long fromUs, long toUs, File output) throws IOException {
+        if (toUs <= fromUs) {
+            throw new IllegalArgumentException("empty range " + fromUs + ".." + toUs);
+        }
+        splice(Arrays.asList(new Part(source, 0, fromUs), new Part(source, toUs, TO_END, true)), output);
+    }
+
+    /**
+     * Writes {@code sources} one after the other to {@code output}. The sources must have the
+     * same tracks with the same codec setup, e.g. the segments of one recording.
+     */
+    public static void concat(List<File> sources, File output) throws IOException {
+        final List<Part> parts = new ArrayList<>();
+        for (File source : sources) {
+            parts.add(new Part(source, 0, TO_END));
+        }
+        splice(parts, output);
+    }
+
+    private static void splice(List<Part> parts, File output) throws IOException {
+        final Map<File, FileChannel> channels = new HashMap<>();
+        for (Part part : parts) {
+            if (part.source.getCanonicalFile().equals(output.getCanonicalFile())) {
+                throw new IllegalArgumentException("cannot write over the source " + part.source);
+            }
+        }
+        try {
+            List<Mp4Index.Track> tracks = null;
+            ProgressiveMp4Writer writer = null;
+            int videoTimescale = 0;
+            // where the next part starts in the output, in the video timescale
+            long nextStart = 0;
+            for (Part part : parts) {
+                FileChannel channel = channels.get(part.source);
+                if (channel == null) {
+                    channel = FileChannel.open(part.source.toPath(), StandardOpenOption.READ);
+                    channels.put(part.source, channel);
+                }
+                final Mp4Index index = Mp4Index.read(channel);
+                final Mp4Index.Track video = index.getVideoTrack();
+                if (video == null) {
+                    throw new IOException("no video track in " + part.source);
+                }
+                final KeyframeIndex keyframes = KeyframeIndex.load(part.source);
+                if (keyframes.getSampleCount() != video.getSampleCount()) {
+                    throw new IOException("keyframe index of " + part.source + " lists "
+                            + keyframes.getSampleCount() + " of " + video.getSampleCount() + " frames");
+                }
+                if (tracks == null) {
+                    tracks = new ArrayList<>();
+                    for (Mp4Index.Track track : index.getTracks()) {
+                        tracks.add(track.emptyCopy());
+                    }
+                    writer = new ProgressiveMp4Writer(tracks);
+                    videoTimescale = video.timescale;
+                } else {
+                    checkCompatible(tracks, index, part.source);
+                }
+
+                final int first = firstFrame(keyframes, part.startUs, part.startAfter);
+                final int end = part.endUs == TO_END ? video.getSampleCount()
+                        : keyframes.floorSample(keyframes.getTimeUs(0) + part.endUs - 1) + 1;
+                if (first < 0 || end <= first) {
+                    continue;
+                }
+                final long startTime = video.getSampleTime(first);
+                final long endTime = end < video.getSampleCount() ? video.getSampleTime(end)
+                        : video.getSampleTime(end - 1) + video.getSampleDuration(end - 1);
+
+                final List<Chunk> chunks = new ArrayList<>();
+                for (int t = 0; t < tracks.size(); t++) {
+                    final Mp4Index.Track from = index.getTracks().get(t);
+                    final long start = rescale(startTime, video.timescale, from.timescale);
+                    final int firstSample = from == video ? first : firstAtOrAfter(from, start);
+                    final int endSample = from == video ? end : end == video.getSampleCount() ? from.getSampleCount()
+                            : firstAtOrAfter(from, rescale(endTime, video.timescale, from.timescale));
+                    copySamples(from, firstSample, endSample, tracks.get(t),
+                            rescale(nextStart, videoTimescale, from.timescale) - start, chunks);
+                }
+                // in file order, so the samples stay interleaved as recorded
+                Collections.sort(chunks, new Comparator<Chunk>() {
+                    @Override
+                    public int compare(Chunk a, Chunk b) {
+                        return Long.compare(a.track.getChunkOffset(a.index), b.track.getChunkOffset(b.index));
+                    }
+                });
+                for (Chunk chunk : chunks) {
+                    writer.addChunk(channel, chunk.track, chunk.index);
+                }
+                nextStart += rescale(endTime - startTime, video.timescale, videoTimescale);
+            }
+            if (nextStart == 0) {
+                throw new IllegalArgumentException("nothing left to write");
+            }
+
+            final FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                writer.write(out, null);
+                out.force(true);
+            } catch (IOException | RuntimeException e) {
+                out.close();
+                output.delete();
+                throw e;
+            }
+            out.close();
+        } finally {
+            for (FileChannel channel : channels.values()) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * The key frame a part starting at {@code startUs} begins with, the first one at or after
+     * it if {@code after}, or -1 if there is none.
+     */
+    private static int firstFrame(KeyframeIndex keyframes, long startUs, boolean after) {
+        if (keyframes.getSampleCount() == 0) {
+            return -1;
+        }
+        final long originUs = keyframes.getTimeUs(0);
+        if (originUs + startUs > keyframes.getTimeUs(keyframes.getSampleCount() - 1)) {
+            return -1;
+        }
+        if (after) {
+            return keyframes.syncAtOrAfter(originUs + Math.max(0, startUs));
+        }
+        final int frame = keyframes.syncAtOrBefore(originUs + Math.max(0, startUs));
+        // a recording normally opens with a key frame, skip what cannot be decoded if not
+        return frame >= 0 ? frame : keyframes.syncAtOrAfter(originUs);
+    }
+
+    /**
+     * Appends samples {@code [first, end)} of {@code from} to {@code to}, moved by {@code shift}
+     * in the track's timescale, and notes the chunks holding them.
+     */
+    private static void copySamples(Mp4Index.Track from, int first, int end, Mp4Index.Track to, long shift,
+                                    List<Chunk> chunks) {
+        if (first >= end) {
+            return;
+        }
+        final int outputFirst = to.getSampleCount();
+        to.setNextTime(from.getSampleTime(first) + shift);
+        for (int i = first; i < end; i++) {
+            to.addSample(from.getSampleSize(i), from.getSampleDuration(i), from.isSyncSample(i));
+        }
+        for (int chunk = 0; chunk < from.getChunkCount(); chunk++) {
+            final int chunkFirst = from.getChunkFirstSample(chunk);
+            final int chunkEnd = chunkFirst + from.getChunkSampleCount(chunk);
+            if (chunkEnd <= first || chunkFirst >= end) {
+                continue;
+            }
+            final int keptFirst = Math.max(first, chunkFirst);
+            long offset = from.getChunkOffset(chunk);
+            for (int i = chunkFirst; i < keptFirst; i++) {
+                offset += from.getSampleSize(i);
+            }
+            to.addChunk(offset, outputFirst + keptFirst - first);
+            chunks.add(new Chunk(to, to.getChunkCount() - 1));
+        }
+    }
+
+    private static void checkCompatible(List<Mp4Index.Track> tracks, Mp4Index index, File source) throws IOException {
+        boolean compatible = tracks.size() == index.getTracks().size();
+        for (int t = 0; compatible && t < tracks.size(); t++) {
+            compatible = tracks.get(t).isCompatible(index.getTracks().get(t));
+        }
+        if (!compatible) {
+            throw new IOException(source + " has other tracks or codec settings than " + tracks);
+        }
+    }
+
+    /** The first sample decoding at or after {@code time}, or the sample count if none does. */
+    private static int firstAtOrAfter(Mp4Index.Track track, long time) {
+        int low = 0;
+        int high = track.getSampleCount();
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (track.getSampleTime(middle) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static long rescale(long time, int fromTimescale, int toTimescale) {
+        return fromTimescale == toTimescale ? time : time * toTimescale / fromTimescale;
+    }
+
+    private static final class Part {
+        final File source;
+        final long startUs;
+        final long endUs;
+        // start at the key frame at or after startUs rather than at or before it
+        final boolean startAfter;
+
+        Part(File source, long startUs, long endUs) {
+            this(source, startUs, endUs, false);
+        }
+
+        Part(File source, long startUs, long endUs, boolean startAfter) {
+            this.source = source;
+            this.startUs = startUs;
+            this.endUs = endUs;
+            this.startAfter = startAfter;
+        }
+    }
+
+    private static final class Chunk {
+        final Mp4Index.Track track;
+        final int index;
+
+        Chunk(Mp4Index.Track track, int index) {
+            this.track = track;
+            this.index = index;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * MPEG transport stream packetizer for live viewers: H.264 as Annex-B access units and AAC
+ * as ADTS frames, one PES per sample, a PAT and PMT ahead of every video key frame. All TS
+ * packets of a sample leave in a single write to the stream.
+ * <p>
+ * The PCR is carried by the audio track when there is one, because its frames keep coming
+ * at a steady rate even when variable frame rate capture slows the video down.
+ */
+public class MpegTsMuxer implements SampleMuxer {
+
+    static final int PACKET_SIZE = 188;
+    static final int SYNC_BYTE = 0x47;
+    static final int PAT_PID = 0;
+    static final int PMT_PID = 0x1000;
+    static final int FIRST_ELEMENTARY_PID = 0x100;
+    static final int STREAM_TYPE_H264 = 0x1b;
+    static final int STREAM_TYPE_AAC_ADTS = 0x0f;
+    /** Presentation times run this far, 700 ms in 90 kHz ticks, ahead of the clock reference. */
+    static final long PTS_DELAY = 63000;
+
+    private static final long TABLE_INTERVAL_US = 500000;
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350
+    };
+    private static final byte[] ACCESS_UNIT_DELIMITER = {0, 0, 0, 1, 0x09, (byte) 0xf0};
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80000000) != 0 ? crc << 1 ^ 0x04c11db7 : crc << 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final OutputStream out;
+    private final List<Track> tracks = new ArrayList<>();
+    private Track pcrTrack;
+    private byte[] pes = new byte[64 * 1024];
+    private byte[] packets = new byte[PACKET_SIZE * 64];
+    private int packetBytes;
+    private int patContinuity;
+    private int pmtContinuity;
+    private boolean started;
+    private long firstPtsUs = -1;
+    private long lastTablesUs = -1;
+
+    public MpegTsMuxer(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (started) {
+            throw new IllegalStateException("addTrack after start");
+        }
+        if (!TrackFormat.MIME_AVC.equals(format.mime) && !TrackFormat.MIME_AAC.equals(format.mime)) {
+            throw new IllegalArgumentException("unsupported format " + format.mime);
+        }
+        tracks.add(new Track(FIRST_ELEMENTARY_PID + tracks.size(), format));
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        if (tracks.isEmpty()) {
+            throw new IllegalStateException("no tracks");
+        }
+        for (Track track : tracks) {
+            if (pcrTrack == null || pcrTrack.format.isVideo() && !track.format.isVideo()) {
+                pcrTrack = track;
+            }
+        }
+        started = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        if (!started) {
+            throw new IllegalStateException("muxer not started");
+        }
+        final Track track = tracks.get(trackIndex);
+        final long ptsUs = info.presentationTimeUs;
+        if (firstPtsUs < 0) {
+            firstPtsUs = ptsUs;
+        }
+        final boolean keyFrame = track.format.isVideo() && info.isKeyFrame();
+        packetBytes = 0;
+        if (keyFrame || lastTablesUs < 0 || ptsUs - lastTablesUs >= TABLE_INTERVAL_US) {
+            writeTables();
+            lastTablesUs = ptsUs;
+        }
+        final long clock = Math.max(0, (ptsUs - firstPtsUs) * 9 / 100);
+        final int pesSize = buildPes(track, data, info, clock + PTS_DELAY);
+        int position = 0;
+        while (position < pesSize) {
+            final boolean unitStart = position == 0;
+            final long pcr = unitStart && track == pcrTrack ? clock : -1;
+            position += writePacket(track.pid, track.continuity++, unitStart, unitStart && keyFrame, pcr,
+                    pes, position, pesSize - position);
+        }
+        out.write(packets, 0, packetBytes);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        out.flush();
+        started = false;
+    }
+
+    @Override
+    public void release() {
+        try {
+            out.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /** Writes the PES of one sample into {@link #pes} and returns its size. */
+    private int buildPes(Track track, ByteBuffer data, SampleInfo info, long pts) {
+        final boolean video = track.format.isVideo();
+        int prefixSize = 0;
+        if (video) {
+            prefixSize = ACCESS_UNIT_DELIMITER.length;
+            if (info.isKeyFrame()) {
+                prefixSize += track.parameterSets.length;
+            }
+        } else {
+            prefixSize = 7;
+        }
+        final int pesSize = 14 + prefixSize + info.size;
+        if (pes.length < pesSize) {
+            pes = new byte[Math.max(pesSize, pes.length * 2)];
+        }
+        pes[0] = 0;
+        pes[1] = 0;
+        pes[2] = 1;
+        pes[3] = (byte) (video ? 0xe0 : 0xc0);
+        // unbounded video PES, an access unit may exceed the 16 bit length
+        final int packetLength = video || pesSize - 6 > 0xffff ? 0 : pesSize - 6;
+        pes[4] = (byte) (packetLength >> 8);
+        pes[5] = (byte) packetLength;
+        pes[6] = (byte) 0x80;
+        pes[7] = (byte) 0x80; // PTS only
+        pes[8] = 5;
+        pes[9] = (byte) (0x21 | (pts >> 29 & 0x0e));
+        pes[10] = (byte) (pts >> 22);
+        pes[11] = (byte) (pts >> 14 & 0xfe | 1);
+        pes[12] = (byte) (pts >> 7);
+        pes[13] = (byte) (pts << 1 & 0xfe | 1);
+        int position = 14;
+        if (video) {
+            System.arraycopy(ACCESS_UNIT_DELIMITER, 0, pes, position, ACCESS_UNIT_DELIMITER.length);
+            position += ACCESS_UNIT_DELIMITER.length;
+            if (info.isKeyFrame()) {
+                System.arraycopy(track.parameterSets, 0, pes, position, track.parameterSets.length);
+                position += track.parameterSets.length;
+            }
+        } else {
+            track.writeAdtsHeader(pes, position, info.size);
+            position += 7;
+        }
+        final ByteBuffer src = data.duplicate();
+        src.limit(info.offset + info.size).position(info.offset);
+        src.get(pes, position, info.size);
+        return pesSize;
+    }
+
+    private void writeTables() {
+        final byte[] section = new byte[PACKET_SIZE];
+        // program association: program 1 -> PMT
+        int size = writeSectionHeader(section, 0x00, 13, 1);
+        section[size++] = 0;
+        section[size++] = 1;
+        section[size++] = (byte) (0xe0 | PMT_PID >> 8);
+        section[size++] = (byte) PMT_PID;
+        size = appendCrc(section, size);
+        writePacket(PAT_PID, patContinuity++, true, false, -1, section, 0, size);
+
+        // program map: PCR PID and one entry per track
+        size = writeSectionHeader(section, 0x02, 13 + 5 * tracks.size(), 1);
+        section[size++] = (byte) (0xe0 | pcrTrack.pid >> 8);
+        section[size++] = (byte) pcrTrack.pid;
+        section[size++] = (byte) 0xf0;
+        section[size++] = 0;
+        for (Track track : tracks) {
+            section[size++] = (byte) (track.format.isVideo() ? STREAM_TYPE_H264 : STREAM_TYPE_AAC_ADTS);
+            section[size++] = (byte) (0xe0 | track.pid >> 8);
+            section[size++] = (byte) track.pid;
+            section[size++] = (byte) 0xf0;
+            section[size++] = 0;
+        }
+        size = appendCrc(section, size);
+        writePacket(PMT_PID, pmtContinuity++, true, false, -1, section, 0, size);
+    }
+
+    /** Pointer field and the common section header, returns the offset of the table data. */
+    private static int writeSectionHeader(byte[] section, int tableId, int sectionLength, int tableIdExtension) {
+        section[0] = 0; // pointer field
+        section[1] = (byte) tableId;
+        section[2] = (byte) (0xb0 | sectionLength >> 8);
+        section[3] = (byte) sectionLength;
+        section[4] = (byte) (tableIdExtension >> 8);
+        section[5] = (byte) tableIdExtension;
+        section[6] = (byte) 0xc1; // version 0, current
+        section[7] = 0;
+        section[8] = 0;
+        return 9;
+    }
+
+    /** Appends the CRC over the section that starts after the pointer field. */
+    private static int appendCrc(byte[] section, int size) {
+        final int crc = crc32(section, 1, size - 1);
+        section[size++] = (byte) (crc >> 24);
+        section[size++] = (byte) (crc >> 16);
+        section[size++] = (byte) (crc >> 8);
+        section[size++] = (byte) crc;
+        return size;
+    }
+
+    static int crc32(byte[] data, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc = crc << 8 ^ CRC_TABLE[(crc >>> 24 ^ data[i]) & 0xff];
+        }
+        return crc;
+    }
+
+    /**
+     * Appends one TS packet carrying as much of {@code src} as fits. PSI payloads are padded
+     * with 0xff, PES payloads with adaptation field stuffing. Returns the payload bytes taken.
+     */
+    private int writePacket(int pid, int continuity, boolean unitStart, boolean randomAccess, long pcr,
+                            byte[] src, int position, int length) {
+        if (packets.length < packetBytes + PACKET_SIZE) {
+            packets = Arrays.copyOf(packets, packets.length * 2);
+        }
+        final byte[] p = packets;
+        final int start = packetBytes;
+        final boolean psi = pid == PAT_PID || pid == PMT_PID;
+        final int minAdaptation = pcr >= 0 ? 8 : randomAccess ? 2 : 0;
+        final int payload = Math.min(length, PACKET_SIZE - 4 - minAdaptation);
+        final int adaptation = psi ? 0 : PACKET_SIZE - 4 - payload;
+        p[start] = SYNC_BYTE;
+        p[start + 1] = (byte) ((unitStart ? 0x40 : 0) | pid >> 8 & 0x1f);
+        p[start + 2] = (byte) pid;
+        p[start + 3] = (byte) ((adaptation > 0 ? 0x30 : 0x10) | continuity & 0x0f);
+        int i = start + 4;
+        if (adaptation > 0) {
+            p[i++] = (byte) (adaptation - 1);
+            if (adaptation > 1) {
+                p[i++] = (byte) ((randomAccess ? 0x40 : 0) | (pcr >= 0 ? 0x10 : 0));
+                if (pcr >= 0) {
+                    p[i++] = (byte) (pcr >> 25);
+                    p[i++] = (byte) (pcr >> 17);
+                    p[i++] = (byte) (pcr >> 9);
+                    p[i++] = (byte) (pcr >> 1);
+                    p[i++] = (byte) (pcr << 7 | 0x7e);
+                    p[i++] = 0;
+                }
+                while (i < start + 4 + adaptation) {
+                    p[i++] = (byte) 0xff;
+                }
+            }
+        }
+        System.arraycopy(src, position, p, i, payload);
+        i += payload;
+        while (i < start + PACKET_SIZE) {
+            p[i++] = (byte) 0xff;
+        }
+        packetBytes += PACKET_SIZE;
+        return payload;
+    }
+
+    private static final class Track {
+        final int pid;
+        final TrackFormat format;
+        /** Annex-B SPS and PPS repeated ahead of every key frame. */
+        final byte[] parameterSets;
+        final int adtsProfile;
+        final int adtsRateIndex;
+        final int adtsChannels;
+        int continuity;
+
+        Track(int pid, TrackFormat format) {
+            this.pid = pid;
+            this.format = format;
+            if (format.isVideo()) {
+                int size = 0;
+                for (int i = 0; i < format.getCsdCount(); i++) {
+                    size += format.getCsd(i).remaining();
+                }
+                parameterSets = new byte[size];
+                for (int i = 0, position = 0; i < format.getCsdCount(); i++) {
+                    final ByteBuffer csd = format.getCsd(i);
+                    final int length = csd.remaining();
+                    csd.get(parameterSets, position, length);
+                    position += length;
+                }
+                adtsProfile = adtsRateIndex = adtsChannels = 0;
+            } else {
+                parameterSets = null;
+                if (format.getCsdCount() > 0 && format.getCsd(0).remaining() >= 2) {
+                    // AudioSpecificConfig: 5 bit object type, 4 bit rate index, 4 bit channels
+                    final ByteBuffer config = format.getCsd(0);
+                    final int bits = (config.get(0) & 0xff) << 8 | config.get(1) & 0xff;
+                    adtsProfile = (bits >> 11) - 1;
+                    adtsRateIndex = bits >> 7 & 0x0f;
+                    adtsChannels = bits >> 3 & 0x0f;
+                } else {
+                    adtsProfile = 1; // AAC LC
+                    adtsRateIndex = rateIndexOf(format.sampleRate);
+                    adtsChannels = format.channelCount;
+                }
+            }
+        }
+
+        void writeAdtsHeader(byte[] dst, int offset, int payloadSize) {
+            final int frameLength = payloadSize + 7;
+            dst[offset] = (byte) 0xff;
+            dst[offset + 1] = (byte) 0xf1; // MPEG-4, no CRC
+            dst[offset + 2] = (byte) (adtsProfile << 6 | adtsRateIndex << 2 | adtsChannels >> 2);
+            dst[offset + 3] = (byte) ((adtsChannels & 3) << 6 | frameLength >> 11);
+            dst[offset + 4] = (byte) (frameLength >> 3);
+            dst[offset + 5] = (byte) ((frameLength & 7) << 5 | 0x1f);
+            dst[offset + 6] = (byte) 0xfc;
+        }
+
+        private static int rateIndexOf(int sampleRate) {
+            for (int i = 0; i < AAC_SAMPLE_RATES.length; i++) {
+                if (AAC_SAMPLE_RATES[i] == sampleRate) {
+                    return i;
+                }
+            }
+            throw new IllegalArgumentException("unsupported sample rate " + sampleRate);
+        }
+    }
+}
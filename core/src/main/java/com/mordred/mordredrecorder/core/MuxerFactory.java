@@ -0,0 +1,11 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+
+/**
+ * Creates a muxer writing to the given file, used wherever a recording opens more than one output.
+ */
+public interface MuxerFactory {
+
+    SampleMuxer create(String outputFilePath) throws IOException;
+}
@@ -0,0 +1,344 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single consumer of all encoder drains. Each track has its own {@link SampleRingQueue};
+ * the writer starts the muxer once every track has announced its format and then writes
+ * samples interleaved by presentation time. Written and dropped samples are recycled.
+ * <p>
+ * When one track has nothing queued the writer holds the other tracks back for at most
+ * {@code maxInterleaveWaitUs}, so that a stalled encoder cannot block the recording. Once that
+ * wait has expired the other tracks are written as they come until the stalled track delivers
+ * again. A track marked {@link #setTrackIdle idle}, such as a suspended encoder's, is not
+ * waited for at all.
+ */
+public class MuxerWriter implements Runnable {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final long DEFAULT_MAX_INTERLEAVE_WAIT_US = 200000;
+
+    private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long FULL_PARK_NS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final SampleMuxer muxer;
+    private final int trackCount;
+    private final SampleRingQueue<EncodedSample>[] queues;
+    private final TrackFormat[] formats;
+    private final int[] muxerTrackIndex;
+    private final long[] lastPtsUs;
+    private final boolean[] ended;
+    private final AtomicIntegerArray idle;
+    private final long maxInterleaveWaitNs;
+
+    private volatile Thread writerThread;
+    private volatile boolean terminated;
+    private volatile Exception error;
+    private volatile long writtenSamples;
+    private volatile long droppedSamples;
+    private volatile long writtenBytes;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile long queueLatencyNs;
+    private volatile long backlogLatencyNs;
+
+    private LatencyHistogram[] muxLatencyNs;
+    private LatencyHistogram[] writeTimeNs;
+    private Counter[] trackSamples;
+    private Counter[] trackBytes;
+    private Counter[] lateSamples;
+    private LatencyHistogram[] firstSampleNs;
+    private long startNs = -1;
+    private boolean[] wroteSample;
+
+    private boolean started;
+    private int openTracks;
+    private long stallSinceNs = -1;
+    private boolean holding;
+    private long releasedAtNs;
+
+    public MuxerWriter(SampleMuxer muxer, int trackCount) {
+        this(muxer, trackCount, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_INTERLEAVE_WAIT_US);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MuxerWriter(SampleMuxer muxer, int trackCount, int queueCapacity, long maxInterleaveWaitUs) {
+        this.muxer = muxer;
+        this.trackCount = trackCount;
+        this.queues = new SampleRingQueue[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            queues[i] = new SampleRingQueue<>(queueCapacity);
+        }
+        this.formats = new TrackFormat[trackCount];
+        this.muxerTrackIndex = new int[trackCount];
+        this.lastPtsUs = new long[trackCount];
+        this.ended = new boolean[trackCount];
+        this.idle = new AtomicIntegerArray(trackCount);
+        this.maxInterleaveWaitNs = TimeUnit.MICROSECONDS.toNanos(maxInterleaveWaitUs);
+        this.openTracks = trackCount;
+        for (int i = 0; i < trackCount; i++) {
+            lastPtsUs[i] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Called by the drain of {@code sample.track}. Blocks while the track queue is full.
+     * Returns false if the writer has terminated and the sample was discarded.
+     */
+    public boolean put(EncodedSample sample) {
+        final SampleRingQueue<EncodedSample> queue = queues[sample.track];
+        sample.queuedAtNs = System.nanoTime();
+        while (!queue.offer(sample)) {
+            if (terminated) {
+                return false;
+            }
+            wakeUp();
+            LockSupport.parkNanos(this, FULL_PARK_NS);
+        }
+        queuedBytes.addAndGet(sample.info.size);
+        wakeUp();
+        return true;
+    }
+
+    /**
+     * Marks {@code track} as idle while its encoder is not expected to produce anything, e.g.
+     * while it is suspended, so that the other tracks are not held back waiting for it. Samples
+     * it still queues are written as usual.
+     */
+    public void setTrackIdle(int track, boolean idle) {
+        this.idle.set(track, idle ? 1 : 0);
+        wakeUp();
+    }
+
+    /**
+     * Records per track, under the track's name: {@code mux_latency_ns} from the drain handing
+     * a sample over to the muxer accepting it, {@code write_ns} spent in the muxer,
+     * {@code samples}, {@code bytes} and {@code late_samples} dropped for going back in time,
+     * and with {@link #setStartTimeNs} {@code time_to_first_sample_ns}.
+     * Must be called before the writer runs.
+     */
+    public void setMetrics(MetricsRegistry metrics, String... trackNames) {
+        if (trackNames.length != trackCount) {
+            throw new IllegalArgumentException(trackNames.length + " names for " + trackCount + " tracks");
+        }
+        muxLatencyNs = new LatencyHistogram[trackCount];
+        writeTimeNs = new LatencyHistogram[trackCount];
+        trackSamples = new Counter[trackCount];
+        trackBytes = new Counter[trackCount];
+        lateSamples = new Counter[trackCount];
+        firstSampleNs = new LatencyHistogram[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            muxLatencyNs[i] = metrics.histogram(trackNames[i] + ".mux_latency_ns");
+            writeTimeNs[i] = metrics.histogram(trackNames[i] + ".write_ns");
+            trackSamples[i] = metrics.counter(trackNames[i] + ".samples");
+            trackBytes[i] = metrics.counter(trackNames[i] + ".bytes");
+            lateSamples[i] = metrics.counter(trackNames[i] + ".late_samples");
+            firstSampleNs[i] = metrics.histogram(trackNames[i] + ".time_to_first_sample_ns");
+        }
+    }
+
+    /**
+     * Time the recording was asked for, in {@link System#nanoTime()}, from which each track's
+     * {@code time_to_first_sample_ns} is measured. Must be called before the writer runs.
+     */
+    public void setStartTimeNs(long startNs) {
+        this.startNs = startNs;
+        this.wroteSample = new boolean[trackCount];
+    }
+
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    public long getWrittenSamples() {
+        return writtenSamples;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    /** Bytes the drains handed over, all tracks, whether written yet or not. */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /** Total time written samples spent between their drain and the muxer. */
+    public long getQueueLatencyNs() {
+        return queueLatencyNs;
+    }
+
+    /**
+     * Total time written samples waited while the writer could have written them: the part of
+     * {@link #getQueueLatencyNs()} not spent held back for a stalled track.
+     */
+    public long getBacklogLatencyNs() {
+        return backlogLatencyNs;
+    }
+
+    public int getQueueDepth(int track) {
+        return queues[track].size();
+    }
+
+    public int getQueueCapacity() {
+        return queues[0].capacity();
+    }
+
+    private void wakeUp() {
+        final Thread thread = writerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    @Override
+    public void run() {
+        writerThread = Thread.currentThread();
+        try {
+            while (openTracks > 0) {
+                if (!step()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NS);
+                }
+            }
+            if (started) {
+                muxer.stop();
+            }
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            terminated = true;
+        }
+    }
+
+    /** Performs one unit of work. Returns false when there was nothing to do. */
+    boolean step() throws IOException {
+        int next = -1;
+        long nextPtsUs = Long.MAX_VALUE;
+        boolean starving = false;
+        for (int track = 0; track < trackCount; track++) {
+            if (ended[track]) {
+                continue;
+            }
+            final EncodedSample head = queues[track].peek();
+            if (head == null) {
+                starving |= started && idle.get(track) == 0;
+                continue;
+            }
+            if (head.isEndOfTrack()) {
+                queues[track].poll();
+                ended[track] = true;
+                openTracks--;
+                startIfReady();
+                return true;
+            }
+            if (head.isFormat()) {
+                queues[track].poll();
+                onFormat(track, head.format);
+                return true;
+            }
+            if (started && head.info.presentationTimeUs < nextPtsUs) {
+                next = track;
+                nextPtsUs = head.info.presentationTimeUs;
+            }
+        }
+        if (next < 0) {
+            return false;
+        }
+        if (starving) {
+            if (!stallExpired()) {
+                holding = true;
+                return false;
+            }
+        } else {
+            stallSinceNs = -1;
+        }
+        if (holding) {
+            holding = false;
+            releasedAtNs = System.nanoTime();
+        }
+        write(queues[next].poll());
+        return true;
+    }
+
+    private boolean stallExpired() {
+        final long now = System.nanoTime();
+        if (stallSinceNs < 0) {
+            stallSinceNs = now;
+        }
+        return now - stallSinceNs >= maxInterleaveWaitNs;
+    }
+
+    private void onFormat(int track, TrackFormat format) throws IOException {
+        if (started) {
+            // MediaMuxer cannot take a second format for a running track
+            throw new IllegalStateException("format changed after muxer start on track " + track);
+        }
+        formats[track] = format;
+        startIfReady();
+    }
+
+    private void startIfReady() throws IOException {
+        if (started) {
+            return;
+        }
+        boolean anyFormat = false;
+        for (int track = 0; track < trackCount; track++) {
+            if (formats[track] == null && !ended[track]) {
+                return;
+            }
+            anyFormat |= formats[track] != null;
+        }
+        if (!anyFormat) {
+            return;
+        }
+        for (int track = 0; track < trackCount; track++) {
+            muxerTrackIndex[track] = formats[track] != null ? muxer.addTrack(formats[track]) : -1;
+        }
+        muxer.start();
+        started = true;
+    }
+
+    private void write(EncodedSample sample) throws IOException {
+        final int track = sample.track;
+        try {
+            if (sample.info.presentationTimeUs <= lastPtsUs[track]) {
+                droppedSamples++;
+                if (lateSamples != null) {
+                    lateSamples[track].increment();
+                }
+                return;
+            }
+            lastPtsUs[track] = sample.info.presentationTimeUs;
+            final long writeStartNs = System.nanoTime();
+            muxer.writeSampleData(muxerTrackIndex[track], sample.data, sample.info);
+            final long writeEndNs = System.nanoTime();
+            writtenSamples++;
+            writtenBytes += sample.info.size;
+            queueLatencyNs += writeStartNs - sample.queuedAtNs;
+            backlogLatencyNs += writeStartNs - Math.max(sample.queuedAtNs, releasedAtNs);
+            if (muxLatencyNs != null) {
+                muxLatencyNs[track].record(writeStartNs - sample.queuedAtNs);
+                writeTimeNs[track].record(writeEndNs - writeStartNs);
+                trackSamples[track].increment();
+                trackBytes[track].add(sample.info.size);
+                if (wroteSample != null && !wroteSample[track]) {
+                    wroteSample[track] = true;
+                    firstSampleNs[track].record(writeEndNs - startNs);
+                }
+            }
+        } finally {
+            sample.recycle();
+        }
+    }
+}
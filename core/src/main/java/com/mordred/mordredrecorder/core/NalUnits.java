@@ -0,0 +1,101 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers for H.264/H.265 elementary streams. Encoders emit Annex-B byte streams
+ * (NAL units separated by start codes) while MP4 stores each NAL unit prefixed
+ * with its 4-byte length.
+ */
+public final class NalUnits {
+
+    private NalUnits() {
+    }
+
+    /** Returns true if the readable bytes of {@code data} start with a 3 or 4 byte start code. */
+    public static boolean isAnnexB(ByteBuffer data) {
+        final int p = data.position();
+        if (data.remaining() >= 4 && data.get(p) == 0 && data.get(p + 1) == 0) {
+            return data.get(p + 2) == 1 || (data.get(p + 2) == 0 && data.get(p + 3) == 1);
+        }
+        return data.remaining() >= 3 && data.get(p) == 0 && data.get(p + 1) == 0 && data.get(p + 2) == 1;
+    }
+
+    /** Splits an Annex-B buffer into NAL unit payloads without start codes. */
+    public static List<ByteBuffer> split(ByteBuffer data) {
+        final List<ByteBuffer> units = new ArrayList<>();
+        final int end = data.limit();
+        int start = nextUnit(data, data.position(), end);
+        while (start >= 0 && start < end) {
+            final int next = findStartCode(data, start, end);
+            final int unitEnd = next < 0 ? end : trimTrailingZero(data, start, next);
+            final ByteBuffer unit = data.duplicate();
+            unit.limit(unitEnd).position(start);
+            units.add(unit.slice());
+            start = next < 0 ? -1 : nextUnit(data, next, end);
+        }
+        return units;
+    }
+
+    /**
+     * Copies {@code src} into {@code dst} converting Annex-B start codes into 4-byte lengths.
+     * Data that is not Annex-B is copied unchanged. Returns the number of bytes written;
+     * {@code dst} needs room for {@link #maxConvertedSize} bytes.
+     */
+    public static int writeLengthPrefixed(ByteBuffer src, ByteBuffer dst) {
+        final int written = dst.position();
+        if (!isAnnexB(src)) {
+            dst.put(src.duplicate());
+            return dst.position() - written;
+        }
+        final int end = src.limit();
+        int start = nextUnit(src, src.position(), end);
+        while (start >= 0 && start < end) {
+            final int next = findStartCode(src, start, end);
+            final int unitEnd = next < 0 ? end : trimTrailingZero(src, start, next);
+            dst.putInt(unitEnd - start);
+            for (int i = start; i < unitEnd; i++) {
+                dst.put(src.get(i));
+            }
+            start = next < 0 ? -1 : nextUnit(src, next, end);
+        }
+        return dst.position() - written;
+    }
+
+    /** Upper bound of the converted size: every 3-byte start code may grow by one byte. */
+    public static int maxConvertedSize(int annexBSize) {
+        return annexBSize + annexBSize / 3 + 4;
+    }
+
+    public static int avcType(ByteBuffer unit) {
+        return unit.get(unit.position()) & 0x1f;
+    }
+
+    // index of the first payload byte after the start code at or behind 'from'
+    private static int nextUnit(ByteBuffer data, int from, int end) {
+        final int code = findStartCode(data, from, end);
+        return code < 0 ? -1 : code + 3;
+    }
+
+    // index of the first byte of the next 00 00 01 sequence
+    private static int findStartCode(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data.get(i + 2) > 1) {
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // a 4-byte start code (and any trailing_zero_8bits) leaves zeros at the end of the previous unit
+    private static int trimTrailingZero(ByteBuffer data, int start, int next) {
+        while (next > start && data.get(next - 1) == 0) {
+            next--;
+        }
+        return next;
+    }
+}
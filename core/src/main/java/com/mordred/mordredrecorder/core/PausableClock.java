@@ -0,0 +1,96 @@
+package com.mordred.mordredrecorder.core;
+
+import java.util.Arrays;
+
+/**
+ * Removes paused periods from a timeline.
+ * <p>
+ * {@link #pause} and {@link #resume} record intervals on the capture timeline; {@link #rebase}
+ * maps a capture timestamp to the output timeline by subtracting every pause that ended before
+ * it, or returns {@link #DROPPED} if it was captured while paused. Encoded samples reach the
+ * muxer later than they were captured, so all intervals are kept and a sample is rebased by
+ * its own timestamp, not by the time it arrives.
+ */
+public class PausableClock {
+
+    public static final long DROPPED = -1;
+
+    private long[] pauseStartUs = new long[16];
+    private long[] pauseEndUs = new long[16];
+    // total paused time up to and including interval i
+    private long[] pausedUntilUs = new long[16];
+    private int intervals;
+    private boolean paused;
+
+    /** Starts a pause at capture time {@code nowUs}. Returns false if already paused. */
+    public synchronized boolean pause(long nowUs) {
+        if (paused) {
+            return false;
+        }
+        if (intervals > 0 && nowUs < pauseEndUs[intervals - 1]) {
+            throw new IllegalArgumentException("pause at " + nowUs + " before the last resume");
+        }
+        if (intervals == pauseStartUs.length) {
+            pauseStartUs = Arrays.copyOf(pauseStartUs, intervals * 2);
+            pauseEndUs = Arrays.copyOf(pauseEndUs, intervals * 2);
+            pausedUntilUs = Arrays.copyOf(pausedUntilUs, intervals * 2);
+        }
+        pauseStartUs[intervals] = nowUs;
+        pauseEndUs[intervals] = Long.MAX_VALUE;
+        intervals++;
+        paused = true;
+        return true;
+    }
+
+    /** Ends the current pause at capture time {@code nowUs}. Returns false if not paused. */
+    public synchronized boolean resume(long nowUs) {
+        if (!paused) {
+            return false;
+        }
+        final int last = intervals - 1;
+        pauseEndUs[last] = Math.max(nowUs, pauseStartUs[last]);
+        pausedUntilUs[last] = (last > 0 ? pausedUntilUs[last - 1] : 0) + pauseEndUs[last] - pauseStartUs[last];
+        paused = false;
+        return true;
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    /** Total time spent in completed pauses. */
+    public synchronized long getPausedDurationUs() {
+        final int completed = paused ? intervals - 1 : intervals;
+        return completed > 0 ? pausedUntilUs[completed - 1] : 0;
+    }
+
+    public synchronized int getPauseCount() {
+        return intervals;
+    }
+
+    /**
+     * Returns {@code ptsUs} on the output timeline, or {@link #DROPPED} if it falls into a pause.
+     * A pause includes its start and excludes its end.
+     */
+    public synchronized long rebase(long ptsUs) {
+        // number of pauses that started at or before ptsUs
+        int low = 0;
+        int high = intervals;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (pauseStartUs[mid] <= ptsUs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == 0) {
+            return ptsUs;
+        }
+        final int index = low - 1;
+        if (ptsUs < pauseEndUs[index]) {
+            return DROPPED;
+        }
+        return ptsUs - pausedUntilUs[index];
+    }
+}
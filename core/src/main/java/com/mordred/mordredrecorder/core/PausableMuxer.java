@@ -0,0 +1,75 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Drops samples captured while a {@link PausableClock} was paused and closes the gaps in the
+ * timestamps of everything else before passing it on. Once a video frame has been dropped the
+ * track resumes with the next key frame, so the output never references a missing frame.
+ */
+public class PausableMuxer implements SampleMuxer {
+
+    private final SampleMuxer muxer;
+    private final PausableClock clock;
+    private final SampleInfo rebasedInfo = new SampleInfo();
+    private boolean[] video = new boolean[0];
+    private boolean[] awaitingKeyFrame = new boolean[0];
+    private long droppedSamples;
+
+    public PausableMuxer(SampleMuxer muxer, PausableClock clock) {
+        this.muxer = muxer;
+        this.clock = clock;
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        final int index = muxer.addTrack(format);
+        if (index >= video.length) {
+            video = Arrays.copyOf(video, index + 1);
+            awaitingKeyFrame = Arrays.copyOf(awaitingKeyFrame, index + 1);
+        }
+        video[index] = format.isVideo();
+        return index;
+    }
+
+    @Override
+    public void start() throws IOException {
+        muxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        final long ptsUs = clock.rebase(info.presentationTimeUs);
+        if (ptsUs == PausableClock.DROPPED) {
+            awaitingKeyFrame[trackIndex] = video[trackIndex];
+            droppedSamples++;
+            return;
+        }
+        if (awaitingKeyFrame[trackIndex]) {
+            if (!info.isKeyFrame()) {
+                droppedSamples++;
+                return;
+            }
+            awaitingKeyFrame[trackIndex] = false;
+        }
+        rebasedInfo.copyFrom(info);
+        rebasedInfo.presentationTimeUs = ptsUs;
+        muxer.writeSampleData(trackIndex, data, rebasedInfo);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        muxer.stop();
+    }
+
+    @Override
+    public void release() {
+        muxer.release();
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+}
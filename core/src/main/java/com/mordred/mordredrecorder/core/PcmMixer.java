@@ -0,0 +1,83 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Mixes two interleaved 16 bit PCM streams with per-source gain and a soft limiter.
+ * <p>
+ * Samples below the limiter threshold pass through unchanged; above it they are compressed
+ * smoothly towards full scale instead of clipping. The loops work on plain arrays with no
+ * allocation so that they can be unrolled and vectorized.
+ */
+public class PcmMixer {
+
+    public static final float DEFAULT_LIMITER_THRESHOLD = 0.8f;
+
+    private static final float FULL_SCALE = 32767f;
+
+    private volatile float gainA;
+    private volatile float gainB;
+    private final float threshold;
+    private final float headroom;
+
+    public PcmMixer(float gainA, float gainB) {
+        this(gainA, gainB, DEFAULT_LIMITER_THRESHOLD);
+    }
+
+    /**
+     * @param limiterThreshold fraction of full scale above which the limiter starts compressing
+     */
+    public PcmMixer(float gainA, float gainB, float limiterThreshold) {
+        if (!(limiterThreshold > 0 && limiterThreshold < 1)) {
+            throw new IllegalArgumentException("limiter threshold " + limiterThreshold);
+        }
+        setGains(gainA, gainB);
+        this.threshold = limiterThreshold * FULL_SCALE;
+        this.headroom = FULL_SCALE - threshold;
+    }
+
+    public void setGains(float gainA, float gainB) {
+        if (gainA < 0 || gainB < 0) {
+            throw new IllegalArgumentException("negative gain");
+        }
+        this.gainA = gainA;
+        this.gainB = gainB;
+    }
+
+    public float getGainA() {
+        return gainA;
+    }
+
+    public float getGainB() {
+        return gainB;
+    }
+
+    /** Writes {@code gainA * a + gainB * b}, limited, for {@code count} samples into {@code out}. */
+    public void mix(short[] a, int aOffset, short[] b, int bOffset, short[] out, int outOffset, int count) {
+        final float ga = gainA;
+        final float gb = gainB;
+        for (int i = 0; i < count; i++) {
+            out[outOffset + i] = limit(a[aOffset + i] * ga + b[bOffset + i] * gb);
+        }
+    }
+
+    /** Applies {@code gainA} and the limiter to a single stream. */
+    public void mix(short[] a, int aOffset, short[] out, int outOffset, int count) {
+        final float ga = gainA;
+        for (int i = 0; i < count; i++) {
+            out[outOffset + i] = limit(a[aOffset + i] * ga);
+        }
+    }
+
+    /**
+     * Identity up to the threshold, then {@code threshold + headroom * e / (headroom + e)} for
+     * the excess {@code e}, which is continuous with slope 1 and never reaches full scale.
+     */
+    short limit(float sample) {
+        final float magnitude = Math.abs(sample);
+        if (magnitude <= threshold) {
+            return (short) sample;
+        }
+        final float excess = magnitude - threshold;
+        final float limited = threshold + headroom * excess / (headroom + excess);
+        return (short) (sample < 0 ? -limited : limited);
+    }
+}
@@ -0,0 +1,36 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * What the recording pipeline looked like over the last control interval.
+ */
+public final class PipelineLoad {
+
+    /** Video samples waiting in the muxer writer queue at the end of the interval. */
+    public final int queueDepth;
+    public final int queueCapacity;
+    /** Mean time a sample waited between its drain and the muxer while the writer was behind. */
+    public final long drainLatencyUs;
+    /** Bytes the muxer wrote per second over the interval, all tracks. */
+    public final long writeThroughputBytesPerSec;
+    /** Bytes the encoders handed to the writer per second over the interval, all tracks. */
+    public final long inputBytesPerSec;
+
+    public PipelineLoad(int queueDepth, int queueCapacity, long drainLatencyUs, long writeThroughputBytesPerSec,
+                        long inputBytesPerSec) {
+        this.queueDepth = queueDepth;
+        this.queueCapacity = queueCapacity;
+        this.drainLatencyUs = drainLatencyUs;
+        this.writeThroughputBytesPerSec = writeThroughputBytesPerSec;
+        this.inputBytesPerSec = inputBytesPerSec;
+    }
+
+    public float queueFill() {
+        return queueCapacity > 0 ? (float) queueDepth / queueCapacity : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineLoad[queue=" + queueDepth + "/" + queueCapacity + ", latency=" + drainLatencyUs
+                + "us, throughput=" + writeThroughputBytesPerSec + "/" + inputBytesPerSec + "B/s]";
+    }
+}
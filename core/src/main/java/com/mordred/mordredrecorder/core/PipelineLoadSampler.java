@@ -0,0 +1,47 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Turns the cumulative counters of a {@link MuxerWriter} into one {@link PipelineLoad}
+ * per control interval.
+ */
+public class PipelineLoadSampler {
+
+    private final MuxerWriter writer;
+    private final int track;
+
+    private long lastSampleNs = -1;
+    private long lastSamples;
+    private long lastBytes;
+    private long lastQueuedBytes;
+    private long lastLatencyNs;
+
+    /** @param track queue whose depth is reported, normally the video track */
+    public PipelineLoadSampler(MuxerWriter writer, int track) {
+        this.writer = writer;
+        this.track = track;
+    }
+
+    /** Returns the load since the previous call, or null on the first call. */
+    public PipelineLoad sample(long nowNs) {
+        final long samples = writer.getWrittenSamples();
+        final long bytes = writer.getWrittenBytes();
+        final long queuedBytes = writer.getQueuedBytes();
+        // time held back for a stalled track, e.g. on pause or a still screen, is not congestion
+        final long latencyNs = writer.getBacklogLatencyNs();
+        PipelineLoad load = null;
+        if (lastSampleNs >= 0 && nowNs > lastSampleNs) {
+            final long intervalNs = nowNs - lastSampleNs;
+            final long count = samples - lastSamples;
+            load = new PipelineLoad(writer.getQueueDepth(track), writer.getQueueCapacity(),
+                    count > 0 ? (latencyNs - lastLatencyNs) / count / 1000 : 0,
+                    (bytes - lastBytes) * 1000000000L / intervalNs,
+                    (queuedBytes - lastQueuedBytes) * 1000000000L / intervalNs);
+        }
+        lastSampleNs = nowNs;
+        lastSamples = samples;
+        lastBytes = bytes;
+        lastQueuedBytes = queuedBytes;
+        lastLatencyNs = latencyNs;
+        return load;
+    }
+}
@@ -0,0 +1,77 @@
+package com.mordred.mordredrecorder.core;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link RecordingEngine} running each {@link EncoderDrain} on its own thread, which polls
+ * the encoder with {@link EncoderOutput#dequeueOutputBuffer}.
+ */
+public class PollingRecordingEngine implements RecordingEngine {
+
+    private final ThreadFactory threadFactory;
+    private final MuxerWriter writer;
+    private final EncoderDrain[] drains;
+    private final Thread[] drainThreads;
+    private Thread writerThread;
+
+    public PollingRecordingEngine(MuxerWriter writer, EncoderDrain... drains) {
+        this(PLAIN_THREADS, writer, drains);
+    }
+
+    /**
+     * @param threadFactory creates the writer and drain threads
+     */
+    public PollingRecordingEngine(ThreadFactory threadFactory, MuxerWriter writer, EncoderDrain... drains) {
+        this.threadFactory = threadFactory;
+        this.writer = writer;
+        this.drains = drains;
+        this.drainThreads = new Thread[drains.length];
+    }
+
+    @Override
+    public void start() {
+        writerThread = startThread(threadFactory, writer, "MuxerWriter");
+        for (int i = 0; i < drains.length; i++) {
+            drainThreads[i] = startThread(threadFactory, drains[i], "EncoderDrain-" + i);
+        }
+    }
+
+    @Override
+    public void stop(long timeoutMs) throws InterruptedException {
+        for (EncoderDrain drain : drains) {
+            drain.stop();
+        }
+        for (Thread thread : drainThreads) {
+            if (thread != null) {
+                thread.join(timeoutMs);
+            }
+        }
+        if (writerThread != null) {
+            writerThread.join(timeoutMs);
+        }
+    }
+
+    @Override
+    public Exception getError() {
+        for (EncoderDrain drain : drains) {
+            if (drain.getError() != null) {
+                return drain.getError();
+            }
+        }
+        return writer.getError();
+    }
+
+    static final ThreadFactory PLAIN_THREADS = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread(runnable);
+        }
+    };
+
+    static Thread startThread(ThreadFactory threadFactory, Runnable runnable, String name) {
+        final Thread thread = threadFactory.newThread(runnable);
+        thread.setName(name);
+        thread.start();
+        return thread;
+    }
+}
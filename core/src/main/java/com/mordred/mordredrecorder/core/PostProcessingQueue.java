@@ -0,0 +1,269 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs {@link PostProcessor} jobs on finished recordings on a bounded pool of low priority
+ * threads. The jobs of one recording run one after another in the order the processors were
+ * given, different recordings run in parallel.
+ * <p>
+ * The jobs still to run are kept in a tab separated queue file, rewritten after every job,
+ * so jobs cut short by the process dying run again on {@link #resume()}:
+ * <pre>
+ * # file	jobs
+ * /sdcard/ScreenRecorder/Record_20220320_011645.mp4	faststart,info
+ * </pre>
+ */
+public class PostProcessingQueue {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String HEADER = "# file\tjobs\n";
+
+    /** Reports the jobs as they run, on the worker threads. */
+    public interface Listener {
+        void onProgress(File recording, String type, long done, long total);
+
+        void onFinished(File recording, String type);
+
+        void onFailed(File recording, String type, Exception error);
+    }
+
+    /** Worker threads at the lowest Java priority. */
+    public static final ThreadFactory BACKGROUND_THREADS = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "PostProcessing-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    };
+
+    private final File queueFile;
+    private final Map<String, PostProcessor> processors = new LinkedHashMap<>();
+    private final ExecutorService workers;
+    // recording -> jobs still to run, the first one possibly running
+    private final Map<File, List<String>> pending = new LinkedHashMap<>();
+    private final List<File> scheduled = new ArrayList<>();
+    private volatile Listener listener;
+    private volatile boolean shutdown;
+    private IOException error;
+
+    public PostProcessingQueue(File queueFile, int workerCount, PostProcessor... processors) {
+        this(queueFile, workerCount, BACKGROUND_THREADS, processors);
+    }
+
+    public PostProcessingQueue(File queueFile, int workerCount, ThreadFactory threadFactory,
+                               PostProcessor... processors) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("worker count " + workerCount);
+        }
+        this.queueFile = queueFile;
+        for (PostProcessor processor : processors) {
+            this.processors.put(processor.getType(), processor);
+        }
+        this.workers = Executors.newFixedThreadPool(workerCount, threadFactory);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Queues every job for {@code recording}, unless it is queued already. */
+    public synchronized void enqueue(File recording) throws IOException {
+        if (pending.containsKey(recording)) {
+            return;
+        }
+        pending.put(recording, new ArrayList<>(processors.keySet()));
+        save();
+        schedule(recording);
+    }
+
+    /** Reads the queue file and runs the jobs left in it. Unknown job types are dropped. */
+    public synchronized void resume() throws IOException {
+        final BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(queueFile), UTF_8));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\t");
+                final File recording = new File(fields[0]);
+                if (fields.length < 2 || pending.containsKey(recording)) {
+                    continue;
+                }
+                final List<String> jobs = new ArrayList<>();
+                for (String type : fields[1].split(",")) {
+                    if (processors.containsKey(type)) {
+                        jobs.add(type);
+                    }
+                }
+                if (!jobs.isEmpty()) {
+                    pending.put(recording, jobs);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        save();
+        for (File recording : pending.keySet()) {
+            schedule(recording);
+        }
+    }
+
+    /** Recordings with jobs still to run. */
+    public synchronized List<File> getPending() {
+        return new ArrayList<>(pending.keySet());
+    }
+
+    /** Waits until no jobs are left. Returns false on timeout. */
+    public synchronized boolean awaitIdle(long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!pending.isEmpty()) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the workers after their current job. Jobs not run yet stay in the queue file for
+     * {@link #resume()}. Returns false if a job was still running after {@code timeoutMs}.
+     */
+    public boolean shutdown(long timeoutMs) throws InterruptedException {
+        shutdown = true;
+        workers.shutdown();
+        return workers.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** The last error writing the queue file, or null. */
+    public synchronized IOException getError() {
+        return error;
+    }
+
+    private void schedule(final File recording) {
+        if (scheduled.contains(recording) || shutdown) {
+            return;
+        }
+        scheduled.add(recording);
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                process(recording);
+            }
+        });
+    }
+
+    private void process(final File recording) {
+        while (!shutdown) {
+            final String type;
+            synchronized (this) {
+                final List<String> jobs = pending.get(recording);
+                if (jobs == null || jobs.isEmpty()) {
+                    finish(recording);
+                    return;
+                }
+                type = jobs.get(0);
+            }
+            final Listener reporter = listener;
+            try {
+                if (!recording.isFile()) {
+                    throw new FileNotFoundException(recording.getPath());
+                }
+                processors.get(type).process(recording, new PostProcessor.Progress() {
+                    @Override
+                    public void update(long done, long total) {
+                        if (reporter != null) {
+                            reporter.onProgress(recording, type, done, total);
+                        }
+                    }
+                });
+                if (reporter != null) {
+                    reporter.onFinished(recording, type);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (reporter != null) {
+                    reporter.onFailed(recording, type, e);
+                }
+                if (e instanceof FileNotFoundException) {
+                    synchronized (this) {
+                        pending.get(recording).clear();
+                    }
+                }
+            }
+            synchronized (this) {
+                pending.get(recording).remove(type);
+                trySave();
+            }
+        }
+        synchronized (this) {
+            scheduled.remove(recording);
+        }
+    }
+
+    private void finish(File recording) {
+        pending.remove(recording);
+        scheduled.remove(recording);
+        trySave();
+        notifyAll();
+    }
+
+    private void trySave() {
+        try {
+            save();
+        } catch (IOException e) {
+            error = e;
+        }
+    }
+
+    private void save() throws IOException {
+        final File temp = new File(queueFile.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF_8)) {
+            writer.write(HEADER);
+            for (Map.Entry<File, List<String>> entry : pending.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    continue;
+                }
+                writer.write(entry.getKey().getPath());
+                writer.write('\t');
+                for (int i = 0; i < entry.getValue().size(); i++) {
+                    writer.write(i == 0 ? entry.getValue().get(i) : "," + entry.getValue().get(i));
+                }
+                writer.write('\n');
+            }
+        }
+        Files.move(temp.toPath(), queueFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,21 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A job run on a finished recording by the {@link PostProcessingQueue}. Jobs may be interrupted
+ * by the process dying and are then run again from the start, so they have to be repeatable.
+ */
+public interface PostProcessor {
+
+    /** Receives the progress of a job, in units of the job's choosing. */
+    interface Progress {
+        void update(long done, long total);
+    }
+
+    /** Short name of the job, stored in the queue file. */
+    String getType();
+
+    void process(File recording, Progress progress) throws IOException;
+}
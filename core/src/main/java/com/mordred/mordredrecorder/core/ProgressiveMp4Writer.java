@@ -0,0 +1,246 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes sample tables as a progressive MP4: {@code ftyp}, {@code moov} and a single
+ * {@code mdat} holding the chunks of every track in the order they were added. The samples
+ * are copied from the files that hold them with {@link FileChannel#transferTo}, only the
+ * sample tables are written anew; chunks that follow each other in a source go in one copy.
+ */
+final class ProgressiveMp4Writer {
+
+    private static final long TRANSFER_BYTES = 8 * 1024 * 1024;
+    private static final long MAX_32BIT = 0xffffffffL;
+
+    private final List<Mp4Index.Track> tracks;
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    ProgressiveMp4Writer(List<Mp4Index.Track> tracks) {
+        this.tracks = tracks;
+    }
+
+    /** Adds chunk {@code chunk} of {@code track}, found in {@code source} at the chunk's offset. */
+    void addChunk(FileChannel source, Mp4Index.Track track, int chunk) {
+        chunks.add(new Chunk(source, track, chunk));
+    }
+
+    void write(FileChannel out, PostProcessor.Progress progress) throws IOException {
+        for (Mp4Index.Track track : tracks) {
+            if (track.hasCompositionOffsets()) {
+                throw new IOException("composition time offsets are not supported: " + track);
+            }
+        }
+        final List<Range> ranges = new ArrayList<>();
+        long payloadSize = 0;
+        for (Chunk chunk : chunks) {
+            final Range last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+            chunk.payloadOffset = payloadSize;
+            if (last != null && last.source == chunk.source && chunk.offset == last.end) {
+                last.end += chunk.bytes;
+            } else {
+                ranges.add(new Range(chunk.source, chunk.offset, chunk.offset + chunk.bytes));
+            }
+            payloadSize += chunk.bytes;
+        }
+        for (Range range : ranges) {
+            if (range.end > range.source.size()) {
+                throw new IOException("samples run past the end of the file");
+            }
+        }
+
+        final Mp4BoxWriter w = new Mp4BoxWriter(64 * 1024);
+        Mp4Boxes.writeFtyp(w, "isom", "isom", "iso2", "avc1", "mp41");
+        // chunk offsets are fixed-size fields, so the moov size does not depend on their values
+        writeMoov(w, 0, false);
+        boolean longOffsets = false;
+        final int mdatHeaderSize = payloadSize + 8 > MAX_32BIT ? 16 : 8;
+        if (w.position() + mdatHeaderSize + payloadSize > MAX_32BIT) {
+            longOffsets = true;
+            w.reset();
+            Mp4Boxes.writeFtyp(w, "isom", "isom", "iso2", "avc1", "mp41");
+            writeMoov(w, 0, true);
+        }
+        final long payloadStart = w.position() + mdatHeaderSize;
+        w.reset();
+        Mp4Boxes.writeFtyp(w, "isom", "isom", "iso2", "avc1", "mp41");
+        writeMoov(w, payloadStart, longOffsets);
+        if (mdatHeaderSize == 16) {
+            w.putInt(1).putFourCc("mdat").putLong(payloadSize + 16);
+        } else {
+            w.putInt((int) (payloadSize + 8)).putFourCc("mdat");
+        }
+        if (w.position() != payloadStart) {
+            throw new IllegalStateException("moov size changed with the chunk offsets");
+        }
+        out.position(0);
+        out.truncate(0);
+        final ByteBuffer header = w.toByteBuffer();
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+
+        long copied = 0;
+        for (Range range : ranges) {
+            long position = range.start;
+            while (position < range.end) {
+                final long transferred = range.source.transferTo(position,
+                        Math.min(TRANSFER_BYTES, range.end - position), out);
+                if (transferred <= 0) {
+                    throw new IOException("cannot copy samples at " + position);
+                }
+                position += transferred;
+                copied += transferred;
+                if (progress != null) {
+                    progress.update(copied, payloadSize);
+                }
+            }
+        }
+    }
+
+    private void writeMoov(Mp4BoxWriter w, long payloadStart, boolean longOffsets) {
+        long startUs = Long.MAX_VALUE;
+        for (Mp4Index.Track track : tracks) {
+            if (track.getSampleCount() > 0) {
+                startUs = Math.min(startUs, track.getStartUs());
+            }
+        }
+        if (startUs == Long.MAX_VALUE) {
+            startUs = 0;
+        }
+        long movieDuration = 0;
+        for (Mp4Index.Track track : tracks) {
+            movieDuration = Math.max(movieDuration, toMovie(track.getStartUs() - startUs + track.getDurationUs()));
+        }
+        w.begin("moov");
+        Mp4Boxes.writeMvhd(w, movieDuration, tracks.size() + 1);
+        int trackId = 1;
+        for (Mp4Index.Track track : tracks) {
+            final long delay = track.getSampleCount() > 0 ? toMovie(track.getStartUs() - startUs) : 0;
+            Mp4Boxes.beginTrak(w, trackId++, track.isVideo(), track.width, track.height, track.timescale,
+                    delay + toMovie(track.getDurationUs()), track.getDuration(), delay);
+            final ByteBuffer stsd = track.stsd.payload();
+            w.begin("stsd").put(stsd).end();
+            writeSampleTables(w, track, chunkOffsets(track, payloadStart), longOffsets);
+            Mp4Boxes.endTrak(w);
+        }
+        w.end();
+    }
+
+    private long[] chunkOffsets(Mp4Index.Track track, long payloadStart) {
+        final long[] offsets = new long[track.getChunkCount()];
+        for (Chunk chunk : chunks) {
+            if (chunk.track == track) {
+                offsets[chunk.index] = payloadStart + chunk.payloadOffset;
+            }
+        }
+        return offsets;
+    }
+
+    private static void writeSampleTables(Mp4BoxWriter w, Mp4Index.Track track, long[] chunkOffsets,
+                                          boolean longOffsets) {
+        final int count = track.getSampleCount();
+
+        w.beginFull("stts", 0, 0);
+        final int sttsCount = w.position();
+        w.putInt(0);
+        int entries = 0;
+        for (int i = 0; i < count; ) {
+            final int duration = track.getSampleDuration(i);
+            int run = 1;
+            while (i + run < count && track.getSampleDuration(i + run) == duration) {
+                run++;
+            }
+            w.putInt(run).putInt(duration);
+            entries++;
+            i += run;
+        }
+        w.patchInt(sttsCount, entries);
+        w.end();
+
+        if (track.getSyncSampleCount() < count) {
+            w.beginFull("stss", 0, 0).putInt(track.getSyncSampleCount());
+            for (int i = 0; i < count; i++) {
+                if (track.isSyncSample(i)) {
+                    w.putInt(i + 1);
+                }
+            }
+            w.end();
+        }
+
+        w.beginFull("stsc", 0, 0);
+        final int stscCount = w.position();
+        w.putInt(0);
+        entries = 0;
+        int lastSamplesPerChunk = -1;
+        for (int chunk = 0; chunk < track.getChunkCount(); chunk++) {
+            final int samplesPerChunk = track.getChunkSampleCount(chunk);
+            if (samplesPerChunk != lastSamplesPerChunk) {
+                w.putInt(chunk + 1).putInt(samplesPerChunk).putInt(1);
+                entries++;
+                lastSamplesPerChunk = samplesPerChunk;
+            }
+        }
+        w.patchInt(stscCount, entries);
+        w.end();
+
+        boolean fixedSize = count > 0;
+        for (int i = 1; i < count && fixedSize; i++) {
+            fixedSize = track.getSampleSize(i) == track.getSampleSize(0);
+        }
+        w.beginFull("stsz", 0, 0).putInt(fixedSize ? track.getSampleSize(0) : 0).putInt(count);
+        if (!fixedSize) {
+            for (int i = 0; i < count; i++) {
+                w.putInt(track.getSampleSize(i));
+            }
+        }
+        w.end();
+
+        w.beginFull(longOffsets ? "co64" : "stco", 0, 0).putInt(chunkOffsets.length);
+        for (long offset : chunkOffsets) {
+            if (longOffsets) {
+                w.putLong(offset);
+            } else {
+                w.putInt((int) offset);
+            }
+        }
+        w.end();
+    }
+
+    private static long toMovie(long timeUs) {
+        return Mp4Boxes.toTimescale(timeUs, Mp4Boxes.MOVIE_TIMESCALE);
+    }
+
+    private static final class Chunk {
+        final FileChannel source;
+        final Mp4Index.Track track;
+        final int index;
+        final long offset;
+        final long bytes;
+        long payloadOffset;
+
+        Chunk(FileChannel source, Mp4Index.Track track, int index) {
+            this.source = source;
+            this.track = track;
+            this.index = index;
+            this.offset = track.getChunkOffset(index);
+            this.bytes = track.getChunkBytes(index);
+        }
+    }
+
+    private static final class Range {
+        final FileChannel source;
+        final long start;
+        long end;
+
+        Range(FileChannel source, long start, long end) {
+            this.source = source;
+            this.start = start;
+            this.end = end;
+        }
+    }
+}
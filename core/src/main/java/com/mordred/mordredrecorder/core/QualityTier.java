@@ -0,0 +1,33 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Target quality of a recording: the box the captured display is scaled into, the frame
+ * rates to try in order, the smallest acceptable size and the bit budget per pixel at 30 fps.
+ */
+public enum QualityTier {
+
+    LOW(1280, 720, 360, 0.1f, 30),
+    /** The recorder's long-standing settings: fit into 1080p at 30 fps. */
+    STANDARD(1920, 1080, 480, 0.25f, 30),
+    HIGH(1920, 1080, 720, 0.25f, 60, 30),
+    MAX(3840, 2160, 720, 0.25f, 60, 30);
+
+    public final int maxLongSide;
+    public final int maxShortSide;
+    public final int minShortSide;
+    public final float bitsPerPixel;
+    private final int[] frameRates;
+
+    QualityTier(int maxLongSide, int maxShortSide, int minShortSide, float bitsPerPixel, int... frameRates) {
+        this.maxLongSide = maxLongSide;
+        this.maxShortSide = maxShortSide;
+        this.minShortSide = minShortSide;
+        this.bitsPerPixel = bitsPerPixel;
+        this.frameRates = frameRates;
+    }
+
+    /** Frame rates in order of preference. */
+    public int[] getFrameRates() {
+        return frameRates.clone();
+    }
+}
@@ -0,0 +1,194 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A secondary {@link SampleMuxer} fed by a {@link FanOutMuxer} through a bounded queue and
+ * driven by a thread of its own, so that a slow sink, typically a live viewer, never holds up
+ * the recording.
+ * <p>
+ * When the queue is full the sample is dropped. A dropped video frame also drops every
+ * following frame of the track up to the next key frame, so the sink never receives a frame
+ * that references a missing one. The sink starts the same way, at the first key frame after
+ * it was attached. A sink that throws is released and takes no more samples.
+ * <p>
+ * A sink writing to a connection, e.g. a viewer's socket, can block in a write for as long as
+ * the other end does not read. Closing the sink closes that connection too, which makes the
+ * write fail and lets the thread end.
+ */
+public class QueuedSink implements Runnable {
+
+    private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final int SLAB_SIZE = 64 * 1024;
+
+    private final SampleMuxer sink;
+    private final Closeable connection;
+    private final SampleRingQueue<EncodedSample> queue;
+    private final SamplePool pool;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private TrackFormat[] formats;
+    private int[] sinkTrackIndex;
+    private boolean[] awaitingKeyFrame;
+
+    private volatile Thread thread;
+    private volatile boolean closed;
+    private volatile boolean finishing;
+    private volatile Exception error;
+    private volatile long queuedSamples;
+    private volatile long droppedSamples;
+
+    /** @param connection closed with the sink to unblock a write stuck on it, or null */
+    QueuedSink(SampleMuxer sink, Closeable connection, int queueCapacity) {
+        this.sink = sink;
+        this.connection = connection;
+        this.queue = new SampleRingQueue<>(queueCapacity);
+        this.pool = new SamplePool(SLAB_SIZE, 0);
+    }
+
+    /** Sets the tracks the sink will be given. Must be called before its thread starts. */
+    void setFormats(TrackFormat[] formats) {
+        this.formats = formats;
+        this.sinkTrackIndex = new int[formats.length];
+        this.awaitingKeyFrame = new boolean[formats.length];
+        for (int track = 0; track < formats.length; track++) {
+            awaitingKeyFrame[track] = formats[track].isVideo();
+        }
+    }
+
+    /**
+     * Called on the muxer writer thread. Copies the sample into the queue, or drops it
+     * if the queue is full or the track waits for a key frame.
+     */
+    void offer(int track, ByteBuffer data, SampleInfo info) {
+        if (closed) {
+            return;
+        }
+        if (awaitingKeyFrame[track]) {
+            if (!info.isKeyFrame()) {
+                droppedSamples++;
+                return;
+            }
+            awaitingKeyFrame[track] = false;
+        }
+        final EncodedSample sample = pool.acquire(track, info.size);
+        sample.fill(data, info);
+        if (!queue.offer(sample)) {
+            sample.recycle();
+            droppedSamples++;
+            awaitingKeyFrame[track] = formats[track].isVideo();
+            return;
+        }
+        queuedSamples++;
+        wakeUp();
+    }
+
+    /** Lets the sink write what it has queued, then stops it. */
+    void finish() {
+        finishing = true;
+        wakeUp();
+    }
+
+    /** Stops the sink without waiting for its queue to drain, and closes its connection. */
+    public void close() {
+        closed = true;
+        wakeUp();
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Releases a sink whose thread never started. */
+    void abandon() {
+        closed = true;
+        sink.release();
+        terminated.countDown();
+    }
+
+    /** Waits for the sink thread to end. Returns false on timeout. */
+    boolean join(long timeoutMs) throws InterruptedException {
+        return terminated.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    public Exception getError() {
+        return error;
+    }
+
+    public long getQueuedSamples() {
+        return queuedSamples;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    private void wakeUp() {
+        final Thread current = thread;
+        if (current != null) {
+            LockSupport.unpark(current);
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        try {
+            for (int track = 0; track < formats.length; track++) {
+                sinkTrackIndex[track] = sink.addTrack(formats[track]);
+            }
+            sink.start();
+            while (!closed) {
+                final EncodedSample sample = queue.poll();
+                if (sample == null) {
+                    if (finishing) {
+                        break;
+                    }
+                    LockSupport.parkNanos(this, IDLE_PARK_NS);
+                    continue;
+                }
+                try {
+                    sink.writeSampleData(sinkTrackIndex[sample.track], sample.data, sample.info);
+                } finally {
+                    sample.recycle();
+                }
+            }
+            if (!closed) {
+                sink.stop();
+            }
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            closed = true;
+            for (EncodedSample sample = queue.poll(); sample != null; sample = queue.poll()) {
+                sample.recycle();
+            }
+            sink.release();
+            terminated.countDown();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "QueuedSink[" + sink.getClass().getSimpleName() + ", queued=" + queuedSamples
+                + ", dropped=" + droppedSamples + (error != null ? ", error=" + error : "") + "]";
+    }
+}
@@ -0,0 +1,21 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Moves encoded samples from the encoders to a {@link MuxerWriter} and runs the writer.
+ * {@link PollingRecordingEngine} gives every encoder a thread that polls it,
+ * {@link CallbackRecordingEngine} handles the encoders' callbacks instead.
+ */
+public interface RecordingEngine {
+
+    /** Starts the writer thread and any drain threads. */
+    void start();
+
+    /**
+     * Stops taking samples from the encoders and waits up to {@code timeoutMs} per thread for
+     * the writer to flush the queued samples and stop the muxer.
+     */
+    void stop(long timeoutMs) throws InterruptedException;
+
+    /** The first error of a drain or of the writer, null while recording is healthy. */
+    Exception getError();
+}
@@ -0,0 +1,88 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Writes the duration, size and track details of a recording to a tab separated file next to it,
+ * e.g. {@code Record_20220320_011645.info.txt}:
+ * <pre>
+ * # key	value
+ * file	Record_20220320_011645.mp4
+ * duration_us	9966666
+ * bytes	1402853
+ * ...
+ * </pre>
+ */
+public final class RecordingInfoProcessor implements PostProcessor {
+
+    public static final String TYPE = "info";
+    public static final String SUFFIX = ".info.txt";
+
+    private static final String HEADER = "# key\tvalue\n";
+
+    @Override
+    public String getType() {
+        return TYPE;
+    }
+
+    /** The info file of {@code recording}. */
+    public static File infoFileOf(File recording) {
+        final String name = recording.getName();
+        final int dot = name.lastIndexOf('.');
+        return new File(recording.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + SUFFIX);
+    }
+
+    @Override
+    public void process(File recording, Progress progress) throws IOException {
+        final String info = describe(recording.getName(), Mp4Index.read(recording));
+        final File file = infoFileOf(recording);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charset.forName("UTF-8"))) {
+            writer.write(info);
+        }
+        if (progress != null) {
+            progress.update(1, 1);
+        }
+    }
+
+    static String describe(String fileName, Mp4Index index) {
+        final StringBuilder out = new StringBuilder(HEADER);
+        final long durationUs = index.getDurationUs();
+        append(out, "file", fileName);
+        append(out, "duration_us", durationUs);
+        append(out, "bytes", index.getFileSize());
+        append(out, "bitrate", bitrate(index.getFileSize(), durationUs));
+        append(out, "fragmented", index.isFragmented());
+        append(out, "faststart", index.isFaststart());
+        final Mp4Index.Track video = index.getVideoTrack();
+        if (video != null) {
+            append(out, "width", video.width);
+            append(out, "height", video.height);
+            append(out, "video_samples", video.getSampleCount());
+            append(out, "video_key_frames", video.getSyncSampleCount());
+            append(out, "video_bitrate", bitrate(video.getBytes(), video.getDurationUs()));
+            append(out, "frame_rate", String.format(Locale.US, "%.2f", video.getDurationUs() > 0
+                    ? video.getSampleCount() * 1000000.0 / video.getDurationUs() : 0.0));
+        }
+        final Mp4Index.Track audio = index.getAudioTrack();
+        if (audio != null) {
+            append(out, "audio_samples", audio.getSampleCount());
+            append(out, "audio_sample_rate", audio.timescale);
+            append(out, "audio_bitrate", bitrate(audio.getBytes(), audio.getDurationUs()));
+        }
+        return out.toString();
+    }
+
+    private static long bitrate(long bytes, long durationUs) {
+        return durationUs > 0 ? bytes * 8 * 1000000 / durationUs : 0;
+    }
+
+    private static void append(StringBuilder out, String key, Object value) {
+        out.append(key).append('\t').append(value).append('\n');
+    }
+}
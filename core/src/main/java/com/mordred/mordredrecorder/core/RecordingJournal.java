@@ -0,0 +1,147 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Side file next to a recording that lists every fragment and sample the
+ * {@link FragmentedMp4Muxer} hands to the file: fixed size entries of offset, size,
+ * presentation time, flags and track, written through a memory mapping.
+ * <p>
+ * Entries of a fragment are appended in one batch before the fragment is written and
+ * committed once the write returned, so the journal costs no system call per sample and
+ * never points past the data written. Mapped pages outlive a killed process, which leaves
+ * the journal behind for {@link RecordingRecovery}; a clean
+ * {@link FragmentedMp4Muxer#stop()} deletes it. A journal is open while its recording is
+ * still being written, which can outlast the recorder that started it, and recovery leaves
+ * open journals alone.
+ */
+public final class RecordingJournal implements Closeable {
+
+    public static final String SUFFIX = ".journal";
+
+    static final int MAGIC = 0x4d524a31; // "MRJ1"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int ENTRY_SIZE = 24;
+    static final int FRAGMENT_TRACK = -1;
+    static final int FLAG_SYNC = 1;
+
+    // header: magic, version, mehd position, init segment end, committed entry count
+    static final int MEHD_POSITION_OFFSET = 8;
+    static final int INIT_END_OFFSET = 16;
+    static final int COMMITTED_OFFSET = 24;
+
+    private static final int REGION_SIZE = ENTRY_SIZE * 43690; // just under 1 MiB
+
+    private static final Set<File> OPEN = Collections.synchronizedSet(new HashSet<File>());
+
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private MappedByteBuffer region;
+    private long entries;
+    private long committed;
+    private boolean closed;
+
+    private RecordingJournal(File file, FileChannel channel) throws IOException {
+        this.file = file.getAbsoluteFile();
+        this.channel = channel;
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.putInt(0, MAGIC).putInt(4, VERSION);
+        mapRegion();
+    }
+
+    /** The journal kept for {@code recording}. */
+    public static File fileOf(File recording) {
+        return new File(recording.getPath() + SUFFIX);
+    }
+
+    /** The recording a journal belongs to. */
+    public static File recordingOf(File journal) {
+        final String path = journal.getPath();
+        return new File(path.substring(0, path.length() - SUFFIX.length()));
+    }
+
+    /** Creates or replaces the journal of {@code recording}. */
+    public static RecordingJournal create(File recording) throws IOException {
+        final File file = fileOf(recording);
+        final RecordingJournal journal = new RecordingJournal(file, FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING));
+        OPEN.add(journal.file);
+        return journal;
+    }
+
+    /** True if {@code recording} is still being written in this process and journaled. */
+    public static boolean isOpen(File recording) {
+        return OPEN.contains(fileOf(recording).getAbsoluteFile());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getCommittedEntries() {
+        return committed;
+    }
+
+    /** Records where the init segment ends and where its {@code mehd} duration lives. */
+    void start(long mehdPosition, long initEnd) {
+        header.putLong(MEHD_POSITION_OFFSET, mehdPosition).putLong(INIT_END_OFFSET, initEnd);
+    }
+
+    void appendFragment(long offset, long size, int sequenceNumber) throws IOException {
+        append(FRAGMENT_TRACK, offset, size, sequenceNumber, 0);
+    }
+
+    void appendSample(int track, long offset, int size, long ptsUs, boolean sync) throws IOException {
+        append(track, offset, size, ptsUs, sync ? FLAG_SYNC : 0);
+    }
+
+    /** Makes the entries appended so far visible to recovery. */
+    void commit() {
+        committed = entries;
+        header.putLong(COMMITTED_OFFSET, committed);
+    }
+
+    /** Closes and deletes the journal once the recording has been finalized. */
+    void finish() throws IOException {
+        close();
+        if (!file.delete() && file.exists()) {
+            throw new IOException("cannot delete " + file);
+        }
+    }
+
+    /** Closes the journal and leaves it for recovery. */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                channel.close();
+            } finally {
+                OPEN.remove(file);
+            }
+        }
+    }
+
+    private void append(int track, long offset, long size, long time, int flags) throws IOException {
+        if (!region.hasRemaining()) {
+            mapRegion();
+        }
+        region.putLong(offset).putLong(time).putInt((int) size).put((byte) track).put((byte) flags).putShort((short) 0);
+        entries++;
+    }
+
+    private void mapRegion() throws IOException {
+        region = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + entries * ENTRY_SIZE, REGION_SIZE);
+    }
+}
@@ -0,0 +1,147 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Repairs recordings whose muxer never stopped, using the {@link RecordingJournal} left next
+ * to them. The file is cut back to the end of the last fragment that reached it completely,
+ * which drops a torn {@code moof}/{@code mdat} at the tail, and the {@code mehd} duration is
+ * set from the journaled samples so players show the real length and can seek.
+ */
+public final class RecordingRecovery {
+
+    private RecordingRecovery() {
+    }
+
+    /**
+     * Recordings in {@code directory} that still have a journal, oldest name first, other than
+     * those still being written, see {@link RecordingJournal#isOpen}.
+     */
+    public static List<File> findUnfinished(File directory) {
+        final File[] journals = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(RecordingJournal.SUFFIX);
+            }
+        });
+        final List<File> recordings = new ArrayList<>();
+        if (journals != null) {
+            Arrays.sort(journals);
+            for (File journal : journals) {
+                final File recording = RecordingJournal.recordingOf(journal);
+                if (!RecordingJournal.isOpen(recording)) {
+                    recordings.add(recording);
+                }
+            }
+        }
+        return recordings;
+    }
+
+    /**
+     * Repairs {@code recording} and deletes its journal. Returns the recovered duration,
+     * 0 if not a single fragment survived, or -1 if there was no journal.
+     *
+     * @throws IOException also if the recording is still being written
+     */
+    public static long recover(File recording) throws IOException {
+        if (RecordingJournal.isOpen(recording)) {
+            throw new IOException(recording + " is still being recorded");
+        }
+        final File journalFile = RecordingJournal.fileOf(recording);
+        if (!journalFile.isFile()) {
+            return -1;
+        }
+        final ByteBuffer journal = readJournal(journalFile);
+        long durationUs = 0;
+        if (recording.isFile()) {
+            final FileChannel channel = FileChannel.open(recording.toPath(),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                durationUs = repair(channel, journal);
+            } finally {
+                channel.close();
+            }
+        }
+        if (!journalFile.delete()) {
+            throw new IOException("cannot delete " + journalFile);
+        }
+        return durationUs;
+    }
+
+    private static long repair(FileChannel channel, ByteBuffer journal) throws IOException {
+        final long fileSize = channel.size();
+        final long mehdPosition = journal.getLong(RecordingJournal.MEHD_POSITION_OFFSET);
+        final long initEnd = journal.getLong(RecordingJournal.INIT_END_OFFSET);
+        if (initEnd <= 0 || initEnd > fileSize) {
+            return 0;
+        }
+        long end = initEnd;
+        long firstPtsUs = Long.MAX_VALUE;
+        long lastPtsUs = Long.MIN_VALUE;
+        boolean keep = false;
+        journal.position(RecordingJournal.HEADER_SIZE);
+        while (journal.remaining() >= RecordingJournal.ENTRY_SIZE) {
+            final long offset = journal.getLong();
+            final long time = journal.getLong();
+            final int size = journal.getInt();
+            final int track = journal.get();
+            journal.get();
+            journal.getShort();
+            if (track == RecordingJournal.FRAGMENT_TRACK) {
+                // fragments are written in journal order, the first torn one ends the recording
+                keep = offset == end && offset + size <= fileSize;
+                if (!keep) {
+                    break;
+                }
+                end = offset + size;
+            } else if (keep) {
+                firstPtsUs = Math.min(firstPtsUs, time);
+                lastPtsUs = Math.max(lastPtsUs, time);
+            }
+        }
+        if (end < fileSize) {
+            channel.truncate(end);
+        }
+        final long durationUs = end > initEnd ? lastPtsUs - firstPtsUs : 0;
+        if (mehdPosition > 0 && mehdPosition + 8 <= initEnd) {
+            final ByteBuffer duration = ByteBuffer.allocate(8);
+            duration.putLong(0, Mp4Boxes.toTimescale(durationUs, Mp4Boxes.MOVIE_TIMESCALE));
+            channel.write(duration, mehdPosition);
+        }
+        channel.force(true);
+        return durationUs;
+    }
+
+    /** Reads the header and the committed entries, positioned at the first entry. */
+    private static ByteBuffer readJournal(File file) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(RecordingJournal.HEADER_SIZE);
+            if (channel.size() < RecordingJournal.HEADER_SIZE) {
+                throw new IOException(file + " is not a recording journal");
+            }
+            Mp4Box.readFully(channel, header, 0);
+            if (header.getInt(0) != RecordingJournal.MAGIC || header.getInt(4) != RecordingJournal.VERSION) {
+                throw new IOException(file + " is not a recording journal");
+            }
+            final long committed = header.getLong(RecordingJournal.COMMITTED_OFFSET);
+            final long available = (channel.size() - RecordingJournal.HEADER_SIZE) / RecordingJournal.ENTRY_SIZE;
+            final long entries = Math.max(0, Math.min(committed, available));
+            final ByteBuffer journal = ByteBuffer.allocate((int) (RecordingJournal.HEADER_SIZE
+                    + entries * RecordingJournal.ENTRY_SIZE));
+            Mp4Box.readFully(channel, journal, 0);
+            journal.flip();
+            return journal;
+        } finally {
+            channel.close();
+        }
+    }
+}
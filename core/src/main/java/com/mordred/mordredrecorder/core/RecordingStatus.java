@@ -0,0 +1,68 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * State and progress of the recording, as pushed to status listeners through a
+ * {@link StatusCoalescer}.
+ */
+public final class RecordingStatus {
+
+    public enum State {
+        STOPPED,
+        RECORDING,
+        PAUSED
+    }
+
+    public static final RecordingStatus STOPPED =
+            new RecordingStatus(State.STOPPED, 0, 0, 0, 0, StorageStatus.Level.OK);
+
+    public final State state;
+    /** Recorded time, pauses excluded. */
+    public final long elapsedUs;
+    /** Bytes handed to the muxer, all tracks. */
+    public final long bytesWritten;
+    /** Current target of the video encoder, in bits per second. */
+    public final int videoBitrate;
+    /** Samples dropped because the muxer fell behind. */
+    public final long droppedSamples;
+    public final StorageStatus.Level storage;
+
+    public RecordingStatus(State state, long elapsedUs, long bytesWritten, int videoBitrate, long droppedSamples,
+                           StorageStatus.Level storage) {
+        this.state = state;
+        this.elapsedUs = elapsedUs;
+        this.bytesWritten = bytesWritten;
+        this.videoBitrate = videoBitrate;
+        this.droppedSamples = droppedSamples;
+        this.storage = storage;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RecordingStatus)) {
+            return false;
+        }
+        final RecordingStatus other = (RecordingStatus) o;
+        return state == other.state && elapsedUs == other.elapsedUs && bytesWritten == other.bytesWritten
+                && videoBitrate == other.videoBitrate && droppedSamples == other.droppedSamples
+                && storage == other.storage;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = state.hashCode();
+        result = 31 * result + (int) (elapsedUs ^ (elapsedUs >>> 32));
+        result = 31 * result + (int) (bytesWritten ^ (bytesWritten >>> 32));
+        result = 31 * result + videoBitrate;
+        result = 31 * result + (int) (droppedSamples ^ (droppedSamples >>> 32));
+        return 31 * result + storage.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingStatus[" + state + ", elapsed=" + elapsedUs / 1000 + "ms, bytes=" + bytesWritten
+                + ", bitrate=" + videoBitrate + ", dropped=" + droppedSamples + ", storage=" + storage + "]";
+    }
+}
@@ -0,0 +1,151 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the renditions of one recording to one muxer each. The n-th video track added goes
+ * to output n, every other track, i.e. the one audio encode, goes to all of them.
+ * <p>
+ * Output 0 holds the master and its errors end the recording. Any other output that fails is
+ * released and left out from then on, so a proxy that runs out of luck never costs the master.
+ */
+public class RenditionMuxer implements SampleMuxer {
+
+    private final SampleMuxer[] outputs;
+    private final IOException[] errors;
+    private final boolean[] failed;
+    private final List<TrackFormat> formats = new ArrayList<>();
+    // per track, the output it goes to, or -1 for all
+    private int[] outputOf = new int[0];
+    // per track and output, the track index in that output
+    private int[][] outputTrack = new int[0][];
+    private int videoTracks;
+
+    public RenditionMuxer(SampleMuxer... outputs) {
+        if (outputs.length == 0) {
+            throw new IllegalArgumentException("no outputs");
+        }
+        this.outputs = outputs.clone();
+        this.errors = new IOException[outputs.length];
+        this.failed = new boolean[outputs.length];
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        final int index = formats.size();
+        formats.add(format);
+        outputOf = Arrays.copyOf(outputOf, index + 1);
+        outputTrack = Arrays.copyOf(outputTrack, index + 1);
+        outputTrack[index] = new int[outputs.length];
+        Arrays.fill(outputTrack[index], -1);
+        if (format.isVideo()) {
+            if (videoTracks == outputs.length) {
+                throw new IllegalStateException("no output left for video track " + index);
+            }
+            outputOf[index] = videoTracks;
+            outputTrack[index][videoTracks] = outputs[videoTracks].addTrack(format);
+            videoTracks++;
+        } else {
+            outputOf[index] = -1;
+            for (int i = 0; i < outputs.length; i++) {
+                outputTrack[index][i] = outputs[i].addTrack(format);
+            }
+        }
+        return index;
+    }
+
+    /** Starts every output that got a video track; the others are released. */
+    @Override
+    public void start() throws IOException {
+        outputs[0].start();
+        for (int i = 1; i < outputs.length; i++) {
+            if (i >= videoTracks) {
+                failed[i] = true;
+                outputs[i].release();
+                continue;
+            }
+            try {
+                outputs[i].start();
+            } catch (IOException | RuntimeException e) {
+                fail(i, e);
+            }
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        final int output = outputOf[trackIndex];
+        if (output >= 0) {
+            write(output, trackIndex, data, info);
+            return;
+        }
+        // every output reads from the same position
+        final int position = data.position();
+        for (int i = 0; i < outputs.length; i++) {
+            write(i, trackIndex, data, info);
+            data.position(position);
+        }
+    }
+
+    @Override
+    public void stop() throws IOException {
+        try {
+            outputs[0].stop();
+        } finally {
+            for (int i = 1; i < outputs.length; i++) {
+                if (failed[i]) {
+                    continue;
+                }
+                try {
+                    outputs[i].stop();
+                } catch (IOException | RuntimeException e) {
+                    fail(i, e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        for (int i = 0; i < outputs.length; i++) {
+            if (i == 0 || !failed[i]) {
+                outputs[i].release();
+            }
+        }
+    }
+
+    /** Whether output {@code output} has failed or never started. */
+    public boolean hasFailed(int output) {
+        return failed[output];
+    }
+
+    /** The error output {@code output} failed with, or null. */
+    public IOException getError(int output) {
+        return errors[output];
+    }
+
+    private void write(int output, int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        if (output == 0) {
+            outputs[0].writeSampleData(outputTrack[trackIndex][0], data, info);
+            return;
+        }
+        if (failed[output]) {
+            return;
+        }
+        try {
+            outputs[output].writeSampleData(outputTrack[trackIndex][output], data, info);
+        } catch (IOException | RuntimeException e) {
+            fail(output, e);
+        }
+    }
+
+    private void fail(int output, Exception e) {
+        failed[output] = true;
+        errors[output] = e instanceof IOException ? (IOException) e : new IOException(e);
+        outputs[output].release();
+    }
+}
@@ -0,0 +1,86 @@
+package com.mordred.mordredrecorder.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Plans the renditions encoded from one capture: the master as selected by
+ * {@link VideoProfileSelector}, followed by smaller proxies of the same picture on the same
+ * encoder. A proxy keeps the aspect ratio of the master within the encoder's alignment, takes
+ * a frame rate that divides the master's, so that it draws every n-th captured frame, and a
+ * bitrate scaled down with its size and frame rate.
+ */
+public class RenditionPlanner {
+
+    public static final int DEFAULT_PROXY_MAX_FRAME_RATE = 30;
+    public static final int MIN_PROXY_BITRATE = 250000;
+
+    private final EncoderCapabilities encoder;
+
+    /**
+     * @param encoder capabilities of the master's encoder, or null if they are not known
+     */
+    public RenditionPlanner(EncoderCapabilities encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Returns {@code master} followed by a proxy for each short side, largest first. Proxies
+     * not smaller than the master or than the proxy before them are left out.
+     */
+    public List<VideoProfile> plan(VideoProfile master, int... proxyShortSides) {
+        final List<VideoProfile> renditions = new ArrayList<>();
+        renditions.add(master);
+        final int[] shortSides = proxyShortSides.clone();
+        Arrays.sort(shortSides);
+        for (int i = shortSides.length - 1; i >= 0; i--) {
+            final VideoProfile proxy = planProxy(master, shortSides[i], DEFAULT_PROXY_MAX_FRAME_RATE, 0);
+            final VideoProfile previous = renditions.get(renditions.size() - 1);
+            if (proxy != null && proxy.width * proxy.height < previous.width * previous.height) {
+                renditions.add(proxy);
+            }
+        }
+        return renditions;
+    }
+
+    /**
+     * Returns a proxy of {@code master} with a short side of at most {@code maxShortSide} and
+     * at most {@code maxFrameRate} frames a second, or null if the encoder cannot take one that
+     * is smaller than the master.
+     *
+     * @param bitrate bits per second, or 0 to scale the master's bitrate
+     */
+    public VideoProfile planProxy(VideoProfile master, int maxShortSide, int maxFrameRate, int bitrate) {
+        if (maxShortSide <= 0 || maxFrameRate <= 0) {
+            throw new IllegalArgumentException("proxy short side " + maxShortSide + ", " + maxFrameRate + " fps");
+        }
+        final int frameRate = frameRateFor(master.frameRate, maxFrameRate);
+        final double scale = Math.min(1.0, (double) maxShortSide / Math.min(master.width, master.height));
+        final int[] size = EncoderFit.fit(encoder, master.width, master.height, scale, frameRate);
+        if (size == null || size[0] >= master.width && size[1] >= master.height) {
+            return null;
+        }
+        final int proxyBitrate = bitrate > 0 ? bitrate : bitrateFor(master, size[0], size[1], frameRate);
+        return new VideoProfile(master.encoderName, master.mime, size[0], size[1], frameRate,
+                encoder != null ? encoder.clampBitrate(proxyBitrate) : proxyBitrate,
+                master.keyFrameIntervalSec);
+    }
+
+    /** Largest frame rate up to {@code maxFrameRate} that divides {@code masterFrameRate}. */
+    static int frameRateFor(int masterFrameRate, int maxFrameRate) {
+        for (int divisor = 1; divisor <= masterFrameRate; divisor++) {
+            if (masterFrameRate % divisor == 0 && masterFrameRate / divisor <= maxFrameRate) {
+                return masterFrameRate / divisor;
+            }
+        }
+        return 1;
+    }
+
+    /** The master's bits per pixel, with the same frame rate scaling as {@link VideoProfileSelector}. */
+    static int bitrateFor(VideoProfile master, int width, int height, int frameRate) {
+        final double bitrate = master.bitrate * ((double) width * height / (master.width * master.height))
+                * Math.pow((double) frameRate / master.frameRate, 0.75);
+        return (int) Math.min(master.bitrate, Math.max(MIN_PROXY_BITRATE, bitrate));
+    }
+}
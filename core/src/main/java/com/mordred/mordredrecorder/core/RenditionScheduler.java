@@ -0,0 +1,164 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Decides which renditions each captured frame is drawn into. The master, rendition 0, takes
+ * every frame. Every other rendition takes frames at its own frame rate, and skips frames while
+ * its encoder still has {@code maxInFlight} frames drawn but not encoded: drawing into an
+ * encoder whose input queue is full blocks the render thread, and with it the master. A proxy
+ * that falls behind therefore loses frames instead of slowing the master down.
+ * <p>
+ * Encoders may drop or merge frames, so an encoded frame completes every frame drawn up to its
+ * timestamp, and frames older than {@code staleUs} stop counting, e.g. those drawn into a
+ * suspended encoder while the recording was paused.
+ * <p>
+ * {@link #onFrame} is called from the render thread, {@link #onEncoded} from the codec threads.
+ */
+public class RenditionScheduler {
+
+    public static final int MAX_RENDITIONS = 32;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+    public static final long DEFAULT_STALE_US = 1000000;
+
+    // far enough in the past that any frame is due, without overflowing
+    private static final long NOT_DRAWN = Long.MIN_VALUE / 2;
+
+    private final int count;
+    private final long[] intervalUs;
+    private final long[] nextDueUs;
+    private final int maxInFlight;
+    private final long staleUs;
+    // timestamps of the frames drawn but not encoded, per rendition, oldest first
+    private final long[][] inFlightUs;
+    private final int[] inFlight;
+    private final long[] drawnFrames;
+    private final long[] skippedFrames;
+
+    private Counter[] drawnCounters;
+    private Counter[] skippedCounters;
+
+    /**
+     * @param frameRates frame rate of each rendition, the master first
+     */
+    public RenditionScheduler(int[] frameRates) {
+        this(frameRates, DEFAULT_MAX_IN_FLIGHT, DEFAULT_STALE_US);
+    }
+
+    public RenditionScheduler(int[] frameRates, int maxInFlight, long staleUs) {
+        if (frameRates.length == 0 || frameRates.length > MAX_RENDITIONS) {
+            throw new IllegalArgumentException(frameRates.length + " renditions");
+        }
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("max in flight " + maxInFlight);
+        }
+        this.count = frameRates.length;
+        this.intervalUs = new long[count];
+        this.nextDueUs = new long[count];
+        for (int i = 0; i < count; i++) {
+            if (frameRates[i] <= 0) {
+                throw new IllegalArgumentException("frame rate " + frameRates[i]);
+            }
+            intervalUs[i] = 1000000L / frameRates[i];
+            nextDueUs[i] = NOT_DRAWN;
+        }
+        this.maxInFlight = maxInFlight;
+        this.staleUs = staleUs;
+        this.inFlightUs = new long[count][maxInFlight];
+        this.inFlight = new int[count];
+        this.drawnFrames = new long[count];
+        this.skippedFrames = new long[count];
+    }
+
+    /**
+     * Records {@code name.drawn_frames} and {@code name.skipped_frames} per rendition.
+     * Must be called before the first frame.
+     */
+    public void setMetrics(MetricsRegistry metrics, String... names) {
+        if (names.length != count) {
+            throw new IllegalArgumentException(names.length + " names for " + count + " renditions");
+        }
+        drawnCounters = new Counter[count];
+        skippedCounters = new Counter[count];
+        for (int i = 0; i < count; i++) {
+            drawnCounters[i] = metrics.counter(names[i] + ".drawn_frames");
+            skippedCounters[i] = metrics.counter(names[i] + ".skipped_frames");
+        }
+    }
+
+    /**
+     * Returns the renditions to draw the frame captured at {@code ptsUs} into, bit {@code i}
+     * for rendition {@code i}. The caller draws exactly those.
+     */
+    public synchronized int onFrame(long ptsUs) {
+        int targets = 0;
+        for (int i = 0; i < count; i++) {
+            expire(i, ptsUs - staleUs);
+            if (i > 0) {
+                // a quarter frame early still counts as on time, timestamps jitter
+                if (ptsUs < nextDueUs[i] - intervalUs[i] / 4) {
+                    continue;
+                }
+                nextDueUs[i] = nextDue(i, ptsUs);
+                if (inFlight[i] >= maxInFlight) {
+                    skippedFrames[i]++;
+                    if (skippedCounters != null) {
+                        skippedCounters[i].increment();
+                    }
+                    continue;
+                }
+            }
+            if (inFlight[i] == maxInFlight) {
+                // the master never waits, forget its oldest frame
+                expire(i, inFlightUs[i][0]);
+            }
+            inFlightUs[i][inFlight[i]++] = ptsUs;
+            drawnFrames[i]++;
+            if (drawnCounters != null) {
+                drawnCounters[i].increment();
+            }
+            targets |= 1 << i;
+        }
+        return targets;
+    }
+
+    /** The encoder of {@code rendition} put out the frame captured at {@code ptsUs}. */
+    public synchronized void onEncoded(int rendition, long ptsUs) {
+        expire(rendition, ptsUs);
+    }
+
+    /** Frames of {@code rendition} drawn but not encoded yet. */
+    public synchronized int getInFlight(int rendition) {
+        return inFlight[rendition];
+    }
+
+    public synchronized long getDrawnFrames(int rendition) {
+        return drawnFrames[rendition];
+    }
+
+    /** Frames a rendition was due to take but skipped because its encoder was behind. */
+    public synchronized long getSkippedFrames(int rendition) {
+        return skippedFrames[rendition];
+    }
+
+    public int getRenditionCount() {
+        return count;
+    }
+
+    // keeps the cadence through skipped frames, unless more than a frame behind, e.g. after a still screen
+    private long nextDue(int rendition, long ptsUs) {
+        final long next = nextDueUs[rendition] + intervalUs[rendition];
+        return next > ptsUs ? next : ptsUs + intervalUs[rendition];
+    }
+
+    /** Drops the frames of {@code rendition} captured at or before {@code ptsUs}. */
+    private void expire(int rendition, long ptsUs) {
+        final long[] frames = inFlightUs[rendition];
+        int done = 0;
+        while (done < inFlight[rendition] && frames[done] <= ptsUs) {
+            done++;
+        }
+        if (done > 0) {
+            System.arraycopy(frames, done, frames, 0, inFlight[rendition] - done);
+            inFlight[rendition] -= done;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory "instant replay" muxer that keeps only the most recent samples.
+ * <p>
+ * Sample data lives in one direct buffer of a fixed number of bytes, used as a ring; each
+ * sample is stored contiguously and the oldest samples are evicted, one O(1) step each, until
+ * a new one fits. Sample descriptors and the sequence numbers of video key frames are kept in
+ * fixed-size circular arrays, so appending never allocates.
+ * <p>
+ * {@link #saveTo(SampleMuxer)} writes everything from the oldest buffered key frame onwards
+ * to another muxer while recording continues; samples are copied out one at a time so the
+ * writer thread is only held up for a single copy. When the oldest key frame is about to be
+ * evicted the save starts from the next one, so that the saver has a whole GOP of headroom.
+ */
+public class ReplayBuffer implements SampleMuxer {
+
+    // heuristic for the descriptor count: an AAC frame at 128 kbit/s is about 370 bytes
+    private static final int BYTES_PER_SAMPLE_ESTIMATE = 512;
+    private static final int MIN_SAMPLES = 1024;
+
+    private final ByteBuffer ring;
+    private final int capacity;
+    private final int maxSamples;
+
+    // descriptors, indexed by sequence number modulo maxSamples
+    private final int[] trackOf;
+    private final int[] offsetOf;
+    private final int[] sizeOf;
+    private final int[] flagsOf;
+    private final long[] ptsOf;
+    private long firstSeq;
+    private long nextSeq;
+
+    // sequence numbers of buffered key frames, oldest first
+    private final long[] keySeqs;
+    private int keyHead;
+    private int keyCount;
+
+    private final List<TrackFormat> formats = new ArrayList<>();
+    private boolean hasVideo;
+    private boolean started;
+    private int largestSample;
+    private long usedBytes;
+    private long newestPtsUs;
+    private long evictedSamples;
+    private long rejectedSamples;
+
+    public ReplayBuffer(int capacityBytes) {
+        this(capacityBytes, Math.max(MIN_SAMPLES, capacityBytes / BYTES_PER_SAMPLE_ESTIMATE));
+    }
+
+    public ReplayBuffer(int capacityBytes, int maxSamples) {
+        if (capacityBytes <= 0 || maxSamples <= 0) {
+            throw new IllegalArgumentException("capacity=" + capacityBytes + ", maxSamples=" + maxSamples);
+        }
+        ring = ByteBuffer.allocateDirect(capacityBytes);
+        capacity = capacityBytes;
+        this.maxSamples = maxSamples;
+        trackOf = new int[maxSamples];
+        offsetOf = new int[maxSamples];
+        sizeOf = new int[maxSamples];
+        flagsOf = new int[maxSamples];
+        ptsOf = new long[maxSamples];
+        keySeqs = new long[maxSamples];
+    }
+
+    @Override
+    public synchronized int addTrack(TrackFormat format) {
+        if (started) {
+            throw new IllegalStateException("addTrack after start");
+        }
+        formats.add(format);
+        hasVideo |= format.isVideo();
+        return formats.size() - 1;
+    }
+
+    @Override
+    public synchronized void start() {
+        started = true;
+    }
+
+    @Override
+    public synchronized void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        if (!started) {
+            throw new IllegalStateException("replay buffer not started");
+        }
+        final int size = info.size;
+        if (size <= 0) {
+            return;
+        }
+        if (size > capacity) {
+            rejectedSamples++;
+            return;
+        }
+        final boolean key = hasVideo ? formats.get(trackIndex).isVideo() && info.isKeyFrame() : true;
+        if (nextSeq - firstSeq == maxSamples) {
+            evictOldest();
+        }
+        final int offset = place(size);
+        final ByteBuffer src = data.duplicate();
+        src.limit(info.offset + size).position(info.offset);
+        final ByteBuffer dst = ring.duplicate();
+        dst.limit(offset + size).position(offset);
+        dst.put(src);
+
+        final int slot = (int) (nextSeq % maxSamples);
+        trackOf[slot] = trackIndex;
+        offsetOf[slot] = offset;
+        sizeOf[slot] = size;
+        flagsOf[slot] = info.flags;
+        ptsOf[slot] = info.presentationTimeUs;
+        if (key) {
+            keySeqs[(keyHead + keyCount) % maxSamples] = nextSeq;
+            keyCount++;
+        }
+        nextSeq++;
+        usedBytes += size;
+        largestSample = Math.max(largestSample, size);
+        newestPtsUs = Math.max(newestPtsUs, info.presentationTimeUs);
+    }
+
+    /** Returns the offset for {@code size} contiguous bytes, evicting the oldest samples as needed. */
+    private int place(int size) {
+        while (nextSeq > firstSeq) {
+            final int first = offsetOf[(int) (firstSeq % maxSamples)];
+            final int lastSlot = (int) ((nextSeq - 1) % maxSamples);
+            final int lastEnd = offsetOf[lastSlot] + sizeOf[lastSlot];
+            if (offsetOf[lastSlot] >= first) {
+                // [first, lastEnd) in use: room after it, or at the start of the ring
+                if (capacity - lastEnd >= size) {
+                    return lastEnd;
+                }
+                if (first >= size) {
+                    return 0;
+                }
+            } else if (first - lastEnd >= size) {
+                // wrapped: [first, capacity) and [0, lastEnd) in use
+                return lastEnd;
+            }
+            evictOldest();
+        }
+        return 0;
+    }
+
+    private void evictOldest() {
+        if (keyCount > 0 && keySeqs[keyHead] == firstSeq) {
+            keyHead = (keyHead + 1) % maxSamples;
+            keyCount--;
+        }
+        usedBytes -= sizeOf[(int) (firstSeq % maxSamples)];
+        firstSeq++;
+        evictedSamples++;
+    }
+
+    /**
+     * Sequence number a save starts at: the oldest key frame, or the next one if recording as
+     * much again as the oldest GOP would reach the oldest key frame.
+     */
+    private long saveStartSeq() {
+        return keyCount > 1 && nearEviction() ? keySeqs[(keyHead + 1) % maxSamples] : keySeqs[keyHead];
+    }
+
+    /** True if the free room plus what is buffered before the oldest key frame is less than its GOP. */
+    private boolean nearEviction() {
+        final long firstKey = keySeqs[keyHead];
+        final long secondKey = keySeqs[(keyHead + 1) % maxSamples];
+        final long leadBytes = bytesBetween(firstSeq, firstKey);
+        final long gopBytes = bytesBetween(firstKey, secondKey);
+        final long freeSamples = maxSamples - (nextSeq - firstSeq);
+        return capacity - usedBytes + leadBytes < gopBytes
+                || freeSamples + (firstKey - firstSeq) < secondKey - firstKey;
+    }
+
+    private long bytesBetween(long fromSeq, long toSeq) {
+        long bytes = 0;
+        for (long seq = fromSeq; seq < toSeq; seq++) {
+            bytes += sizeOf[(int) (seq % maxSamples)];
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the buffered samples from the oldest key frame up to the newest sample at the time
+     * of the call to {@code target}, with timestamps starting at 0, and stops it. Samples of
+     * other tracks from before the key frame are left out. If recording one more GOP would
+     * evict that key frame, the save starts from the second oldest. Returns the duration written.
+     *
+     * @throws IOException if no key frame is buffered, if recording overwrote samples faster
+     *                     than they could be saved, or if {@code target} fails
+     */
+    public long saveTo(SampleMuxer target) throws IOException {
+        final long startSeq;
+        final long endSeq;
+        final long basePtsUs;
+        final ByteBuffer scratch;
+        synchronized (this) {
+            if (keyCount == 0) {
+                throw new IOException("no key frame buffered");
+            }
+            startSeq = saveStartSeq();
+            endSeq = nextSeq;
+            basePtsUs = ptsOf[(int) (startSeq % maxSamples)];
+            for (TrackFormat format : formats) {
+                target.addTrack(format);
+            }
+            scratch = ByteBuffer.allocateDirect(largestSample);
+        }
+        target.start();
+        final SampleInfo info = new SampleInfo();
+        long lastPtsUs = 0;
+        for (long seq = startSeq; seq < endSeq; seq++) {
+            final int track;
+            synchronized (this) {
+                if (seq < firstSeq) {
+                    throw new IOException("replay overwritten while saving at sample " + (seq - startSeq));
+                }
+                final int slot = (int) (seq % maxSamples);
+                final int offset = offsetOf[slot];
+                final ByteBuffer src = ring.duplicate();
+                src.limit(offset + sizeOf[slot]).position(offset);
+                scratch.clear();
+                scratch.put(src);
+                scratch.flip();
+                track = trackOf[slot];
+                info.set(0, sizeOf[slot], ptsOf[slot] - basePtsUs, flagsOf[slot]);
+            }
+            if (info.presentationTimeUs < 0) {
+                continue;
+            }
+            target.writeSampleData(track, scratch, info);
+            lastPtsUs = Math.max(lastPtsUs, info.presentationTimeUs);
+        }
+        target.stop();
+        return lastPtsUs;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    public int getCapacityBytes() {
+        return capacity;
+    }
+
+    /** Bytes held by buffered samples. */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public synchronized int getSampleCount() {
+        return (int) (nextSeq - firstSeq);
+    }
+
+    public synchronized int getKeyFrameCount() {
+        return keyCount;
+    }
+
+    /** Time a save would cover, from its first key frame to the newest sample, 0 without key frames. */
+    public synchronized long getReplayDurationUs() {
+        if (keyCount == 0) {
+            return 0;
+        }
+        return newestPtsUs - ptsOf[(int) (saveStartSeq() % maxSamples)];
+    }
+
+    public synchronized long getEvictedSamples() {
+        return evictedSamples;
+    }
+
+    /** Samples larger than the whole buffer, which could not be kept. */
+    public synchronized long getRejectedSamples() {
+        return rejectedSamples;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReplayBuffer[samples=" + getSampleCount() + ", keyFrames=" + keyCount
+                + ", capacity=" + capacity + ", evicted=" + evictedSamples + "]";
+    }
+}
@@ -0,0 +1,150 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Absorbs clock skew between two capture sources.
+ * <p>
+ * The secondary source writes whatever it has captured; the mixer reads exactly as many
+ * frames as the primary source delivered. The read side resamples by linear interpolation at
+ * a ratio a little above or below 1, steered by the average fill level, so the buffer stays
+ * near its target instead of slowly running dry or overflowing. An underrun is padded with
+ * silence; an overflow drops the oldest frames.
+ * <p>
+ * Not thread safe: both ends are driven from the audio thread.
+ */
+public class ResamplingJitterBuffer {
+
+    public static final double DEFAULT_MAX_RATIO_DEVIATION = 0.005;
+
+    // fraction of the target fill error applied to the ratio
+    private static final double RATIO_GAIN = 0.01;
+    private static final double LEVEL_SMOOTHING = 0.02;
+
+    private final int channels;
+    private final short[] ring;
+    private final int capacityFrames;
+    private final int targetFrames;
+    private final double maxRatioDeviation;
+
+    private long writtenFrames;
+    // position of the next output frame in the input, in frames since the start
+    private long readFrame;
+    private double readFraction;
+    private double averageLevel;
+    private double ratio = 1;
+    private boolean primed;
+
+    private long underrunFrames;
+    private long overflowFrames;
+
+    public ResamplingJitterBuffer(int channels, int capacityFrames, int targetFrames) {
+        this(channels, capacityFrames, targetFrames, DEFAULT_MAX_RATIO_DEVIATION);
+    }
+
+    public ResamplingJitterBuffer(int channels, int capacityFrames, int targetFrames,
+                                  double maxRatioDeviation) {
+        if (channels < 1 || targetFrames < 1 || capacityFrames < 2 * targetFrames) {
+            throw new IllegalArgumentException("channels=" + channels + ", capacity="
+                    + capacityFrames + ", target=" + targetFrames);
+        }
+        this.channels = channels;
+        this.capacityFrames = capacityFrames;
+        this.targetFrames = targetFrames;
+        this.maxRatioDeviation = maxRatioDeviation;
+        ring = new short[capacityFrames * channels];
+    }
+
+    /** Appends {@code frames} interleaved frames. */
+    public void write(short[] src, int offset, int frames) {
+        int position = offset;
+        int remaining = frames;
+        while (remaining > 0) {
+            final int slot = (int) (writtenFrames % capacityFrames);
+            final int count = Math.min(remaining, capacityFrames - slot);
+            System.arraycopy(src, position, ring, slot * channels, count * channels);
+            position += count * channels;
+            remaining -= count;
+            writtenFrames += count;
+        }
+        final long oldest = writtenFrames - capacityFrames;
+        if (readFrame < oldest) {
+            overflowFrames += oldest - readFrame;
+            readFrame = oldest;
+            readFraction = 0;
+        }
+    }
+
+    /**
+     * Reads {@code frames} resampled frames into {@code dst}. Until the buffer has first
+     * reached its target level, and whenever it runs dry, silence is returned.
+     */
+    public void read(short[] dst, int offset, int frames) {
+        final long level = getLevel();
+        if (!primed) {
+            if (level < targetFrames) {
+                fill(dst, offset, frames * channels);
+                return;
+            }
+            primed = true;
+            averageLevel = level;
+        }
+        averageLevel += (level - averageLevel) * LEVEL_SMOOTHING;
+        final double error = (averageLevel - targetFrames) / targetFrames;
+        ratio = 1 + Math.max(-maxRatioDeviation, Math.min(maxRatioDeviation, error * RATIO_GAIN));
+
+        int out = offset;
+        for (int i = 0; i < frames; i++) {
+            if (readFrame + 1 >= writtenFrames) {
+                final int missing = frames - i;
+                underrunFrames += missing;
+                fill(dst, out, missing * channels);
+                // start over from the target level once enough has arrived again
+                primed = false;
+                return;
+            }
+            final int current = (int) (readFrame % capacityFrames) * channels;
+            final int next = (int) ((readFrame + 1) % capacityFrames) * channels;
+            final float fraction = (float) readFraction;
+            for (int c = 0; c < channels; c++) {
+                final float a = ring[current + c];
+                dst[out++] = (short) (a + (ring[next + c] - a) * fraction);
+            }
+            readFraction += ratio;
+            final int whole = (int) readFraction;
+            readFrame += whole;
+            readFraction -= whole;
+        }
+    }
+
+    private static void fill(short[] dst, int offset, int count) {
+        for (int i = 0; i < count; i++) {
+            dst[offset + i] = 0;
+        }
+    }
+
+    /** Frames available to read. */
+    public long getLevel() {
+        return writtenFrames - readFrame;
+    }
+
+    public double getRatio() {
+        return ratio;
+    }
+
+    public long getUnderrunFrames() {
+        return underrunFrames;
+    }
+
+    public long getOverflowFrames() {
+        return overflowFrames;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    @Override
+    public String toString() {
+        return "ResamplingJitterBuffer[level=" + getLevel() + ", ratio=" + ratio
+                + ", underruns=" + underrunFrames + ", overflows=" + overflowFrames + "]";
+    }
+}
@@ -0,0 +1,40 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Platform independent counterpart of {@code MediaCodec.BufferInfo}.
+ * Flag values are identical to the {@code MediaCodec.BUFFER_FLAG_*} constants.
+ */
+public final class SampleInfo {
+
+    public static final int FLAG_KEY_FRAME = 1;
+    public static final int FLAG_CODEC_CONFIG = 2;
+    public static final int FLAG_END_OF_STREAM = 4;
+
+    public int offset;
+    public int size;
+    public long presentationTimeUs;
+    public int flags;
+
+    public void set(int offset, int size, long presentationTimeUs, int flags) {
+        this.offset = offset;
+        this.size = size;
+        this.presentationTimeUs = presentationTimeUs;
+        this.flags = flags;
+    }
+
+    public void copyFrom(SampleInfo other) {
+        set(other.offset, other.size, other.presentationTimeUs, other.flags);
+    }
+
+    public boolean isKeyFrame() {
+        return (flags & FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean isCodecConfig() {
+        return (flags & FLAG_CODEC_CONFIG) != 0;
+    }
+
+    public boolean isEndOfStream() {
+        return (flags & FLAG_END_OF_STREAM) != 0;
+    }
+}
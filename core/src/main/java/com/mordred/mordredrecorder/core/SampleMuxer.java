@@ -0,0 +1,21 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for interleaved encoded samples, modelled after {@code MediaMuxer}.
+ * All methods are called from the single muxer writer thread.
+ */
+public interface SampleMuxer {
+
+    int addTrack(TrackFormat format);
+
+    void start() throws IOException;
+
+    void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException;
+
+    void stop() throws IOException;
+
+    void release();
+}
@@ -0,0 +1,143 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of {@link EncodedSample}s backed by direct {@link ByteBuffer} slabs.
+ * <p>
+ * Encoder output is copied into a pooled slab so the codec buffer can be released at once.
+ * Samples go back to the pool after the muxer has written them, so steady state recording
+ * does not allocate. When the pool runs dry, or a sample (typically an I-frame) is larger than
+ * every free slab, a new slab is allocated and kept for later bursts.
+ * <p>
+ * {@link #acquire} and {@link EncodedSample#recycle()} may be called from different threads.
+ */
+public class SamplePool {
+
+    private static final int SLAB_ALIGNMENT = 4096;
+
+    private final int slabSize;
+    private EncodedSample[] free;
+    private int freeCount;
+
+    private long hits;
+    private long misses;
+    private int outstanding;
+    private int highWater;
+    private int slabCount;
+    private long slabBytes;
+
+    public SamplePool(int slabSize, int initialSlabs) {
+        if (slabSize <= 0 || initialSlabs < 0) {
+            throw new IllegalArgumentException("slabSize=" + slabSize + ", initialSlabs=" + initialSlabs);
+        }
+        this.slabSize = align(slabSize);
+        free = new EncodedSample[Math.max(initialSlabs, 8)];
+        for (int i = 0; i < initialSlabs; i++) {
+            free[freeCount++] = newSample(this.slabSize);
+        }
+    }
+
+    /**
+     * Pool for a video encoder. Slabs hold twice the average frame size and one second
+     * of frames is allocated up front.
+     */
+    public static SamplePool forVideo(int bitrate, int frameRate) {
+        final int averageFrameBytes = bitrate / 8 / Math.max(frameRate, 1);
+        return new SamplePool(2 * averageFrameBytes, Math.max(frameRate, 8));
+    }
+
+    /**
+     * Pool for an AAC encoder, which emits one frame per 1024 samples.
+     */
+    public static SamplePool forAudio(int bitrate, int sampleRate) {
+        final int framesPerSecond = Math.max(sampleRate / 1024, 1);
+        return new SamplePool(4 * bitrate / 8 / framesPerSecond, framesPerSecond);
+    }
+
+    /**
+     * Returns a sample for {@code track} whose buffer can hold at least {@code size} bytes.
+     */
+    public EncodedSample acquire(int track, int size) {
+        EncodedSample sample = null;
+        synchronized (this) {
+            for (int i = freeCount - 1; i >= 0; i--) {
+                if (free[i].capacity() >= size) {
+                    sample = free[i];
+                    free[i] = free[--freeCount];
+                    free[freeCount] = null;
+                    break;
+                }
+            }
+            if (sample != null) {
+                hits++;
+            } else {
+                misses++;
+                slabCount++;
+                slabBytes += Math.max(slabSize, align(size));
+                if (slabCount > free.length) {
+                    EncodedSample[] grown = new EncodedSample[free.length * 2];
+                    System.arraycopy(free, 0, grown, 0, freeCount);
+                    free = grown;
+                }
+            }
+            outstanding++;
+            highWater = Math.max(highWater, outstanding);
+        }
+        if (sample == null) {
+            sample = new EncodedSample(this, ByteBuffer.allocateDirect(Math.max(slabSize, align(size))));
+        }
+        sample.reset(track);
+        return sample;
+    }
+
+    synchronized void release(EncodedSample sample) {
+        free[freeCount++] = sample;
+        outstanding--;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /** Largest number of samples that were in use at the same time. */
+    public synchronized int getHighWater() {
+        return highWater;
+    }
+
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    public synchronized int getSlabCount() {
+        return slabCount;
+    }
+
+    public synchronized long getSlabBytes() {
+        return slabBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("SamplePool[slabs=%d, bytes=%d, hits=%d, misses=%d, highWater=%d]",
+                slabCount, slabBytes, hits, misses, highWater);
+    }
+
+    private EncodedSample newSample(int capacity) {
+        slabCount++;
+        slabBytes += capacity;
+        return new EncodedSample(this, ByteBuffer.allocateDirect(capacity));
+    }
+
+    private static int align(int size) {
+        return (size + SLAB_ALIGNMENT - 1) & -SLAB_ALIGNMENT;
+    }
+}
@@ -0,0 +1,77 @@
+package com.mordred.mordredrecorder.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free ring queue for exactly one producer thread and one consumer thread.
+ * Capacity is rounded up to a power of two.
+ */
+public final class SampleRingQueue<E> {
+
+    private final Object[] slots;
+    private final int mask;
+    // next index to read, written by the consumer only
+    private final AtomicLong head = new AtomicLong();
+    // next index to write, written by the producer only
+    private final AtomicLong tail = new AtomicLong();
+
+    public SampleRingQueue(int capacity) {
+        if (capacity < 2 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    /** Producer side. Returns false when the queue is full. */
+    public boolean offer(E e) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        final long t = tail.get();
+        if (t - head.get() >= slots.length) {
+            return false;
+        }
+        slots[(int) t & mask] = e;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /** Consumer side. Returns the head element without removing it, or null when empty. */
+    @SuppressWarnings("unchecked")
+    public E peek() {
+        final long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        return (E) slots[(int) h & mask];
+    }
+
+    /** Consumer side. Removes and returns the head element, or null when empty. */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        final long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        final int index = (int) h & mask;
+        final E e = (E) slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return e;
+    }
+
+    public int size() {
+        final long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, slots.length));
+    }
+
+    public boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+}
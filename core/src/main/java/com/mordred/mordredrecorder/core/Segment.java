@@ -0,0 +1,28 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * A finished segment as listed in the {@link SegmentManifest}.
+ */
+public final class Segment {
+
+    public final int index;
+    public final String fileName;
+    /** Presentation time of the first sample relative to the start of the session. */
+    public final long startPtsUs;
+    public final long durationUs;
+    public final long bytes;
+
+    public Segment(int index, String fileName, long startPtsUs, long durationUs, long bytes) {
+        this.index = index;
+        this.fileName = fileName;
+        this.startPtsUs = startPtsUs;
+        this.durationUs = durationUs;
+        this.bytes = bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Segment[" + index + ", " + fileName + ", start=" + startPtsUs + "us, duration="
+                + durationUs + "us, " + bytes + " bytes]";
+    }
+}
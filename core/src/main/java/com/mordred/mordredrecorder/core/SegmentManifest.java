@@ -0,0 +1,66 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tab separated list of the finished segments of a session, appended as each segment is finalized:
+ * <pre>
+ * # index	file	start_pts_us	duration_us	bytes
+ * 1	Record_20220320_011645_001.mp4	0	60000000	75000000
+ * </pre>
+ */
+public class SegmentManifest {
+
+    private static final String HEADER = "# index\tfile\tstart_pts_us\tduration_us\tbytes\n";
+
+    private final File file;
+    private boolean headerWritten;
+
+    public SegmentManifest(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized void append(Segment segment) throws IOException {
+        final Writer writer = new FileWriter(file, headerWritten);
+        try {
+            if (!headerWritten) {
+                writer.write(HEADER);
+                headerWritten = true;
+            }
+            writer.write(segment.index + "\t" + segment.fileName + "\t" + segment.startPtsUs + "\t"
+                    + segment.durationUs + "\t" + segment.bytes + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static List<Segment> read(File file) throws IOException {
+        final List<Segment> segments = new ArrayList<>();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final String[] fields = line.split("\t");
+                segments.add(new Segment(Integer.parseInt(fields[0]), fields[1],
+                        Long.parseLong(fields[2]), Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+            }
+        } finally {
+            reader.close();
+        }
+        return segments;
+    }
+}
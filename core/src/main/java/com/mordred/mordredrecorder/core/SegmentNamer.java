@@ -0,0 +1,53 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Output file names of one recording session, e.g. {@code Record_20220320_011645.mp4}
+ * or {@code Record_20220320_011645_001.mp4} for the first segment.
+ */
+public final class SegmentNamer {
+
+    private final File directory;
+    private final String sessionName;
+
+    public SegmentNamer(File directory, String prefix, long sessionStartMillis) {
+        this.directory = directory;
+        final SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
+        this.sessionName = prefix + "_" + format.format(new Date(sessionStartMillis));
+    }
+
+    public String getSessionName() {
+        return sessionName;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /** File used when the recording is not segmented. */
+    public File singleFile() {
+        return new File(directory, sessionName + ".mp4");
+    }
+
+    /** File of the segment with the given 1-based index. */
+    public File segmentFile(int index) {
+        return new File(directory, String.format(Locale.US, "%s_%03d.mp4", sessionName, index));
+    }
+
+    /** File of an additional rendition, e.g. {@code Record_20220320_011645.proxy.mp4}. */
+    public File renditionFile(String name) {
+        return new File(directory, sessionName + "." + name + ".mp4");
+    }
+
+    public File manifestFile() {
+        return new File(directory, sessionName + ".manifest");
+    }
+
+    public File metricsFile() {
+        return new File(directory, sessionName + ".metrics.txt");
+    }
+}
@@ -0,0 +1,37 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * When to start a new segment. A limit of zero disables that limit; rotation itself
+ * only happens on a video key frame so that every segment starts decodable.
+ */
+public final class SegmentPolicy {
+
+    public final long maxDurationUs;
+    public final long maxBytes;
+
+    public SegmentPolicy(long maxDurationUs, long maxBytes) {
+        if (maxDurationUs < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("negative segment limit");
+        }
+        this.maxDurationUs = maxDurationUs;
+        this.maxBytes = maxBytes;
+    }
+
+    public static SegmentPolicy byDuration(long maxDurationUs) {
+        return new SegmentPolicy(maxDurationUs, 0);
+    }
+
+    public static SegmentPolicy bySize(long maxBytes) {
+        return new SegmentPolicy(0, maxBytes);
+    }
+
+    public boolean shouldRotate(long segmentDurationUs, long segmentBytes) {
+        return (maxDurationUs > 0 && segmentDurationUs >= maxDurationUs)
+                || (maxBytes > 0 && segmentBytes >= maxBytes);
+    }
+
+    @Override
+    public String toString() {
+        return "SegmentPolicy[maxDurationUs=" + maxDurationUs + ", maxBytes=" + maxBytes + "]";
+    }
+}
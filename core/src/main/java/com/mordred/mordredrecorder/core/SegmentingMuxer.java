@@ -0,0 +1,185 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Splits a recording into segments according to a {@link SegmentPolicy}.
+ * <p>
+ * Rotation happens on the first video key frame after a limit is reached (on any sample for
+ * audio-only recordings). The next segment is opened and started before the previous one is
+ * handed to a background finalizer, which stops and releases it and appends it to the
+ * {@link SegmentManifest}, so no sample is dropped and the writer thread never waits for a
+ * file to be closed. Timestamps are rebased so that each segment starts at zero.
+ */
+public class SegmentingMuxer implements SampleMuxer {
+
+    private static final long FINALIZE_TIMEOUT_SECONDS = 30;
+
+    private final MuxerFactory muxerFactory;
+    private final SegmentNamer namer;
+    private final SegmentPolicy policy;
+    private final SegmentManifest manifest;
+    private final ExecutorService finalizer;
+    private final List<TrackFormat> formats = new ArrayList<>();
+    private final List<Segment> segments = Collections.synchronizedList(new ArrayList<Segment>());
+    private final SampleInfo rebasedInfo = new SampleInfo();
+
+    private volatile IOException finalizeError;
+
+    private boolean hasVideo;
+    private SampleMuxer current;
+    private int segmentIndex;
+    private long segmentStartUs = -1;
+    private long segmentLastUs;
+    private long segmentBytes;
+
+    /**
+     * @param manifest receives every finalized segment, may be null
+     */
+    public SegmentingMuxer(MuxerFactory muxerFactory, SegmentNamer namer, SegmentPolicy policy,
+                           SegmentManifest manifest) {
+        this.muxerFactory = muxerFactory;
+        this.namer = namer;
+        this.policy = policy;
+        this.manifest = manifest;
+        this.finalizer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "SegmentFinalizer");
+            }
+        });
+    }
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (current != null) {
+            throw new IllegalStateException("addTrack after start");
+        }
+        formats.add(format);
+        hasVideo |= format.isVideo();
+        return formats.size() - 1;
+    }
+
+    @Override
+    public void start() throws IOException {
+        current = openSegment(++segmentIndex);
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) throws IOException {
+        if (finalizeError != null) {
+            throw finalizeError;
+        }
+        final long ptsUs = info.presentationTimeUs;
+        if (segmentStartUs < 0) {
+            segmentStartUs = ptsUs;
+        } else if (isBoundary(trackIndex, info)
+                && policy.shouldRotate(ptsUs - segmentStartUs, segmentBytes)) {
+            rotate(ptsUs);
+        }
+        rebasedInfo.copyFrom(info);
+        rebasedInfo.presentationTimeUs = Math.max(0, ptsUs - segmentStartUs);
+        current.writeSampleData(trackIndex, data, rebasedInfo);
+        segmentBytes += info.size;
+        segmentLastUs = Math.max(segmentLastUs, ptsUs);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        if (current == null) {
+            return;
+        }
+        final long startUs = Math.max(segmentStartUs, 0);
+        finalizeAsync(current, segmentIndex, startUs, Math.max(0, segmentLastUs - startUs));
+        current = null;
+        finalizer.shutdown();
+        try {
+            if (!finalizer.awaitTermination(FINALIZE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("segment finalizer timed out");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while finalizing segments", e);
+        }
+        if (finalizeError != null) {
+            throw finalizeError;
+        }
+    }
+
+    @Override
+    public void release() {
+        if (current != null) {
+            current.release();
+            current = null;
+        }
+        finalizer.shutdown();
+    }
+
+    /** Segments finalized so far, in order. */
+    public List<Segment> getSegments() {
+        synchronized (segments) {
+            return new ArrayList<>(segments);
+        }
+    }
+
+    public int getSegmentIndex() {
+        return segmentIndex;
+    }
+
+    private boolean isBoundary(int trackIndex, SampleInfo info) {
+        return !hasVideo || (formats.get(trackIndex).isVideo() && info.isKeyFrame());
+    }
+
+    private void rotate(long nextStartUs) throws IOException {
+        final SampleMuxer next = openSegment(segmentIndex + 1);
+        finalizeAsync(current, segmentIndex, segmentStartUs, nextStartUs - segmentStartUs);
+        current = next;
+        segmentIndex++;
+        segmentStartUs = nextStartUs;
+        segmentLastUs = nextStartUs;
+        segmentBytes = 0;
+    }
+
+    private SampleMuxer openSegment(int index) throws IOException {
+        final SampleMuxer muxer = muxerFactory.create(namer.segmentFile(index).getPath());
+        for (TrackFormat format : formats) {
+            muxer.addTrack(format);
+        }
+        muxer.start();
+        return muxer;
+    }
+
+    private void finalizeAsync(final SampleMuxer muxer, final int index, final long startUs,
+                               final long durationUs) {
+        finalizer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    muxer.stop();
+                    final File file = namer.segmentFile(index);
+                    final Segment segment = new Segment(index, file.getName(), startUs, durationUs, file.length());
+                    segments.add(segment);
+                    if (manifest != null) {
+                        manifest.append(segment);
+                    }
+                } catch (Exception e) {
+                    if (finalizeError == null) {
+                        finalizeError = e instanceof IOException
+                                ? (IOException) e : new IOException("finalizing segment " + index + " failed", e);
+                    }
+                } finally {
+                    muxer.release();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,191 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides, chunk by chunk, whether captured 16 bit PCM is silent enough to skip encoding.
+ * <p>
+ * A chunk is quiet when both its RMS and its peak level stay below their thresholds. The gate
+ * closes once the quiet audio has lasted longer than the hangover, so pauses between words
+ * or notes are still encoded, and opens again with the first chunk that is not quiet. While
+ * it is closed the caller writes {@link #silentAacFrame} in place of each chunk, with the
+ * timestamp the chunk would have had. The analysis works on the caller's buffers with no
+ * allocation.
+ */
+public class SilenceGate {
+
+    public static final float DEFAULT_RMS_THRESHOLD_DBFS = -70f;
+    public static final float DEFAULT_PEAK_THRESHOLD_DBFS = -60f;
+    public static final int DEFAULT_HANGOVER_MS = 500;
+
+    /** PCM frames an AAC-LC frame holds. */
+    public static final int AAC_FRAME_SIZE = 1024;
+
+    private static final double FULL_SCALE = 32768;
+
+    private final int channelCount;
+    private final double rmsLimit;
+    private final int peakLimit;
+    private final long hangoverFrames;
+
+    private long quietFrames;
+    private boolean closed;
+    private long frames;
+    private long gatedFrames;
+    private long closings;
+
+    public SilenceGate(int sampleRate, int channelCount) {
+        this(sampleRate, channelCount, DEFAULT_RMS_THRESHOLD_DBFS, DEFAULT_PEAK_THRESHOLD_DBFS, DEFAULT_HANGOVER_MS);
+    }
+
+    /**
+     * @param rmsThresholdDbfs RMS level, in dB relative to full scale, below which a chunk is quiet
+     * @param peakThresholdDbfs level no sample of a quiet chunk may reach
+     * @param hangoverMs how long audio must stay quiet before the gate closes
+     */
+    public SilenceGate(int sampleRate, int channelCount, float rmsThresholdDbfs, float peakThresholdDbfs,
+                       int hangoverMs) {
+        if (sampleRate <= 0 || channelCount < 1 || hangoverMs < 0
+                || !(rmsThresholdDbfs <= 0) || !(peakThresholdDbfs <= 0)) {
+            throw new IllegalArgumentException("sampleRate=" + sampleRate + ", channelCount=" + channelCount
+                    + ", rmsThresholdDbfs=" + rmsThresholdDbfs + ", peakThresholdDbfs=" + peakThresholdDbfs
+                    + ", hangoverMs=" + hangoverMs);
+        }
+        this.channelCount = channelCount;
+        this.rmsLimit = FULL_SCALE * Math.pow(10, rmsThresholdDbfs / 20.0);
+        this.peakLimit = (int) Math.ceil(FULL_SCALE * Math.pow(10, peakThresholdDbfs / 20.0));
+        this.hangoverFrames = (long) hangoverMs * sampleRate / 1000;
+    }
+
+    /**
+     * Takes the next {@code count} interleaved samples of {@code pcm}. Returns true if the gate
+     * is closed and the chunk is to be replaced by silence.
+     */
+    public boolean gate(short[] pcm, int offset, int count) {
+        long sumSquares = 0;
+        int peak = 0;
+        for (int i = 0; i < count; i++) {
+            final int sample = pcm[offset + i];
+            sumSquares += sample * sample;
+            peak = Math.max(peak, Math.abs(sample));
+        }
+        return update(sumSquares, peak, count);
+    }
+
+    /**
+     * Same as {@link #gate(short[], int, int)} for {@code bytes} of 16 bit PCM in {@code pcm}
+     * from {@code offset}, in the buffer's byte order. The buffer's position is not changed.
+     */
+    public boolean gate(ByteBuffer pcm, int offset, int bytes) {
+        long sumSquares = 0;
+        int peak = 0;
+        final int end = offset + (bytes & ~1);
+        for (int i = offset; i < end; i += 2) {
+            final int sample = pcm.getShort(i);
+            sumSquares += sample * sample;
+            peak = Math.max(peak, Math.abs(sample));
+        }
+        return update(sumSquares, peak, bytes / 2);
+    }
+
+    private boolean update(long sumSquares, int peak, int samples) {
+        final int chunkFrames = samples / channelCount;
+        frames += chunkFrames;
+        // sumSquares / samples < rmsLimit^2, without the division
+        final boolean quiet = samples > 0 && peak < peakLimit && sumSquares < rmsLimit * rmsLimit * samples;
+        if (!quiet) {
+            quietFrames = 0;
+            closed = false;
+            return false;
+        }
+        quietFrames += chunkFrames;
+        if (quietFrames > hangoverFrames) {
+            if (!closed) {
+                closings++;
+                closed = true;
+            }
+            gatedFrames += chunkFrames;
+        }
+        return closed;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** PCM frames seen so far. */
+    public long getFrames() {
+        return frames;
+    }
+
+    /** PCM frames that were replaced by silence. */
+    public long getGatedFrames() {
+        return gatedFrames;
+    }
+
+    /** Times the gate has closed. */
+    public long getClosings() {
+        return closings;
+    }
+
+    /**
+     * A raw AAC-LC frame, as an AAC encoder outputs it, that decodes to {@link #AAC_FRAME_SIZE}
+     * frames of silence: one channel element per stream with no scale factor bands, so it has
+     * no spectral data at all, followed by the end element. Only mono and stereo are supported,
+     * as in {@link AudioFormatPlan}.
+     */
+    public static ByteBuffer silentAacFrame(int channelCount) {
+        if (channelCount != 1 && channelCount != 2) {
+            throw new IllegalArgumentException("unsupported channel count " + channelCount);
+        }
+        final BitWriter w = new BitWriter();
+        if (channelCount == 1) {
+            // single_channel_element, element_instance_tag 0
+            w.write(0, 3).write(0, 4);
+            writeSilentChannelStream(w);
+        } else {
+            // channel_pair_element, element_instance_tag 0, common_window 0
+            w.write(1, 3).write(0, 4).write(0, 1);
+            writeSilentChannelStream(w);
+            writeSilentChannelStream(w);
+        }
+        // the end element, then padding to the next byte
+        w.write(7, 3);
+        return w.toByteBuffer();
+    }
+
+    /** An individual_channel_stream holding nothing. */
+    private static void writeSilentChannelStream(BitWriter w) {
+        // global_gain, no decoder uses it without scale factor bands
+        w.write(100, 8);
+        // ics_info: reserved bit, ONLY_LONG_SEQUENCE, sine window, max_sfb 0, no prediction
+        w.write(0, 1).write(0, 2).write(0, 1).write(0, 6).write(0, 1);
+        // no section or scale factor data for zero bands; no pulse, TNS or gain control data
+        w.write(0, 1).write(0, 1).write(0, 1);
+    }
+
+    @Override
+    public String toString() {
+        return "SilenceGate[frames=" + frames + ", gatedFrames=" + gatedFrames + ", closings=" + closings
+                + ", closed=" + closed + "]";
+    }
+
+    private static final class BitWriter {
+        private final byte[] bytes = new byte[16];
+        private int bits;
+
+        BitWriter write(int value, int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                if ((value >>> i & 1) != 0) {
+                    bytes[bits >> 3] |= 0x80 >>> (bits & 7);
+                }
+                bits++;
+            }
+            return this;
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, (bits + 7) / 8).slice();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.mordred.mordredrecorder.core;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Passes the latest {@link RecordingStatus} to listeners at most once per
+ * {@code minIntervalNs}. The recorder may publish as often as it likes from any thread;
+ * statuses published between two deliveries collapse into the last one, and a status equal
+ * to the one delivered last is not delivered again. A change of {@link RecordingStatus.State}
+ * is delivered right away, so buttons follow a pause or stop without waiting out the interval.
+ * <p>
+ * Deliveries run on the {@link Scheduler}, e.g. a main thread handler, so listeners are
+ * called on one thread.
+ */
+public class StatusCoalescer {
+
+    public static final long DEFAULT_MIN_INTERVAL_NS = 250000000L;
+
+    public interface Listener {
+        void onStatus(RecordingStatus status);
+    }
+
+    /** Runs tasks after a delay, in order of their due time. */
+    public interface Scheduler {
+        void schedule(Runnable task, long delayNs);
+    }
+
+    private final Scheduler scheduler;
+    private final TimeSource timeSource;
+    private final long minIntervalNs;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private RecordingStatus latest = RecordingStatus.STOPPED;
+    private RecordingStatus delivered;
+    private long lastDeliveryNs;
+    // a delivery task only runs if no later one replaced it
+    private int generation;
+    private boolean pending;
+
+    public StatusCoalescer(Scheduler scheduler, TimeSource timeSource) {
+        this(scheduler, timeSource, DEFAULT_MIN_INTERVAL_NS);
+    }
+
+    public StatusCoalescer(Scheduler scheduler, TimeSource timeSource, long minIntervalNs) {
+        this.scheduler = scheduler;
+        this.timeSource = timeSource;
+        this.minIntervalNs = minIntervalNs;
+    }
+
+    /** Adds {@code listener} and hands it the latest status. */
+    public void addListener(final Listener listener) {
+        listeners.add(listener);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (listeners.contains(listener)) {
+                    listener.onStatus(getLatest());
+                }
+            }
+        }, 0);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public synchronized RecordingStatus getLatest() {
+        return latest;
+    }
+
+    public synchronized void publish(RecordingStatus status) {
+        latest = status;
+        final boolean stateChanged = delivered == null || status.state != delivered.state;
+        if (pending && !stateChanged) {
+            return;
+        }
+        final long now = timeSource.nanoTime();
+        final long delayNs = stateChanged || delivered == null
+                ? 0 : Math.max(0, lastDeliveryNs + minIntervalNs - now);
+        pending = true;
+        final int scheduled = ++generation;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                deliver(scheduled);
+            }
+        }, delayNs);
+    }
+
+    private void deliver(int scheduled) {
+        final RecordingStatus status;
+        synchronized (this) {
+            if (scheduled != generation) {
+                return;
+            }
+            pending = false;
+            if (latest.equals(delivered)) {
+                return;
+            }
+            status = latest;
+            delivered = status;
+            lastDeliveryNs = timeSource.nanoTime();
+        }
+        for (Listener listener : listeners) {
+            listener.onStatus(status);
+        }
+    }
+}
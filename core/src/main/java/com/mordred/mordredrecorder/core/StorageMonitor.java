@@ -0,0 +1,158 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.File;
+
+/**
+ * Watches the free space and the write bandwidth of the storage a recording goes to, fed by
+ * {@link StorageWriter}s, and tells the recorder when to lower the bitrate or to stop while
+ * the recording can still be finalized:
+ * <ul>
+ * <li>{@link StorageStatus.Level#CRITICAL} once an allocation failed for lack of space, or
+ * less than the reserve or {@code criticalUs} of recording is left;</li>
+ * <li>{@link StorageStatus.Level#LOW_SPACE} with less than {@code lowUs} left;</li>
+ * <li>{@link StorageStatus.Level#SLOW} while the data rate is above {@link #SLOW_RATIO} of the
+ * bandwidth the storage showed while writing.</li>
+ * </ul>
+ * Rates are measured over the last one to two {@link #WINDOW_NS}. Writers report from their
+ * thread, {@link #check()} may be called from any other.
+ */
+public class StorageMonitor {
+
+    public static final long DEFAULT_RESERVE_BYTES = 32L * 1024 * 1024;
+    public static final long DEFAULT_CRITICAL_US = 15000000;
+    public static final long DEFAULT_LOW_US = 300000000;
+    public static final float SLOW_RATIO = 0.8f;
+    public static final long WINDOW_NS = 10000000000L;
+    // rates over less time than this are too noisy to act on
+    private static final long MIN_ELAPSED_NS = 1000000000L;
+
+    /** Usable bytes of a file system. */
+    public interface FreeSpace {
+        long getUsableSpace();
+    }
+
+    /** Free space of the file system holding {@code directory}. */
+    public static FreeSpace freeSpaceOf(final File directory) {
+        return new FreeSpace() {
+            @Override
+            public long getUsableSpace() {
+                return directory.getUsableSpace();
+            }
+        };
+    }
+
+    private final FreeSpace freeSpace;
+    private final TimeSource timeSource;
+    private final long reserveBytes;
+    private final long criticalUs;
+    private final long lowUs;
+
+    private long spareBytes;
+    private boolean exhausted;
+    private long windowStartNs = -1;
+    private long windowBytes;
+    private long windowBusyNs;
+    private long previousStartNs = -1;
+    private long previousBytes;
+    private long previousBusyNs;
+
+    public StorageMonitor(FreeSpace freeSpace, TimeSource timeSource) {
+        this(freeSpace, timeSource, DEFAULT_RESERVE_BYTES, DEFAULT_CRITICAL_US, DEFAULT_LOW_US);
+    }
+
+    public StorageMonitor(FreeSpace freeSpace, TimeSource timeSource, long reserveBytes, long criticalUs,
+                          long lowUs) {
+        if (criticalUs <= 0 || lowUs < criticalUs) {
+            throw new IllegalArgumentException("critical " + criticalUs + "us, low " + lowUs + "us");
+        }
+        this.freeSpace = freeSpace;
+        this.timeSource = timeSource;
+        this.reserveBytes = reserveBytes;
+        this.criticalUs = criticalUs;
+        this.lowUs = lowUs;
+    }
+
+    /** {@code bytes} were written in {@code nanos}, {@code fromSpare} of them into preallocated space. */
+    public synchronized void onWrite(long bytes, long nanos, long fromSpare) {
+        roll(timeSource.nanoTime());
+        windowBytes += bytes;
+        windowBusyNs += nanos;
+        spareBytes = Math.max(0, spareBytes - fromSpare);
+    }
+
+    /** {@code bytes} were preallocated ahead of the writes. */
+    public synchronized void onAllocated(long bytes) {
+        spareBytes += bytes;
+    }
+
+    /** Preallocated {@code bytes} were given back unwritten. */
+    public synchronized void onReleased(long bytes) {
+        spareBytes = Math.max(0, spareBytes - bytes);
+    }
+
+    /** An allocation failed for lack of space; every later check is critical. */
+    public synchronized void onSpaceExhausted() {
+        exhausted = true;
+    }
+
+    public synchronized StorageStatus check() {
+        final long now = timeSource.nanoTime();
+        roll(now);
+        final long free = freeSpace.getUsableSpace() + spareBytes;
+        final long available = free - reserveBytes;
+        final long dataRate = dataRate(now);
+        final long bandwidth = bandwidth();
+        final long remainingUs = dataRate > 0 ? Math.max(0, available) * 1000000 / dataRate : Long.MAX_VALUE;
+
+        StorageStatus.Level level = StorageStatus.Level.OK;
+        long maxDataRate = Long.MAX_VALUE;
+        if (exhausted || available <= 0 || remainingUs < criticalUs) {
+            level = StorageStatus.Level.CRITICAL;
+            maxDataRate = 0;
+        } else if (remainingUs < lowUs) {
+            level = StorageStatus.Level.LOW_SPACE;
+            maxDataRate = available * 1000000 / lowUs;
+        }
+        if (bandwidth > 0 && dataRate > bandwidth * SLOW_RATIO && level != StorageStatus.Level.CRITICAL) {
+            if (level == StorageStatus.Level.OK) {
+                level = StorageStatus.Level.SLOW;
+            }
+            maxDataRate = Math.min(maxDataRate, (long) (bandwidth * SLOW_RATIO));
+        }
+        return new StorageStatus(level, free, remainingUs, bandwidth, dataRate, maxDataRate);
+    }
+
+    /** Starts a new window once the current one is {@link #WINDOW_NS} old. */
+    private void roll(long now) {
+        if (windowStartNs < 0) {
+            windowStartNs = now;
+            return;
+        }
+        if (now - windowStartNs < WINDOW_NS) {
+            return;
+        }
+        if (now - windowStartNs < 2 * WINDOW_NS) {
+            previousStartNs = windowStartNs;
+            previousBytes = windowBytes;
+            previousBusyNs = windowBusyNs;
+        } else {
+            // nothing written for a whole window
+            previousStartNs = now - WINDOW_NS;
+            previousBytes = 0;
+            previousBusyNs = 0;
+        }
+        windowStartNs = now;
+        windowBytes = 0;
+        windowBusyNs = 0;
+    }
+
+    private long dataRate(long now) {
+        final long elapsed = now - (previousStartNs >= 0 ? previousStartNs : windowStartNs);
+        return elapsed >= MIN_ELAPSED_NS ? (previousBytes + windowBytes) * 1000000000L / elapsed : 0;
+    }
+
+    private long bandwidth() {
+        final long busy = previousBusyNs + windowBusyNs;
+        return busy > 0 ? (long) ((previousBytes + windowBytes) * 1e9 / busy) : 0;
+    }
+}
@@ -0,0 +1,47 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * What the storage under a recording could take at the last {@link StorageMonitor#check()}.
+ */
+public final class StorageStatus {
+
+    public enum Level {
+        /** Enough space and bandwidth. */
+        OK,
+        /** The recording writes close to what the storage sustains. */
+        SLOW,
+        /** Space runs out within minutes at the current data rate. */
+        LOW_SPACE,
+        /** Stop now, while the recording can still be finalized. */
+        CRITICAL
+    }
+
+    public final Level level;
+    /** Usable bytes, including space preallocated but not written yet. */
+    public final long freeBytes;
+    /** Time until the reserve is reached at the current data rate, {@link Long#MAX_VALUE} if unknown. */
+    public final long remainingUs;
+    /** Bytes per second the storage took while writing, 0 if unknown. */
+    public final long writeBandwidthBytesPerSec;
+    /** Bytes per second the recording wrote, 0 if unknown. */
+    public final long dataRateBytesPerSec;
+    /** Data rate to stay under to leave this level, {@link Long#MAX_VALUE} without limit. */
+    public final long maxDataRateBytesPerSec;
+
+    public StorageStatus(Level level, long freeBytes, long remainingUs, long writeBandwidthBytesPerSec,
+                         long dataRateBytesPerSec, long maxDataRateBytesPerSec) {
+        this.level = level;
+        this.freeBytes = freeBytes;
+        this.remainingUs = remainingUs;
+        this.writeBandwidthBytesPerSec = writeBandwidthBytesPerSec;
+        this.dataRateBytesPerSec = dataRateBytesPerSec;
+        this.maxDataRateBytesPerSec = maxDataRateBytesPerSec;
+    }
+
+    @Override
+    public String toString() {
+        return "StorageStatus[" + level + ", free=" + freeBytes + "B, remaining="
+                + (remainingUs == Long.MAX_VALUE ? "?" : remainingUs / 1000000 + "s")
+                + ", bandwidth=" + writeBandwidthBytesPerSec + "B/s, rate=" + dataRateBytesPerSec + "B/s]";
+    }
+}
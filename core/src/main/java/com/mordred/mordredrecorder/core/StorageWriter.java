@@ -0,0 +1,225 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link FileChannel} that preallocates the file in extents ahead of the writes, so a full
+ * disk shows up as a failed allocation while the recording can still be finalized instead of
+ * as a failed write in the middle of a fragment, and so the file system lays the recording out
+ * in large contiguous blocks. Every write is timed and reported to a {@link StorageMonitor}.
+ * <p>
+ * {@link #size()} is the size written so far; the unwritten tail is cut off on {@link #close()}.
+ * Writes go straight to the file, the caller batches them ({@link FragmentedMp4Muxer} writes
+ * each fragment with one gathering write).
+ */
+public class StorageWriter extends FileChannel {
+
+    public static final long DEFAULT_EXTENT_BYTES = 8L * 1024 * 1024;
+
+    /** Reserves file space, e.g. with {@code posix_fallocate}. */
+    public interface Allocator {
+        /**
+         * Allocates {@code length} bytes at {@code position}, growing the file. Returns false
+         * if the storage is out of space; throws if preallocation is not supported.
+         */
+        boolean allocate(long position, long length) throws IOException;
+    }
+
+    private final FileChannel delegate;
+    private final Allocator allocator;
+    private final StorageMonitor monitor;
+    private final TimeSource timeSource;
+    private final long extentBytes;
+
+    private long size;
+    private long allocatedEnd;
+    private boolean allocating;
+
+    /**
+     * @param allocator null to write without preallocation
+     */
+    public StorageWriter(FileChannel delegate, Allocator allocator, StorageMonitor monitor) throws IOException {
+        this(delegate, allocator, monitor, TimeSource.SYSTEM, DEFAULT_EXTENT_BYTES);
+    }
+
+    public StorageWriter(FileChannel delegate, Allocator allocator, StorageMonitor monitor, TimeSource timeSource,
+                         long extentBytes) throws IOException {
+        if (extentBytes <= 0) {
+            throw new IllegalArgumentException("extent " + extentBytes);
+        }
+        this.delegate = delegate;
+        this.allocator = allocator;
+        this.monitor = monitor;
+        this.timeSource = timeSource;
+        this.extentBytes = extentBytes;
+        this.size = delegate.size();
+        this.allocatedEnd = size;
+        this.allocating = allocator != null;
+    }
+
+    /** False once an allocation failed; the writes then grow the file as they go. */
+    public boolean isPreallocating() {
+        return allocating;
+    }
+
+    /** End of the space preallocated so far. */
+    public long getAllocatedEnd() {
+        return allocatedEnd;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        final long position = delegate.position();
+        beforeWrite(position + src.remaining());
+        final long start = timeSource.nanoTime();
+        final int written = delegate.write(src);
+        afterWrite(position, written, start);
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long remaining = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remaining += srcs[i].remaining();
+        }
+        final long position = delegate.position();
+        beforeWrite(position + remaining);
+        final long start = timeSource.nanoTime();
+        final long written = delegate.write(srcs, offset, length);
+        afterWrite(position, written, start);
+        return written;
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        beforeWrite(position + src.remaining());
+        final long start = timeSource.nanoTime();
+        final int written = delegate.write(src, position);
+        afterWrite(position, written, start);
+        return written;
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        beforeWrite(position + count);
+        final long start = timeSource.nanoTime();
+        final long written = delegate.transferFrom(src, position, count);
+        afterWrite(position, written, start);
+        return written;
+    }
+
+    /** Allocates the extents up to the one holding {@code end}. */
+    private void beforeWrite(long end) throws IOException {
+        if (!allocating || end <= allocatedEnd) {
+            return;
+        }
+        final long target = (end / extentBytes + 1) * extentBytes;
+        try {
+            if (allocator.allocate(allocatedEnd, target - allocatedEnd)) {
+                monitor.onAllocated(target - allocatedEnd);
+                allocatedEnd = target;
+                return;
+            }
+            monitor.onSpaceExhausted();
+        } catch (IOException e) {
+            // not supported by the file system, keep writing without
+        }
+        allocating = false;
+    }
+
+    private void afterWrite(long position, long written, long startNs) {
+        final long nanos = timeSource.nanoTime() - startNs;
+        final long end = position + written;
+        final long fromSpare = Math.max(0, Math.min(end, allocatedEnd) - Math.max(position, size));
+        monitor.onWrite(written, nanos, fromSpare);
+        size = Math.max(size, end);
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+        delegate.truncate(size);
+        if (size < allocatedEnd) {
+            monitor.onReleased(Math.max(0, allocatedEnd - Math.max(size, this.size)));
+            allocatedEnd = size;
+        }
+        this.size = Math.min(this.size, size);
+        return this;
+    }
+
+    @Override
+    public long position() throws IOException {
+        return delegate.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+        delegate.position(newPosition);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+        delegate.force(metaData);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return delegate.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        return delegate.read(dsts, offset, length);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+        return delegate.read(dst, position);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        return delegate.transferTo(position, Math.max(0, Math.min(count, size - position)), target);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        return delegate.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+        return delegate.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+        return delegate.tryLock(position, size, shared);
+    }
+
+    /** Cuts off the preallocated space not written and closes the file. */
+    @Override
+    protected void implCloseChannel() throws IOException {
+        try {
+            if (allocatedEnd > size) {
+                delegate.truncate(size);
+                monitor.onReleased(allocatedEnd - size);
+                allocatedEnd = size;
+            }
+        } finally {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Source of monotonic time, replaceable so that clocks can be tested deterministically.
+ */
+public interface TimeSource {
+
+    /** {@link System#nanoTime()}, which is CLOCK_MONOTONIC on Android like media timestamps. */
+    TimeSource SYSTEM = new TimeSource() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    long nanoTime();
+}
@@ -0,0 +1,66 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Platform independent description of an encoded track, the subset of
+ * {@code MediaFormat} a muxer needs. Codec specific data buffers are copied.
+ */
+public final class TrackFormat {
+
+    public static final String MIME_AVC = "video/avc";
+    public static final String MIME_HEVC = "video/hevc";
+    public static final String MIME_AAC = "audio/mp4a-latm";
+
+    public final String mime;
+    public final int width;
+    public final int height;
+    public final int sampleRate;
+    public final int channelCount;
+    private final ByteBuffer[] csd;
+
+    private TrackFormat(String mime, int width, int height, int sampleRate, int channelCount,
+                        ByteBuffer[] csd) {
+        this.mime = mime;
+        this.width = width;
+        this.height = height;
+        this.sampleRate = sampleRate;
+        this.channelCount = channelCount;
+        this.csd = new ByteBuffer[csd.length];
+        for (int i = 0; i < csd.length; i++) {
+            ByteBuffer src = csd[i].duplicate();
+            ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+            copy.put(src);
+            copy.flip();
+            this.csd[i] = copy;
+        }
+    }
+
+    public static TrackFormat video(String mime, int width, int height, ByteBuffer... csd) {
+        return new TrackFormat(mime, width, height, 0, 0, csd);
+    }
+
+    public static TrackFormat audio(String mime, int sampleRate, int channelCount, ByteBuffer... csd) {
+        return new TrackFormat(mime, 0, 0, sampleRate, channelCount, csd);
+    }
+
+    public boolean isVideo() {
+        return mime.startsWith("video/");
+    }
+
+    public int getCsdCount() {
+        return csd.length;
+    }
+
+    /** Returns a read-only view of the {@code csd-<index>} buffer. */
+    public ByteBuffer getCsd(int index) {
+        return csd[index].asReadOnlyBuffer();
+    }
+
+    @Override
+    public String toString() {
+        return isVideo()
+                ? String.format("%s %dx%d", mime, width, height)
+                : String.format("%s %dHz %dch", mime, sampleRate, channelCount);
+    }
+}
@@ -0,0 +1,39 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Video encoder settings for one recording, as picked by {@link VideoProfileSelector}.
+ */
+public final class VideoProfile {
+
+    public static final int DEFAULT_KEY_FRAME_INTERVAL_SEC = 5;
+
+    /** Encoder to create by name, or null for the platform default of {@link #mime}. */
+    public final String encoderName;
+    public final String mime;
+    public final int width;
+    public final int height;
+    public final int frameRate;
+    public final int bitrate;
+    public final int keyFrameIntervalSec;
+
+    public VideoProfile(String encoderName, String mime, int width, int height, int frameRate,
+                        int bitrate, int keyFrameIntervalSec) {
+        if (width <= 0 || height <= 0 || frameRate <= 0 || bitrate <= 0 || keyFrameIntervalSec <= 0) {
+            throw new IllegalArgumentException("invalid video profile " + width + "x" + height
+                    + "@" + frameRate + " " + bitrate + " bit/s");
+        }
+        this.encoderName = encoderName;
+        this.mime = mime;
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+        this.bitrate = bitrate;
+        this.keyFrameIntervalSec = keyFrameIntervalSec;
+    }
+
+    @Override
+    public String toString() {
+        return (encoderName != null ? encoderName : mime) + " " + width + "x" + height + "@" + frameRate
+                + " " + bitrate + " bit/s, key frame every " + keyFrameIntervalSec + " s";
+    }
+}
@@ -0,0 +1,98 @@
+package com.mordred.mordredrecorder.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Picks the encoder, size, frame rate and bitrate for a {@link QualityTier} from probed
+ * {@link EncoderCapabilities}.
+ * <p>
+ * Hardware encoders are always preferred over software ones. Among them the tier's frame
+ * rates are tried in order, and for each the codecs in order of preference, taking the
+ * largest size that fits into the tier's box, the encoder's limits and its alignment. A
+ * size smaller than the tier's minimum is only accepted when nothing else fits. The display
+ * is never upscaled.
+ */
+public class VideoProfileSelector {
+
+    /** Bitrate of HEVC relative to AVC at similar quality. */
+    static final float HEVC_BITRATE_FACTOR = 0.6f;
+
+    private final List<EncoderCapabilities> encoders;
+    private final List<String> mimes;
+
+    /**
+     * @param mimes codecs that may be used, most preferred first
+     */
+    public VideoProfileSelector(List<EncoderCapabilities> encoders, String... mimes) {
+        this.encoders = new ArrayList<>(encoders);
+        this.mimes = Arrays.asList(mimes);
+    }
+
+    /**
+     * Returns the best profile for capturing a {@code displayWidth} x {@code displayHeight}
+     * display, or null if no usable encoder is known.
+     */
+    public VideoProfile select(int displayWidth, int displayHeight, QualityTier tier) {
+        final int[] frameRates = tier.getFrameRates();
+        // a display smaller than the tier's minimum is recorded as it is
+        final int minShortSide = Math.min(tier.minShortSide, Math.min(displayWidth, displayHeight));
+        for (boolean hardware : new boolean[] {true, false}) {
+            for (int frameRate : frameRates) {
+                for (String mime : mimes) {
+                    for (EncoderCapabilities encoder : encoders) {
+                        if (encoder.hardwareAccelerated != hardware || !mime.equals(encoder.mime)) {
+                            continue;
+                        }
+                        final VideoProfile profile = fit(encoder, displayWidth, displayHeight, tier, frameRate);
+                        if (profile != null && Math.min(profile.width, profile.height) >= minShortSide) {
+                            return profile;
+                        }
+                    }
+                }
+            }
+        }
+        // nothing reaches the tier's minimum size, take whatever fits at the lowest frame rate
+        final int lowestFrameRate = frameRates[frameRates.length - 1];
+        for (boolean hardware : new boolean[] {true, false}) {
+            for (String mime : mimes) {
+                for (EncoderCapabilities encoder : encoders) {
+                    if (encoder.hardwareAccelerated == hardware && mime.equals(encoder.mime)) {
+                        final VideoProfile profile = fit(encoder, displayWidth, displayHeight, tier, lowestFrameRate);
+                        if (profile != null) {
+                            return profile;
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Bitrate for a size and frame rate; doubling the frame rate costs less than double. */
+    public static int bitrateFor(QualityTier tier, String mime, int width, int height, int frameRate) {
+        double bitrate = tier.bitsPerPixel * width * height * 30 * Math.pow(frameRate / 30.0, 0.75);
+        if (TrackFormat.MIME_HEVC.equals(mime)) {
+            bitrate *= HEVC_BITRATE_FACTOR;
+        }
+        return (int) bitrate;
+    }
+
+    /** Largest aligned size of the display the encoder takes at {@code frameRate}, or null. */
+    static VideoProfile fit(EncoderCapabilities encoder, int displayWidth, int displayHeight,
+                            QualityTier tier, int frameRate) {
+        final int longSide = Math.max(displayWidth, displayHeight);
+        final int shortSide = Math.min(displayWidth, displayHeight);
+        final double scale = Math.min(Math.min((double) tier.maxLongSide / longSide,
+                (double) tier.maxShortSide / shortSide),
+                EncoderFit.maxScale(encoder, displayWidth, displayHeight, frameRate));
+        final int[] size = EncoderFit.fit(encoder, displayWidth, displayHeight, scale, frameRate);
+        if (size == null) {
+            return null;
+        }
+        final int bitrate = encoder.clampBitrate(bitrateFor(tier, encoder.mime, size[0], size[1], frameRate));
+        return new VideoProfile(encoder.name, encoder.mime, size[0], size[1], frameRate, bitrate,
+                VideoProfile.DEFAULT_KEY_FRAME_INTERVAL_SEC);
+    }
+}
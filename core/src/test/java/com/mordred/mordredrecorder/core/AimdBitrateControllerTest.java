@@ -0,0 +1,140 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class AimdBitrateControllerTest {
+
+    private static final int FLOOR = 1000000;
+    private static final int CEILING = 8000000;
+
+    @Test
+    public void convergesBelowSlowStorageAndDrainsBacklog() {
+        AimdBitrateController controller = new AimdBitrateController(FLOOR, CEILING, CEILING);
+        // storage sustains 4 Mbps of video plus audio
+        BitrateSimulator simulator = new BitrateSimulator(controller, 4000000 / 8 + 8000);
+
+        simulator.run(30);
+
+        assertTrue("bitrate " + controller.getBitrate(), controller.getBitrate() <= 4000000);
+        assertTrue(controller.getBitrate() >= 2000000);
+        assertTrue(simulator.getBacklogBytes() < 4000000 / 8);
+    }
+
+    @Test
+    public void staysStableOnceConverged() {
+        AimdBitrateController controller = new AimdBitrateController(FLOOR, CEILING, CEILING);
+        BitrateSimulator simulator = new BitrateSimulator(controller, 4000000 / 8 + 8000);
+        simulator.run(30);
+        int decreasesBefore = simulator.decreases;
+
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int i = 0; i < 600; i++) {
+            int bitrate = simulator.step();
+            min = Math.min(min, bitrate);
+            max = Math.max(max, bitrate);
+        }
+
+        // the sawtooth probes somewhat above capacity, backs off before the queue overflows
+        // and never collapses towards the floor
+        assertTrue("min " + min, min >= 2000000);
+        assertTrue("max " + max, max <= 5000000);
+        assertTrue(simulator.decreases - decreasesBefore <= 600 / 10);
+        assertEquals(0, simulator.droppedBytes);
+    }
+
+    @Test
+    public void climbsBackToCeilingWhenStorageRecovers() {
+        AimdBitrateController controller = new AimdBitrateController(FLOOR, CEILING, CEILING);
+        BitrateSimulator simulator = new BitrateSimulator(controller, 2000000 / 8 + 8000);
+        simulator.run(30);
+        assertTrue(controller.getBitrate() <= 2000000);
+
+        simulator.storageBytesPerSec = 50000000;
+        assertEquals(CEILING, simulator.run(120));
+    }
+
+    @Test
+    public void neverLeavesConfiguredBounds() {
+        AimdBitrateController controller = new AimdBitrateController(FLOOR, CEILING, CEILING);
+        // storage slower than the floor: the controller pins the floor instead of going below it
+        BitrateSimulator simulator = new BitrateSimulator(controller, 500000 / 8);
+        for (int i = 0; i < 100; i++) {
+            int bitrate = simulator.step();
+            assertTrue(bitrate >= FLOOR && bitrate <= CEILING);
+        }
+        assertEquals(FLOOR, controller.getBitrate());
+    }
+
+    @Test
+    public void highLatencyAloneCountsAsCongestion() {
+        AimdBitrateController controller = new AimdBitrateController(FLOOR, CEILING, 4000000);
+        assertTrue(controller.isCongested(new PipelineLoad(2, 256, 800000, 1000000, 1000000)));
+        assertFalse(controller.isCongested(new PipelineLoad(2, 256, 10000, 1000000, 1000000)));
+        assertTrue(controller.isCongested(new PipelineLoad(100, 256, 10000, 1000000, 1000000)));
+        assertEquals(3000000, controller.update(new PipelineLoad(100, 256, 10000, 1000000, 1000000)));
+    }
+
+    @Test
+    public void writingLessThanTheEncodersProduceIsCongestion() {
+        AimdBitrateController controller = new AimdBitrateController(FLOOR, CEILING, 4000000);
+        // far below the 4 Mbps target, but all of it written
+        assertFalse(controller.isCongested(new PipelineLoad(2, 256, 10000, 50000, 50000)));
+        assertTrue(controller.isCongested(new PipelineLoad(2, 256, 10000, 30000, 50000)));
+    }
+
+    @Test
+    public void stillContentBelowTheTargetKeepsTheBitrate() {
+        AimdBitrateController controller = new AimdBitrateController(FLOOR, CEILING, CEILING);
+        BitrateSimulator simulator = new BitrateSimulator(controller, 50000000);
+        // a still screen needs a tenth of the bitrate, and audio waits for the next video frame
+        simulator.contentFill = 0.1f;
+        simulator.heldSamples = 2;
+
+        simulator.run(60);
+
+        assertEquals(0, simulator.decreases);
+        assertEquals(CEILING, controller.getBitrate());
+    }
+
+    @Test
+    public void samplesHeldBackForAStalledTrackAreNotCongestion() throws Exception {
+        // an interleave wait longer than the latency budget, all spent holding audio back
+        MuxerWriter writer = new MuxerWriter(new RecordingMuxer(), 2, 64, 2000000);
+        writer.put(EncodedSample.format(0, TrackFormat.video(TrackFormat.MIME_AVC, 640, 480)));
+        writer.put(EncodedSample.format(1, TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1)));
+        while (writer.step()) {
+        }
+        PipelineLoadSampler sampler = new PipelineLoadSampler(writer, 0);
+        sampler.sample(System.nanoTime());
+        for (int i = 0; i < 50; i++) {
+            writer.put(sample(1, i * 23220L));
+        }
+        assertFalse(writer.step());
+
+        // the video track is paused for 600 ms, then delivers and the writer catches up at once
+        Thread.sleep(600);
+        assertFalse(writer.step());
+        writer.put(sample(0, 2000000));
+        while (writer.step()) {
+        }
+        PipelineLoad load = sampler.sample(System.nanoTime());
+
+        assertEquals(50, writer.getWrittenSamples());
+        assertTrue(writer.getQueueLatencyNs() / 50 >= 600000000L);
+        assertTrue(load.toString(), load.drainLatencyUs < AimdBitrateController.DEFAULT_LATENCY_BUDGET_US / 10);
+        AimdBitrateController controller = new AimdBitrateController(FLOOR, CEILING, 4000000);
+        assertFalse(controller.isCongested(load));
+        assertTrue(controller.update(load) >= 4000000);
+    }
+
+    private static EncodedSample sample(int track, long ptsUs) {
+        SampleInfo info = new SampleInfo();
+        info.set(0, 16, ptsUs, 0);
+        return EncodedSample.copyOf(track, ByteBuffer.allocate(16), info);
+    }
+}
@@ -0,0 +1,138 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AudioClockTest {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHUNK_FRAMES = 1024;
+    private static final long START_NS = 50000000000L;
+
+    /**
+     * Simulates capture from a device whose clock is off by {@code ppm} and returns the largest
+     * difference between a stamped chunk and its true capture time after the first minute.
+     */
+    private static long simulate(AudioClock audioClock, FakeTimeSource time, double ppm,
+                                 long hours, boolean withTimestamps) {
+        final Random random = new Random(7);
+        final double deviceRate = SAMPLE_RATE * (1 + ppm / 1000000);
+        final long chunks = hours * 3600 * SAMPLE_RATE / CHUNK_FRAMES;
+        long lastPtsUs = -1;
+        long maxErrorUs = 0;
+        for (long chunk = 0; chunk < chunks; chunk++) {
+            final long firstFrame = chunk * CHUNK_FRAMES;
+            final long end = firstFrame + CHUNK_FRAMES;
+            // the chunk is read shortly after its last frame was captured
+            time.set(START_NS + (long) (end * 1e9 / deviceRate) + random.nextInt(5000000));
+            if (withTimestamps && chunk % 10 == 9) {
+                audioClock.onTimestamp(end, START_NS + (long) (end * 1e9 / deviceRate)
+                        + random.nextInt(400000) - 200000);
+            }
+            final long ptsUs = audioClock.stamp(CHUNK_FRAMES);
+            assertTrue("pts must increase", ptsUs > lastPtsUs);
+            if (lastPtsUs >= 0) {
+                // never more than the slew rate away from the nominal chunk duration
+                final long nominalUs = CHUNK_FRAMES * 1000000L / SAMPLE_RATE;
+                final long deltaUs = ptsUs - lastPtsUs;
+                assertTrue("chunk " + chunk + " delta " + deltaUs,
+                        Math.abs(deltaUs - nominalUs) <= 2 + nominalUs * 2000 / 1000000);
+            }
+            lastPtsUs = ptsUs;
+            final long trueUs = (long) (firstFrame * 1e6 / deviceRate);
+            if (firstFrame > 60 * SAMPLE_RATE) {
+                maxErrorUs = Math.max(maxErrorUs, Math.abs(ptsUs - trueUs));
+            }
+        }
+        return maxErrorUs;
+    }
+
+    @Test
+    public void tracksFastDeviceClockOverThreeHours() {
+        FakeTimeSource time = new FakeTimeSource(START_NS);
+        MediaClock clock = new MediaClock(time);
+        clock.start();
+        AudioClock audioClock = new AudioClock(clock, SAMPLE_RATE);
+        MetricsRegistry metrics = new MetricsRegistry(time);
+        audioClock.setMetrics(metrics, "audio");
+        long maxErrorUs = simulate(audioClock, time, 150, 3, true);
+        assertTrue("max error " + maxErrorUs, maxErrorUs < 3000);
+        // the sample count alone would be 1.6 s behind by now
+        assertEquals(-1620000, audioClock.getDriftUs(), 20000);
+        assertEquals(0, audioClock.getSnapCount());
+        // the same figures are visible in the metrics while recording
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(audioClock.getDriftUs(), (long) snapshot.getGauge("audio.clock_drift_us"));
+        assertEquals(audioClock.getCorrectionUs(), (long) snapshot.getGauge("audio.clock_correction_us"));
+        assertEquals(audioClock.getMaxAbsErrorUs(), (long) snapshot.getGauge("audio.clock_max_error_us"));
+        assertEquals(audioClock.getTimestampCount(), snapshot.getCounter("audio.clock_timestamps"));
+        assertEquals(0, snapshot.getCounter("audio.clock_snaps"));
+    }
+
+    @Test
+    public void tracksSlowDeviceClockOverThreeHours() {
+        FakeTimeSource time = new FakeTimeSource(START_NS);
+        MediaClock clock = new MediaClock(time);
+        clock.start();
+        AudioClock audioClock = new AudioClock(clock, SAMPLE_RATE);
+        long maxErrorUs = simulate(audioClock, time, -200, 3, true);
+        assertTrue("max error " + maxErrorUs, maxErrorUs < 3000);
+        assertTrue(audioClock.getDriftUs() > 2000000);
+    }
+
+    @Test
+    public void sampleCountDriftsWithoutTimestamps() {
+        FakeTimeSource time = new FakeTimeSource(START_NS);
+        MediaClock clock = new MediaClock(time);
+        clock.start();
+        AudioClock audioClock = new AudioClock(clock, SAMPLE_RATE);
+        long maxErrorUs = simulate(audioClock, time, 150, 1, false);
+        assertTrue("max error " + maxErrorUs, maxErrorUs > 500000);
+        assertEquals(0, audioClock.getTimestampCount());
+    }
+
+    @Test
+    public void firstChunkIsAnchoredToItsCaptureStart() {
+        FakeTimeSource time = new FakeTimeSource(START_NS);
+        MediaClock clock = new MediaClock(time);
+        clock.start();
+        time.advanceUs(1000000);
+        AudioClock audioClock = new AudioClock(clock, SAMPLE_RATE);
+        assertEquals(1000000 - 23219, audioClock.stamp(CHUNK_FRAMES));
+        assertEquals(1000000, audioClock.stamp(CHUNK_FRAMES));
+    }
+
+    @Test
+    public void largeForwardErrorLeavesAGap() {
+        FakeTimeSource time = new FakeTimeSource(START_NS);
+        MediaClock clock = new MediaClock(time);
+        clock.start();
+        AudioClock audioClock = new AudioClock(clock, SAMPLE_RATE);
+        audioClock.onTimestamp(0, START_NS);
+        assertEquals(0, audioClock.stamp(4410));
+        assertEquals(100000, audioClock.stamp(4410));
+        // capture stalled: frame 8820 was captured at 300 ms instead of 200 ms
+        audioClock.onTimestamp(8820, START_NS + 300000000L);
+        assertEquals(300000, audioClock.stamp(4410));
+        assertEquals(1, audioClock.getSnapCount());
+        assertEquals(100000, audioClock.getDriftUs());
+    }
+
+    @Test
+    public void smallErrorIsSlewed() {
+        FakeTimeSource time = new FakeTimeSource(START_NS);
+        MediaClock clock = new MediaClock(time);
+        clock.start();
+        AudioClock audioClock = new AudioClock(clock, SAMPLE_RATE);
+        audioClock.onTimestamp(0, START_NS);
+        audioClock.onTimestamp(44100, START_NS + 1010000000L);
+        // 10 ms behind, corrected by at most 2000 ppm of each 100 ms chunk
+        assertEquals(200, audioClock.stamp(4410));
+        assertEquals(100400, audioClock.stamp(4410));
+        assertEquals(0, audioClock.getSnapCount());
+        assertEquals(10000, audioClock.getMaxAbsErrorUs());
+    }
+}
@@ -0,0 +1,75 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AudioFormatPlanTest {
+
+    @Test
+    public void defaultsAreStereo() {
+        AudioFormatPlan plan = AudioFormatPlan.defaults();
+        assertEquals(44100, plan.sampleRate);
+        assertEquals(2, plan.channelCount);
+        assertEquals(4, plan.getBytesPerFrame());
+        assertEquals(4096, plan.getChunkBytes());
+        assertEquals(23219, plan.getChunkDurationUs());
+    }
+
+    @Test
+    public void acceptsEverySupportedCombination() {
+        int[] rates = {8000, 11025, 12000, 16000, 22050, 24000, 32000, 44100, 48000};
+        for (int rate : rates) {
+            for (int channels = 1; channels <= 2; channels++) {
+                AudioFormatPlan plan = new AudioFormatPlan(rate, channels, AudioFormatPlan.minBitrate(channels));
+                assertEquals(1024 * 2 * channels, plan.getChunkBytes());
+                new AudioFormatPlan(rate, channels, AudioFormatPlan.maxBitrate(rate, channels));
+            }
+        }
+        assertEquals(576000, AudioFormatPlan.maxBitrate(48000, 2));
+    }
+
+    @Test
+    public void rejectsInvalidFormats() {
+        assertInvalid(44000, 1, 64000);
+        assertInvalid(96000, 2, 128000);
+        assertInvalid(44100, 0, 64000);
+        assertInvalid(44100, 3, 64000);
+        assertInvalid(44100, 2, 15999);
+        assertInvalid(8000, 1, 48001);
+    }
+
+    @Test
+    public void readSizeIsOneFrameAlignedChunk() {
+        AudioFormatPlan stereo = new AudioFormatPlan(48000, 2, 128000);
+        assertEquals(4096, stereo.readSize(65536));
+        assertEquals(4096, stereo.readSize(4096));
+        assertEquals(2048, stereo.readSize(2050));
+        assertEquals(4, stereo.readSize(7));
+        try {
+            stereo.readSize(3);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        AudioFormatPlan mono = new AudioFormatPlan(48000, 1, 64000);
+        assertEquals(2048, mono.readSize(65536));
+        assertEquals(21333, mono.getChunkDurationUs());
+    }
+
+    @Test
+    public void recordBufferHoldsWholeChunks() {
+        AudioFormatPlan plan = new AudioFormatPlan(44100, 2, 128000);
+        assertEquals(16384, plan.recordBufferBytes(0));
+        assertEquals(16384, plan.recordBufferBytes(16384));
+        assertEquals(20480, plan.recordBufferBytes(16385));
+        assertEquals(0, plan.recordBufferBytes(7104) % plan.getChunkBytes());
+    }
+
+    private static void assertInvalid(int sampleRate, int channelCount, int bitrate) {
+        try {
+            new AudioFormatPlan(sampleRate, channelCount, bitrate);
+            fail(sampleRate + "/" + channelCount + "/" + bitrate);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
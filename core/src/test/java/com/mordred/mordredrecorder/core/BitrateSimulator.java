@@ -0,0 +1,72 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Discrete time model of the recording pipeline for exercising a {@link BitrateController}.
+ * Each step is one control interval of one second: the encoder produces video at
+ * {@code contentFill} of the current bitrate plus a constant audio stream, storage writes at
+ * most {@code storageBytesPerSec} and anything left over waits in the writer queue, behind
+ * {@code heldSamples} the interleaver keeps back. A new bitrate reaches the encoder output
+ * one interval after it was chosen, as it does with a real codec.
+ */
+class BitrateSimulator {
+
+    static final int FRAME_RATE = 30;
+    static final int QUEUE_CAPACITY = 256;
+    static final long AUDIO_BYTES_PER_SEC = 8000;
+
+    private final BitrateController controller;
+    long storageBytesPerSec;
+    float contentFill = 1;
+    int heldSamples;
+    private long backlogBytes;
+    private int effectiveBitrate;
+    int decreases;
+    long droppedBytes;
+
+    BitrateSimulator(BitrateController controller, long storageBytesPerSec) {
+        this.controller = controller;
+        this.storageBytesPerSec = storageBytesPerSec;
+        this.effectiveBitrate = controller.getBitrate();
+    }
+
+    /** Runs one interval and returns the bitrate the controller picked for the next one. */
+    int step() {
+        final long videoBytes = (long) (effectiveBitrate * contentFill / 8);
+        final long produced = videoBytes + AUDIO_BYTES_PER_SEC;
+        final long available = backlogBytes + produced;
+        final long written = Math.min(available, storageBytesPerSec);
+        backlogBytes = available - written;
+
+        final long frameBytes = Math.max(1, videoBytes / FRAME_RATE);
+        long depth = backlogBytes / frameBytes;
+        if (depth > QUEUE_CAPACITY) {
+            // a full queue blocks the drain and the encoder starts dropping frames
+            droppedBytes += (depth - QUEUE_CAPACITY) * frameBytes;
+            depth = QUEUE_CAPACITY;
+            backlogBytes = depth * frameBytes;
+        }
+        final long latencyUs = backlogBytes * 1000000L / Math.max(storageBytesPerSec, 1);
+        final PipelineLoad load = new PipelineLoad((int) Math.min(QUEUE_CAPACITY, depth + heldSamples),
+                QUEUE_CAPACITY, latencyUs, written, produced);
+
+        final int previous = controller.getBitrate();
+        final int next = controller.update(load);
+        if (next < previous) {
+            decreases++;
+        }
+        effectiveBitrate = next;
+        return next;
+    }
+
+    int run(int intervals) {
+        int bitrate = controller.getBitrate();
+        for (int i = 0; i < intervals; i++) {
+            bitrate = step();
+        }
+        return bitrate;
+    }
+
+    long getBacklogBytes() {
+        return backlogBytes;
+    }
+}
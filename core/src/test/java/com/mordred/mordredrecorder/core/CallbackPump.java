@@ -0,0 +1,33 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Plays the codec's callback thread for a synchronous fake: dequeues its output and reports
+ * it to an {@link EncoderCallback} until the end of stream.
+ */
+class CallbackPump implements Runnable {
+
+    private final EncoderOutput encoder;
+    private final EncoderCallback callback;
+    private final SampleInfo info = new SampleInfo();
+
+    CallbackPump(EncoderOutput encoder, EncoderCallback callback) {
+        this.encoder = encoder;
+        this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final int status = encoder.dequeueOutputBuffer(info, 10000);
+            if (status == EncoderOutput.INFO_OUTPUT_FORMAT_CHANGED) {
+                callback.onOutputFormatChanged(encoder.getOutputFormat());
+            } else if (status >= 0) {
+                final boolean endOfStream = info.isEndOfStream();
+                callback.onOutputBufferAvailable(status, info);
+                if (endOfStream) {
+                    return;
+                }
+            }
+        }
+    }
+}
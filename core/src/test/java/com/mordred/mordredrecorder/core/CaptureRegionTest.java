@@ -0,0 +1,270 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CaptureRegionTest {
+
+    private static final int[] DENSITIES = {120, 160, 240, 320, 420, 480, 560, 640};
+    // natural sizes of phones and a tablet
+    private static final int[][] DISPLAYS = {{720, 1600}, {1080, 2400}, {1440, 3120}, {1600, 2560}, {1080, 2340}};
+
+    private static EncoderCapabilities encoder(int alignment, int maxWidth, int maxHeight) {
+        return new EncoderCapabilities("c2.test.avc.encoder", TrackFormat.MIME_AVC, true, alignment, alignment,
+                maxWidth, maxHeight, 36864, 36864L * 60, 64000, 40000000);
+    }
+
+    @Test
+    public void recordsTheRegionAtItsNativeSizeInWholeBlocks() {
+        CaptureRegion region = CaptureRegion.plan(1080, 2400, CaptureRegion.ROTATION_0, 100, 300, 500, 700,
+                encoder(2, 4096, 4096), 30);
+
+        assertEquals(512, region.width);
+        assertEquals(704, region.height);
+        // grown by the same amount on both sides
+        assertEquals(94, region.left);
+        assertEquals(298, region.top);
+        assertTrue(region.isNative());
+        assertEquals(512, region.outputWidth);
+        assertEquals(704, region.outputHeight);
+    }
+
+    @Test
+    public void mapsTheRegionWithTheRotatedDisplay() {
+        // the status bar of a 1080x2400 phone
+        assertRegion(0, 0, 1080, 80, CaptureRegion.plan(1080, 2400, CaptureRegion.ROTATION_0, 0, 0, 1080, 80, null, 30));
+        // seen sideways it runs down the left edge with the device turned left ...
+        assertRegion(0, 0, 80, 1080, CaptureRegion.plan(2400, 1080, CaptureRegion.ROTATION_90, 0, 0, 1080, 80, null, 30));
+        // ... along the bottom upside down ...
+        assertRegion(0, 2320, 1080, 80, CaptureRegion.plan(1080, 2400, CaptureRegion.ROTATION_180, 0, 0, 1080, 80, null, 30));
+        // ... and down the right edge turned right
+        assertRegion(2320, 0, 80, 1080, CaptureRegion.plan(2400, 1080, CaptureRegion.ROTATION_270, 0, 0, 1080, 80, null, 30));
+    }
+
+    @Test
+    public void clipsTheRegionToTheDisplay() {
+        CaptureRegion region = CaptureRegion.plan(1080, 2400, CaptureRegion.ROTATION_0, -100, 2300, 400, 400, null, 30);
+
+        assertEquals(0, region.left);
+        assertEquals(304, region.width);
+        assertEquals(2288, region.top);
+        assertEquals(112, region.height);
+    }
+
+    @Test
+    public void alignsToTheEncoderWhereWholeBlocksDoNotFit() {
+        // 1080 lines are not whole blocks; a full-height region can only be aligned to the encoder
+        CaptureRegion region = CaptureRegion.plan(2400, 1080, CaptureRegion.ROTATION_0, 0, 0, 1000, 1075,
+                encoder(4, 4096, 4096), 30);
+
+        assertEquals(1008, region.width);
+        assertEquals(1076, region.height);
+        assertEquals(0, region.top);
+        // and down, around the centre, where rounding up would leave the display
+        region = CaptureRegion.plan(1078, 2400, CaptureRegion.ROTATION_0, 0, 0, 1078, 100, encoder(4, 4096, 4096), 30);
+        assertEquals(1076, region.width);
+        assertEquals(1, region.left);
+    }
+
+    @Test
+    public void scalesDownOnlyWhenTheEncoderCannotTakeTheRegion() {
+        CaptureRegion region = CaptureRegion.plan(1440, 3120, CaptureRegion.ROTATION_0, 0, 0, 1440, 2400,
+                encoder(2, 1920, 1920), 30);
+
+        assertEquals(1440, region.width);
+        assertEquals(2400, region.height);
+        assertFalse(region.isNative());
+        assertTrue(region.outputHeight <= 1920);
+        assertEquals((double) region.width / region.height,
+                (double) region.outputWidth / region.outputHeight, 0.01);
+        assertEquals("1440x2400 at 0,0 of 1440x3120 scaled to " + region.outputWidth + "x" + region.outputHeight,
+                region.toString());
+    }
+
+    @Test
+    public void returnsNullWhenTheEncoderTakesNoSize() {
+        assertNull(CaptureRegion.plan(1080, 2400, CaptureRegion.ROTATION_0, 0, 0, 100, 100,
+                encoder(2, 1, 1), 30));
+    }
+
+    @Test
+    public void rejectsRegionsOffTheDisplay() {
+        try {
+            CaptureRegion.plan(1080, 2400, CaptureRegion.ROTATION_0, 1080, 0, 100, 100, null, 30);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            CaptureRegion.plan(1080, 2400, CaptureRegion.ROTATION_0, 0, 0, 0, 100, null, 30);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            CaptureRegion.plan(1080, 2400, 4, 0, 0, 100, 100, null, 30);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void convertsDensityIndependentPixels() {
+        assertEquals(48, CaptureRegion.dpToPx(48, 160));
+        assertEquals(126, CaptureRegion.dpToPx(48, 420));
+        assertEquals(168, CaptureRegion.dpToPx(48, 560));
+        assertEquals(0, CaptureRegion.dpToPx(0, 640));
+    }
+
+    @Test
+    public void scalesTheBitrateWithTheArea() {
+        VideoProfile display = new VideoProfile("c2.test.avc.encoder", TrackFormat.MIME_AVC, 1080, 2400, 30,
+                8000000, 5);
+        CaptureRegion region = CaptureRegion.plan(1080, 2400, CaptureRegion.ROTATION_0, 0, 0, 540, 1200, null, 30);
+
+        VideoProfile profile = region.applyTo(display, encoder(2, 4096, 4096));
+
+        assertEquals(544, profile.width);
+        assertEquals(1200, profile.height);
+        assertEquals(8000000L * 544 * 1200 / (1080 * 2400), profile.bitrate);
+        assertEquals(30, profile.frameRate);
+        assertEquals(5, profile.keyFrameIntervalSec);
+        // never below what the encoder takes
+        CaptureRegion tiny = CaptureRegion.plan(1080, 2400, CaptureRegion.ROTATION_0, 0, 0, 16, 16, null, 30);
+        assertEquals(64000, tiny.applyTo(display, encoder(2, 4096, 4096)).bitrate);
+    }
+
+    @Test
+    public void holdsAcrossRotationsDensitiesAndAlignments() {
+        final int[] alignments = {1, 2, 4, 8, 16, 64};
+        int planned = 0;
+        for (int[] natural : DISPLAYS) {
+            for (int density : DENSITIES) {
+                for (int rotation = CaptureRegion.ROTATION_0; rotation <= CaptureRegion.ROTATION_270; rotation++) {
+                    final boolean sideways = rotation % 2 == 1;
+                    final int displayWidth = sideways ? natural[1] : natural[0];
+                    final int displayHeight = sideways ? natural[0] : natural[1];
+                    for (int alignment : alignments) {
+                        final EncoderCapabilities encoder = encoder(alignment, 4096, 4096);
+                        // regions in dp, as a window or a view reports them, over and past every edge
+                        for (int leftDp = -40; leftDp < 1000; leftDp += 97) {
+                            for (int topDp = -40; topDp < 1500; topDp += 143) {
+                                for (int sizeDp = 1; sizeDp < 900; sizeDp += 211) {
+                                    final int left = CaptureRegion.dpToPx(leftDp, density);
+                                    final int top = CaptureRegion.dpToPx(topDp, density);
+                                    final int width = Math.max(1, CaptureRegion.dpToPx(sizeDp, density));
+                                    final int height = Math.max(1, CaptureRegion.dpToPx(sizeDp * 2 / 3 + 1, density));
+                                    final int[] expected = clip(rotate(left, top, width, height, rotation,
+                                            natural[0], natural[1]), displayWidth, displayHeight);
+                                    if (expected == null) {
+                                        continue;
+                                    }
+                                    final CaptureRegion region = CaptureRegion.plan(displayWidth, displayHeight,
+                                            rotation, left, top, width, height, encoder, 30);
+                                    checkRegion(region, expected, alignment, displayWidth, displayHeight);
+                                    planned++;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        assertTrue(planned > 10000);
+    }
+
+    private static void checkRegion(CaptureRegion region, int[] expected, int alignment, int displayWidth,
+                                    int displayHeight) {
+        final String where = region + " for " + expected[0] + "," + expected[1] + " " + expected[2] + "x"
+                + expected[3] + " aligned to " + alignment;
+        final int even = alignment % 2 == 0 ? alignment : alignment * 2;
+        assertEquals(displayWidth, region.displayWidth);
+        assertEquals(displayHeight, region.displayHeight);
+        // inside the display, aligned for the encoder and in whole blocks unless the display is too small
+        assertTrue(where, region.left >= 0 && region.top >= 0);
+        assertTrue(where, region.left + region.width <= displayWidth);
+        assertTrue(where, region.top + region.height <= displayHeight);
+        assertEquals(where, 0, region.width % even);
+        assertEquals(where, 0, region.height % even);
+        assertTrue(where, region.width % 16 == 0 || region.width + 16 > displayWidth);
+        assertTrue(where, region.height % 16 == 0 || region.height + 16 > displayHeight);
+        // covering what was asked for wherever the size could be rounded up
+        if (region.width >= expected[2]) {
+            assertTrue(where, region.left <= expected[0]);
+            assertTrue(where, region.left + region.width >= expected[0] + expected[2]);
+            // by less than one block of padding
+            assertTrue(where, region.width - expected[2] < Math.max(16, even));
+        } else {
+            assertTrue(where, expected[2] - region.width < even);
+        }
+        if (region.height >= expected[3]) {
+            assertTrue(where, region.top <= expected[1]);
+            assertTrue(where, region.top + region.height >= expected[1] + expected[3]);
+        } else {
+            assertTrue(where, expected[3] - region.height < even);
+        }
+        assertTrue(where, region.isNative());
+
+        // the texture crop picks the same pixels, with the texture's origin at the bottom
+        final float[] crop = region.getTextureCrop();
+        assertEquals(where, region.left, crop[0] * displayWidth, 0.01);
+        assertEquals(where, region.width, crop[2] * displayWidth, 0.01);
+        assertEquals(where, displayHeight - region.top - region.height, crop[1] * displayHeight, 0.01);
+        assertEquals(where, region.height, crop[3] * displayHeight, 0.01);
+        assertTrue(where, crop[0] >= 0 && crop[1] >= 0 && crop[0] + crop[2] <= 1.0001f && crop[1] + crop[3] <= 1.0001f);
+    }
+
+    /** The rectangle's corners, each turned with the display, as left, top, width, height. */
+    private static int[] rotate(int left, int top, int width, int height, int rotation, int naturalWidth,
+                                int naturalHeight) {
+        final int[] xs = {left, left + width};
+        final int[] ys = {top, top + height};
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int x : xs) {
+            for (int y : ys) {
+                final int rx;
+                final int ry;
+                switch (rotation) {
+                    case CaptureRegion.ROTATION_90:
+                        rx = y;
+                        ry = naturalWidth - x;
+                        break;
+                    case CaptureRegion.ROTATION_180:
+                        rx = naturalWidth - x;
+                        ry = naturalHeight - y;
+                        break;
+                    case CaptureRegion.ROTATION_270:
+                        rx = naturalHeight - y;
+                        ry = x;
+                        break;
+                    default:
+                        rx = x;
+                        ry = y;
+                        break;
+                }
+                minX = Math.min(minX, rx);
+                minY = Math.min(minY, ry);
+                maxX = Math.max(maxX, rx);
+                maxY = Math.max(maxY, ry);
+            }
+        }
+        return new int[] {minX, minY, maxX - minX, maxY - minY};
+    }
+
+    private static int[] clip(int[] rect, int displayWidth, int displayHeight) {
+        final int left = Math.max(0, rect[0]);
+        final int top = Math.max(0, rect[1]);
+        final int right = Math.min(displayWidth, rect[0] + rect[2]);
+        final int bottom = Math.min(displayHeight, rect[1] + rect[3]);
+        return right > left && bottom > top ? new int[] {left, top, right - left, bottom - top} : null;
+    }
+
+    private static void assertRegion(int left, int top, int width, int height, CaptureRegion region) {
+        assertEquals(left, region.left);
+        assertEquals(top, region.top);
+        assertEquals(width, region.width);
+        assertEquals(height, region.height);
+    }
+}
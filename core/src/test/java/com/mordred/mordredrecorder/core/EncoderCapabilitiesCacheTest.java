@@ -0,0 +1,76 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EncoderCapabilitiesCacheTest {
+
+    static final String PIXEL_6 = "google/oriole/oriole:12/SQ3A.220705.003/8671607:user/release-keys";
+    static final String BUDGET_PHONE = "samsung/a10eeea/a10e:11/RP1A.200720.012/A102USQU9CVC1:user/release-keys";
+    static final String EMULATOR = "google/sdk_gphone64_x86_64/emu64x:12/SE1A.220203.002.A1/8151367:userdebug/dev-keys";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** Capabilities recorded on a real device, see {@code src/test/resources/encoders}. */
+    static List<EncoderCapabilities> fixture(String name, String fingerprint) throws Exception {
+        final File file = new File(EncoderCapabilitiesCacheTest.class.getResource("/encoders/" + name).toURI());
+        final List<EncoderCapabilities> encoders = EncoderCapabilitiesCache.read(file, fingerprint);
+        assertNotNull("fingerprint of " + name, encoders);
+        return encoders;
+    }
+
+    @Test
+    public void roundTripsAllFields() throws Exception {
+        File file = folder.newFile("caps.tsv");
+        List<EncoderCapabilities> written = Arrays.asList(
+                new EncoderCapabilities("c2.qti.avc.encoder", TrackFormat.MIME_AVC, true,
+                        2, 2, 4096, 2176, 34816, 1958400L, 1, 100000000),
+                new EncoderCapabilities("c2.android.avc.encoder", TrackFormat.MIME_AVC, false,
+                        16, 8, 2048, 2048, 8192, 245760L, 1, 12000000));
+
+        EncoderCapabilitiesCache.write(file, PIXEL_6, written);
+        List<EncoderCapabilities> read = EncoderCapabilitiesCache.read(file, PIXEL_6);
+
+        assertEquals(2, read.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertEquals(written.get(i).toString(), read.get(i).toString());
+        }
+    }
+
+    @Test
+    public void cacheOfAnotherBuildIsIgnored() throws Exception {
+        File file = folder.newFile("caps.tsv");
+        EncoderCapabilitiesCache.write(file, PIXEL_6, fixture("pixel6.tsv", PIXEL_6));
+
+        assertNull(EncoderCapabilitiesCache.read(file, PIXEL_6.replace("SQ3A", "TP1A")));
+        assertNull(EncoderCapabilitiesCache.read(new File(folder.getRoot(), "missing.tsv"), PIXEL_6));
+    }
+
+    @Test
+    public void fixturesLoad() throws Exception {
+        assertEquals(4, fixture("pixel6.tsv", PIXEL_6).size());
+        assertEquals(2, fixture("budget_phone.tsv", BUDGET_PHONE).size());
+        assertEquals(2, fixture("emulator.tsv", EMULATOR).size());
+        assertTrue(fixture("budget_phone.tsv", BUDGET_PHONE).get(0).hardwareAccelerated);
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedLineIsAnError() throws Exception {
+        File file = folder.newFile("caps.tsv");
+        FileWriter writer = new FileWriter(file);
+        writer.write("# fingerprint\t" + EMULATOR + "\nc2.android.avc.encoder\tvideo/avc\t0\t2\n");
+        writer.close();
+
+        EncoderCapabilitiesCache.read(file, EMULATOR);
+    }
+}
@@ -0,0 +1,84 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Synthetic encoder that announces its format and then emits {@code sampleCount}
+ * samples spaced {@code ptsStepUs} apart. Every payload starts with its sequence number.
+ */
+class FakeEncoderOutput implements EncoderOutput {
+
+    private final TrackFormat format;
+    private final int sampleCount;
+    private final long ptsStepUs;
+    private final int sampleSize;
+    private final long intervalNs;
+    private final ByteBuffer buffer;
+
+    private boolean formatSent;
+    private int produced;
+    private int outstanding = -1;
+
+    FakeEncoderOutput(TrackFormat format, int sampleCount, long ptsStepUs, int sampleSize, long intervalNs) {
+        this.format = format;
+        this.sampleCount = sampleCount;
+        this.ptsStepUs = ptsStepUs;
+        this.sampleSize = Math.max(sampleSize, 4);
+        this.intervalNs = intervalNs;
+        this.buffer = ByteBuffer.allocate(this.sampleSize);
+    }
+
+    static FakeEncoderOutput video(int sampleCount, long intervalNs) {
+        return new FakeEncoderOutput(TrackFormat.video(TrackFormat.MIME_AVC, 1280, 720),
+                sampleCount, 33333, 2048, intervalNs);
+    }
+
+    static FakeEncoderOutput audio(int sampleCount, long intervalNs) {
+        return new FakeEncoderOutput(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1),
+                sampleCount, 23220, 256, intervalNs);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+        if (outstanding >= 0) {
+            throw new IllegalStateException("previous buffer not released");
+        }
+        if (!formatSent) {
+            formatSent = true;
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        if (produced >= sampleCount) {
+            LockSupport.parkNanos(timeoutUs * 1000);
+            return INFO_TRY_AGAIN_LATER;
+        }
+        if (intervalNs > 0) {
+            LockSupport.parkNanos(intervalNs);
+        }
+        buffer.clear();
+        buffer.putInt(0, produced);
+        int flags = produced % 30 == 0 ? SampleInfo.FLAG_KEY_FRAME : 0;
+        if (produced == sampleCount - 1) {
+            flags |= SampleInfo.FLAG_END_OF_STREAM;
+        }
+        info.set(0, sampleSize, produced * ptsStepUs, flags);
+        produced++;
+        outstanding = 0;
+        return 0;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return buffer;
+    }
+
+    @Override
+    public TrackFormat getOutputFormat() {
+        return format;
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        outstanding = -1;
+    }
+}
@@ -0,0 +1,26 @@
+package com.mordred.mordredrecorder.core;
+
+/**
+ * Manually advanced {@link TimeSource}.
+ */
+class FakeTimeSource implements TimeSource {
+
+    private long nanoTime;
+
+    FakeTimeSource(long startNanoTime) {
+        nanoTime = startNanoTime;
+    }
+
+    @Override
+    public long nanoTime() {
+        return nanoTime;
+    }
+
+    void set(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    void advanceUs(long us) {
+        nanoTime += us * 1000;
+    }
+}
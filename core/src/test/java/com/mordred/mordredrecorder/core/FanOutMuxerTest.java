@@ -0,0 +1,203 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FanOutMuxerTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    /** Sink whose writes block until the test releases it. */
+    private static class StalledSink extends RecordingMuxer {
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean released;
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            super.writeSampleData(trackIndex, data, info);
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    /** Connection whose closing fails the write {@code sink} is blocked in. */
+    private static Closeable connectionOf(final StalledSink sink) {
+        return new Closeable() {
+            @Override
+            public void close() {
+                sink.release.countDown();
+            }
+        };
+    }
+
+    private static class FailingSink extends RecordingMuxer {
+        volatile boolean released;
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+            throw new IllegalStateException("viewer went away");
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private static void start(FanOutMuxer muxer) throws IOException {
+        muxer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 640, 480));
+        muxer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1));
+        muxer.start();
+    }
+
+    /** Video frame {@code frame} with a key frame every 10, followed by one audio frame. */
+    private static void writeFrame(SampleMuxer muxer, int frame) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(16);
+        data.putInt(0, frame);
+        SampleInfo info = new SampleInfo();
+        info.set(0, 16, frame * 33333L, frame % 10 == 0 ? SampleInfo.FLAG_KEY_FRAME : 0);
+        muxer.writeSampleData(VIDEO, data, info);
+        info.set(0, 16, frame * 33333L + 1, SampleInfo.FLAG_KEY_FRAME);
+        muxer.writeSampleData(AUDIO, data, info);
+    }
+
+    @Test
+    public void stalledSinkDropsSamplesWithoutHoldingUpThePrimary() throws Exception {
+        RecordingMuxer primary = new RecordingMuxer();
+        FanOutMuxer muxer = new FanOutMuxer(primary, 8, PollingRecordingEngine.PLAIN_THREADS);
+        StalledSink sink = new StalledSink();
+        QueuedSink queued = muxer.attach(sink);
+        start(muxer);
+
+        long start = System.nanoTime();
+        for (int frame = 0; frame < 100; frame++) {
+            writeFrame(muxer, frame);
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(200, primary.samples.size());
+        assertTrue(queued.getDroppedSamples() > 0);
+        assertTrue(queued.getQueueDepth() <= 8);
+
+        sink.release.countDown();
+        muxer.stop();
+        muxer.release();
+
+        assertTrue(primary.stopped);
+        assertTrue(sink.stopped);
+        assertTrue(sink.released);
+        assertEquals(queued.getQueuedSamples(), sink.samples.size());
+        // after a drop the video resumes with a key frame and nothing in between
+        long lastFrame = -1;
+        for (long[] sample : sink.samples) {
+            if (sample[0] == VIDEO) {
+                assertTrue(sample[2] == lastFrame + 1 || sample[2] % 10 == 0);
+                lastFrame = sample[2];
+            }
+        }
+    }
+
+    @Test
+    public void stalledSinksAreClosedTogetherOnStop() throws Exception {
+        RecordingMuxer primary = new RecordingMuxer();
+        FanOutMuxer muxer = new FanOutMuxer(primary, 8, PollingRecordingEngine.PLAIN_THREADS);
+        StalledSink first = new StalledSink();
+        StalledSink second = new StalledSink();
+        QueuedSink firstQueued = muxer.attach(first, connectionOf(first));
+        QueuedSink secondQueued = muxer.attach(second, connectionOf(second));
+        start(muxer);
+        writeFrame(muxer, 0);
+
+        long start = System.nanoTime();
+        muxer.stop();
+        long stopMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // one timeout for both viewers, not one each
+        assertTrue("took " + stopMs + " ms", stopMs < 3000);
+        assertTrue(primary.stopped);
+        // closing the connections ended the blocked writes, well before the sinks give up
+        assertTrue(firstQueued.join(5000));
+        assertTrue(secondQueued.join(5000));
+        assertTrue(first.released);
+        assertTrue(second.released);
+    }
+
+    @Test
+    public void failingSinkIsDroppedAndRecordingContinues() throws Exception {
+        RecordingMuxer primary = new RecordingMuxer();
+        FanOutMuxer muxer = new FanOutMuxer(primary);
+        start(muxer);
+        FailingSink sink = new FailingSink();
+        QueuedSink queued = muxer.attach(sink);
+
+        for (int frame = 0; frame < 50; frame++) {
+            writeFrame(muxer, frame);
+            Thread.sleep(1);
+        }
+        assertTrue(queued.join(5000));
+        writeFrame(muxer, 50);
+
+        assertTrue(queued.getError() instanceof IllegalStateException);
+        assertTrue(sink.released);
+        assertTrue(muxer.getSinks().isEmpty());
+        muxer.stop();
+        assertEquals(102, primary.samples.size());
+        assertTrue(primary.stopped);
+    }
+
+    @Test
+    public void lateSinkGetsTheTracksAndStartsAtAKeyFrame() throws Exception {
+        RecordingMuxer primary = new RecordingMuxer();
+        FanOutMuxer muxer = new FanOutMuxer(primary);
+        start(muxer);
+        for (int frame = 0; frame < 5; frame++) {
+            writeFrame(muxer, frame);
+        }
+        RecordingMuxer sink = new RecordingMuxer();
+        muxer.attach(sink);
+        for (int frame = 5; frame < 25; frame++) {
+            writeFrame(muxer, frame);
+        }
+        muxer.stop();
+
+        assertEquals(2, sink.tracks.size());
+        assertTrue(sink.tracks.get(VIDEO).isVideo());
+        assertTrue(sink.stopped);
+        // audio frames 5..24, video from the key frame at 10
+        assertEquals(20, sink.countTrack(AUDIO));
+        assertEquals(15, sink.countTrack(VIDEO));
+        assertEquals(10, firstVideo(sink)[2]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsSinksAfterStop() throws Exception {
+        FanOutMuxer muxer = new FanOutMuxer(new RecordingMuxer());
+        start(muxer);
+        muxer.stop();
+        muxer.attach(new RecordingMuxer());
+    }
+
+    private static long[] firstVideo(RecordingMuxer muxer) {
+        for (long[] sample : muxer.samples) {
+            if (sample[0] == VIDEO) {
+                return sample;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,227 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FaststartProcessorTest {
+
+    private File file;
+    private File original;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("faststart", ".mp4");
+        original = File.createTempFile("fragmented", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        original.delete();
+        new File(file.getPath() + FaststartProcessor.TEMP_SUFFIX).delete();
+    }
+
+    private void recordAndKeepCopy() throws IOException {
+        FragmentedMp4MuxerTest.writeSyntheticRecording(new FragmentedMp4Muxer(file.getPath(), 2000000));
+        Files.copy(file.toPath(), original.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static List<Mp4Box> readBoxes(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return Mp4Box.readAll(channel);
+        }
+    }
+
+    /** Bytes of {@code sample}, located through the chunk that holds it. */
+    private static byte[] readSample(FileChannel channel, Mp4Index.Track track, int sample) throws IOException {
+        int chunk = track.getChunkCount() - 1;
+        while (track.getChunkFirstSample(chunk) > sample) {
+            chunk--;
+        }
+        long offset = track.getChunkOffset(chunk);
+        for (int i = track.getChunkFirstSample(chunk); i < sample; i++) {
+            offset += track.getSampleSize(i);
+        }
+        ByteBuffer data = ByteBuffer.allocate(track.getSampleSize(sample));
+        Mp4Box.readFully(channel, data, offset);
+        return data.array();
+    }
+
+    @Test
+    public void indexesFragmentedRecording() throws Exception {
+        recordAndKeepCopy();
+
+        Mp4Index index = Mp4Index.read(file);
+        assertTrue(index.isFragmented());
+        assertFalse(index.isFaststart());
+        Mp4Index.Track video = index.getVideoTrack();
+        assertEquals(1280, video.width);
+        assertEquals(720, video.height);
+        assertEquals(300, video.getSampleCount());
+        assertEquals(10, video.getSyncSampleCount());
+        // one chunk per fragment
+        assertEquals(5, video.getChunkCount());
+        assertEquals(0, video.getStartTime());
+        assertEquals(3000, video.getSampleTime(1));
+        assertEquals(44100, index.getAudioTrack().timescale);
+        assertEquals(430, index.getAudioTrack().getSampleCount());
+        assertEquals(10000, index.getDurationUs() / 1000);
+    }
+
+    @Test
+    public void movesTheMoovInFrontOfASingleMdat() throws Exception {
+        recordAndKeepCopy();
+
+        new FaststartProcessor().process(file, null);
+
+        List<Mp4Box> boxes = readBoxes(file);
+        assertEquals(3, boxes.size());
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(1).type);
+        assertEquals("mdat", boxes.get(2).type);
+        assertNull(boxes.get(1).child("mvex"));
+        assertFalse(new File(file.getPath() + FaststartProcessor.TEMP_SUFFIX).exists());
+
+        Mp4Index index = Mp4Index.read(file);
+        assertFalse(index.isFragmented());
+        assertTrue(index.isFaststart());
+        Mp4Box stbl = boxes.get(1).children("trak").get(0).find("mdia/minf/stbl");
+        // key frames every 30 samples
+        ByteBuffer stss = stbl.child("stss").payload();
+        assertEquals(10, stss.getInt(4));
+        assertEquals(31, stss.getInt(12));
+        assertEquals("avc1", Mp4Box.fourCc(stbl.child("stsd").payload().getInt(12)));
+        // 1 ftyp + 1 moov + mdat header + samples, nothing else copied
+        long samples = index.getTracks().get(0).getBytes() + index.getTracks().get(1).getBytes();
+        assertEquals(boxes.get(2).payloadOffset() + samples, file.length());
+    }
+
+    @Test
+    public void keepsEverySampleWithItsTimingAndFlags() throws Exception {
+        recordAndKeepCopy();
+
+        new FaststartProcessor().process(file, null);
+
+        Mp4Index before = Mp4Index.read(original);
+        Mp4Index after = Mp4Index.read(file);
+        assertEquals(before.getDurationUs(), after.getDurationUs());
+        try (FileChannel source = FileChannel.open(original.toPath(), StandardOpenOption.READ);
+             FileChannel remuxed = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int t = 0; t < 2; t++) {
+                Mp4Index.Track expected = before.getTracks().get(t);
+                Mp4Index.Track actual = after.getTracks().get(t);
+                assertEquals(expected.handler, actual.handler);
+                assertEquals(expected.timescale, actual.timescale);
+                assertEquals(expected.getSampleCount(), actual.getSampleCount());
+                for (int i = 0; i < expected.getSampleCount(); i++) {
+                    assertEquals(expected.getSampleTime(i), actual.getSampleTime(i));
+                    assertEquals(expected.getSampleDuration(i), actual.getSampleDuration(i));
+                    assertEquals(expected.isSyncSample(i), actual.isSyncSample(i));
+                    assertArrayEquals(readSample(source, expected, i), readSample(remuxed, actual, i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void delaysALateTrackWithAnEditList() throws Exception {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file.getPath(), 2000000);
+        int video = muxer.addTrack(FragmentedMp4MuxerTest.videoFormat());
+        int audio = muxer.addTrack(FragmentedMp4MuxerTest.audioFormat());
+        muxer.start();
+        SampleInfo info = new SampleInfo();
+        for (int frame = 0; frame < 90; frame++) {
+            long pts = frame * 1000000L / 30;
+            if (pts >= 500000) {
+                info.set(0, 200, pts, SampleInfo.FLAG_KEY_FRAME);
+                muxer.writeSampleData(audio, FragmentedMp4MuxerTest.audioSample(frame), info);
+            }
+            ByteBuffer sample = FragmentedMp4MuxerTest.videoSample(frame, frame % 30 == 0, 100);
+            info.set(0, sample.remaining(), pts, frame % 30 == 0 ? SampleInfo.FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(video, sample, info);
+        }
+        muxer.stop();
+        muxer.release();
+
+        new FaststartProcessor().process(file, null);
+
+        Mp4Box audioTrak = readBoxes(file).get(1).children("trak").get(1);
+        ByteBuffer elst = audioTrak.find("edts/elst").payload();
+        assertEquals(2, elst.getInt(4));
+        assertEquals(500, elst.getInt(8));
+        assertEquals(-1, elst.getInt(12));
+        assertNull(readBoxes(file).get(1).children("trak").get(0).child("edts"));
+        assertEquals(500000, Mp4Index.read(file).getAudioTrack().getStartUs());
+    }
+
+    @Test
+    public void leavesAFaststartFileAlone() throws Exception {
+        recordAndKeepCopy();
+        new FaststartProcessor().process(file, null);
+        long modified = file.lastModified();
+        byte[] remuxed = Files.readAllBytes(file.toPath());
+
+        final List<Long> progress = new ArrayList<>();
+        new FaststartProcessor().process(file, new PostProcessor.Progress() {
+            @Override
+            public void update(long done, long total) {
+                progress.add(done);
+            }
+        });
+
+        assertArrayEquals(remuxed, Files.readAllBytes(file.toPath()));
+        assertEquals(modified, file.lastModified());
+        assertTrue(progress.isEmpty());
+    }
+
+    @Test
+    public void reportsCopiedBytes() throws Exception {
+        recordAndKeepCopy();
+        final List<long[]> progress = new ArrayList<>();
+
+        new FaststartProcessor().process(file, new PostProcessor.Progress() {
+            @Override
+            public void update(long done, long total) {
+                progress.add(new long[] {done, total});
+            }
+        });
+
+        assertFalse(progress.isEmpty());
+        long[] last = progress.get(progress.size() - 1);
+        assertEquals(last[1], last[0]);
+        assertEquals(Mp4Index.read(file).getVideoTrack().getBytes() + Mp4Index.read(file).getAudioTrack().getBytes(),
+                last[1]);
+    }
+
+    @Test
+    public void failedRewriteKeepsTheRecording() throws Exception {
+        recordAndKeepCopy();
+        // cut into the samples of the last fragment
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 100);
+        }
+        byte[] truncated = Files.readAllBytes(file.toPath());
+
+        try {
+            new FaststartProcessor().process(file, null);
+            fail();
+        } catch (IOException expected) {
+        }
+
+        assertArrayEquals(truncated, Files.readAllBytes(file.toPath()));
+        assertFalse(new File(file.getPath() + FaststartProcessor.TEMP_SUFFIX).exists());
+    }
+}
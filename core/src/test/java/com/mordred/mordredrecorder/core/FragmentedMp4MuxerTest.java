@@ -0,0 +1,207 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4MuxerTest {
+
+    static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1f, (byte) 0xda, 0x01, 0x40, 0x16, (byte) 0xe8};
+    static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    // AAC LC, 44.1 kHz, mono
+    static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x08};
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("fmp4", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    static TrackFormat videoFormat() {
+        return TrackFormat.video(TrackFormat.MIME_AVC, 1280, 720, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+    }
+
+    static TrackFormat audioFormat() {
+        return TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1, ByteBuffer.wrap(AUDIO_SPECIFIC_CONFIG));
+    }
+
+    /** Annex-B access unit: one slice NAL with a 4-byte start code and a filler payload. */
+    static ByteBuffer videoSample(int frame, boolean keyFrame, int payloadSize) {
+        ByteBuffer sample = ByteBuffer.allocate(5 + payloadSize);
+        sample.putInt(1).put((byte) (keyFrame ? 0x65 : 0x41));
+        for (int i = 0; i < payloadSize; i++) {
+            sample.put((byte) (frame + i | 0x80));
+        }
+        sample.flip();
+        return sample;
+    }
+
+    static ByteBuffer audioSample(int frame) {
+        ByteBuffer sample = ByteBuffer.allocate(200);
+        sample.putInt(0, frame);
+        return sample;
+    }
+
+    /** Writes 10 s of 30 fps video with a key frame every second, interleaved with AAC frames. */
+    static void writeSyntheticRecording(SampleMuxer muxer) throws IOException {
+        int video = muxer.addTrack(videoFormat());
+        int audio = muxer.addTrack(audioFormat());
+        muxer.start();
+        SampleInfo info = new SampleInfo();
+        int audioFrame = 0;
+        for (int frame = 0; frame < 300; frame++) {
+            long videoPts = frame * 1000000L / 30;
+            while (audioFrame * 23220L <= videoPts) {
+                info.set(0, 200, audioFrame * 23220L, SampleInfo.FLAG_KEY_FRAME);
+                muxer.writeSampleData(audio, audioSample(audioFrame++), info);
+            }
+            boolean key = frame % 30 == 0;
+            ByteBuffer sample = videoSample(frame, key, key ? 4000 : 600);
+            info.set(0, sample.remaining(), videoPts, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(video, sample, info);
+        }
+        muxer.stop();
+        muxer.release();
+    }
+
+    @Test
+    public void writesInitSegmentFollowedByFragments() throws Exception {
+        writeSyntheticRecording(new FragmentedMp4Muxer(file.getPath(), 2000000));
+
+        List<Mp4Box> boxes = readBoxes();
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(1).type);
+        // 10 s in 2 s fragments
+        assertEquals(2 + 2 * 5, boxes.size());
+        for (int i = 2; i < boxes.size(); i += 2) {
+            assertEquals("moof", boxes.get(i).type);
+            assertEquals("mdat", boxes.get(i + 1).type);
+        }
+
+        Mp4Box moov = boxes.get(1);
+        List<Mp4Box> traks = moov.children("trak");
+        assertEquals(2, traks.size());
+        assertNotNull(traks.get(0).find("mdia/minf/stbl/stsd"));
+        assertEquals(2, moov.child("mvex").children("trex").size());
+
+        ByteBuffer mehd = moov.find("mvex/mehd").payload();
+        mehd.getInt();
+        assertEquals(9967, mehd.getLong());
+    }
+
+    @Test
+    public void sampleEntriesCarryCodecConfiguration() throws Exception {
+        writeSyntheticRecording(new FragmentedMp4Muxer(file.getPath(), 2000000));
+
+        Mp4Box moov = readBoxes().get(1);
+        ByteBuffer stsd = moov.children("trak").get(0).find("mdia/minf/stbl/stsd").payload();
+        stsd.position(8);
+        Mp4Box avc1 = Mp4Box.parse(stsd, 0).get(0);
+        assertEquals("avc1", avc1.type);
+        ByteBuffer entry = avc1.payload();
+        assertEquals(1280, entry.getShort(24) & 0xffff);
+        assertEquals(720, entry.getShort(26) & 0xffff);
+        entry.position(78);
+        Mp4Box avcC = Mp4Box.parse(entry, 0).get(0);
+        assertEquals("avcC", avcC.type);
+        ByteBuffer config = avcC.payload();
+        assertEquals(0x42, config.get(1));
+        assertEquals(0xe1, config.get(5) & 0xff);
+        assertEquals(SPS.length - 4, config.getShort(6));
+        assertEquals(0x67, config.get(8));
+
+        stsd = moov.children("trak").get(1).find("mdia/minf/stbl/stsd").payload();
+        stsd.position(8);
+        Mp4Box mp4a = Mp4Box.parse(stsd, 0).get(0);
+        assertEquals("mp4a", mp4a.type);
+        assertEquals(1, mp4a.payload().getShort(16));
+        assertEquals(44100, mp4a.payload().getInt(24) >>> 16);
+    }
+
+    @Test
+    public void fragmentsStartWithKeyFramesAndPointAtLengthPrefixedSamples() throws Exception {
+        writeSyntheticRecording(new FragmentedMp4Muxer(file.getPath(), 2000000));
+
+        List<Mp4Box> boxes = readBoxes();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            int videoSamples = 0;
+            int audioSamples = 0;
+            long lastVideoDecodeTime = -1;
+            for (int i = 2; i < boxes.size(); i += 2) {
+                Mp4Box moof = boxes.get(i);
+                Mp4Box mdat = boxes.get(i + 1);
+                assertEquals(i / 2, moof.child("mfhd").payload().getInt(4));
+                for (Mp4Box traf : moof.children("traf")) {
+                    int trackId = traf.child("tfhd").payload().getInt(4);
+                    ByteBuffer tfdt = traf.child("tfdt").payload();
+                    long decodeTime = tfdt.getLong(4);
+                    ByteBuffer trun = traf.child("trun").payload();
+                    int sampleCount = trun.getInt(4);
+                    int dataOffset = trun.getInt(8);
+                    int firstSize = trun.getInt(16);
+                    int firstFlags = trun.getInt(20);
+                    long dataStart = moof.offset + dataOffset;
+                    assertTrue(dataStart >= mdat.payloadOffset());
+                    assertTrue(dataStart + firstSize <= mdat.offset + mdat.size);
+                    if (trackId == 1) {
+                        videoSamples += sampleCount;
+                        assertTrue(decodeTime > lastVideoDecodeTime);
+                        lastVideoDecodeTime = decodeTime;
+                        assertEquals(Mp4Boxes.SAMPLE_FLAGS_SYNC, firstFlags);
+                        // 4-byte NAL length replaced the start code
+                        ByteBuffer head = ByteBuffer.allocate(5);
+                        Mp4Box.readFully(channel, head, dataStart);
+                        assertEquals(4001, head.getInt(0));
+                        assertEquals(0x65, head.get(4));
+                    } else {
+                        audioSamples += sampleCount;
+                    }
+                }
+            }
+            assertEquals(300, videoSamples);
+            assertEquals(430, audioSamples);
+            assertEquals(8 * 90000, lastVideoDecodeTime);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Test
+    public void truncatedFileKeepsEveryCompleteFragment() throws Exception {
+        writeSyntheticRecording(new FragmentedMp4Muxer(file.getPath(), 2000000));
+        List<Mp4Box> complete = readBoxes();
+        long cut = complete.get(complete.size() - 1).offset + 100;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.truncate(cut);
+        channel.close();
+
+        List<Mp4Box> boxes = readBoxes();
+        assertEquals(complete.size() - 1, boxes.size());
+        assertEquals("moof", boxes.get(boxes.size() - 1).type);
+    }
+
+    private List<Mp4Box> readBoxes() throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return Mp4Box.readAll(channel);
+        } finally {
+            channel.close();
+        }
+    }
+}
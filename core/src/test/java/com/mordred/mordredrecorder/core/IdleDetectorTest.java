@@ -0,0 +1,85 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IdleDetectorTest {
+
+    private static final long FRAME_US = 40000;
+
+    // 4 Mbit/s at 25 fps is 20000 bytes per frame, 1000 of them count as tiny
+    private final IdleDetector detector = new IdleDetector(25, 5, 4000000);
+
+    @Test
+    public void tinyFramesForTwoSecondsLowerTheFrameRate() {
+        assertEquals(1000, detector.getTinyFrameBytes());
+        long pts = feed(0, 25, 16000);
+        pts = feed(pts, 49, 200);
+        assertFalse(detector.isIdle());
+        assertEquals(25, detector.getFrameRate());
+
+        assertEquals(5, detector.onFrame(pts, 200, false));
+        assertTrue(detector.isIdle());
+    }
+
+    @Test
+    public void firstLargeFrameRestoresTheFullRate() {
+        long pts = feed(0, 90, 100);
+        assertTrue(detector.isIdle());
+
+        assertEquals(25, detector.onFrame(pts, 5000, false));
+        assertFalse(detector.isIdle());
+        // and the idle wait starts over
+        feed(pts + FRAME_US, 25, 100);
+        assertFalse(detector.isIdle());
+    }
+
+    @Test
+    public void keyFramesDoNotCountAsActivity() {
+        long pts = feed(0, 25, 100);
+        detector.onFrame(pts, 60000, true);
+        feed(pts + FRAME_US, 25, 100);
+
+        assertTrue(detector.isIdle());
+    }
+
+    @Test
+    public void sparseFramesOfAStillScreenAreIdleByTime() {
+        // with variable frame rate a still screen only produces the periodic repeats
+        detector.onFrame(0, 100, false);
+        detector.onFrame(1000000, 100, false);
+        assertFalse(detector.isIdle());
+        detector.onFrame(2000000, 100, false);
+
+        assertTrue(detector.isIdle());
+    }
+
+    @Test
+    public void countsIdlePeriodsAndFrames() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        detector.setMetrics(metrics, "video");
+
+        long pts = feed(0, 70, 100);
+        pts = feed(pts, 1, 20000);
+        feed(pts, 65, 100);
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(2, snapshot.getCounter("video.idle_periods"));
+        // frames 50..69 and 120..135 arrived while idle
+        assertEquals(20 + 16, snapshot.getCounter("video.idle_frames"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void idleRateAboveFullRateIsRejected() {
+        new IdleDetector(25, 60, 4000000);
+    }
+
+    private long feed(long pts, int frames, int size) {
+        for (int i = 0; i < frames; i++) {
+            detector.onFrame(pts, size, false);
+            pts += FRAME_US;
+        }
+        return pts;
+    }
+}
@@ -0,0 +1,196 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class InitGraphTest {
+
+    private static final long STEP_MS = 10;
+    // only reached if steps that should overlap do not
+    private static final long OVERLAP_TIMEOUT_SEC = 10;
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    // "start <step>" and "end <step>", in the order they happened
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /** Step that takes {@code ms} and notes when it started and ended. */
+    private InitGraph.Step sleep(final String name, final long ms) {
+        return new InitGraph.Step() {
+            @Override
+            public void run() throws InterruptedException {
+                events.add("start " + name);
+                Thread.sleep(ms);
+                events.add("end " + name);
+            }
+        };
+    }
+
+    /**
+     * Step that only ends once every step sharing {@code running} has started, so the graph
+     * hangs, and the step counts a timeout in {@code timeouts}, unless they all run at once.
+     */
+    private InitGraph.Step meet(final String name, final CountDownLatch running, final AtomicInteger timeouts) {
+        return new InitGraph.Step() {
+            @Override
+            public void run() throws InterruptedException {
+                events.add("start " + name);
+                running.countDown();
+                if (!running.await(OVERLAP_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                    timeouts.incrementAndGet();
+                }
+                events.add("end " + name);
+            }
+        };
+    }
+
+    private void assertEndsBeforeStart(String dependency, String step) {
+        final int end = events.indexOf("end " + dependency);
+        final int start = events.indexOf("start " + step);
+        assertTrue(events.toString(), end >= 0 && start >= 0 && end < start);
+    }
+
+    /** The recorder's setup: the display needs the video encoder's surface. */
+    private InitGraph recorderSetup() {
+        return new InitGraph(executor)
+                .add("muxer", sleep("muxer", STEP_MS))
+                .add("videoEncoder", sleep("videoEncoder", STEP_MS))
+                .add("audioEncoder", sleep("audioEncoder", STEP_MS))
+                .add("audioRecord", sleep("audioRecord", STEP_MS))
+                .add("videoCodec", sleep("videoCodec", STEP_MS), "muxer", "videoEncoder")
+                .add("audioCodec", sleep("audioCodec", STEP_MS), "muxer", "audioEncoder")
+                .add("virtualDisplay", sleep("virtualDisplay", STEP_MS), "videoCodec");
+    }
+
+    @Test
+    public void stepsStartAfterTheStepsTheyDependOn() throws Exception {
+        InitGraph graph = recorderSetup();
+
+        graph.run();
+
+        assertEquals(7, graph.getFinishOrder().size());
+        assertEquals(14, events.size());
+        assertEndsBeforeStart("muxer", "videoCodec");
+        assertEndsBeforeStart("videoEncoder", "videoCodec");
+        assertEndsBeforeStart("videoCodec", "virtualDisplay");
+        assertEndsBeforeStart("muxer", "audioCodec");
+        assertEndsBeforeStart("audioEncoder", "audioCodec");
+        assertEquals("virtualDisplay", graph.getFinishOrder().get(6));
+    }
+
+    @Test
+    public void independentStepsOverlap() throws Exception {
+        // the four steps without dependencies, then both codecs, must each be running at once
+        CountDownLatch roots = new CountDownLatch(4);
+        CountDownLatch codecs = new CountDownLatch(2);
+        AtomicInteger timeouts = new AtomicInteger();
+        InitGraph graph = new InitGraph(executor)
+                .add("muxer", meet("muxer", roots, timeouts))
+                .add("videoEncoder", meet("videoEncoder", roots, timeouts))
+                .add("audioEncoder", meet("audioEncoder", roots, timeouts))
+                .add("audioRecord", meet("audioRecord", roots, timeouts))
+                .add("videoCodec", meet("videoCodec", codecs, timeouts), "muxer", "videoEncoder")
+                .add("audioCodec", meet("audioCodec", codecs, timeouts), "muxer", "audioEncoder");
+
+        graph.run();
+
+        assertEquals(0, timeouts.get());
+        assertEquals(6, graph.getFinishOrder().size());
+    }
+
+    @Test
+    public void failedStepSkipsItsDependentsAndIsRethrown() throws Exception {
+        final IOException failure = new IOException("no encoder");
+        InitGraph graph = new InitGraph(executor)
+                .add("videoEncoder", new InitGraph.Step() {
+                    @Override
+                    public void run() throws IOException {
+                        throw failure;
+                    }
+                })
+                .add("audioRecord", sleep("audioRecord", STEP_MS))
+                .add("videoCodec", sleep("videoCodec", 0), "videoEncoder")
+                .add("virtualDisplay", sleep("virtualDisplay", 0), "videoCodec");
+
+        try {
+            graph.run();
+            fail("run returned after a failed step");
+        } catch (IOException e) {
+            assertSame(failure, e);
+        }
+
+        // the independent step was waited for, so it can be cleaned up after
+        assertEquals(Collections.singletonList("audioRecord"), graph.getFinishOrder());
+        assertFalse(events.contains("start videoCodec"));
+        assertEquals(-1, graph.getDurationNs("videoCodec"));
+    }
+
+    @Test
+    public void runsOnTheCallingThreadWithADirectExecutor() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger onCaller = new AtomicInteger();
+        InitGraph.Step step = new InitGraph.Step() {
+            @Override
+            public void run() {
+                if (Thread.currentThread() == caller) {
+                    onCaller.incrementAndGet();
+                }
+            }
+        };
+        InitGraph graph = new InitGraph(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }).add("a", step).add("b", step, "a").add("c", step, "a", "b");
+
+        graph.run();
+
+        assertEquals(3, onCaller.get());
+        assertEquals(3, graph.getFinishOrder().size());
+    }
+
+    @Test
+    public void recordsStepTimes() throws Exception {
+        FakeTimeSource time = new FakeTimeSource(0);
+        MetricsRegistry metrics = new MetricsRegistry();
+        InitGraph graph = new InitGraph(executor, time)
+                .add("videoEncoder", sleep("videoEncoder", 0))
+                .add("videoCodec", sleep("videoCodec", 0), "videoEncoder");
+        graph.setMetrics(metrics, "init");
+
+        graph.run();
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.getHistogram("init.videoEncoder_ns").getCount());
+        assertEquals(1, snapshot.getHistogram("init.videoCodec_ns").getCount());
+        assertEquals(1, snapshot.getHistogram("init.total_ns").getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dependencyMustBeAddedFirst() {
+        new InitGraph(executor).add("virtualDisplay", sleep("virtualDisplay", 0), "videoCodec");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stepNamesAreUnique() {
+        new InitGraph(executor).add("muxer", sleep("muxer", 0)).add("muxer", sleep("muxer", 0));
+    }
+}
@@ -0,0 +1,148 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+public class KeyframeIndexTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("indexed", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        KeyframeIndex.fileOf(file).delete();
+        new File(file.getPath() + FaststartProcessor.TEMP_SUFFIX).delete();
+    }
+
+    private void record() throws IOException {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file.getPath(), 2000000);
+        muxer.setKeyframeIndex(KeyframeIndex.Writer.create(file));
+        FragmentedMp4MuxerTest.writeSyntheticRecording(muxer);
+    }
+
+    /** Checks that every entry points at the length prefix and slice header of its frame. */
+    private void assertEntriesPointAtTheirFrames(KeyframeIndex index) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(5);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int i = 0; i < index.getSampleCount(); i++) {
+                header.clear();
+                Mp4Box.readFully(channel, header, index.getOffset(i));
+                assertEquals(index.getSize(i) - 4, header.getInt(0));
+                assertEquals(index.isSync(i) ? 0x65 : 0x41, header.get(4));
+            }
+        }
+    }
+
+    @Test
+    public void muxerIndexesEveryVideoFrame() throws Exception {
+        record();
+
+        KeyframeIndex index = KeyframeIndex.open(file);
+        assertTrue(index.isComplete());
+        assertEquals(300, index.getSampleCount());
+        for (int i = 0; i < 300; i++) {
+            assertEquals(i * 1000000L / 30, index.getTimeUs(i));
+            assertEquals(i % 30 == 0, index.isSync(i));
+        }
+        assertEquals(4005, index.getSize(0));
+        assertEquals(605, index.getSize(1));
+        assertEntriesPointAtTheirFrames(index);
+    }
+
+    @Test
+    public void findsFramesAndKeyFramesByTime() throws Exception {
+        record();
+        KeyframeIndex index = KeyframeIndex.open(file);
+
+        assertEquals(-1, index.floorSample(-1));
+        assertEquals(0, index.floorSample(0));
+        assertEquals(5, index.floorSample(index.getTimeUs(5) + 1));
+        assertEquals(299, index.floorSample(Long.MAX_VALUE));
+        assertEquals(30, index.syncAtOrBefore(1500000));
+        assertEquals(60, index.syncAtOrBefore(2000000));
+        assertEquals(60, index.syncAtOrAfter(1500000));
+        assertEquals(60, index.syncAtOrAfter(2000000));
+        assertEquals(0, index.syncAtOrAfter(-1));
+        assertEquals(-1, index.syncAtOrAfter(9500000));
+        assertEquals(-1, index.syncAtOrBefore(-1));
+    }
+
+    @Test
+    public void unfinishedIndexIsRebuiltFromTheRecording() throws Exception {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file.getPath(), 2000000);
+        muxer.setKeyframeIndex(KeyframeIndex.Writer.create(file));
+        int video = muxer.addTrack(FragmentedMp4MuxerTest.videoFormat());
+        muxer.start();
+        SampleInfo info = new SampleInfo();
+        for (int frame = 0; frame < 150; frame++) {
+            boolean key = frame % 30 == 0;
+            ByteBuffer sample = FragmentedMp4MuxerTest.videoSample(frame, key, 100);
+            info.set(0, sample.remaining(), frame * 1000000L / 30, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(video, sample, info);
+        }
+        // the process dies: the last fragment is never written
+        muxer.release();
+
+        KeyframeIndex unfinished = KeyframeIndex.open(file);
+        assertFalse(unfinished.isComplete());
+        assertEquals(120, unfinished.getSampleCount());
+
+        KeyframeIndex rebuilt = KeyframeIndex.load(file);
+        assertTrue(rebuilt.isComplete());
+        assertEquals(Mp4Index.read(file).getVideoTrack().getSampleCount(), rebuilt.getSampleCount());
+        assertEquals(unfinished.getOffset(119), rebuilt.getOffset(119));
+        assertEntriesPointAtTheirFrames(rebuilt);
+    }
+
+    @Test
+    public void missingIndexIsWrittenOnLoad() throws Exception {
+        FragmentedMp4MuxerTest.writeSyntheticRecording(new FragmentedMp4Muxer(file.getPath(), 2000000));
+        assertNull(KeyframeIndex.open(file));
+
+        KeyframeIndex index = KeyframeIndex.load(file);
+
+        assertTrue(KeyframeIndex.fileOf(file).isFile());
+        assertEquals(300, index.getSampleCount());
+        assertEquals(10 * 1000000L / 30, index.getTimeUs(10));
+        assertEntriesPointAtTheirFrames(index);
+    }
+
+    @Test
+    public void faststartRewritesTheIndexForTheMovedSamples() throws Exception {
+        record();
+        long fragmentedOffset = KeyframeIndex.open(file).getOffset(0);
+
+        new FaststartProcessor().process(file, null);
+
+        KeyframeIndex index = KeyframeIndex.open(file);
+        assertTrue(index.isComplete());
+        assertEquals(300, index.getSampleCount());
+        assertNotEquals(fragmentedOffset, index.getOffset(0));
+        assertEquals(30, index.syncAtOrBefore(1500000));
+        assertEntriesPointAtTheirFrames(index);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsAFileThatIsNoIndex() throws Exception {
+        record();
+        try (FileChannel channel = FileChannel.open(KeyframeIndex.fileOf(file).toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), 0);
+        }
+
+        KeyframeIndex.open(file);
+    }
+}
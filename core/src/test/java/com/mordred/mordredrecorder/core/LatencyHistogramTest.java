@@ -0,0 +1,89 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverTheLongRangeWithBoundedError() {
+        assertEquals(0, LatencyHistogram.indexOf(0));
+        assertEquals(15, LatencyHistogram.indexOf(15));
+        assertEquals(16, LatencyHistogram.indexOf(16));
+        assertEquals(32, LatencyHistogram.indexOf(32));
+        assertEquals(32, LatencyHistogram.indexOf(33));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.indexOf(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.highestValueOf(LatencyHistogram.BUCKET_COUNT - 1));
+        long expectedLowest = 0;
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT; i++) {
+            long highest = LatencyHistogram.highestValueOf(i);
+            // buckets are contiguous and each value maps back into its own bucket
+            assertEquals(i, LatencyHistogram.indexOf(expectedLowest));
+            assertEquals(i, LatencyHistogram.indexOf(highest));
+            assertTrue(highest - expectedLowest <= expectedLowest / LatencyHistogram.SUB_BUCKETS);
+            expectedLowest = highest + 1;
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(11);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            // log-normal around 1 ms
+            values[i] = (long) (1000000 * Math.exp(random.nextGaussian()));
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(values[values.length - 1], snapshot.getMax());
+        for (double percentile : new double[] {1, 50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = snapshot.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " vs " + exact,
+                    reported >= exact && reported <= exact + exact / 16);
+        }
+        assertEquals(snapshot.getMax(), snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void emptyAndNegativeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.snapshot().getValueAtPercentile(99));
+        assertEquals(0, histogram.snapshot().getMean(), 0);
+        histogram.record(-5);
+        assertEquals(1, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getMax());
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 250000; i++) {
+                        histogram.record(i % 1000 + offset);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000000, snapshot.getCount());
+        assertEquals(1002, snapshot.getMax());
+        assertEquals(4 * 250 * (999 * 1000 / 2) + 250000 * (0 + 1 + 2 + 3), snapshot.getSum());
+    }
+}
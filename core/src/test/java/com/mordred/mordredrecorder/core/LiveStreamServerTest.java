@@ -0,0 +1,150 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LiveStreamServerTest {
+
+    private final ExecutorService clients = Executors.newCachedThreadPool();
+    private LiveStreamServer server;
+
+    @After
+    public void tearDown() {
+        if (server != null) {
+            server.close();
+        }
+        clients.shutdownNow();
+    }
+
+    private static byte[] readAll(InputStream in) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private void awaitConnections(int count) throws InterruptedException {
+        for (int i = 0; i < 500 && server.getConnections() < count; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, server.getConnections());
+    }
+
+    private static void assertPlayableStream(byte[] stream) {
+        assertTrue(stream.length > 0);
+        assertEquals(MpegTsMuxer.PAT_PID, (stream[1] & 0x1f) << 8 | stream[2] & 0xff);
+        Map<Integer, List<byte[]>> units = MpegTsMuxerTest.demux(stream);
+        assertEquals(30, units.get(MpegTsMuxer.FIRST_ELEMENTARY_PID).size());
+        assertFalse(units.get(MpegTsMuxer.FIRST_ELEMENTARY_PID + 1).isEmpty());
+    }
+
+    @Test
+    public void streamsToLoopbackSocketClients() throws Exception {
+        FanOutMuxer muxer = new FanOutMuxer(new RecordingMuxer());
+        server = new LiveStreamServer(muxer, 0, false);
+        server.start();
+        Future<byte[]> first = clients.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return readAll(new Socket(InetAddress.getLoopbackAddress(), server.getPort()).getInputStream());
+            }
+        });
+        Future<byte[]> second = clients.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return readAll(new Socket(InetAddress.getLoopbackAddress(), server.getPort()).getInputStream());
+            }
+        });
+        awaitConnections(2);
+
+        MpegTsMuxerTest.writeSyntheticStream(muxer);
+
+        assertPlayableStream(first.get(10, TimeUnit.SECONDS));
+        assertPlayableStream(second.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void servesChunkedHttp() throws Exception {
+        FanOutMuxer muxer = new FanOutMuxer(new RecordingMuxer());
+        server = new LiveStreamServer(muxer, 0, true);
+        server.start();
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://127.0.0.1:" + server.getPort() + "/live.ts").openConnection();
+        Future<byte[]> body = clients.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                assertEquals(200, connection.getResponseCode());
+                assertEquals("video/mp2t", connection.getContentType());
+                assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"));
+                return readAll(connection.getInputStream());
+            }
+        });
+        awaitConnections(1);
+
+        MpegTsMuxerTest.writeSyntheticStream(muxer);
+
+        assertPlayableStream(body.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void silentHttpClientDoesNotHoldUpOthers() throws Exception {
+        FanOutMuxer muxer = new FanOutMuxer(new RecordingMuxer());
+        server = new LiveStreamServer(muxer, 0, true);
+        server.start();
+        // connects, never sends a request
+        Socket silent = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        final HttpURLConnection connection = (HttpURLConnection) new URL(
+                "http://127.0.0.1:" + server.getPort() + "/live.ts").openConnection();
+        Future<Integer> response = clients.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return connection.getResponseCode();
+            }
+        });
+
+        // served well before the silent client's request times out
+        for (int i = 0; i < 100 && server.getConnections() < 1; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getConnections());
+
+        MpegTsMuxerTest.writeSyntheticStream(muxer);
+        assertEquals(200, (int) response.get(10, TimeUnit.SECONDS));
+        silent.close();
+    }
+
+    @Test
+    public void viewerThatHangsUpDoesNotStopTheRecording() throws Exception {
+        RecordingMuxer primary = new RecordingMuxer();
+        FanOutMuxer muxer = new FanOutMuxer(primary);
+        server = new LiveStreamServer(muxer, 0, false);
+        server.start();
+        Socket viewer = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        awaitConnections(1);
+        viewer.close();
+
+        MpegTsMuxerTest.writeSyntheticStream(muxer);
+
+        assertTrue(primary.stopped);
+        assertEquals(30 + 42, primary.samples.size());
+    }
+}
@@ -0,0 +1,37 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MediaClockTest {
+
+    @Test
+    public void timelineStartsAtFirstStart() {
+        FakeTimeSource time = new FakeTimeSource(7000000000L);
+        MediaClock clock = new MediaClock(time);
+        assertFalse(clock.isStarted());
+        clock.start();
+        time.advanceUs(1500);
+        clock.start();
+        assertEquals(1500, clock.nowUs());
+        assertEquals(-1000, clock.toPtsUs(6999000000L));
+        assertEquals(2000000, clock.toPtsUs(9000000000L));
+    }
+
+    @Test
+    public void nowStartsTheClockAndNeverDecreases() {
+        FakeTimeSource time = new FakeTimeSource(100000);
+        MediaClock clock = new MediaClock(time);
+        assertEquals(0, clock.nowUs());
+        time.advanceUs(40);
+        assertEquals(40, clock.nowUs());
+        time.advanceUs(-30);
+        assertEquals(40, clock.nowUs());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void mappingRequiresStart() {
+        new MediaClock(new FakeTimeSource(0)).toPtsUs(0);
+    }
+}
@@ -0,0 +1,72 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void metricsAreCreatedOnceByName() {
+        MetricsRegistry registry = new MetricsRegistry();
+        assertSame(registry.counter("a"), registry.counter("a"));
+        assertSame(registry.histogram("a"), registry.histogram("a"));
+        assertSame(registry.gauge("a"), registry.gauge("a"));
+        assertNotSame(registry.counter("a"), registry.counter("b"));
+    }
+
+    @Test
+    public void snapshotRatesUseTheTimeSource() {
+        FakeTimeSource time = new FakeTimeSource(0);
+        MetricsRegistry registry = new MetricsRegistry(time);
+        Counter bytes = registry.counter("video.bytes");
+        bytes.add(1000);
+        time.advanceUs(1000000);
+        MetricsSnapshot first = registry.snapshot();
+        bytes.add(500);
+        registry.histogram("video.write_ns").record(100);
+        registry.gauge("audio.clock_drift_us").set(-1500);
+        time.advanceUs(500000);
+        MetricsSnapshot second = registry.snapshot();
+
+        assertEquals(1000, first.getCounter("video.bytes"));
+        assertEquals(1000, first.getRate(null, "video.bytes"), 1e-9);
+        assertEquals(1000, second.getRate(first, "video.bytes"), 1e-9);
+        assertEquals(0, second.getCounter("missing"));
+        assertNull(first.getHistogram("video.write_ns"));
+        assertEquals(1, second.getHistogram("video.write_ns").getCount());
+        assertNull(first.getGauge("audio.clock_drift_us"));
+        assertEquals(-1500, (long) second.getGauge("audio.clock_drift_us"));
+        assertEquals("uptime_ms 1500\n"
+                + "video.bytes 1500 rate=1000.0/s\n"
+                + "audio.clock_drift_us -1500\n"
+                + "video.write_ns count=1 mean=100 p50=100 p90=100 p99=100 max=100\n",
+                second.format(first));
+    }
+
+    @Test
+    public void dumperAppendsSnapshots() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("audio.samples").add(3);
+        File file = new File(folder.getRoot(), "session.metrics.txt");
+        MetricsFileDumper dumper = new MetricsFileDumper(registry, file, 10);
+        dumper.start();
+        Thread.sleep(50);
+        dumper.stop();
+        assertNull(dumper.getError());
+        String text = new String(Files.readAllBytes(file.toPath()), Charset.forName("UTF-8"));
+        int blocks = text.split("uptime_ms", -1).length - 1;
+        assertTrue("blocks " + blocks, blocks >= 2);
+        assertTrue(text.contains("audio.samples 3"));
+        assertTrue(text.endsWith("\n\n"));
+    }
+}
@@ -0,0 +1,182 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class Mp4SplicerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File record(String name) throws IOException {
+        File file = folder.newFile(name);
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file.getPath(), 2000000);
+        muxer.setKeyframeIndex(KeyframeIndex.Writer.create(file));
+        FragmentedMp4MuxerTest.writeSyntheticRecording(muxer);
+        return file;
+    }
+
+    /** Bytes of {@code sample}, located through the chunk that holds it. */
+    private static byte[] readSample(File file, Mp4Index.Track track, int sample) throws IOException {
+        int chunk = track.getChunkCount() - 1;
+        while (track.getChunkFirstSample(chunk) > sample) {
+            chunk--;
+        }
+        long offset = track.getChunkOffset(chunk);
+        for (int i = track.getChunkFirstSample(chunk); i < sample; i++) {
+            offset += track.getSampleSize(i);
+        }
+        ByteBuffer data = ByteBuffer.allocate(track.getSampleSize(sample));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Mp4Box.readFully(channel, data, offset);
+        }
+        return data.array();
+    }
+
+    @Test
+    public void trimStartsAtTheKeyFrameBeforeAndEndsExactly() throws Exception {
+        File source = record("source.mp4");
+        File output = new File(folder.getRoot(), "trimmed.mp4");
+
+        Mp4Splicer.trim(source, 1500000, 4000000, output);
+
+        Mp4Index before = Mp4Index.read(source);
+        Mp4Index after = Mp4Index.read(output);
+        assertTrue(after.isFaststart());
+        Mp4Index.Track video = after.getVideoTrack();
+        // frames 30 to 119: from the key frame at 1 s up to 4 s
+        assertEquals(90, video.getSampleCount());
+        assertEquals(3, video.getSyncSampleCount());
+        assertTrue(video.isSyncSample(0));
+        assertEquals(0, video.getStartTime());
+        assertEquals(3000000, video.getDurationUs());
+        assertArrayEquals(readSample(source, before.getVideoTrack(), 30), readSample(output, video, 0));
+        assertArrayEquals(readSample(source, before.getVideoTrack(), 119), readSample(output, video, 89));
+        // the audio of the same three seconds, starting with the first frame at or after 1 s
+        Mp4Index.Track audio = after.getAudioTrack();
+        int firstAudio = (int) Math.ceil(1000000 / 23220.0);
+        assertArrayEquals(readSample(source, before.getAudioTrack(), firstAudio), readSample(output, audio, 0));
+        assertTrue(Math.abs(audio.getDurationUs() - 3000000) < 23220);
+        assertTrue(audio.getStartUs() < 23220);
+    }
+
+    @Test
+    public void cutDropsTheRangeAndJoinsTheRest() throws Exception {
+        File source = record("source.mp4");
+        File output = new File(folder.getRoot(), "cut.mp4");
+
+        Mp4Splicer.cut(source, 3000000, 6500000, output);
+
+        Mp4Index.Track original = Mp4Index.read(source).getVideoTrack();
+        Mp4Index.Track video = Mp4Index.read(output).getVideoTrack();
+        // frames 0 to 89, then from the key frame at 7 s, the first after the cut, to the end
+        assertEquals(90 + 90, video.getSampleCount());
+        assertTrue(video.isSyncSample(90));
+        assertEquals(90 * 3000, video.getSampleTime(90));
+        assertEquals(6000000, video.getDurationUs());
+        assertArrayEquals(readSample(source, original, 89), readSample(output, video, 89));
+        assertArrayEquals(readSample(source, original, 210), readSample(output, video, 90));
+        assertArrayEquals(readSample(source, original, 299), readSample(output, video, 179));
+    }
+
+    @Test
+    public void cutWithinOneGroupOfPicturesStillRemovesTheRange() throws Exception {
+        File source = record("source.mp4");
+        File output = new File(folder.getRoot(), "cut.mp4");
+
+        // resuming at the key frame before the end of the cut would put all of it back
+        Mp4Splicer.cut(source, 3000000, 3500000, output);
+
+        Mp4Index.Track original = Mp4Index.read(source).getVideoTrack();
+        Mp4Index.Track video = Mp4Index.read(output).getVideoTrack();
+        assertEquals(90 + 180, video.getSampleCount());
+        assertArrayEquals(readSample(source, original, 120), readSample(output, video, 90));
+    }
+
+    @Test
+    public void concatJoinsRecordingsBackToBack() throws Exception {
+        File first = record("first.mp4");
+        File second = record("second.mp4");
+        File output = new File(folder.getRoot(), "joined.mp4");
+
+        Mp4Splicer.concat(Arrays.asList(first, second), output);
+
+        Mp4Index source = Mp4Index.read(first);
+        Mp4Index joined = Mp4Index.read(output);
+        assertEquals(600, joined.getVideoTrack().getSampleCount());
+        assertEquals(20, joined.getVideoTrack().getSyncSampleCount());
+        assertEquals(300 * 3000, joined.getVideoTrack().getSampleTime(300));
+        assertEquals(2 * source.getAudioTrack().getSampleCount(), joined.getAudioTrack().getSampleCount());
+        assertArrayEquals(readSample(second, source.getVideoTrack(), 0), readSample(output, joined.getVideoTrack(), 300));
+        // nothing but the samples and the new tables
+        long samples = joined.getVideoTrack().getBytes() + joined.getAudioTrack().getBytes();
+        assertEquals(2 * (source.getVideoTrack().getBytes() + source.getAudioTrack().getBytes()), samples);
+        assertTrue(output.length() < first.length() + second.length());
+    }
+
+    @Test
+    public void buildsTheIndexOfASourceRecordedWithoutOne() throws Exception {
+        File source = folder.newFile("unindexed.mp4");
+        FragmentedMp4MuxerTest.writeSyntheticRecording(new FragmentedMp4Muxer(source.getPath(), 2000000));
+        File output = new File(folder.getRoot(), "trimmed.mp4");
+
+        Mp4Splicer.trim(source, 0, 2000000, output);
+
+        assertTrue(KeyframeIndex.open(source).isComplete());
+        assertEquals(60, Mp4Index.read(output).getVideoTrack().getSampleCount());
+    }
+
+    @Test
+    public void rejectsRecordingsWithOtherTracks() throws Exception {
+        File first = record("first.mp4");
+        File videoOnly = folder.newFile("video.mp4");
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(videoOnly.getPath(), 2000000);
+        int video = muxer.addTrack(FragmentedMp4MuxerTest.videoFormat());
+        muxer.start();
+        SampleInfo info = new SampleInfo();
+        ByteBuffer sample = FragmentedMp4MuxerTest.videoSample(0, true, 100);
+        info.set(0, sample.remaining(), 0, SampleInfo.FLAG_KEY_FRAME);
+        muxer.writeSampleData(video, sample, info);
+        muxer.stop();
+        muxer.release();
+        File output = new File(folder.getRoot(), "joined.mp4");
+
+        try {
+            Mp4Splicer.concat(Arrays.asList(first, videoOnly), output);
+            fail("joined recordings with different tracks");
+        } catch (IOException expected) {
+        }
+        assertFalse(output.exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyRange() throws Exception {
+        File source = record("source.mp4");
+
+        Mp4Splicer.trim(source, 2000000, 2000000, new File(folder.getRoot(), "empty.mp4"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCuttingEverything() throws Exception {
+        File source = record("source.mp4");
+
+        Mp4Splicer.cut(source, 0, 20000000, new File(folder.getRoot(), "empty.mp4"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void doesNotWriteOverTheSource() throws Exception {
+        File source = record("source.mp4");
+
+        Mp4Splicer.trim(source, 0, 1000000, source);
+    }
+}
@@ -0,0 +1,179 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class MpegTsMuxerTest {
+
+    private static final int VIDEO_PID = MpegTsMuxer.FIRST_ELEMENTARY_PID;
+    private static final int AUDIO_PID = MpegTsMuxer.FIRST_ELEMENTARY_PID + 1;
+
+    /** Writes one second of 30 fps video with a key frame every 15 frames, and AAC frames. */
+    static void writeSyntheticStream(SampleMuxer muxer) throws Exception {
+        int video = muxer.addTrack(FragmentedMp4MuxerTest.videoFormat());
+        int audio = muxer.addTrack(FragmentedMp4MuxerTest.audioFormat());
+        muxer.start();
+        SampleInfo info = new SampleInfo();
+        int audioFrame = 0;
+        for (int frame = 0; frame < 30; frame++) {
+            long videoPts = frame * 1000000L / 30;
+            while (audioFrame * 23220L <= videoPts) {
+                info.set(0, 200, audioFrame * 23220L, SampleInfo.FLAG_KEY_FRAME);
+                muxer.writeSampleData(audio, FragmentedMp4MuxerTest.audioSample(audioFrame++), info);
+            }
+            boolean key = frame % 15 == 0;
+            ByteBuffer sample = FragmentedMp4MuxerTest.videoSample(frame, key, key ? 4000 : 600);
+            info.set(0, sample.remaining(), videoPts, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(video, sample, info);
+        }
+        muxer.stop();
+        muxer.release();
+    }
+
+    /** Splits a transport stream into its PES payloads, keyed by PID, checking every packet on the way. */
+    static Map<Integer, List<byte[]>> demux(byte[] stream) {
+        assertEquals(0, stream.length % MpegTsMuxer.PACKET_SIZE);
+        Map<Integer, List<byte[]>> units = new HashMap<>();
+        Map<Integer, ByteArrayOutputStream> open = new HashMap<>();
+        Map<Integer, Integer> continuity = new HashMap<>();
+        for (int start = 0; start < stream.length; start += MpegTsMuxer.PACKET_SIZE) {
+            assertEquals(MpegTsMuxer.SYNC_BYTE, stream[start] & 0xff);
+            boolean unitStart = (stream[start + 1] & 0x40) != 0;
+            int pid = (stream[start + 1] & 0x1f) << 8 | stream[start + 2] & 0xff;
+            int control = stream[start + 3] >> 4 & 3;
+            int counter = stream[start + 3] & 0x0f;
+            Integer last = continuity.put(pid, counter);
+            if (last != null) {
+                assertEquals("continuity of PID " + pid, (last + 1) & 0x0f, counter);
+            }
+            int payload = start + 4;
+            if (control == 3) {
+                payload += 1 + (stream[start + 4] & 0xff);
+            }
+            int end = start + MpegTsMuxer.PACKET_SIZE;
+            if (pid == MpegTsMuxer.PAT_PID || pid == MpegTsMuxer.PMT_PID) {
+                assertTrue(unitStart);
+                List<byte[]> sections = units.containsKey(pid) ? units.get(pid) : new ArrayList<byte[]>();
+                int length = ((stream[payload + 2] & 0x0f) << 8 | stream[payload + 3] & 0xff) + 3;
+                byte[] section = new byte[length];
+                System.arraycopy(stream, payload + 1, section, 0, length);
+                sections.add(section);
+                units.put(pid, sections);
+                continue;
+            }
+            if (unitStart && open.containsKey(pid)) {
+                units.get(pid).add(open.remove(pid).toByteArray());
+            }
+            if (unitStart) {
+                open.put(pid, new ByteArrayOutputStream());
+                if (!units.containsKey(pid)) {
+                    units.put(pid, new ArrayList<byte[]>());
+                }
+            }
+            if (open.containsKey(pid)) {
+                open.get(pid).write(stream, payload, end - payload);
+            }
+        }
+        for (Map.Entry<Integer, ByteArrayOutputStream> entry : open.entrySet()) {
+            units.get(entry.getKey()).add(entry.getValue().toByteArray());
+        }
+        return units;
+    }
+
+    private static long pts(byte[] pes) {
+        return (pes[9] & 0x0eL) << 29 | (pes[10] & 0xffL) << 22 | (pes[11] & 0xfeL) << 14
+                | (pes[12] & 0xffL) << 7 | (pes[13] & 0xffL) >> 1;
+    }
+
+    @Test
+    public void writesTablesWithValidChecksums() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSyntheticStream(new MpegTsMuxer(out));
+        byte[] stream = out.toByteArray();
+
+        // the stream opens with the tables
+        assertEquals(MpegTsMuxer.PAT_PID, (stream[1] & 0x1f) << 8 | stream[2] & 0xff);
+        Map<Integer, List<byte[]>> units = demux(stream);
+        byte[] pat = units.get(MpegTsMuxer.PAT_PID).get(0);
+        assertEquals(0, MpegTsMuxer.crc32(pat, 0, pat.length));
+        assertEquals(MpegTsMuxer.PMT_PID, (pat[10] & 0x1f) << 8 | pat[11] & 0xff);
+
+        byte[] pmt = units.get(MpegTsMuxer.PMT_PID).get(0);
+        assertEquals(0, MpegTsMuxer.crc32(pmt, 0, pmt.length));
+        assertEquals(2, pmt[0]);
+        // the audio track carries the clock reference
+        assertEquals(AUDIO_PID, (pmt[8] & 0x1f) << 8 | pmt[9] & 0xff);
+        assertEquals(MpegTsMuxer.STREAM_TYPE_H264, pmt[12]);
+        assertEquals(VIDEO_PID, (pmt[13] & 0x1f) << 8 | pmt[14] & 0xff);
+        assertEquals(MpegTsMuxer.STREAM_TYPE_AAC_ADTS, pmt[17]);
+        assertEquals(AUDIO_PID, (pmt[18] & 0x1f) << 8 | pmt[19] & 0xff);
+
+        // tables ahead of both key frames, and again for the audio that follows after 500 ms
+        assertTrue(units.get(MpegTsMuxer.PMT_PID).size() >= 2);
+    }
+
+    @Test
+    public void keyFramesCarryParameterSetsBehindAnAccessUnitDelimiter() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSyntheticStream(new MpegTsMuxer(out));
+
+        List<byte[]> video = demux(out.toByteArray()).get(VIDEO_PID);
+        assertEquals(30, video.size());
+        byte[] key = video.get(0);
+        assertEquals(0xe0, key[3] & 0xff);
+        assertEquals(MpegTsMuxer.PTS_DELAY, pts(key));
+        ByteBuffer payload = ByteBuffer.wrap(key, 14, key.length - 14);
+        assertEquals(1, payload.getInt());
+        assertEquals(0x09, payload.get());
+        payload.get();
+        assertEquals(1, payload.getInt());
+        assertEquals(0x67, payload.get());
+        payload.position(payload.position() + FragmentedMp4MuxerTest.SPS.length - 5);
+        assertEquals(1, payload.getInt());
+        assertEquals(0x68, payload.get());
+        payload.position(payload.position() + FragmentedMp4MuxerTest.PPS.length - 5);
+        assertEquals(1, payload.getInt());
+        assertEquals(0x65, payload.get());
+        assertEquals(4000, payload.remaining());
+
+        byte[] delta = video.get(1);
+        assertEquals(MpegTsMuxer.PTS_DELAY + 33333 * 9 / 100, pts(delta));
+        assertEquals(14 + 6 + 5 + 600, delta.length);
+    }
+
+    @Test
+    public void audioFramesGetAdtsHeaders() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSyntheticStream(new MpegTsMuxer(out));
+
+        List<byte[]> audio = demux(out.toByteArray()).get(AUDIO_PID);
+        assertEquals(42, audio.size());
+        byte[] pes = audio.get(1);
+        assertEquals(0xc0, pes[3] & 0xff);
+        // bounded audio PES: header remainder, ADTS header and frame
+        assertEquals(8 + 7 + 200, (pes[4] & 0xff) << 8 | pes[5] & 0xff);
+        assertEquals(MpegTsMuxer.PTS_DELAY + 23220 * 9 / 100, pts(pes));
+        assertEquals(0xff, pes[14] & 0xff);
+        assertEquals(0xf1, pes[15] & 0xff);
+        // AAC LC, 44.1 kHz, mono
+        assertEquals(1, (pes[16] & 0xff) >> 6);
+        assertEquals(4, (pes[16] >> 2) & 0x0f);
+        assertEquals(1, (pes[17] & 0xff) >> 6);
+        int frameLength = (pes[17] & 3) << 11 | (pes[18] & 0xff) << 3 | (pes[19] & 0xff) >> 5;
+        assertEquals(207, frameLength);
+        assertEquals(1, ByteBuffer.wrap(pes, 21, 4).getInt());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsHevc() {
+        new MpegTsMuxer(new ByteArrayOutputStream()).addTrack(TrackFormat.video(TrackFormat.MIME_HEVC, 640, 480));
+    }
+}
@@ -0,0 +1,337 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class MuxerWriterTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    @Test
+    public void interleavesConcurrentTracksByTimestamp() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, 2, 64, 5000000);
+        SamplePool videoPool = SamplePool.forVideo(4000000, 30);
+        SamplePool audioPool = SamplePool.forAudio(64000, 44100);
+        // 6000 video and 8000 audio samples produced as fast as the threads allow
+        EncoderDrain video = new EncoderDrain(FakeEncoderOutput.video(6000, 0), VIDEO, writer, videoPool);
+        EncoderDrain audio = new EncoderDrain(FakeEncoderOutput.audio(8000, 0), AUDIO, writer, audioPool);
+        MetricsRegistry metrics = new MetricsRegistry();
+        writer.setMetrics(metrics, "video", "audio");
+        video.setMetrics(metrics, "video");
+        long startNs = System.nanoTime();
+        writer.setStartTimeNs(startNs);
+
+        runToCompletion(writer, video, audio);
+        long endNs = System.nanoTime();
+
+        assertNull(writer.getError());
+        assertTrue(muxer.started);
+        assertTrue(muxer.stopped);
+        assertEquals(2, muxer.tracks.size());
+        assertTrue(muxer.tracks.get(VIDEO).isVideo());
+        assertEquals(6000, muxer.countTrack(VIDEO));
+        assertEquals(8000, muxer.countTrack(AUDIO));
+        MetricsSnapshot snapshot = metrics.snapshot();
+        assertEquals(6000, snapshot.getCounter("video.samples"));
+        assertEquals(8000, snapshot.getHistogram("audio.mux_latency_ns").getCount());
+        assertEquals(8000, snapshot.getHistogram("audio.write_ns").getCount());
+        assertEquals(writer.getWrittenBytes(),
+                snapshot.getCounter("video.bytes") + snapshot.getCounter("audio.bytes"));
+        assertEquals(6000, snapshot.getHistogram("video.dequeue_wait_ns").getCount());
+        assertNull(snapshot.getHistogram("audio.dequeue_wait_ns"));
+        // once per track, from the start to the first sample written
+        assertEquals(1, snapshot.getHistogram("video.time_to_first_sample_ns").getCount());
+        assertTrue(snapshot.getHistogram("video.time_to_first_sample_ns").getMax() <= endNs - startNs);
+        long lastPts = Long.MIN_VALUE;
+        int[] nextSequence = new int[2];
+        for (long[] sample : muxer.samples) {
+            assertTrue("samples out of order at pts " + sample[1], sample[1] >= lastPts);
+            lastPts = sample[1];
+            assertEquals(nextSequence[(int) sample[0]]++, sample[2]);
+        }
+        // every slab went back and the pools never grew beyond queue capacity plus in-flight samples
+        assertEquals(0, videoPool.getOutstanding());
+        assertEquals(0, audioPool.getOutstanding());
+        assertTrue(videoPool.getSlabCount() <= writer.getQueueCapacity() + 2);
+    }
+
+    @Test
+    public void sustainsThousandsOfSamplesPerSecond() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, 2);
+        // one sample every 250us per track, 8000 samples/s in total
+        EncoderDrain video = new EncoderDrain(FakeEncoderOutput.video(2000, 250000), VIDEO, writer,
+                SamplePool.forVideo(4000000, 30));
+        EncoderDrain audio = new EncoderDrain(FakeEncoderOutput.audio(2000, 250000), AUDIO, writer,
+                SamplePool.forAudio(64000, 44100));
+
+        long start = System.nanoTime();
+        runToCompletion(writer, video, audio);
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(4000, muxer.samples.size());
+        assertEquals(0, writer.getDroppedSamples());
+        assertTrue("took " + elapsedMs + "ms", elapsedMs < 5000);
+    }
+
+    @Test
+    public void stalledTrackDelaysOtherTrackOnlyUntilWaitExpires() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, 2, 64, 1000);
+        writer.put(EncodedSample.format(VIDEO, TrackFormat.video(TrackFormat.MIME_AVC, 640, 480)));
+        writer.put(EncodedSample.format(AUDIO, TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1)));
+        writer.put(sample(VIDEO, 0, 0));
+        assertTrue(writer.step());
+        assertTrue(writer.step());
+        assertTrue(muxer.started);
+
+        // audio has nothing queued yet: the video sample is held back first ...
+        assertFalse(writer.step());
+        assertTrue(muxer.samples.isEmpty());
+        // ... and written once the interleave wait has expired
+        Thread.sleep(5);
+        assertTrue(writer.step());
+        assertEquals(1, muxer.samples.size());
+    }
+
+    @Test
+    public void writesOtherTracksAtFullRateWhileOneStaysStalled() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        // a small queue, so a writer letting audio through slowly soon blocks its drain
+        final MuxerWriter writer = new MuxerWriter(muxer, 2, 8, MuxerWriter.DEFAULT_MAX_INTERLEAVE_WAIT_US);
+        writer.put(EncodedSample.format(VIDEO, TrackFormat.video(TrackFormat.MIME_AVC, 640, 480)));
+        writer.put(EncodedSample.format(AUDIO, TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1)));
+        writer.put(sample(VIDEO, 0, 0));
+        Thread writerThread = new Thread(writer, "MuxerWriter");
+        writerThread.start();
+
+        // the video encoder stops, audio goes on in real time for 2 s, one sample every 10 ms
+        long start = System.nanoTime();
+        for (int i = 0; i < 200; i++) {
+            long dueNs = start + i * 10000000L;
+            while (System.nanoTime() < dueNs) {
+                Thread.sleep(1);
+            }
+            assertTrue(writer.put(sample(AUDIO, i, i * 10000L)));
+        }
+        long producedMs = (System.nanoTime() - start) / 1000000;
+        Thread.sleep(50);
+        long written = writer.getWrittenSamples();
+        writer.put(EncodedSample.endOfStream(VIDEO));
+        writer.put(EncodedSample.endOfStream(AUDIO));
+        writerThread.join(10000);
+
+        // the drain never waited on the writer, and only the first interleave wait held audio back
+        assertTrue("producing took " + producedMs + "ms", producedMs < 2500);
+        assertTrue("wrote " + written + " samples", written >= 195);
+        assertNull(writer.getError());
+        assertEquals(201, muxer.samples.size());
+    }
+
+    @Test
+    public void stillScreenAtVariableFrameRateKeepsAudioFlowing() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        final MuxerWriter writer = new MuxerWriter(muxer, 2, 8, MuxerWriter.DEFAULT_MAX_INTERLEAVE_WAIT_US);
+        MetricsRegistry metrics = new MetricsRegistry();
+        writer.setMetrics(metrics, "video", "audio");
+        writer.put(EncodedSample.format(VIDEO, TrackFormat.video(TrackFormat.MIME_AVC, 640, 480)));
+        writer.put(EncodedSample.format(AUDIO, TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1)));
+        Thread writerThread = new Thread(writer, "MuxerWriter");
+        writerThread.start();
+
+        // 300 ms of screen changes at 30 fps, then a still screen that the encoder repeats only
+        // once per key frame interval, here after 1.5 s; audio runs throughout in real time
+        long start = System.nanoTime();
+        long nextVideoUs = 0;
+        int videoFrames = 0;
+        int audioFrames = 0;
+        for (long nowUs = 0; nowUs < 2000000; nowUs += 1000) {
+            while (System.nanoTime() - start < nowUs * 1000) {
+                Thread.sleep(1);
+            }
+            if (nowUs >= nextVideoUs) {
+                assertTrue(writer.put(sample(VIDEO, videoFrames++, nextVideoUs)));
+                nextVideoUs = videoFrames < 10 ? videoFrames * 33333L : videoFrames == 10 ? 1800000 : Long.MAX_VALUE;
+            }
+            if (nowUs >= audioFrames * 23220L) {
+                assertTrue(writer.put(sample(AUDIO, audioFrames, audioFrames * 23220L)));
+                audioFrames++;
+            }
+        }
+        long producedMs = (System.nanoTime() - start) / 1000000;
+        writer.put(EncodedSample.endOfStream(VIDEO));
+        writer.put(EncodedSample.endOfStream(AUDIO));
+        writerThread.join(10000);
+
+        assertTrue("producing took " + producedMs + "ms", producedMs < 2500);
+        assertNull(writer.getError());
+        assertEquals(videoFrames + audioFrames, muxer.samples.size());
+        // audio was held back once, for the interleave wait, when the screen went still
+        LatencyHistogram.Snapshot audioLatency = metrics.snapshot().getHistogram("audio.mux_latency_ns");
+        assertTrue("audio waited " + audioLatency.getMax() / 1000000 + "ms",
+                audioLatency.getMax() < 2 * MuxerWriter.DEFAULT_MAX_INTERLEAVE_WAIT_US * 1000);
+    }
+
+    @Test
+    public void doesNotWaitForAnIdleTrackWhilePaused() throws Exception {
+        RecordingMuxer target = new RecordingMuxer();
+        PausableClock clock = new PausableClock();
+        PausableMuxer muxer = new PausableMuxer(target, clock);
+        // an interleave wait no pause outlasts, and room for only a few held samples
+        MuxerWriter writer = new MuxerWriter(muxer, 2, 8, 60000000);
+        writer.put(EncodedSample.format(VIDEO, TrackFormat.video(TrackFormat.MIME_AVC, 640, 480)));
+        writer.put(EncodedSample.format(AUDIO, TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1)));
+        writer.put(keyFrame(VIDEO, 0, 0));
+        writer.put(sample(AUDIO, 0, 0));
+        while (writer.step()) {
+        }
+
+        // paused: the video encoder is suspended, audio keeps coming and is dropped downstream
+        clock.pause(100000);
+        writer.put(sample(AUDIO, 1, 110000));
+        assertFalse(writer.step());
+        writer.setTrackIdle(VIDEO, true);
+        for (int i = 2; i < 100; i++) {
+            while (writer.step()) {
+            }
+            writer.put(sample(AUDIO, i, 100000 + i * 10000));
+        }
+        while (writer.step()) {
+        }
+        assertEquals(0, writer.getQueueDepth(AUDIO));
+
+        clock.resume(1100000);
+        writer.setTrackIdle(VIDEO, false);
+        writer.put(sample(AUDIO, 100, 1110000));
+        assertFalse(writer.step());
+        writer.put(keyFrame(VIDEO, 1, 1110000));
+        writer.put(sample(VIDEO, 2, 1143333));
+        while (writer.step()) {
+        }
+
+        // the last video frame waits for the next audio sample, as before the pause
+        assertEquals(103, writer.getWrittenSamples());
+        assertEquals(1, writer.getQueueDepth(VIDEO));
+        assertEquals(99, muxer.getDroppedSamples());
+        assertEquals(4, target.samples.size());
+        // both tracks go on 1 s earlier, where the pause was cut out
+        assertEquals(110000, target.samples.get(2)[1]);
+        assertEquals(110000, target.samples.get(3)[1]);
+    }
+
+    @Test
+    public void startsWithRemainingTracksWhenOneEndsWithoutFormat() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, 2);
+        writer.put(EncodedSample.format(VIDEO, TrackFormat.video(TrackFormat.MIME_AVC, 640, 480)));
+        writer.put(sample(VIDEO, 0, 0));
+        writer.put(EncodedSample.endOfStream(VIDEO));
+        writer.put(EncodedSample.endOfStream(AUDIO));
+
+        writer.run();
+
+        assertNull(writer.getError());
+        assertEquals(1, muxer.tracks.size());
+        assertEquals(1, muxer.samples.size());
+        assertTrue(muxer.stopped);
+    }
+
+    @Test
+    public void dropsSamplesThatGoBackInTime() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, 1);
+        writer.put(EncodedSample.format(0, TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1)));
+        writer.put(sample(0, 0, 1000));
+        writer.put(sample(0, 1, 1000));
+        writer.put(sample(0, 2, 900));
+        writer.put(sample(0, 3, 2000));
+        writer.put(EncodedSample.endOfStream(0));
+
+        writer.run();
+
+        assertEquals(2, muxer.samples.size());
+        assertEquals(2, writer.getDroppedSamples());
+        assertEquals(3, muxer.samples.get(1)[2]);
+    }
+
+    @Test
+    public void putSampleQueuesBehindTheEncoderOutput() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, 1);
+        SamplePool pool = SamplePool.forAudio(64000, 44100);
+        FakeEncoderOutput encoder = FakeEncoderOutput.audio(100, 0);
+        final CallbackDrain drain = new CallbackDrain(encoder, 0, writer, pool);
+        SampleInfo info = new SampleInfo();
+        while (encoder.dequeueOutputBuffer(info, 0) != EncoderOutput.INFO_OUTPUT_FORMAT_CHANGED) {
+        }
+        drain.onOutputFormatChanged(encoder.getOutputFormat());
+        for (int i = 0; i < 10; i++) {
+            drain.onOutputBufferAvailable(encoder.dequeueOutputBuffer(info, 0), info);
+        }
+
+        // silence for the next five frames, queued from another thread than the encoder's
+        final ByteBuffer silence = SilenceGate.silentAacFrame(1);
+        final boolean[] queued = new boolean[5];
+        Thread gate = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SampleInfo silenceInfo = new SampleInfo();
+                for (int i = 0; i < 5; i++) {
+                    silenceInfo.set(0, silence.remaining(), (10 + i) * 23220L, SampleInfo.FLAG_KEY_FRAME);
+                    queued[i] = drain.putSample(silence, silenceInfo);
+                }
+            }
+        });
+        gate.start();
+        gate.join(10000);
+        drain.stop();
+        writer.run();
+
+        assertArrayEquals(new boolean[] {true, true, true, true, true}, queued);
+        assertNull(writer.getError());
+        assertEquals(15, muxer.samples.size());
+        assertEquals(0, writer.getDroppedSamples());
+        assertEquals(9, muxer.samples.get(9)[2]);
+        assertEquals(14 * 23220L, muxer.samples.get(14)[1]);
+        assertEquals(silence.getInt(0), muxer.samples.get(14)[2]);
+        assertEquals(0, pool.getOutstanding());
+        // the track has ended
+        assertFalse(drain.putSample(silence, info));
+    }
+
+    private static EncodedSample sample(int track, int sequence, long ptsUs) {
+        ByteBuffer data = ByteBuffer.allocate(16);
+        data.putInt(0, sequence);
+        SampleInfo info = new SampleInfo();
+        info.set(0, 16, ptsUs, 0);
+        return EncodedSample.copyOf(track, data, info);
+    }
+
+    private static EncodedSample keyFrame(int track, int sequence, long ptsUs) {
+        ByteBuffer data = ByteBuffer.allocate(16);
+        data.putInt(0, sequence);
+        SampleInfo info = new SampleInfo();
+        info.set(0, 16, ptsUs, SampleInfo.FLAG_KEY_FRAME);
+        return EncodedSample.copyOf(track, data, info);
+    }
+
+    private static void runToCompletion(MuxerWriter writer, EncoderDrain... drains) throws Exception {
+        Thread writerThread = new Thread(writer, "MuxerWriter");
+        writerThread.start();
+        Thread[] threads = new Thread[drains.length];
+        for (int i = 0; i < drains.length; i++) {
+            threads[i] = new Thread(drains[i], "Drain" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join(30000);
+        }
+        writerThread.join(30000);
+        assertTrue(writer.isTerminated());
+    }
+}
@@ -0,0 +1,45 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NalUnitsTest {
+
+    @Test
+    public void splitsMixedStartCodes() {
+        ByteBuffer data = ByteBuffer.wrap(new byte[] {
+                0, 0, 0, 1, 0x67, 1, 2, 0, 0, 1, 0x68, 3, 0, 0, 0, 1, 0x65, 4, 5, 6});
+        List<ByteBuffer> units = NalUnits.split(data);
+        assertEquals(3, units.size());
+        assertEquals(3, units.get(0).remaining());
+        assertEquals(7, NalUnits.avcType(units.get(0)));
+        assertEquals(2, units.get(1).remaining());
+        assertEquals(8, NalUnits.avcType(units.get(1)));
+        assertEquals(4, units.get(2).remaining());
+        assertEquals(0, data.position());
+    }
+
+    @Test
+    public void convertsToLengthPrefixed() {
+        ByteBuffer data = ByteBuffer.wrap(new byte[] {0, 0, 1, 0x41, 9, 9, 0, 0, 1, 0x41, 8});
+        ByteBuffer out = ByteBuffer.allocate(NalUnits.maxConvertedSize(data.remaining()));
+        assertEquals(13, NalUnits.writeLengthPrefixed(data, out));
+        assertEquals(3, out.getInt(0));
+        assertEquals(0x41, out.get(4));
+        assertEquals(2, out.getInt(7));
+        assertEquals(8, out.get(12));
+    }
+
+    @Test
+    public void copiesDataThatIsNotAnnexB() {
+        ByteBuffer data = ByteBuffer.wrap(new byte[] {0, 0, 0, 2, 0x41, 7});
+        ByteBuffer out = ByteBuffer.allocate(16);
+        assertFalse(NalUnits.isAnnexB(data));
+        assertEquals(6, NalUnits.writeLengthPrefixed(data, out));
+        assertEquals(2, out.getInt(0));
+    }
+}
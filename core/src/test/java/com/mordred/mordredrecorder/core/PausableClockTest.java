@@ -0,0 +1,88 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PausableClockTest {
+
+    @Test
+    public void passesTimestampsThroughUntilFirstPause() {
+        PausableClock clock = new PausableClock();
+        assertEquals(0, clock.rebase(0));
+        assertEquals(123456, clock.rebase(123456));
+        assertFalse(clock.resume(10));
+    }
+
+    @Test
+    public void dropsPausedSamplesAndClosesTheGap() {
+        PausableClock clock = new PausableClock();
+        assertTrue(clock.pause(1000000));
+        assertFalse(clock.pause(1100000));
+        assertTrue(clock.isPaused());
+        assertEquals(PausableClock.DROPPED, clock.rebase(1000000));
+        assertEquals(PausableClock.DROPPED, clock.rebase(5000000));
+        assertTrue(clock.resume(3000000));
+
+        assertEquals(999999, clock.rebase(999999));
+        assertEquals(PausableClock.DROPPED, clock.rebase(2999999));
+        assertEquals(1000000, clock.rebase(3000000));
+        assertEquals(1500000, clock.rebase(3500000));
+        assertEquals(2000000, clock.getPausedDurationUs());
+    }
+
+    @Test
+    public void lateSamplesAreRebasedByTheirOwnTimestamp() {
+        PausableClock clock = new PausableClock();
+        clock.pause(1000000);
+        clock.resume(2000000);
+        clock.pause(3000000);
+        clock.resume(5000000);
+        // an encoder output captured before the second pause but delivered after it
+        assertEquals(1500000, clock.rebase(2500000));
+        assertEquals(3000000, clock.rebase(6000000));
+    }
+
+    @Test
+    public void manyPauseResumeCyclesKeepTwoTracksContinuous() {
+        PausableClock clock = new PausableClock();
+        Random random = new Random(42);
+        long captureUs = 0;
+        long expectedPausedUs = 0;
+        long lastVideo = -1;
+        long lastAudio = -1;
+        int kept = 0;
+        for (int cycle = 0; cycle < 5000; cycle++) {
+            long recordUs = 100000 + random.nextInt(2000000);
+            long pauseUs = 1 + random.nextInt(3000000);
+            // video at 30 fps and AAC frames while recording
+            for (long t = captureUs; t < captureUs + recordUs; t += 33333) {
+                long pts = clock.rebase(t);
+                assertEquals(t - expectedPausedUs, pts);
+                assertTrue(pts > lastVideo);
+                lastVideo = pts;
+                kept++;
+            }
+            for (long t = captureUs; t < captureUs + recordUs; t += 23220) {
+                long pts = clock.rebase(t);
+                assertTrue(pts > lastAudio);
+                lastAudio = pts;
+            }
+            captureUs += recordUs;
+            clock.pause(captureUs);
+            for (long t = captureUs; t < captureUs + pauseUs; t += 33333) {
+                assertEquals(PausableClock.DROPPED, clock.rebase(t));
+            }
+            captureUs += pauseUs;
+            clock.resume(captureUs);
+            expectedPausedUs += pauseUs;
+        }
+        assertEquals(expectedPausedUs, clock.getPausedDurationUs());
+        assertEquals(5000, clock.getPauseCount());
+        assertTrue(kept > 0);
+        // output duration is exactly the recorded time
+        assertEquals(captureUs - expectedPausedUs, clock.rebase(captureUs));
+    }
+}
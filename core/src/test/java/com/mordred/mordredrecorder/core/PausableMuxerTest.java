@@ -0,0 +1,46 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PausableMuxerTest {
+
+    @Test
+    public void videoResumesOnKeyFrameAfterDroppedFrames() throws Exception {
+        RecordingMuxer target = new RecordingMuxer();
+        PausableClock clock = new PausableClock();
+        PausableMuxer muxer = new PausableMuxer(target, clock);
+        int video = muxer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 640, 480));
+        int audio = muxer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1));
+        muxer.start();
+
+        write(muxer, video, 0, 0, true);
+        write(muxer, video, 1, 100000, false);
+        clock.pause(150000);
+        write(muxer, audio, 0, 160000, true);
+        write(muxer, video, 2, 200000, false);
+        clock.resume(1150000);
+        write(muxer, video, 3, 1200000, false);
+        write(muxer, audio, 1, 1200000, true);
+        write(muxer, video, 4, 1300000, true);
+        write(muxer, video, 5, 1400000, false);
+
+        assertEquals(5, target.samples.size());
+        assertEquals(3, muxer.getDroppedSamples());
+        // video frame 3 was dropped because frame 2 was lost; the key frame 4 lands 1 s earlier
+        assertArrayEquals(new long[] {video, 300000, 4}, target.samples.get(3));
+        assertArrayEquals(new long[] {audio, 200000, 1}, target.samples.get(2));
+    }
+
+    private static void write(SampleMuxer muxer, int track, int sequence, long ptsUs, boolean key)
+            throws Exception {
+        ByteBuffer data = ByteBuffer.allocate(8);
+        data.putInt(0, sequence);
+        SampleInfo info = new SampleInfo();
+        info.set(0, 8, ptsUs, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+        muxer.writeSampleData(track, data, info);
+    }
+}
@@ -0,0 +1,54 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PcmMixerTest {
+
+    @Test
+    public void quietSignalsAreSummedWithGain() {
+        PcmMixer mixer = new PcmMixer(1f, 0.5f);
+        short[] a = {0, 100, -200, 1000, 20000};
+        short[] b = {0, 100, 400, -2000, 0};
+        short[] out = new short[5];
+        mixer.mix(a, 0, b, 0, out, 0, 5);
+        assertArrayEquals(new short[] {0, 150, 0, 0, 20000}, out);
+    }
+
+    @Test
+    public void limiterIsContinuousMonotonicAndNeverClips() {
+        PcmMixer mixer = new PcmMixer(1f, 1f);
+        short previous = mixer.limit(-4 * 32768f);
+        for (int x = -4 * 32768; x <= 4 * 32768; x += 7) {
+            short y = mixer.limit(x);
+            assertTrue("monotonic at " + x, y >= previous);
+            assertTrue("bounded at " + x, y > -32767 && y < 32767);
+            assertTrue("step at " + x, y - previous <= 7);
+            previous = y;
+        }
+        // identity below the threshold
+        assertEquals(26000, mixer.limit(26000f));
+        assertEquals(-26000, mixer.limit(-26000f));
+        assertTrue(mixer.limit(32767f + 32767f) > 30000);
+    }
+
+    @Test
+    public void fullScaleSourcesDoNotWrapAround() {
+        PcmMixer mixer = new PcmMixer(1f, 1f);
+        short[] a = {Short.MAX_VALUE, Short.MIN_VALUE};
+        short[] out = new short[2];
+        mixer.mix(a, 0, a, 0, out, 0, 2);
+        assertTrue(out[0] > 26000);
+        assertTrue(out[1] < -26000);
+    }
+
+    @Test
+    public void singleSourceAndOffsets() {
+        PcmMixer mixer = new PcmMixer(2f, 0f);
+        short[] a = {9, 9, 100, -100};
+        short[] out = new short[4];
+        mixer.mix(a, 2, out, 1, 2);
+        assertArrayEquals(new short[] {0, 200, -200, 0}, out);
+    }
+}
@@ -0,0 +1,234 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PostProcessingQueueTest {
+
+    private File directory;
+    private File queueFile;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private PostProcessingQueue queue;
+
+    /** Records the recordings it sees, optionally failing or blocking until released. */
+    private class LoggingProcessor implements PostProcessor {
+        final String type;
+        volatile boolean fail;
+        volatile CountDownLatch block;
+        final CountDownLatch started = new CountDownLatch(1);
+
+        LoggingProcessor(String type) {
+            this.type = type;
+        }
+
+        @Override
+        public String getType() {
+            return type;
+        }
+
+        @Override
+        public void process(File recording, Progress progress) throws IOException {
+            started.countDown();
+            if (block != null) {
+                try {
+                    block.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            events.add(type + " " + recording.getName());
+            progress.update(1, 1);
+            if (fail) {
+                throw new IOException("failed");
+            }
+        }
+    }
+
+    private final PostProcessingQueue.Listener listener = new PostProcessingQueue.Listener() {
+        @Override
+        public void onProgress(File recording, String type, long done, long total) {
+        }
+
+        @Override
+        public void onFinished(File recording, String type) {
+            events.add("finished " + type + " " + recording.getName());
+        }
+
+        @Override
+        public void onFailed(File recording, String type, Exception error) {
+            events.add("failed " + type + " " + recording.getName());
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("postprocessing").toFile();
+        queueFile = new File(directory, "queue.txt");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null) {
+            queue.shutdown(5000);
+        }
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private File recording(String name) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), new byte[] {1});
+        return file;
+    }
+
+    private String readQueueFile() throws IOException {
+        return new String(Files.readAllBytes(queueFile.toPath()), Charset.forName("UTF-8"));
+    }
+
+    @Test
+    public void runsTheJobsOfARecordingInOrder() throws Exception {
+        queue = new PostProcessingQueue(queueFile, 2, new LoggingProcessor("first"), new LoggingProcessor("second"));
+        queue.setListener(listener);
+        File recording = recording("a.mp4");
+
+        queue.enqueue(recording);
+
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(4, events.size());
+        assertEquals("first a.mp4", events.get(0));
+        assertEquals("finished first a.mp4", events.get(1));
+        assertEquals("second a.mp4", events.get(2));
+        assertEquals("finished second a.mp4", events.get(3));
+        assertTrue(queue.getPending().isEmpty());
+        assertEquals("# file\tjobs\n", readQueueFile());
+    }
+
+    @Test
+    public void failedJobDoesNotStopTheNextOne() throws Exception {
+        LoggingProcessor first = new LoggingProcessor("first");
+        first.fail = true;
+        queue = new PostProcessingQueue(queueFile, 1, first, new LoggingProcessor("second"));
+        queue.setListener(listener);
+
+        queue.enqueue(recording("a.mp4"));
+
+        assertTrue(queue.awaitIdle(5000));
+        assertTrue(events.contains("failed first a.mp4"));
+        assertTrue(events.contains("finished second a.mp4"));
+    }
+
+    @Test
+    public void dropsTheJobsOfADeletedRecording() throws Exception {
+        queue = new PostProcessingQueue(queueFile, 1, new LoggingProcessor("first"), new LoggingProcessor("second"));
+        queue.setListener(listener);
+
+        queue.enqueue(new File(directory, "gone.mp4"));
+
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(Collections.singletonList("failed first gone.mp4"), events);
+    }
+
+    @Test
+    public void runsRecordingsInParallelUpToTheWorkerCount() throws Exception {
+        LoggingProcessor blocking = new LoggingProcessor("first");
+        blocking.block = new CountDownLatch(1);
+        queue = new PostProcessingQueue(queueFile, 1, blocking);
+
+        queue.enqueue(recording("a.mp4"));
+        queue.enqueue(recording("b.mp4"));
+        assertTrue(blocking.started.await(5, TimeUnit.SECONDS));
+
+        // the single worker is busy with the first recording, both stay queued
+        assertEquals(2, queue.getPending().size());
+        assertTrue(readQueueFile().contains("b.mp4\tfirst\n"));
+        blocking.block.countDown();
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(2, events.size());
+    }
+
+    @Test
+    public void resumesJobsLeftInTheQueueFile() throws Exception {
+        File a = recording("a.mp4");
+        File b = recording("b.mp4");
+        try (Writer writer = new FileWriter(queueFile)) {
+            writer.write("# file\tjobs\n");
+            writer.write(a.getPath() + "\tsecond\n");
+            writer.write(b.getPath() + "\tfirst,unknown,second\n");
+        }
+        queue = new PostProcessingQueue(queueFile, 1, new LoggingProcessor("first"), new LoggingProcessor("second"));
+
+        queue.resume();
+
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(3, events.size());
+        assertEquals("second a.mp4", events.get(0));
+        assertEquals("first b.mp4", events.get(1));
+        assertEquals("second b.mp4", events.get(2));
+    }
+
+    @Test
+    public void shutdownKeepsUnstartedJobsForResume() throws Exception {
+        LoggingProcessor blocking = new LoggingProcessor("first");
+        blocking.block = new CountDownLatch(1);
+        queue = new PostProcessingQueue(queueFile, 1, blocking, new LoggingProcessor("second"));
+        File a = recording("a.mp4");
+        queue.enqueue(a);
+        queue.enqueue(recording("b.mp4"));
+        assertTrue(blocking.started.await(5, TimeUnit.SECONDS));
+
+        assertFalse(queue.shutdown(0));
+        blocking.block.countDown();
+        assertTrue(queue.shutdown(5000));
+
+        // the running job finished, the rest waits for the next start
+        assertEquals(Collections.singletonList("first a.mp4"), events);
+        String saved = readQueueFile();
+        assertTrue(saved.contains(a.getPath() + "\tsecond\n"));
+        assertTrue(saved.contains("b.mp4\tfirst,second\n"));
+
+        queue = new PostProcessingQueue(queueFile, 1, new LoggingProcessor("first"), new LoggingProcessor("second"));
+        queue.resume();
+        assertTrue(queue.awaitIdle(5000));
+        assertEquals(4, events.size());
+    }
+
+    @Test
+    public void writesRecordingInfo() throws Exception {
+        File file = new File(directory, "Record_20220320_011645.mp4");
+        FragmentedMp4MuxerTest.writeSyntheticRecording(new FragmentedMp4Muxer(file.getPath(), 2000000));
+        queue = new PostProcessingQueue(queueFile, 1, new FaststartProcessor(), new RecordingInfoProcessor());
+
+        queue.enqueue(file);
+
+        assertTrue(queue.awaitIdle(5000));
+        File info = RecordingInfoProcessor.infoFileOf(file);
+        assertEquals("Record_20220320_011645.info.txt", info.getName());
+        List<String> lines = Files.readAllLines(info.toPath(), Charset.forName("UTF-8"));
+        assertEquals("# key\tvalue", lines.get(0));
+        assertTrue(lines.contains("file\tRecord_20220320_011645.mp4"));
+        assertTrue(lines.contains("bytes\t" + file.length()));
+        assertTrue(lines.contains("faststart\ttrue"));
+        assertTrue(lines.contains("width\t1280"));
+        assertTrue(lines.contains("video_samples\t300"));
+        assertTrue(lines.contains("video_key_frames\t10"));
+        assertTrue(lines.contains("frame_rate\t30.00"));
+        assertTrue(lines.contains("audio_sample_rate\t44100"));
+    }
+}
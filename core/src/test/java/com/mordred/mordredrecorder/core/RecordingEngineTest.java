@@ -0,0 +1,145 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RecordingEngineTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    @Test
+    public void pollingEngineMuxesBothTracks() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, 2);
+        RecordingEngine engine = new PollingRecordingEngine(writer,
+                new EncoderDrain(FakeEncoderOutput.video(300, 0), VIDEO, writer, SamplePool.forVideo(4000000, 30)),
+                new EncoderDrain(FakeEncoderOutput.audio(400, 0), AUDIO, writer, SamplePool.forAudio(64000, 44100)));
+
+        engine.start();
+        awaitTermination(writer);
+        engine.stop(1000);
+
+        assertNull(engine.getError());
+        assertEquals(300, muxer.countTrack(VIDEO));
+        assertEquals(400, muxer.countTrack(AUDIO));
+        assertTrue(muxer.stopped);
+    }
+
+    @Test
+    public void callbackEngineMuxesBothTracksInOrder() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, 2);
+        FakeEncoderOutput videoEncoder = FakeEncoderOutput.video(300, 0);
+        FakeEncoderOutput audioEncoder = FakeEncoderOutput.audio(400, 0);
+        SamplePool videoPool = SamplePool.forVideo(4000000, 30);
+        CallbackDrain video = new CallbackDrain(videoEncoder, VIDEO, writer, videoPool);
+        CallbackDrain audio = new CallbackDrain(audioEncoder, AUDIO, writer, SamplePool.forAudio(64000, 44100));
+        MetricsRegistry metrics = new MetricsRegistry();
+        video.setMetrics(metrics, "video");
+        RecordingEngine engine = new CallbackRecordingEngine(writer, video, audio);
+
+        engine.start();
+        Thread videoCodec = new Thread(new CallbackPump(videoEncoder, video));
+        Thread audioCodec = new Thread(new CallbackPump(audioEncoder, audio));
+        videoCodec.start();
+        audioCodec.start();
+        awaitTermination(writer);
+        engine.stop(1000);
+
+        assertNull(engine.getError());
+        assertEquals(300, muxer.countTrack(VIDEO));
+        assertEquals(400, muxer.countTrack(AUDIO));
+        assertEquals(300, metrics.snapshot().getHistogram("video.callback_ns").getCount());
+        long lastPts = Long.MIN_VALUE;
+        for (long[] sample : muxer.samples) {
+            assertTrue(sample[1] >= lastPts);
+            lastPts = sample[1];
+        }
+        assertEquals(0, videoPool.getOutstanding());
+    }
+
+    @Test
+    public void callbackDrainReleasesBuffersAfterStop() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, 1);
+        CountingEncoder encoder = new CountingEncoder();
+        CallbackDrain drain = new CallbackDrain(encoder, 0, writer, SamplePool.forAudio(64000, 44100));
+        drain.onOutputFormatChanged(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1));
+        drain.onOutputBufferAvailable(0, encoder.info(0));
+
+        drain.stop();
+        drain.onOutputBufferAvailable(1, encoder.info(23220));
+        drain.stop();
+        writer.run();
+
+        assertEquals(2, encoder.released);
+        assertEquals(1, muxer.samples.size());
+        assertTrue(muxer.stopped);
+        assertNull(drain.getError());
+    }
+
+    @Test
+    public void encoderErrorEndsTheTrackAndIsReported() throws Exception {
+        RecordingMuxer muxer = new RecordingMuxer();
+        MuxerWriter writer = new MuxerWriter(muxer, 1);
+        CountingEncoder encoder = new CountingEncoder();
+        CallbackDrain drain = new CallbackDrain(encoder, 0, writer, SamplePool.forAudio(64000, 44100));
+        RecordingEngine engine = new CallbackRecordingEngine(writer, drain);
+        IllegalStateException failure = new IllegalStateException("codec died");
+
+        drain.onOutputFormatChanged(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1));
+        drain.onOutputBufferAvailable(0, encoder.info(0));
+        drain.onError(failure);
+        drain.onOutputBufferAvailable(1, encoder.info(23220));
+        writer.run();
+
+        assertSame(failure, engine.getError());
+        assertEquals(1, muxer.samples.size());
+        assertEquals(2, encoder.released);
+    }
+
+    private static void awaitTermination(MuxerWriter writer) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (!writer.isTerminated() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(writer.isTerminated());
+    }
+
+    /** Encoder whose output buffers are all the same 64 bytes; counts the releases. */
+    private static class CountingEncoder implements EncoderOutput {
+
+        final ByteBuffer buffer = ByteBuffer.allocate(64);
+        int released;
+
+        SampleInfo info(long ptsUs) {
+            SampleInfo info = new SampleInfo();
+            info.set(0, buffer.capacity(), ptsUs, 0);
+            return info;
+        }
+
+        @Override
+        public int dequeueOutputBuffer(SampleInfo info, long timeoutUs) {
+            throw new IllegalStateException("asynchronous mode");
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return buffer;
+        }
+
+        @Override
+        public TrackFormat getOutputFormat() {
+            throw new IllegalStateException("asynchronous mode");
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index) {
+            released++;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.mordred.mordredrecorder.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Muxer that keeps the order, track, timestamp and sequence number of every sample. */
+class RecordingMuxer implements SampleMuxer {
+
+    final List<TrackFormat> tracks = new ArrayList<>();
+    final List<long[]> samples = new ArrayList<>();
+    boolean started;
+    boolean stopped;
+
+    @Override
+    public int addTrack(TrackFormat format) {
+        if (started) {
+            throw new IllegalStateException("addTrack after start");
+        }
+        tracks.add(format);
+        return tracks.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        started = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+        if (!started || stopped) {
+            throw new IllegalStateException("muxer not running");
+        }
+        samples.add(new long[] {trackIndex, info.presentationTimeUs, data.getInt(data.position() + info.offset)});
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    @Override
+    public void release() {
+    }
+
+    int countTrack(int trackIndex) {
+        int count = 0;
+        for (long[] sample : samples) {
+            if (sample[0] == trackIndex) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,211 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordingRecoveryTest {
+
+    private File directory;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("recovery", "");
+        assertTrue(directory.delete() && directory.mkdir());
+        file = new File(directory, "Record_20220320_011645.mp4");
+    }
+
+    @After
+    public void tearDown() {
+        for (File child : directory.listFiles()) {
+            child.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Writes {@code frames} of 30 fps video with a key frame every second and the matching AAC
+     * frames into 2 s fragments, then releases the muxer as a killed process would leave it.
+     */
+    private void writeUnfinishedRecording(int frames) throws IOException {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file.getPath(), 2000000);
+        muxer.setJournal(RecordingJournal.create(file));
+        int video = muxer.addTrack(FragmentedMp4MuxerTest.videoFormat());
+        int audio = muxer.addTrack(FragmentedMp4MuxerTest.audioFormat());
+        muxer.start();
+        SampleInfo info = new SampleInfo();
+        int audioFrame = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            long videoPts = frame * 1000000L / 30;
+            while (audioFrame * 23220L <= videoPts) {
+                info.set(0, 200, audioFrame * 23220L, SampleInfo.FLAG_KEY_FRAME);
+                muxer.writeSampleData(audio, FragmentedMp4MuxerTest.audioSample(audioFrame++), info);
+            }
+            boolean key = frame % 30 == 0;
+            ByteBuffer sample = FragmentedMp4MuxerTest.videoSample(frame, key, key ? 4000 : 600);
+            info.set(0, sample.remaining(), videoPts, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(video, sample, info);
+        }
+        muxer.release();
+    }
+
+    @Test
+    public void unfinishedRecordingKeepsEveryWrittenFragment() throws Exception {
+        writeUnfinishedRecording(300);
+        assertTrue(RecordingJournal.fileOf(file).isFile());
+        assertEquals(Collections.singletonList(file), RecordingRecovery.findUnfinished(directory));
+
+        // the fragment still collecting samples at 8 s died with the process,
+        // the last surviving sample is the AAC frame queued just before the 8 s key frame
+        assertEquals(344 * 23220, RecordingRecovery.recover(file));
+
+        List<Mp4Box> boxes = readBoxes();
+        assertEquals(2 + 2 * 4, boxes.size());
+        Mp4Box last = boxes.get(boxes.size() - 1);
+        assertEquals("mdat", last.type);
+        assertEquals(file.length(), last.offset + last.size);
+        assertEquals(7988, mehdDuration(boxes));
+        assertFalse(RecordingJournal.fileOf(file).exists());
+        assertTrue(RecordingRecovery.findUnfinished(directory).isEmpty());
+    }
+
+    @Test
+    public void recordingStillBeingWrittenIsLeftAlone() throws Exception {
+        // the recorder has let go, the muxer is still finishing, e.g. saving a replay
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file.getPath(), 2000000);
+        muxer.setJournal(RecordingJournal.create(file));
+        muxer.addTrack(FragmentedMp4MuxerTest.videoFormat());
+        muxer.start();
+        long length = file.length();
+
+        assertTrue(RecordingJournal.isOpen(file));
+        assertTrue(RecordingRecovery.findUnfinished(directory).isEmpty());
+        try {
+            RecordingRecovery.recover(file);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(RecordingJournal.fileOf(file).isFile());
+        assertEquals(length, file.length());
+
+        // once the process lets go without stopping, the journal is recovered as usual
+        muxer.release();
+        assertFalse(RecordingJournal.isOpen(file));
+        assertEquals(Collections.singletonList(file), RecordingRecovery.findUnfinished(directory));
+    }
+
+    @Test
+    public void tornFragmentIsCutOff() throws Exception {
+        writeUnfinishedRecording(300);
+        List<Mp4Box> written = readBoxes();
+        Mp4Box thirdMdat = written.get(7);
+        truncate(thirdMdat.offset + thirdMdat.size / 2);
+
+        RecordingRecovery.recover(file);
+
+        List<Mp4Box> boxes = readBoxes();
+        assertEquals(2 + 2 * 2, boxes.size());
+        assertEquals(written.get(5).offset + written.get(5).size, file.length());
+        assertEquals(3994, mehdDuration(boxes));
+    }
+
+    @Test
+    public void tornMoofIsCutOff() throws Exception {
+        writeUnfinishedRecording(300);
+        List<Mp4Box> written = readBoxes();
+        truncate(written.get(4).offset + 10);
+
+        RecordingRecovery.recover(file);
+
+        assertEquals(2 + 2, readBoxes().size());
+        assertEquals(written.get(3).offset + written.get(3).size, file.length());
+    }
+
+    @Test
+    public void recordingWithoutFragmentsRecoversNothing() throws Exception {
+        writeUnfinishedRecording(30);
+        long initSize = file.length();
+
+        assertEquals(0, RecordingRecovery.recover(file));
+        assertEquals(initSize, file.length());
+        assertEquals(0, mehdDuration(readBoxes()));
+        assertFalse(RecordingJournal.fileOf(file).exists());
+    }
+
+    @Test
+    public void truncatedInitSegmentIsLeftAlone() throws Exception {
+        writeUnfinishedRecording(300);
+        truncate(100);
+
+        assertEquals(0, RecordingRecovery.recover(file));
+        assertEquals(100, file.length());
+    }
+
+    @Test
+    public void stoppedRecordingLeavesNoJournal() throws Exception {
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(file.getPath(), 2000000);
+        muxer.setJournal(RecordingJournal.create(file));
+        FragmentedMp4MuxerTest.writeSyntheticRecording(muxer);
+
+        assertFalse(RecordingJournal.fileOf(file).exists());
+        assertEquals(-1, RecordingRecovery.recover(file));
+        assertEquals(9967, mehdDuration(readBoxes()));
+    }
+
+    @Test
+    public void journalGrowsPastItsFirstMapping() throws Exception {
+        RecordingJournal journal = RecordingJournal.create(file);
+        journal.start(0, 0);
+        for (int i = 0; i < 100000; i++) {
+            journal.appendSample(0, i, 1, i, true);
+        }
+        journal.commit();
+        journal.close();
+
+        assertEquals(100000, journal.getCommittedEntries());
+        assertTrue(RecordingJournal.fileOf(file).length()
+                >= RecordingJournal.HEADER_SIZE + 100000L * RecordingJournal.ENTRY_SIZE);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignJournal() throws Exception {
+        assertTrue(file.createNewFile());
+        RandomAccessFile journal = new RandomAccessFile(RecordingJournal.fileOf(file), "rw");
+        journal.write(new byte[64]);
+        journal.close();
+
+        RecordingRecovery.recover(file);
+    }
+
+    private void truncate(long size) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.truncate(size);
+        channel.close();
+    }
+
+    private static long mehdDuration(List<Mp4Box> boxes) {
+        ByteBuffer mehd = boxes.get(1).find("mvex/mehd").payload();
+        return mehd.getLong(4);
+    }
+
+    private List<Mp4Box> readBoxes() throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return Mp4Box.readAll(channel);
+        } finally {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static com.mordred.mordredrecorder.core.FragmentedMp4MuxerTest.audioFormat;
+import static com.mordred.mordredrecorder.core.FragmentedMp4MuxerTest.audioSample;
+import static com.mordred.mordredrecorder.core.FragmentedMp4MuxerTest.videoFormat;
+import static com.mordred.mordredrecorder.core.FragmentedMp4MuxerTest.videoSample;
+import static org.junit.Assert.*;
+
+public class RenditionMuxerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class FailingMuxer extends RecordingMuxer {
+        boolean released;
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+            throw new IllegalStateException("out of space");
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+
+    private static void write(SampleMuxer muxer, int track, int value, long ptsUs) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(16);
+        data.putInt(0, value);
+        SampleInfo info = new SampleInfo();
+        info.set(0, 16, ptsUs, SampleInfo.FLAG_KEY_FRAME);
+        muxer.writeSampleData(track, data, info);
+    }
+
+    @Test
+    public void videoTracksGoToOneOutputEachAndAudioToAll() throws IOException {
+        RecordingMuxer master = new RecordingMuxer();
+        RecordingMuxer proxy = new RecordingMuxer();
+        RenditionMuxer muxer = new RenditionMuxer(master, proxy);
+
+        assertEquals(0, muxer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 1920, 1080)));
+        assertEquals(1, muxer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1)));
+        assertEquals(2, muxer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 960, 540)));
+        muxer.start();
+        write(muxer, 0, 100, 0);
+        write(muxer, 1, 200, 1000);
+        write(muxer, 2, 300, 0);
+        muxer.stop();
+
+        assertEquals(2, master.tracks.size());
+        assertEquals(1920, master.tracks.get(0).width);
+        assertEquals(2, proxy.tracks.size());
+        assertFalse(proxy.tracks.get(0).isVideo());
+        assertEquals(960, proxy.tracks.get(1).width);
+        assertArrayEquals(new long[] {0, 0, 100}, master.samples.get(0));
+        assertArrayEquals(new long[] {1, 1000, 200}, master.samples.get(1));
+        assertEquals(2, master.samples.size());
+        // the shared audio, then the proxy's own video, in its own track numbering
+        assertArrayEquals(new long[] {0, 1000, 200}, proxy.samples.get(0));
+        assertArrayEquals(new long[] {1, 0, 300}, proxy.samples.get(1));
+        assertTrue(master.stopped);
+        assertTrue(proxy.stopped);
+    }
+
+    @Test
+    public void failingProxyIsDroppedAndTheMasterGoesOn() throws IOException {
+        RecordingMuxer master = new RecordingMuxer();
+        FailingMuxer proxy = new FailingMuxer();
+        RenditionMuxer muxer = new RenditionMuxer(master, proxy);
+        muxer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 1920, 1080));
+        muxer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1));
+        muxer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 960, 540));
+        muxer.start();
+
+        for (int frame = 0; frame < 10; frame++) {
+            write(muxer, 0, frame, frame * 33333L);
+            write(muxer, 1, frame, frame * 33333L);
+            write(muxer, 2, frame, frame * 33333L);
+        }
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(20, master.samples.size());
+        assertTrue(master.stopped);
+        assertTrue(muxer.hasFailed(1));
+        assertTrue(proxy.released);
+        assertNotNull(muxer.getError(1));
+        assertNull(muxer.getError(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void failingMasterEndsTheRecording() throws IOException {
+        RenditionMuxer muxer = new RenditionMuxer(new FailingMuxer(), new RecordingMuxer());
+        muxer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 1920, 1080));
+        muxer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 960, 540));
+        muxer.start();
+
+        write(muxer, 0, 0, 0);
+    }
+
+    @Test
+    public void outputWithoutVideoIsReleasedAtStart() throws IOException {
+        RecordingMuxer master = new RecordingMuxer();
+        FailingMuxer proxy = new FailingMuxer();
+        RenditionMuxer muxer = new RenditionMuxer(master, proxy);
+        // the proxy encoder ended before putting out a format
+        muxer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 1920, 1080));
+        muxer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1));
+        muxer.start();
+
+        write(muxer, 1, 0, 0);
+        muxer.stop();
+
+        assertTrue(proxy.released);
+        assertTrue(muxer.hasFailed(1));
+        assertNull(muxer.getError(1));
+        assertEquals(1, master.samples.size());
+    }
+
+    @Test
+    public void writesAPlayableFilePerRendition() throws IOException {
+        File masterFile = folder.newFile("Record.mp4");
+        File proxyFile = folder.newFile("Record.proxy.mp4");
+        RenditionMuxer muxer = new RenditionMuxer(new FragmentedMp4Muxer(masterFile.getPath(), 1000000),
+                new FragmentedMp4Muxer(proxyFile.getPath(), 1000000));
+        int video = muxer.addTrack(videoFormat());
+        int audio = muxer.addTrack(audioFormat());
+        int proxyVideo = muxer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 640, 360,
+                videoFormat().getCsd(0), videoFormat().getCsd(1)));
+        muxer.start();
+
+        SampleInfo info = new SampleInfo();
+        int audioFrame = 0;
+        for (int frame = 0; frame < 90; frame++) {
+            long ptsUs = frame * 1000000L / 30;
+            while (audioFrame * 23220L <= ptsUs) {
+                info.set(0, 200, audioFrame * 23220L, SampleInfo.FLAG_KEY_FRAME);
+                muxer.writeSampleData(audio, audioSample(audioFrame++), info);
+            }
+            boolean key = frame % 30 == 0;
+            ByteBuffer sample = videoSample(frame, key, key ? 4000 : 600);
+            info.set(0, sample.remaining(), ptsUs, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(video, sample, info);
+            // the proxy takes every other frame
+            if (frame % 2 == 0) {
+                sample = videoSample(frame, key, key ? 1000 : 150);
+                info.set(0, sample.remaining(), ptsUs, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+                muxer.writeSampleData(proxyVideo, sample, info);
+            }
+        }
+        muxer.stop();
+        muxer.release();
+
+        Mp4Index master = Mp4Index.read(masterFile);
+        Mp4Index proxy = Mp4Index.read(proxyFile);
+        assertEquals(90, master.getVideoTrack().getSampleCount());
+        assertEquals(45, proxy.getVideoTrack().getSampleCount());
+        assertEquals(audioFrame, master.getAudioTrack().getSampleCount());
+        assertEquals(audioFrame, proxy.getAudioTrack().getSampleCount());
+        assertTrue(proxy.getFileSize() < master.getFileSize());
+    }
+}
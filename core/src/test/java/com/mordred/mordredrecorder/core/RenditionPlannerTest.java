@@ -0,0 +1,116 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.mordred.mordredrecorder.core.EncoderCapabilitiesCacheTest.BUDGET_PHONE;
+import static com.mordred.mordredrecorder.core.EncoderCapabilitiesCacheTest.fixture;
+import static org.junit.Assert.*;
+
+public class RenditionPlannerTest {
+
+    private static final VideoProfile MASTER =
+            new VideoProfile("OMX.Exynos.AVC.Encoder", TrackFormat.MIME_AVC, 1920, 880, 30, 12000000, 5);
+
+    private static EncoderCapabilities budgetPhoneAvc() throws Exception {
+        for (EncoderCapabilities capabilities : fixture("budget_phone.tsv", BUDGET_PHONE)) {
+            if (capabilities.name.equals(MASTER.encoderName)) {
+                return capabilities;
+            }
+        }
+        throw new AssertionError("no AVC encoder in fixture");
+    }
+
+    @Test
+    public void proxyKeepsTheAspectRatioWithinTheEncoderAlignment() throws Exception {
+        RenditionPlanner planner = new RenditionPlanner(budgetPhoneAvc());
+
+        VideoProfile proxy = planner.planProxy(MASTER, 480, 30, 0);
+
+        // 1920 * 480 / 880 = 1047, aligned down to 16 pixels
+        assertEquals(1040, proxy.width);
+        assertEquals(480, proxy.height);
+        assertEquals(30, proxy.frameRate);
+        assertEquals(MASTER.encoderName, proxy.encoderName);
+        assertEquals(MASTER.mime, proxy.mime);
+        assertEquals(MASTER.keyFrameIntervalSec, proxy.keyFrameIntervalSec);
+        // same bits per pixel as the master
+        assertEquals((int) (12000000.0 * 1040 * 480 / (1920 * 880)), proxy.bitrate);
+    }
+
+    @Test
+    public void proxyFrameRateDividesTheMasters() {
+        assertEquals(30, RenditionPlanner.frameRateFor(60, 30));
+        assertEquals(25, RenditionPlanner.frameRateFor(50, 30));
+        assertEquals(24, RenditionPlanner.frameRateFor(24, 30));
+        assertEquals(15, RenditionPlanner.frameRateFor(30, 20));
+        assertEquals(1, RenditionPlanner.frameRateFor(7, 5));
+
+        VideoProfile master60 = new VideoProfile("c2.android.avc.encoder", TrackFormat.MIME_AVC, 2400, 1080, 60,
+                30000000, 5);
+        VideoProfile proxy = new RenditionPlanner(null).planProxy(master60, 540, 30, 0);
+
+        assertEquals(30, proxy.frameRate);
+        // a quarter of the pixels at half the frame rate, more than an eighth of the bitrate
+        assertTrue(proxy.bitrate > 30000000 / 8);
+        assertTrue(proxy.bitrate < 30000000 / 4);
+    }
+
+    @Test
+    public void bitrateIsKeptAboveTheFloor() {
+        VideoProfile master = new VideoProfile(MASTER.encoderName, MASTER.mime, MASTER.width, MASTER.height,
+                MASTER.frameRate, 2000000, MASTER.keyFrameIntervalSec);
+
+        VideoProfile proxy = new RenditionPlanner(null).planProxy(master, 144, 30, 0);
+
+        assertEquals(RenditionPlanner.MIN_PROXY_BITRATE, proxy.bitrate);
+        assertEquals(144, proxy.height);
+        assertEquals(314, proxy.width);
+    }
+
+    @Test
+    public void explicitBitrateIsClampedByTheEncoder() throws Exception {
+        EncoderCapabilities encoder = budgetPhoneAvc();
+        RenditionPlanner planner = new RenditionPlanner(encoder);
+
+        assertEquals(1500000, planner.planProxy(MASTER, 480, 30, 1500000).bitrate);
+        assertEquals(encoder.minBitrate, planner.planProxy(MASTER, 480, 30, 1).bitrate);
+    }
+
+    @Test
+    public void shrinksUntilTheEncoderAcceptsTheSize() {
+        // an encoder that only takes sizes up to 640 pixels wide, aligned to 16
+        EncoderCapabilities encoder = new EncoderCapabilities("narrow", TrackFormat.MIME_AVC, true, 16, 16,
+                640, 640, 1600, 48000, 100000, 10000000);
+
+        VideoProfile proxy = new RenditionPlanner(encoder).planProxy(MASTER, 480, 30, 0);
+
+        assertTrue(encoder.supports(proxy.width, proxy.height, proxy.frameRate));
+        assertTrue(proxy.width <= 640);
+        // still close to the master's aspect ratio
+        assertEquals((double) MASTER.width / MASTER.height, (double) proxy.width / proxy.height, 0.1);
+    }
+
+    @Test
+    public void planListsTheMasterThenSmallerProxies() throws Exception {
+        RenditionPlanner planner = new RenditionPlanner(budgetPhoneAvc());
+
+        List<VideoProfile> renditions = planner.plan(MASTER, 240, 480, 480, 1080);
+
+        // 1080 is not smaller than the master, the second 480 not smaller than the first
+        assertEquals(3, renditions.size());
+        assertSame(MASTER, renditions.get(0));
+        assertEquals(480, renditions.get(1).height);
+        assertEquals(240, renditions.get(2).height);
+    }
+
+    @Test
+    public void noProxyForAMasterAlreadyThatSmall() {
+        VideoProfile small = new VideoProfile("c2.android.avc.encoder", TrackFormat.MIME_AVC, 640, 360, 30,
+                1000000, 5);
+
+        assertNull(new RenditionPlanner(null).planProxy(small, 480, 30, 0));
+        assertEquals(1, new RenditionPlanner(null).plan(small, 480).size());
+    }
+}
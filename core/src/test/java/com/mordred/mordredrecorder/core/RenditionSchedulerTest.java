@@ -0,0 +1,162 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static org.junit.Assert.*;
+
+public class RenditionSchedulerTest {
+
+    private static final long FRAME_60_US = 16667;
+
+    /** Encoder taking {@code processingUs} per frame, one frame at a time, in order. */
+    private static class FakeEncoder {
+        final RenditionScheduler scheduler;
+        final int rendition;
+        final long processingUs;
+        // finish time and timestamp of each queued frame
+        final Deque<long[]> queue = new ArrayDeque<>();
+        long busyUntilUs;
+        int maxQueued;
+        boolean stalled;
+
+        FakeEncoder(RenditionScheduler scheduler, int rendition, long processingUs) {
+            this.scheduler = scheduler;
+            this.rendition = rendition;
+            this.processingUs = processingUs;
+        }
+
+        void draw(long nowUs, long ptsUs) {
+            busyUntilUs = Math.max(busyUntilUs, nowUs) + processingUs;
+            queue.add(new long[] {busyUntilUs, ptsUs});
+            maxQueued = Math.max(maxQueued, queue.size());
+        }
+
+        /** Puts out the frames finished by {@code nowUs}. */
+        void advance(long nowUs) {
+            while (!stalled && !queue.isEmpty() && queue.peek()[0] <= nowUs) {
+                scheduler.onEncoded(rendition, queue.remove()[1]);
+            }
+        }
+    }
+
+    /** Feeds {@code frames} frames 60 a second from {@code startUs} and draws them as scheduled. */
+    private static void capture(RenditionScheduler scheduler, FakeEncoder[] encoders, long startUs, int frames) {
+        for (int frame = 0; frame < frames; frame++) {
+            // a little jitter, as capture timestamps have
+            final long ptsUs = startUs + frame * FRAME_60_US + (frame % 3 - 1) * 2000;
+            for (FakeEncoder encoder : encoders) {
+                encoder.advance(ptsUs);
+            }
+            final int targets = scheduler.onFrame(ptsUs);
+            for (int i = 0; i < encoders.length; i++) {
+                if ((targets & (1 << i)) != 0) {
+                    encoders[i].draw(ptsUs, ptsUs);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void fastProxyTakesEveryOtherFrame() {
+        RenditionScheduler scheduler = new RenditionScheduler(new int[] {60, 30});
+        FakeEncoder[] encoders = {new FakeEncoder(scheduler, 0, 8000), new FakeEncoder(scheduler, 1, 2000)};
+
+        capture(scheduler, encoders, 0, 600);
+
+        assertEquals(600, scheduler.getDrawnFrames(0));
+        assertEquals(300, scheduler.getDrawnFrames(1));
+        assertEquals(0, scheduler.getSkippedFrames(1));
+    }
+
+    @Test
+    public void slowProxySkipsFramesButTheMasterTakesEveryOne() {
+        RenditionScheduler scheduler = new RenditionScheduler(new int[] {60, 30});
+        // the proxy encodes 10 frames a second instead of 30
+        FakeEncoder[] encoders = {new FakeEncoder(scheduler, 0, 8000), new FakeEncoder(scheduler, 1, 100000)};
+
+        capture(scheduler, encoders, 0, 600);
+
+        assertEquals(600, scheduler.getDrawnFrames(0));
+        // never more queued than the limit, so drawing never blocks on the proxy
+        assertTrue(encoders[1].maxQueued <= RenditionScheduler.DEFAULT_MAX_IN_FLIGHT);
+        long proxyDrawn = scheduler.getDrawnFrames(1);
+        assertTrue(proxyDrawn >= 95 && proxyDrawn <= 105);
+        assertEquals(300, proxyDrawn + scheduler.getSkippedFrames(1));
+    }
+
+    @Test
+    public void stalledMasterIsStillDrawnEveryFrame() {
+        RenditionScheduler scheduler = new RenditionScheduler(new int[] {60, 30});
+        FakeEncoder[] encoders = {new FakeEncoder(scheduler, 0, 8000), new FakeEncoder(scheduler, 1, 2000)};
+        encoders[0].stalled = true;
+
+        capture(scheduler, encoders, 0, 120);
+
+        assertEquals(120, scheduler.getDrawnFrames(0));
+        assertEquals(RenditionScheduler.DEFAULT_MAX_IN_FLIGHT, scheduler.getInFlight(0));
+        assertEquals(60, scheduler.getDrawnFrames(1));
+    }
+
+    @Test
+    public void cadenceRestartsAfterAGap() {
+        RenditionScheduler scheduler = new RenditionScheduler(new int[] {60, 30});
+        FakeEncoder[] encoders = {new FakeEncoder(scheduler, 0, 8000), new FakeEncoder(scheduler, 1, 2000)};
+
+        capture(scheduler, encoders, 0, 60);
+        // a still screen produces no frames for two seconds
+        capture(scheduler, encoders, 3000000, 60);
+
+        // no catching up on the frames that were never captured
+        assertEquals(60, scheduler.getDrawnFrames(1));
+        assertEquals(0, scheduler.getSkippedFrames(1));
+    }
+
+    @Test
+    public void framesOfASuspendedEncoderGoStale() {
+        RenditionScheduler scheduler = new RenditionScheduler(new int[] {60, 30}, 2, 1000000);
+        FakeEncoder[] encoders = {new FakeEncoder(scheduler, 0, 8000), new FakeEncoder(scheduler, 1, 2000)};
+        encoders[1].stalled = true;
+
+        capture(scheduler, encoders, 0, 30);
+        assertEquals(2, scheduler.getDrawnFrames(1));
+        assertEquals(2, scheduler.getInFlight(1));
+
+        // resumed after the pause, the proxy takes frames again
+        encoders[1].stalled = false;
+        encoders[1].queue.clear();
+        capture(scheduler, encoders, 2000000, 60);
+
+        assertEquals(32, scheduler.getDrawnFrames(1));
+    }
+
+    @Test
+    public void encodedFrameCompletesTheFramesBeforeIt() {
+        RenditionScheduler scheduler = new RenditionScheduler(new int[] {30, 30});
+        scheduler.onFrame(0);
+        scheduler.onFrame(33333);
+        assertEquals(2, scheduler.getInFlight(1));
+
+        // the encoder dropped the first frame
+        scheduler.onEncoded(1, 33333);
+
+        assertEquals(0, scheduler.getInFlight(1));
+        assertEquals(2, scheduler.getInFlight(0));
+    }
+
+    @Test
+    public void countsDrawnAndSkippedFrames() {
+        RenditionScheduler scheduler = new RenditionScheduler(new int[] {30, 30}, 1, 1000000);
+        MetricsRegistry metrics = new MetricsRegistry();
+        scheduler.setMetrics(metrics, "video", "proxy");
+
+        assertEquals(3, scheduler.onFrame(0));
+        assertEquals(1, scheduler.onFrame(33333));
+
+        assertEquals(2, metrics.counter("video.drawn_frames").get());
+        assertEquals(1, metrics.counter("proxy.drawn_frames").get());
+        assertEquals(1, metrics.counter("proxy.skipped_frames").get());
+    }
+}
@@ -0,0 +1,200 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ReplayBufferTest {
+
+    private static final int VIDEO = 0;
+    private static final int AUDIO = 1;
+
+    private static ReplayBuffer started(int capacityBytes, int maxSamples) {
+        ReplayBuffer buffer = new ReplayBuffer(capacityBytes, maxSamples);
+        assertEquals(VIDEO, buffer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 640, 480)));
+        assertEquals(AUDIO, buffer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1)));
+        buffer.start();
+        return buffer;
+    }
+
+    private static void write(SampleMuxer muxer, int track, int sequence, int size, long ptsUs, boolean key)
+            throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(size + 3);
+        data.putInt(3, sequence);
+        data.put(size + 2, (byte) sequence);
+        SampleInfo info = new SampleInfo();
+        info.set(3, size, ptsUs, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+        muxer.writeSampleData(track, data, info);
+    }
+
+    /** 30 fps video with a key frame every {@code gop} frames and an audio frame per video frame. */
+    private static void record(ReplayBuffer buffer, int fromFrame, int toFrame, int gop, int videoSize)
+            throws IOException {
+        for (int frame = fromFrame; frame < toFrame; frame++) {
+            write(buffer, VIDEO, frame, videoSize, frame * 33333L, frame % gop == 0);
+            write(buffer, AUDIO, frame, 100, frame * 33333L + 10000, false);
+        }
+    }
+
+    @Test
+    public void memoryIsCappedByBytes() throws Exception {
+        ReplayBuffer buffer = started(100000, 100000);
+        record(buffer, 0, 3000, 30, 1000);
+        assertTrue(buffer.getUsedBytes() <= 100000);
+        // about 90 frames of 1100 bytes fit, fragmentation at the wrap costs at most one sample
+        assertTrue(buffer.getUsedBytes() > 100000 - 1100);
+        assertEquals(6000 - buffer.getSampleCount(), buffer.getEvictedSamples());
+    }
+
+    @Test
+    public void descriptorCountIsCappedToo() throws Exception {
+        ReplayBuffer buffer = started(1 << 20, 50);
+        record(buffer, 0, 100, 10, 100);
+        assertEquals(50, buffer.getSampleCount());
+        assertEquals(150, buffer.getEvictedSamples());
+    }
+
+    @Test
+    public void savesFromOldestKeyFrameWithRebasedTimestamps() throws Exception {
+        ReplayBuffer buffer = started(100000, 100000);
+        record(buffer, 0, 300, 30, 1000);
+        // the oldest samples are gone, so the oldest complete GOP starts at a later key frame,
+        // and the buffer is full, so the save skips that one too
+        RecordingMuxer out = new RecordingMuxer();
+        long durationUs = buffer.saveTo(out);
+        assertTrue(out.stopped);
+        assertEquals(2, out.tracks.size());
+
+        long[] first = out.samples.get(0);
+        assertEquals(VIDEO, first[0]);
+        assertEquals(0, first[1]);
+        int firstFrame = (int) first[2];
+        assertEquals(0, firstFrame % 30);
+        assertTrue(firstFrame >= 210);
+        assertEquals((299 - firstFrame) * 33333L + 10000, durationUs);
+        assertEquals(durationUs, buffer.getReplayDurationUs());
+        int expectedVideo = firstFrame;
+        for (long[] sample : out.samples) {
+            if (sample[0] == VIDEO) {
+                assertEquals(expectedVideo++, sample[2]);
+            }
+            assertTrue(sample[1] >= 0);
+        }
+        assertEquals(300, expectedVideo);
+        assertEquals(300 - firstFrame, out.countTrack(AUDIO));
+    }
+
+    @Test
+    public void samplesSurviveWrapAroundIntact() throws Exception {
+        ReplayBuffer buffer = started(10007, 1000);
+        for (int i = 0; i < 500; i++) {
+            write(buffer, VIDEO, i, 97 + i % 300, i * 1000L, i % 5 == 0);
+        }
+        final int[] checked = new int[1];
+        buffer.saveTo(new RecordingMuxer() {
+            @Override
+            public void writeSampleData(int trackIndex, ByteBuffer data, SampleInfo info) {
+                int sequence = data.getInt(info.offset);
+                assertEquals(97 + sequence % 300, info.size);
+                assertEquals((byte) sequence, data.get(info.offset + info.size - 1));
+                checked[0]++;
+            }
+        });
+        assertTrue(checked[0] > 10);
+    }
+
+    @Test
+    public void audioOnlyRecordingTreatsEverySampleAsKey() throws Exception {
+        ReplayBuffer buffer = new ReplayBuffer(1000, 100);
+        buffer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1));
+        buffer.start();
+        for (int i = 0; i < 20; i++) {
+            write(buffer, 0, i, 100, i * 23220L, false);
+        }
+        RecordingMuxer out = new RecordingMuxer();
+        buffer.saveTo(out);
+        // the buffer is full, so the oldest frame is about to go and the save skips it
+        assertEquals(9, out.samples.size());
+        assertEquals(11, out.samples.get(0)[2]);
+    }
+
+    @Test
+    public void oversizedSampleIsRejected() throws Exception {
+        ReplayBuffer buffer = started(1000, 10);
+        write(buffer, VIDEO, 0, 500, 0, true);
+        write(buffer, VIDEO, 1, 1001, 33333, false);
+        assertEquals(1, buffer.getRejectedSamples());
+        assertEquals(1, buffer.getSampleCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void saveWithoutKeyFrameFails() throws Exception {
+        ReplayBuffer buffer = started(1000, 10);
+        write(buffer, VIDEO, 0, 100, 0, false);
+        buffer.saveTo(new RecordingMuxer());
+    }
+
+    @Test
+    public void saveFromAFullBufferSkipsTheKeyFrameAboutToBeEvicted() throws Exception {
+        final ReplayBuffer buffer = started(1 << 20, 100000);
+        record(buffer, 0, 3000, 30, 2000);
+        final long startFrame = (2999 * 33333L + 10000 - buffer.getReplayDurationUs()) / 33333;
+        RecordingMuxer out = new RecordingMuxer() {
+            @Override
+            public void start() {
+                super.start();
+                // recording carries on, evicting most of a GOP, before the first sample is copied
+                try {
+                    record(buffer, 3000, 3025, 30, 2000);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        buffer.saveTo(out);
+
+        long[] first = out.samples.get(0);
+        assertEquals(VIDEO, first[0]);
+        assertEquals(0, first[1]);
+        assertEquals(0, startFrame % 30);
+        assertEquals(startFrame, first[2]);
+        assertEquals(2999, out.samples.get(out.samples.size() - 1)[2]);
+        // the key frame before it is gone, a save starting there would have failed
+        assertTrue(startFrame - 30 < 3025 - buffer.getSampleCount() / 2);
+    }
+
+    @Test
+    public void savingWhileRecordingKeepsTheSnapshot() throws Exception {
+        // room for everything, so the saver never races eviction however it is scheduled
+        final ReplayBuffer buffer = started(8 << 20, 100000);
+        record(buffer, 0, 900, 30, 2000);
+        final Thread recorder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    record(buffer, 900, 3000, 30, 2000);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        // recording carries on from the moment the save has taken its snapshot
+        RecordingMuxer out = new RecordingMuxer() {
+            @Override
+            public void start() {
+                super.start();
+                recorder.start();
+            }
+        };
+        buffer.saveTo(out);
+        recorder.join();
+        // everything up to the moment of the save, nothing recorded after it
+        assertEquals(2 * 900, out.samples.size());
+        assertEquals(899, out.samples.get(out.samples.size() - 1)[2]);
+        assertEquals(2 * 3000, buffer.getSampleCount());
+    }
+}
@@ -0,0 +1,95 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ResamplingJitterBufferTest {
+
+    private static final int CHUNK = 1024;
+
+    @Test
+    public void silenceUntilPrimedThenPassThrough() {
+        ResamplingJitterBuffer buffer = new ResamplingJitterBuffer(2, 64, 4);
+        short[] out = new short[8];
+        buffer.write(new short[] {1, -1, 2, -2}, 0, 2);
+        buffer.read(out, 0, 2);
+        assertArrayEquals(new short[8], out);
+        buffer.write(new short[] {3, -3, 4, -4, 5, -5, 6, -6}, 0, 4);
+        buffer.read(out, 0, 2);
+        assertArrayEquals(new short[] {1, -1, 2, -2, 0, 0, 0, 0}, out);
+        assertEquals(4, buffer.getLevel());
+    }
+
+    @Test
+    public void underrunIsPaddedWithSilence() {
+        ResamplingJitterBuffer buffer = new ResamplingJitterBuffer(1, 16, 2);
+        buffer.write(new short[] {10, 20, 30}, 0, 3);
+        short[] out = new short[5];
+        buffer.read(out, 0, 5);
+        assertEquals(10, out[0]);
+        assertEquals(0, out[4]);
+        assertTrue(buffer.getUnderrunFrames() > 0);
+    }
+
+    @Test
+    public void overflowDropsOldestFrames() {
+        ResamplingJitterBuffer buffer = new ResamplingJitterBuffer(1, 8, 2);
+        short[] in = new short[12];
+        for (int i = 0; i < in.length; i++) {
+            in[i] = (short) i;
+        }
+        buffer.write(in, 0, 12);
+        assertEquals(4, buffer.getOverflowFrames());
+        assertEquals(8, buffer.getLevel());
+        short[] out = new short[1];
+        buffer.read(out, 0, 1);
+        assertEquals(4, out[0]);
+    }
+
+    @Test
+    public void absorbsClockSkewInBothDirections() {
+        for (double ppm : new double[] {-1000, -300, 0, 300, 1000}) {
+            assertStable(ppm);
+        }
+    }
+
+    /** A secondary source running {@code ppm} fast delivers bursts of 10 ms reads. */
+    private static void assertStable(double ppm) {
+        final int target = 2 * CHUNK;
+        ResamplingJitterBuffer buffer = new ResamplingJitterBuffer(1, 8 * CHUNK, target);
+        Random random = new Random(3);
+        short[] in = new short[4 * CHUNK];
+        short[] out = new short[CHUNK];
+        double produced = 0;
+        long consumed = 0;
+        long written = 0;
+        long maxLevel = 0;
+        long minLevel = Long.MAX_VALUE;
+        // one hour of 1024 frame chunks at 44.1 kHz
+        for (int chunk = 0; chunk < 155000; chunk++) {
+            produced += CHUNK * (1 + ppm / 1000000);
+            while (written + 441 <= produced) {
+                int frames = 441 + random.nextInt(3) - 1;
+                for (int i = 0; i < frames; i++) {
+                    in[i] = (short) ((written + i) % 1000);
+                }
+                buffer.write(in, 0, frames);
+                written += frames;
+            }
+            buffer.read(out, 0, CHUNK);
+            consumed += CHUNK;
+            if (chunk > 2000) {
+                maxLevel = Math.max(maxLevel, buffer.getLevel());
+                minLevel = Math.min(minLevel, buffer.getLevel());
+            }
+        }
+        assertEquals("underruns at " + ppm, 0, buffer.getUnderrunFrames());
+        assertEquals("overflows at " + ppm, 0, buffer.getOverflowFrames());
+        assertTrue("level " + minLevel + ".." + maxLevel + " at " + ppm,
+                minLevel > CHUNK / 2 && maxLevel < 4 * CHUNK);
+        assertEquals(1 + ppm / 1000000, buffer.getRatio(), 0.0002);
+    }
+}
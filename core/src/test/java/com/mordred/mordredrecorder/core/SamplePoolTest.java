@@ -0,0 +1,111 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SamplePoolTest {
+
+    @Test
+    public void videoPoolIsSizedFromBitrateAndFrameRate() {
+        // 4 Mbps at 30 fps averages 16.6 KB per frame, slabs hold two frames
+        SamplePool pool = SamplePool.forVideo(4000000, 30);
+        assertEquals(36864, pool.getSlabSize());
+        assertEquals(30, pool.getSlabCount());
+    }
+
+    @Test
+    public void reusesReleasedSlabs() {
+        SamplePool pool = new SamplePool(1024, 2);
+        EncodedSample first = pool.acquire(0, 100);
+        EncodedSample second = pool.acquire(1, 100);
+        assertEquals(1, second.getTrack());
+        first.recycle();
+        EncodedSample third = pool.acquire(0, 100);
+        assertSame(first, third);
+        assertEquals(3, pool.getHits());
+        assertEquals(0, pool.getMisses());
+        assertEquals(2, pool.getHighWater());
+    }
+
+    @Test
+    public void growsForBurstsAndKeepsLargeSlabs() {
+        SamplePool pool = new SamplePool(4096, 1);
+        EncodedSample iFrame = pool.acquire(0, 50000);
+        assertTrue(iFrame.capacity() >= 50000);
+        EncodedSample pFrame = pool.acquire(0, 1000);
+        EncodedSample burst = pool.acquire(0, 1000);
+        assertEquals(2, pool.getMisses());
+        assertEquals(3, pool.getSlabCount());
+        iFrame.recycle();
+        pFrame.recycle();
+        burst.recycle();
+
+        // the next I-frame finds the grown slab instead of allocating again
+        assertSame(iFrame, pool.acquire(0, 40000));
+        assertEquals(2, pool.getMisses());
+    }
+
+    @Test
+    public void fillCopiesOnlyTheDescribedRegion() {
+        SamplePool pool = new SamplePool(64, 1);
+        ByteBuffer codecBuffer = ByteBuffer.allocate(16);
+        for (int i = 0; i < 16; i++) {
+            codecBuffer.put(i, (byte) i);
+        }
+        SampleInfo info = new SampleInfo();
+        info.set(4, 8, 1234, SampleInfo.FLAG_KEY_FRAME);
+
+        EncodedSample sample = pool.acquire(0, info.size);
+        sample.fill(codecBuffer, info);
+
+        assertEquals(0, codecBuffer.position());
+        assertEquals(16, codecBuffer.limit());
+        assertEquals(8, sample.getData().remaining());
+        assertEquals(4, sample.getData().get(0));
+        assertEquals(0, sample.info.offset);
+        assertEquals(1234, sample.info.presentationTimeUs);
+        assertTrue(sample.info.isKeyFrame());
+    }
+
+    /**
+     * Benchmark of the steady state path: after warm-up, a million acquire/fill/recycle
+     * cycles must not allocate on the heap.
+     */
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        SamplePool pool = SamplePool.forVideo(4000000, 30);
+        ByteBuffer codecBuffer = ByteBuffer.allocateDirect(200000);
+        SampleInfo info = new SampleInfo();
+        EncodedSample[] inFlight = new EncodedSample[16];
+
+        runCycles(pool, codecBuffer, info, inFlight, 200000);
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        runCycles(pool, codecBuffer, info, inFlight, 1000000);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        // a few bytes of slack for the allocation counter itself
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static void runCycles(SamplePool pool, ByteBuffer codecBuffer, SampleInfo info,
+                                  EncodedSample[] inFlight, int cycles) {
+        for (int i = 0; i < cycles; i++) {
+            // every 30th sample is a large I-frame
+            int size = i % 30 == 0 ? 150000 : 12000 + (i % 7) * 1000;
+            info.set(0, size, i * 33333L, i % 30 == 0 ? SampleInfo.FLAG_KEY_FRAME : 0);
+            int slot = i % inFlight.length;
+            if (inFlight[slot] != null) {
+                inFlight[slot].recycle();
+            }
+            inFlight[slot] = pool.acquire(0, size);
+            inFlight[slot].fill(codecBuffer, info);
+        }
+    }
+}
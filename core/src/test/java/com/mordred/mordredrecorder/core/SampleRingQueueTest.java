@@ -0,0 +1,60 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SampleRingQueueTest {
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        assertEquals(8, new SampleRingQueue<Integer>(5).capacity());
+        assertEquals(8, new SampleRingQueue<Integer>(8).capacity());
+    }
+
+    @Test
+    public void offerFailsWhenFullAndKeepsFifoOrder() {
+        SampleRingQueue<Integer> queue = new SampleRingQueue<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+        assertEquals(Integer.valueOf(0), queue.peek());
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(4));
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void concurrentProducerAndConsumerSeeEveryElementInOrder() throws Exception {
+        final int count = 1000000;
+        final SampleRingQueue<Integer> queue = new SampleRingQueue<>(64);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        int expected = 0;
+        while (expected < count) {
+            Integer value = queue.poll();
+            if (value == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected++, value.intValue());
+        }
+        producer.join();
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,154 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class SegmentingMuxerTest {
+
+    private final TimeZone defaultTimeZone = TimeZone.getDefault();
+    private File directory;
+    private SegmentNamer namer;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private final List<RecordingMuxer> muxers = new ArrayList<>();
+
+    private final MuxerFactory factory = new MuxerFactory() {
+        @Override
+        public SampleMuxer create(String outputFilePath) {
+            final String name = new File(outputFilePath).getName();
+            events.add("open " + name);
+            RecordingMuxer muxer = new RecordingMuxer() {
+                @Override
+                public void stop() {
+                    events.add("stop " + name);
+                    super.stop();
+                }
+            };
+            muxers.add(muxer);
+            return muxer;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("segments", "");
+        directory.delete();
+        directory.mkdirs();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        namer = new SegmentNamer(directory, "Record", 1647738405000L);
+    }
+
+    @After
+    public void tearDown() {
+        TimeZone.setDefault(defaultTimeZone);
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void namesSegmentsAfterTheSession() {
+        assertEquals("Record_20220320_010645", namer.getSessionName());
+        assertEquals("Record_20220320_010645.mp4", namer.singleFile().getName());
+        assertEquals("Record_20220320_010645_012.mp4", namer.segmentFile(12).getName());
+        assertEquals("Record_20220320_010645.manifest", namer.manifestFile().getName());
+    }
+
+    @Test
+    public void rotatesOnFirstKeyFrameAfterDurationLimit() throws Exception {
+        SegmentManifest manifest = new SegmentManifest(namer.manifestFile());
+        SegmentingMuxer muxer = new SegmentingMuxer(factory, namer, SegmentPolicy.byDuration(2500000), manifest);
+
+        // 10 s at 30 fps with a key frame every second
+        feed(muxer, 300, 30, 1000);
+        muxer.stop();
+        muxer.release();
+
+        List<Segment> segments = SegmentManifest.read(namer.manifestFile());
+        assertEquals(4, segments.size());
+        assertEquals(0, segments.get(0).startPtsUs);
+        assertEquals(3000000, segments.get(1).startPtsUs);
+        assertEquals(3000000, segments.get(0).durationUs);
+        assertEquals(9000000, segments.get(3).startPtsUs);
+        assertEquals(namer.segmentFile(2).getName(), segments.get(1).fileName);
+
+        // every segment starts with a key frame at time zero and no sample was lost
+        int total = 0;
+        for (RecordingMuxer segment : muxers) {
+            assertEquals(2, segment.tracks.size());
+            assertEquals(0, segment.samples.get(0)[1]);
+            total += segment.countTrack(0);
+        }
+        assertEquals(300, total);
+    }
+
+    @Test
+    public void opensNextSegmentBeforeClosingThePreviousOne() throws Exception {
+        SegmentingMuxer muxer = new SegmentingMuxer(factory, namer, SegmentPolicy.byDuration(1000000), null);
+        feed(muxer, 90, 30, 1000);
+        muxer.stop();
+
+        String first = namer.segmentFile(1).getName();
+        String second = namer.segmentFile(2).getName();
+        assertTrue(events.indexOf("open " + second) < events.indexOf("stop " + first));
+        assertEquals(3, muxer.getSegments().size());
+    }
+
+    @Test
+    public void rotatesBySizeOnlyOnKeyFrames() throws Exception {
+        SegmentingMuxer muxer = new SegmentingMuxer(factory, namer, SegmentPolicy.bySize(50000), null);
+        // 1000 byte frames: the limit is crossed after 50 frames, the next key frame is frame 60
+        feed(muxer, 120, 30, 1000);
+        muxer.stop();
+
+        List<Segment> segments = muxer.getSegments();
+        assertEquals(2, segments.size());
+        assertEquals(2000000, segments.get(1).startPtsUs);
+        assertEquals(60, muxers.get(0).countTrack(0));
+    }
+
+    @Test
+    public void audioOnlyRecordingRotatesOnAnySample() throws Exception {
+        SegmentingMuxer muxer = new SegmentingMuxer(factory, namer, SegmentPolicy.byDuration(1000000), null);
+        int audio = muxer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 48000, 2));
+        muxer.start();
+        SampleInfo info = new SampleInfo();
+        for (int i = 0; i < 100; i++) {
+            info.set(0, 100, i * 21333L, SampleInfo.FLAG_KEY_FRAME);
+            muxer.writeSampleData(audio, ByteBuffer.allocate(100), info);
+        }
+        muxer.stop();
+        assertEquals(3, muxer.getSegments().size());
+    }
+
+    /** Fake sample source: video frames with a key frame every {@code fps} frames plus AAC frames. */
+    private static void feed(SampleMuxer muxer, int frames, int fps, int frameSize) throws IOException {
+        int video = muxer.addTrack(TrackFormat.video(TrackFormat.MIME_AVC, 640, 480));
+        int audio = muxer.addTrack(TrackFormat.audio(TrackFormat.MIME_AAC, 44100, 1));
+        muxer.start();
+        SampleInfo info = new SampleInfo();
+        int audioFrame = 0;
+        for (int frame = 0; frame < frames; frame++) {
+            long pts = frame * 1000000L / fps;
+            while (audioFrame * 23220L < pts) {
+                info.set(0, 100, audioFrame++ * 23220L, SampleInfo.FLAG_KEY_FRAME);
+                muxer.writeSampleData(audio, ByteBuffer.allocate(100), info);
+            }
+            info.set(0, frameSize, pts, frame % fps == 0 ? SampleInfo.FLAG_KEY_FRAME : 0);
+            ByteBuffer data = ByteBuffer.allocate(frameSize);
+            data.putInt(0, frame);
+            muxer.writeSampleData(video, data, info);
+        }
+    }
+}
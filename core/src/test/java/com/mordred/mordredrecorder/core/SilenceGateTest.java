@@ -0,0 +1,190 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SilenceGateTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHUNK = SilenceGate.AAC_FRAME_SIZE;
+
+    /** A sine of {@code hz} with the given peak level, {@code CHUNK} frames per chunk. */
+    private static short[] sine(int channels, double hz, double peakDbfs, int chunk) {
+        short[] pcm = new short[CHUNK * channels];
+        double amplitude = 32767 * Math.pow(10, peakDbfs / 20);
+        for (int frame = 0; frame < CHUNK; frame++) {
+            double t = (double) (chunk * CHUNK + frame) / SAMPLE_RATE;
+            for (int channel = 0; channel < channels; channel++) {
+                pcm[frame * channels + channel] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * hz * t));
+            }
+        }
+        return pcm;
+    }
+
+    /** Uniform noise of {@code +-amplitude}. */
+    private static short[] noise(Random random, int channels, int amplitude) {
+        short[] pcm = new short[CHUNK * channels];
+        for (int i = 0; i < pcm.length; i++) {
+            pcm[i] = (short) (random.nextInt(2 * amplitude + 1) - amplitude);
+        }
+        return pcm;
+    }
+
+    /** Chunks of silence fed to {@code gate} until it closes, or -1 if it does not within 100. */
+    private static int chunksUntilClosed(SilenceGate gate, int channels) {
+        short[] silence = new short[CHUNK * channels];
+        for (int chunk = 1; chunk <= 100; chunk++) {
+            if (gate.gate(silence, 0, silence.length)) {
+                return chunk;
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void closesOnDigitalSilenceAfterTheHangover() {
+        SilenceGate gate = new SilenceGate(SAMPLE_RATE, 2, -70f, -60f, 100);
+
+        // 100 ms is 4800 frames: four chunks and a bit are still encoded
+        assertEquals(5, chunksUntilClosed(gate, 2));
+        assertTrue(gate.isClosed());
+        assertEquals(5 * CHUNK, gate.getFrames());
+        assertEquals(CHUNK, gate.getGatedFrames());
+        assertEquals(1, gate.getClosings());
+    }
+
+    @Test
+    public void zeroHangoverGatesTheFirstSilentChunk() {
+        SilenceGate gate = new SilenceGate(SAMPLE_RATE, 1, -70f, -60f, 0);
+
+        assertEquals(1, chunksUntilClosed(gate, 1));
+    }
+
+    @Test
+    public void neverClosesOnAudibleSignals() {
+        SilenceGate gate = new SilenceGate(SAMPLE_RATE, 2);
+        Random random = new Random(1);
+
+        for (int chunk = 0; chunk < 200; chunk++) {
+            assertFalse(gate.gate(sine(2, 440, -20, chunk), 0, CHUNK * 2));
+            assertFalse(gate.gate(sine(2, 12000, -50, chunk), 0, CHUNK * 2));
+            assertFalse(gate.gate(noise(random, 2, 100), 0, CHUNK * 2));
+        }
+        assertEquals(0, gate.getGatedFrames());
+        assertEquals(0, gate.getClosings());
+    }
+
+    @Test
+    public void closesOnNoiseBelowBothThresholds() {
+        SilenceGate gate = new SilenceGate(SAMPLE_RATE, 1, -70f, -60f, 0);
+        Random random = new Random(2);
+
+        // +-10 is about -70 dBFS peak and -75 dBFS RMS: dither on an otherwise silent stream
+        for (int chunk = 0; chunk < 50; chunk++) {
+            assertTrue(gate.gate(noise(random, 1, 10), 0, CHUNK));
+        }
+        assertEquals(50 * CHUNK, gate.getGatedFrames());
+    }
+
+    @Test
+    public void quietSineIsGatedByItsRmsLevel() {
+        // a sine's RMS is 3 dB below its peak
+        SilenceGate lowRms = new SilenceGate(SAMPLE_RATE, 1, -62f, -40f, 0);
+        SilenceGate highRms = new SilenceGate(SAMPLE_RATE, 1, -64f, -40f, 0);
+
+        for (int chunk = 0; chunk < 10; chunk++) {
+            short[] pcm = sine(1, 1000, -60, chunk);
+            assertTrue(lowRms.gate(pcm, 0, CHUNK));
+            assertFalse(highRms.gate(pcm, 0, CHUNK));
+        }
+    }
+
+    @Test
+    public void aSingleClickOpensTheGate() {
+        SilenceGate gate = new SilenceGate(SAMPLE_RATE, 1, -70f, -60f, 0);
+        short[] click = new short[CHUNK];
+        // far too short to lift the RMS of the chunk above -70 dBFS, but above the peak threshold
+        click[500] = 100;
+
+        assertEquals(1, chunksUntilClosed(gate, 1));
+        assertFalse(gate.gate(click, 0, CHUNK));
+        assertFalse(gate.isClosed());
+        assertEquals(1, chunksUntilClosed(gate, 1));
+        assertEquals(2, gate.getClosings());
+    }
+
+    @Test
+    public void soundRestartsTheHangover() {
+        SilenceGate gate = new SilenceGate(SAMPLE_RATE, 1, -70f, -60f, 100);
+        short[] silence = new short[CHUNK];
+
+        for (int i = 0; i < 4; i++) {
+            assertFalse(gate.gate(silence, 0, CHUNK));
+        }
+        assertFalse(gate.gate(sine(1, 440, -20, 0), 0, CHUNK));
+        assertEquals(5, chunksUntilClosed(gate, 1));
+    }
+
+    @Test
+    public void readsPcmFromByteBuffersInTheirByteOrder() {
+        Random random = new Random(3);
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            SilenceGate arrays = new SilenceGate(SAMPLE_RATE, 2, -70f, -60f, 50);
+            SilenceGate buffers = new SilenceGate(SAMPLE_RATE, 2, -70f, -60f, 50);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(16 + CHUNK * 4).order(order);
+            for (int chunk = 0; chunk < 100; chunk++) {
+                short[] pcm = chunk % 20 < 10 ? noise(random, 2, 8) : sine(2, 300, -30, chunk);
+                for (int i = 0; i < pcm.length; i++) {
+                    buffer.putShort(16 + 2 * i, pcm[i]);
+                }
+                assertEquals("chunk " + chunk, arrays.gate(pcm, 0, pcm.length),
+                        buffers.gate(buffer, 16, pcm.length * 2));
+            }
+            assertEquals(0, buffer.position());
+            assertTrue(buffers.getGatedFrames() > 0);
+            assertEquals(arrays.getGatedFrames(), buffers.getGatedFrames());
+        }
+    }
+
+    @Test
+    public void offsetsSelectTheChunk() {
+        SilenceGate gate = new SilenceGate(SAMPLE_RATE, 1, -70f, -60f, 0);
+        short[] pcm = new short[2 * CHUNK];
+        pcm[0] = 20000;
+
+        assertTrue(gate.gate(pcm, CHUNK, CHUNK));
+        assertFalse(gate.gate(pcm, 0, CHUNK));
+    }
+
+    @Test
+    public void silentFramesHoldNoSpectralData() {
+        // SCE, tag 0, global_gain 100, long window, max_sfb 0, no tools, END
+        ByteBuffer mono = SilenceGate.silentAacFrame(1);
+        assertEquals(4, mono.remaining());
+        assertEquals(0x00c80007, mono.getInt(0));
+
+        // CPE, tag 0, no common window, two empty channel streams of 22 bits each, END
+        ByteBuffer stereo = SilenceGate.silentAacFrame(2);
+        assertEquals(7, stereo.remaining());
+        assertEquals(0x20, stereo.get(0) & 0xff);
+        assertEquals(100, stereo.get(1) & 0xff);
+        // the second global_gain starts 30 bits in, the END element ends at bit 55
+        assertEquals(100, (stereo.get(3) & 3) << 6 | (stereo.get(4) & 0xff) >>> 2);
+        assertEquals(0x0e, stereo.get(6) & 0xff);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAPositiveThreshold() {
+        new SilenceGate(SAMPLE_RATE, 2, 3f, -60f, 500);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noSilentFrameForSurroundSound() {
+        SilenceGate.silentAacFrame(6);
+    }
+}
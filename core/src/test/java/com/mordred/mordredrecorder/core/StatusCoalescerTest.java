@@ -0,0 +1,152 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StatusCoalescerTest {
+
+    private static final long INTERVAL_NS = 250000000L;
+
+    private final FakeTimeSource time = new FakeTimeSource(0);
+    private final List<Long> dueTimes = new ArrayList<>();
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final List<RecordingStatus> received = new ArrayList<>();
+    private StatusCoalescer coalescer;
+
+    private final StatusCoalescer.Listener listener = new StatusCoalescer.Listener() {
+        @Override
+        public void onStatus(RecordingStatus status) {
+            received.add(status);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        coalescer = new StatusCoalescer(new StatusCoalescer.Scheduler() {
+            @Override
+            public void schedule(Runnable task, long delayNs) {
+                dueTimes.add(time.nanoTime() + delayNs);
+                tasks.add(task);
+            }
+        }, time, INTERVAL_NS);
+    }
+
+    /** Advances the clock, running the tasks that fall due on the way. */
+    private void advanceMs(long ms) {
+        final long end = time.nanoTime() + ms * 1000000;
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < tasks.size(); i++) {
+                if (dueTimes.get(i) <= end && (next < 0 || dueTimes.get(i) < dueTimes.get(next))) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            time.set(Math.max(time.nanoTime(), dueTimes.remove(next)));
+            tasks.remove(next).run();
+        }
+        time.set(end);
+    }
+
+    private static RecordingStatus recording(long elapsedMs) {
+        return new RecordingStatus(RecordingStatus.State.RECORDING, elapsedMs * 1000, elapsedMs * 1000, 8000000, 0,
+                StorageStatus.Level.OK);
+    }
+
+    @Test
+    public void newListenerGetsTheLatestStatus() {
+        coalescer.addListener(listener);
+        advanceMs(0);
+
+        assertEquals(1, received.size());
+        assertSame(RecordingStatus.STOPPED, received.get(0));
+    }
+
+    @Test
+    public void capsTheDeliveryRate() {
+        coalescer.addListener(listener);
+        advanceMs(0);
+        received.clear();
+
+        // published every 10 ms for one second
+        for (int ms = 0; ms < 1000; ms += 10) {
+            coalescer.publish(recording(ms));
+            advanceMs(10);
+        }
+        advanceMs(1000);
+
+        // the first change right away, then at most one per interval
+        assertTrue(received.size() >= 4 && received.size() <= 5);
+        assertEquals(recording(990), received.get(received.size() - 1));
+    }
+
+    @Test
+    public void deliversOnlyTheLastOfABurst() {
+        coalescer.addListener(listener);
+        coalescer.publish(recording(0));
+        advanceMs(0);
+        received.clear();
+
+        coalescer.publish(recording(10));
+        coalescer.publish(recording(20));
+        coalescer.publish(recording(30));
+        advanceMs(100);
+        assertTrue(received.isEmpty());
+        advanceMs(200);
+
+        assertEquals(1, received.size());
+        assertEquals(recording(30), received.get(0));
+    }
+
+    @Test
+    public void skipsUnchangedStatus() {
+        coalescer.addListener(listener);
+        advanceMs(0);
+        received.clear();
+        coalescer.publish(recording(100));
+        advanceMs(500);
+        coalescer.publish(recording(100));
+        advanceMs(500);
+
+        assertEquals(1, received.size());
+        assertEquals(recording(100), received.get(0));
+    }
+
+    @Test
+    public void stateChangeIsDeliveredRightAway() {
+        coalescer.addListener(listener);
+        coalescer.publish(recording(0));
+        advanceMs(0);
+        coalescer.publish(recording(10));
+        received.clear();
+
+        RecordingStatus paused = new RecordingStatus(RecordingStatus.State.PAUSED, 10000, 10000, 8000000, 0,
+                StorageStatus.Level.OK);
+        coalescer.publish(paused);
+        advanceMs(0);
+
+        assertEquals(1, received.size());
+        assertEquals(paused, received.get(0));
+        // the update it replaced is not delivered afterwards
+        advanceMs(1000);
+        assertEquals(1, received.size());
+    }
+
+    @Test
+    public void removedListenerHearsNothing() {
+        coalescer.addListener(listener);
+        coalescer.removeListener(listener);
+        coalescer.publish(recording(0));
+        advanceMs(1000);
+
+        assertTrue(received.isEmpty());
+        assertEquals(recording(0), coalescer.getLatest());
+    }
+}
@@ -0,0 +1,172 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StorageMonitorTest {
+
+    private static final long MB = 1024 * 1024;
+    private static final long SECOND_NS = 1000000000L;
+
+    private final FakeTimeSource time = new FakeTimeSource(0);
+
+    private StorageMonitor monitor(ThrottledFileChannel disk) {
+        // 1 MB reserve, critical under 5 s, low under 20 s
+        return new StorageMonitor(disk, time, MB, 5000000, 20000000);
+    }
+
+    /** Writes {@code bytes} in 64 KB chunks spread over one second. */
+    private void writeSecond(FileChannel channel, int bytes) throws IOException {
+        final long end = time.nanoTime() + SECOND_NS;
+        for (int i = 0; i < bytes; i += 64 * 1024) {
+            channel.write(ByteBuffer.allocate(Math.min(64 * 1024, bytes - i)));
+        }
+        time.set(Math.max(time.nanoTime(), end));
+    }
+
+    @Test
+    public void preallocatesInExtentsAndCutsTheTailOnClose() throws Exception {
+        ThrottledFileChannel disk = new ThrottledFileChannel(time, 100 * MB, 100 * MB);
+        StorageMonitor monitor = monitor(disk);
+        StorageWriter writer = new StorageWriter(disk, disk, monitor, time, MB);
+
+        writer.write(ByteBuffer.allocate(1000));
+        assertEquals(1, disk.allocations);
+        assertEquals(MB, disk.size());
+        assertEquals(1000, writer.size());
+        // preallocated space counts as free
+        assertEquals(100 * MB - 1000, monitor.check().freeBytes);
+
+        writer.write(new ByteBuffer[] {ByteBuffer.allocate((int) MB), ByteBuffer.allocate(10)}, 0, 2);
+        assertEquals(2, disk.allocations);
+        assertEquals(2 * MB, writer.getAllocatedEnd());
+        assertEquals(MB + 1010, writer.size());
+
+        writer.close();
+        assertEquals(MB + 1010, disk.size());
+        assertEquals(100 * MB - MB - 1010, monitor.check().freeBytes);
+    }
+
+    @Test
+    public void keepsWritingWhenPreallocationIsNotSupported() throws Exception {
+        ThrottledFileChannel disk = new ThrottledFileChannel(time, 100 * MB, 100 * MB);
+        StorageWriter writer = new StorageWriter(disk, new StorageWriter.Allocator() {
+            @Override
+            public boolean allocate(long position, long length) throws IOException {
+                throw new IOException("Operation not supported");
+            }
+        }, monitor(disk), time, MB);
+
+        writer.write(ByteBuffer.allocate(1000));
+        writer.write(ByteBuffer.allocate(1000));
+
+        assertFalse(writer.isPreallocating());
+        assertEquals(2000, disk.size());
+        assertEquals(StorageStatus.Level.OK, monitor(disk).check().level);
+    }
+
+    @Test
+    public void levelDropsAsTheDiskFills() throws Exception {
+        ThrottledFileChannel disk = new ThrottledFileChannel(time, 40 * MB, 100 * MB);
+        StorageMonitor monitor = monitor(disk);
+        StorageWriter writer = new StorageWriter(disk, disk, monitor, time, MB);
+        List<StorageStatus.Level> levels = new ArrayList<>();
+
+        for (int second = 0; second < 60; second++) {
+            writeSecond(writer, (int) MB);
+            StorageStatus status = monitor.check();
+            if (levels.isEmpty() || levels.get(levels.size() - 1) != status.level) {
+                levels.add(status.level);
+            }
+            if (status.level == StorageStatus.Level.LOW_SPACE) {
+                // lasts the low threshold at the suggested rate
+                assertEquals((status.freeBytes - MB) / 20, status.maxDataRateBytesPerSec);
+            }
+            if (status.level == StorageStatus.Level.CRITICAL) {
+                assertTrue(status.remainingUs < 5000000);
+                break;
+            }
+        }
+
+        assertEquals(3, levels.size());
+        assertEquals(StorageStatus.Level.OK, levels.get(0));
+        assertEquals(StorageStatus.Level.LOW_SPACE, levels.get(1));
+        assertEquals(StorageStatus.Level.CRITICAL, levels.get(2));
+        assertTrue(disk.size() < 40 * MB);
+    }
+
+    @Test
+    public void slowDiskLimitsTheDataRate() throws Exception {
+        ThrottledFileChannel disk = new ThrottledFileChannel(time, 1000 * MB, 10 * MB);
+        StorageMonitor monitor = monitor(disk);
+        StorageWriter writer = new StorageWriter(disk, disk, monitor, time, MB);
+
+        for (int second = 0; second < 5; second++) {
+            writeSecond(writer, (int) MB);
+        }
+        assertEquals(StorageStatus.Level.OK, monitor.check().level);
+
+        disk.setBytesPerSecond((long) (1.1 * MB));
+        for (int second = 0; second < 25; second++) {
+            writeSecond(writer, (int) MB);
+        }
+        StorageStatus status = monitor.check();
+
+        assertEquals(StorageStatus.Level.SLOW, status.level);
+        assertEquals(1.1 * MB, status.writeBandwidthBytesPerSec, 0.01 * MB);
+        assertEquals(0.8 * status.writeBandwidthBytesPerSec, status.maxDataRateBytesPerSec, 1);
+    }
+
+    @Test
+    public void failedAllocationIsCritical() throws Exception {
+        ThrottledFileChannel disk = new ThrottledFileChannel(time, 10 * MB, 100 * MB);
+        StorageMonitor monitor = monitor(disk);
+        StorageWriter writer = new StorageWriter(disk, disk, monitor, time, 16 * MB);
+
+        writer.write(ByteBuffer.allocate(1000));
+
+        assertFalse(writer.isPreallocating());
+        assertEquals(1000, disk.size());
+        assertEquals(StorageStatus.Level.CRITICAL, monitor.check().level);
+        assertEquals(0, monitor.check().maxDataRateBytesPerSec);
+    }
+
+    @Test
+    public void recordingStoppedWhenCriticalIsComplete() throws Exception {
+        ThrottledFileChannel disk = new ThrottledFileChannel(time, 30 * MB, 100 * MB);
+        StorageMonitor monitor = monitor(disk);
+        FragmentedMp4Muxer muxer = new FragmentedMp4Muxer(new StorageWriter(disk, disk, monitor, time, MB), 1000000);
+        int video = muxer.addTrack(FragmentedMp4MuxerTest.videoFormat());
+        muxer.start();
+        SampleInfo info = new SampleInfo();
+        int frame = 0;
+
+        // 30 fps at about 6 Mbit/s until the monitor says stop
+        while (monitor.check().level != StorageStatus.Level.CRITICAL) {
+            final long second = time.nanoTime() + SECOND_NS;
+            for (int i = 0; i < 30; i++, frame++) {
+                boolean key = frame % 30 == 0;
+                ByteBuffer sample = FragmentedMp4MuxerTest.videoSample(frame, key, 25000);
+                info.set(0, sample.remaining(), frame * 1000000L / 30, key ? SampleInfo.FLAG_KEY_FRAME : 0);
+                muxer.writeSampleData(video, sample, info);
+            }
+            time.set(Math.max(time.nanoTime(), second));
+        }
+        muxer.stop();
+        muxer.release();
+
+        assertTrue(frame > 300);
+        assertTrue(disk.size() < 30 * MB);
+        Mp4Index index = Mp4Index.read(disk);
+        assertEquals(disk.size(), index.getFileSize());
+        assertEquals(frame, index.getVideoTrack().getSampleCount());
+        assertEquals(frame / 30, index.getVideoTrack().getSyncSampleCount());
+    }
+}
@@ -0,0 +1,182 @@
+package com.mordred.mordredrecorder.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * In-memory {@link FileChannel} on a disk of fixed capacity that takes {@code bytesPerSecond},
+ * advancing a {@link FakeTimeSource} by the time each write takes. It also serves as the free
+ * space and the allocator of the disk.
+ */
+class ThrottledFileChannel extends FileChannel implements StorageMonitor.FreeSpace, StorageWriter.Allocator {
+
+    private final FakeTimeSource time;
+    private final long capacity;
+    private long bytesPerSecond;
+    private byte[] data = new byte[0];
+    private int size;
+    private long position;
+    int allocations;
+
+    ThrottledFileChannel(FakeTimeSource time, long capacity, long bytesPerSecond) {
+        this.time = time;
+        this.capacity = capacity;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /** The file contents up to its current size. */
+    byte[] toByteArray() {
+        return Arrays.copyOf(data, size);
+    }
+
+    @Override
+    public long getUsableSpace() {
+        return capacity - size;
+    }
+
+    @Override
+    public boolean allocate(long position, long length) {
+        if (position + length > capacity) {
+            return false;
+        }
+        allocations++;
+        grow(position + length);
+        return true;
+    }
+
+    private void grow(long end) {
+        if (end > data.length) {
+            data = Arrays.copyOf(data, (int) Math.max(end, data.length * 2L));
+        }
+        if (end > size) {
+            Arrays.fill(data, size, (int) end, (byte) 0);
+        }
+        size = (int) Math.max(size, end);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+        final int length = src.remaining();
+        if (position + length > capacity) {
+            throw new IOException("No space left on device");
+        }
+        grow(position + length);
+        src.get(data, (int) position, length);
+        time.advanceUs(length * 1000000L / bytesPerSecond);
+        return length;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        final int written = write(src, position);
+        position += written;
+        return written;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long written = 0;
+        for (int i = offset; i < offset + length; i++) {
+            written += write(srcs[i]);
+        }
+        return written;
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) {
+        if (position >= size) {
+            return -1;
+        }
+        final int length = (int) Math.min(dst.remaining(), size - position);
+        dst.put(data, (int) position, length);
+        return length;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        final int read = read(dst, position);
+        if (read > 0) {
+            position += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) {
+        long read = 0;
+        for (int i = offset; i < offset + length; i++) {
+            final int n = read(dsts[i]);
+            if (n <= 0) {
+                break;
+            }
+            read += n;
+        }
+        return read;
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public FileChannel position(long newPosition) {
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public FileChannel truncate(long newSize) {
+        size = (int) Math.min(size, newSize);
+        position = Math.min(position, newSize);
+        return this;
+    }
+
+    @Override
+    public void force(boolean metaData) {
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    protected void implCloseChannel() {
+    }
+}
@@ -0,0 +1,161 @@
+package com.mordred.mordredrecorder.core;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static com.mordred.mordredrecorder.core.EncoderCapabilitiesCacheTest.BUDGET_PHONE;
+import static com.mordred.mordredrecorder.core.EncoderCapabilitiesCacheTest.EMULATOR;
+import static com.mordred.mordredrecorder.core.EncoderCapabilitiesCacheTest.PIXEL_6;
+import static com.mordred.mordredrecorder.core.EncoderCapabilitiesCacheTest.fixture;
+import static org.junit.Assert.*;
+
+public class VideoProfileSelectorTest {
+
+    private static final String[] HEVC_FIRST = {TrackFormat.MIME_HEVC, TrackFormat.MIME_AVC};
+
+    @Test
+    public void standardTierKeepsTheOldSettingsOnCapableHardware() throws Exception {
+        VideoProfileSelector selector = new VideoProfileSelector(fixture("pixel6.tsv", PIXEL_6),
+                TrackFormat.MIME_AVC);
+
+        VideoProfile profile = selector.select(1080, 2400, QualityTier.STANDARD);
+
+        assertEquals("c2.exynos.h264.encoder", profile.encoderName);
+        assertEquals(864, profile.width);
+        assertEquals(1920, profile.height);
+        assertEquals(30, profile.frameRate);
+        // 0.25 bits per pixel, as the recorder always used
+        assertEquals((int) (0.25 * 864 * 1920 * 30), profile.bitrate);
+        assertEquals(5, profile.keyFrameIntervalSec);
+    }
+
+    @Test
+    public void prefersHardwareHevcAtLowerBitrate() throws Exception {
+        VideoProfileSelector selector = new VideoProfileSelector(fixture("pixel6.tsv", PIXEL_6), HEVC_FIRST);
+
+        VideoProfile profile = selector.select(1080, 2400, QualityTier.STANDARD);
+
+        assertEquals("c2.exynos.hevc.encoder", profile.encoderName);
+        assertEquals(TrackFormat.MIME_HEVC, profile.mime);
+        assertEquals((int) (0.25 * 864 * 1920 * 30 * VideoProfileSelector.HEVC_BITRATE_FACTOR), profile.bitrate);
+    }
+
+    @Test
+    public void maxTierRecordsUpToTheEncoderSizeAt60Fps() throws Exception {
+        VideoProfileSelector selector = new VideoProfileSelector(fixture("pixel6.tsv", PIXEL_6), HEVC_FIRST);
+
+        VideoProfile landscape = selector.select(2400, 1080, QualityTier.MAX);
+        VideoProfile portrait = selector.select(1080, 2400, QualityTier.MAX);
+
+        assertEquals(2400, landscape.width);
+        assertEquals(1080, landscape.height);
+        assertEquals(60, landscape.frameRate);
+        // the encoder takes at most 2304 lines
+        assertEquals(1036, portrait.width);
+        assertEquals(2304, portrait.height);
+        assertEquals(60, portrait.frameRate);
+        // doubling the frame rate costs less than twice the bitrate
+        assertTrue(landscape.bitrate < VideoProfileSelector.bitrateFor(QualityTier.MAX, TrackFormat.MIME_HEVC,
+                2400, 1080, 30) * 2);
+    }
+
+    @Test
+    public void encoderLimitedTo1080p30DropsTo30FpsBeforeShrinking() throws Exception {
+        VideoProfileSelector selector = new VideoProfileSelector(fixture("budget_phone.tsv", BUDGET_PHONE),
+                HEVC_FIRST);
+
+        VideoProfile profile = selector.select(2340, 1080, QualityTier.HIGH);
+
+        assertEquals("OMX.Exynos.AVC.Encoder", profile.encoderName);
+        assertEquals(30, profile.frameRate);
+        // 1920 / 2340 of the display height, aligned down to the encoder's 16 pixels
+        assertEquals(1920, profile.width);
+        assertEquals(880, profile.height);
+    }
+
+    @Test
+    public void sizesAreAlignedForTheEncoder() throws Exception {
+        VideoProfileSelector selector = new VideoProfileSelector(fixture("budget_phone.tsv", BUDGET_PHONE),
+                TrackFormat.MIME_AVC);
+
+        VideoProfile profile = selector.select(2340, 1080, QualityTier.LOW);
+
+        assertEquals(1280, profile.width);
+        assertEquals(576, profile.height);
+        assertEquals(0, profile.width % 16);
+        assertEquals(0, profile.height % 16);
+    }
+
+    @Test
+    public void sideScaledToTheTierBoxIsNotRoundedDown() throws Exception {
+        VideoProfileSelector selector = new VideoProfileSelector(fixture("pixel6.tsv", PIXEL_6),
+                TrackFormat.MIME_AVC);
+
+        // 2778 * (1920.0 / 2778) comes out at 1919.9999999999998
+        VideoProfile profile = selector.select(1284, 2778, QualityTier.STANDARD);
+
+        assertEquals(1920, profile.height);
+    }
+
+    @Test
+    public void softwareEncoderShrinksTheFrameToKeepUpWith60Fps() throws Exception {
+        List<EncoderCapabilities> encoders = fixture("emulator.tsv", EMULATOR);
+        VideoProfileSelector selector = new VideoProfileSelector(encoders, HEVC_FIRST);
+
+        VideoProfile profile = selector.select(1080, 1920, QualityTier.HIGH);
+
+        EncoderCapabilities avc = encoders.get(0);
+        assertEquals(avc.name, profile.encoderName);
+        assertEquals(60, profile.frameRate);
+        assertTrue(avc.supports(profile.width, profile.height, 60));
+        // close to the encoder's throughput
+        assertTrue(EncoderCapabilities.blocks(profile.width, profile.height) * 60 > 0.9 * avc.maxBlocksPerSecond);
+        assertTrue(profile.width >= QualityTier.HIGH.minShortSide);
+        assertEquals(1920.0 / 1080, (double) profile.height / profile.width, 0.01);
+    }
+
+    @Test
+    public void fallsBelowTheTierMinimumOnlyWhenNothingElseFits() throws Exception {
+        VideoProfileSelector selector = new VideoProfileSelector(fixture("emulator.tsv", EMULATOR),
+                TrackFormat.MIME_HEVC);
+
+        VideoProfile profile = selector.select(1080, 2400, QualityTier.STANDARD);
+
+        assertEquals("c2.android.hevc.encoder", profile.encoderName);
+        assertTrue(profile.height <= 512);
+        assertTrue(profile.width < QualityTier.STANDARD.minShortSide);
+        assertEquals(30, profile.frameRate);
+    }
+
+    @Test
+    public void smallDisplayIsNeverUpscaled() throws Exception {
+        VideoProfileSelector selector = new VideoProfileSelector(fixture("pixel6.tsv", PIXEL_6), HEVC_FIRST);
+
+        VideoProfile profile = selector.select(640, 480, QualityTier.HIGH);
+
+        assertEquals(640, profile.width);
+        assertEquals(480, profile.height);
+        assertEquals(60, profile.frameRate);
+    }
+
+    @Test
+    public void bitrateIsClampedToTheEncoderRange() {
+        EncoderCapabilities encoder = new EncoderCapabilities("slow.avc", TrackFormat.MIME_AVC, true,
+                2, 2, 1920, 1088, 8160, 244800, 500000, 2000000);
+        VideoProfileSelector selector = new VideoProfileSelector(Collections.singletonList(encoder),
+                TrackFormat.MIME_AVC);
+
+        assertEquals(2000000, selector.select(1920, 1080, QualityTier.STANDARD).bitrate);
+        assertEquals(500000, selector.select(160, 120, QualityTier.LOW).bitrate);
+    }
+
+    @Test
+    public void noEncoderForTheAllowedCodecs() throws Exception {
+        VideoProfileSelector selector = new VideoProfileSelector(fixture("budget_phone.tsv", BUDGET_PHONE),
+                TrackFormat.MIME_HEVC);
+
+        assertNull(selector.select(1920, 1080, QualityTier.STANDARD));
+    }
+}